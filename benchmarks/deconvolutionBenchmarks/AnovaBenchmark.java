@@ -0,0 +1,43 @@
+package deconvolutionBenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import deconvolution.Deconvolution;
+
+/**
+ * ANOVA p-value of full model vs ct model, with the degrees of freedom of 4 celltypes. The sum of squares of the
+ * ct model sets the F-value, from not significant (F ~ 1) to very significant (F ~ 1000)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnovaBenchmark {
+	@Param({"500", "2000", "30000"})
+	private int numberOfSamples;
+
+	@Param({"1", "10", "1000"})
+	private double fValue;
+
+	@Benchmark
+	public double anova(){
+		int degreesOfFreedomFullModel = numberOfSamples - 9;
+		int degreesOfFreedomCtModel = numberOfSamples - 8;
+		double sumOfSquaresFullModel = degreesOfFreedomFullModel + 1;
+		double sumOfSquaresCtModel = sumOfSquaresFullModel + fValue;
+		return Deconvolution.anova(sumOfSquaresFullModel, sumOfSquaresCtModel, degreesOfFreedomFullModel, degreesOfFreedomCtModel, true);
+	}
+}
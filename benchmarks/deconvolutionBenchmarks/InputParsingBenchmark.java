@@ -0,0 +1,58 @@
+package deconvolutionBenchmarks;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import deconvolution.ExpressionData;
+import deconvolution.GenotypeData;
+
+/**
+ * Reading the expression and genotype files
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InputParsingBenchmark {
+	@Param({"1000", "10000"})
+	private int numberOfRows;
+
+	@Param({"500", "2000"})
+	private int numberOfSamples;
+
+	private File expressionFile;
+	private File genotypeFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception{
+		Random random = new Random(42);
+		expressionFile = SyntheticData.writeMatrixFile("gene", numberOfRows, numberOfSamples, false, random);
+		genotypeFile = SyntheticData.writeMatrixFile("snp", numberOfRows, numberOfSamples, true, random);
+	}
+
+	@Benchmark
+	public ExpressionData readExpression() throws Exception{
+		return new ExpressionData(expressionFile.getAbsolutePath());
+	}
+
+	@Benchmark
+	public GenotypeData readGenotypes() throws Exception{
+		return new GenotypeData(genotypeFile.getAbsolutePath());
+	}
+}
@@ -0,0 +1,87 @@
+package deconvolutionBenchmarks;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import deconvolution.CellCount;
+import deconvolution.InteractionModelCollection;
+
+/**
+ * Building all interaction models of one QTL and selecting the best full and ct models, for the different
+ * genotype configuration types (-gc). CellCount keeps its data in static fields, so every parameter
+ * combination needs its own fork.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InteractionModelCollectionBenchmark {
+	@Param({"4", "6", "8"})
+	private int numberOfCelltypes;
+
+	@Param({"one", "two", "all"})
+	private String genotypeConfigurationType;
+
+	@Param({"500", "2000"})
+	private int numberOfSamples;
+
+	private CellCount cellCount;
+	private double[] genotypes;
+	private double[] expression;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception{
+		Random random = new Random(42);
+		double[][] cellcounts = SyntheticData.cellcounts(numberOfSamples, numberOfCelltypes, random);
+		File cellcountFile = SyntheticData.writeCellcountFile(cellcounts);
+		cellCount = new CellCount(cellcountFile.getAbsolutePath());
+		genotypes = SyntheticData.genotypes(numberOfSamples, 0.3, random);
+		double[] effects = new double[numberOfCelltypes];
+		effects[0] = 0.2;
+		expression = SyntheticData.expression(cellcounts, genotypes, effects, random);
+	}
+
+	/**
+	 * Only making the observed value matrices of all models
+	 */
+	@Benchmark
+	public InteractionModelCollection buildModels() throws Exception{
+		InteractionModelCollection interactionModelCollection = new InteractionModelCollection(cellCount, genotypeConfigurationType);
+		interactionModelCollection.setGenotypes(genotypes);
+		interactionModelCollection.setExpressionValues(expression);
+		interactionModelCollection.createObservedValueMatricesFullModel();
+		interactionModelCollection.createObservedValueMatricesCtModels();
+		return interactionModelCollection;
+	}
+
+	/**
+	 * Everything that Deconvolution does per QTL with the models: build, find best full model, find best ct models
+	 */
+	@Benchmark
+	public InteractionModelCollection findBestModels() throws Exception{
+		InteractionModelCollection interactionModelCollection = new InteractionModelCollection(cellCount, genotypeConfigurationType);
+		interactionModelCollection.setGenotypes(genotypes);
+		interactionModelCollection.setExpressionValues(expression);
+		interactionModelCollection.createObservedValueMatricesFullModel();
+		interactionModelCollection.findBestFullModel();
+		interactionModelCollection.createObservedValueMatricesCtModels();
+		interactionModelCollection.findBestCtModel();
+		return interactionModelCollection;
+	}
+}
@@ -0,0 +1,64 @@
+package deconvolutionBenchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import deconvolution.NonNegativeLeastSquares;
+
+/**
+ * NNLS solve of one model at realistic number of samples (M) and terms (N, 2 * number of celltypes)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NonNegativeLeastSquaresBenchmark {
+	@Param({"500", "2000", "10000", "30000"})
+	private int numberOfSamples;
+
+	@Param({"8", "12", "16"})
+	private int numberOfTerms;
+
+	private double[][] observedValues;
+	private double[] expression;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		Random random = new Random(42);
+		observedValues = SyntheticData.nonNegativeMatrix(numberOfSamples, numberOfTerms, random);
+		double[] beta = new double[numberOfTerms];
+		for(int j = 0; j < numberOfTerms; ++j){
+			// half of the terms have no effect, so that the non-negative constraint is active
+			beta[j] = j % 2 == 0 ? random.nextDouble() : -random.nextDouble();
+		}
+		expression = new double[numberOfSamples];
+		for(int i = 0; i < numberOfSamples; ++i){
+			for(int j = 0; j < numberOfTerms; ++j){
+				expression[i] += beta[j] * observedValues[i][j];
+			}
+			expression[i] += random.nextGaussian() * 10;
+		}
+	}
+
+	@Benchmark
+	public double newSampleData(){
+		NonNegativeLeastSquares nnls = new NonNegativeLeastSquares();
+		nnls.newSampleData(expression, observedValues);
+		return nnls.estimateRegressionParameters()[0];
+	}
+}
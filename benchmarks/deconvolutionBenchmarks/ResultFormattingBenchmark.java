@@ -0,0 +1,61 @@
+package deconvolutionBenchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import deconvolution.Utils;
+
+/**
+ * Formatting one output line of doubles (e.g. the predicted expression of one QTL), with String concatenation
+ * as the results were written before and with a reused StringBuilder as the ResultWriter lines are made now
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultFormattingBenchmark {
+	@Param({"20", "2000"})
+	private int numberOfValues;
+
+	private double[] values;
+	private StringBuilder line = new StringBuilder();
+
+	@Setup(Level.Trial)
+	public void setup(){
+		Random random = new Random(42);
+		values = new double[numberOfValues];
+		for(int i = 0; i < numberOfValues; ++i){
+			values[i] = random.nextDouble() * 100;
+		}
+	}
+
+	@Benchmark
+	public int stringConcatenation(){
+		String results = "";
+		results += "gene_snp"+"\t"+Utils.listToTabSeparatedString(values);
+		return results.length();
+	}
+
+	@Benchmark
+	public int reusedStringBuilder(){
+		line.setLength(0);
+		line.append("gene_snp").append('\t');
+		Utils.appendTabSeparated(line, values);
+		return line.length();
+	}
+}
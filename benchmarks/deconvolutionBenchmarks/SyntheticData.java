@@ -0,0 +1,132 @@
+package deconvolutionBenchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Synthetic data for the benchmarks. All data is generated from a seeded Random so that every benchmark
+ * run gets the same input.
+ */
+public class SyntheticData {
+	public SyntheticData(){};
+
+	/**
+	 * Cellcount percentages with for each sample a random fraction per celltype, summing to 100
+	 *
+	 * @return [sample][celltype] matrix
+	 */
+	public static double[][] cellcounts(int numberOfSamples, int numberOfCelltypes, Random random){
+		double[][] cellcounts = new double[numberOfSamples][numberOfCelltypes];
+		for(int i = 0; i < numberOfSamples; ++i){
+			double sum = 0;
+			for(int j = 0; j < numberOfCelltypes; ++j){
+				// first celltypes are more abundant, as in blood
+				cellcounts[i][j] = random.nextDouble() * (numberOfCelltypes - j);
+				sum += cellcounts[i][j];
+			}
+			for(int j = 0; j < numberOfCelltypes; ++j){
+				cellcounts[i][j] = 100 * cellcounts[i][j] / sum;
+			}
+		}
+		return cellcounts;
+	}
+
+	/**
+	 * Genotype dosages 0, 1 or 2 in Hardy-Weinberg equilibrium with allele frequency maf
+	 */
+	public static double[] genotypes(int numberOfSamples, double maf, Random random){
+		double[] genotypes = new double[numberOfSamples];
+		for(int i = 0; i < numberOfSamples; ++i){
+			genotypes[i] = (random.nextDouble() < maf ? 1 : 0) + (random.nextDouble() < maf ? 1 : 0);
+		}
+		return genotypes;
+	}
+
+	/**
+	 * Expression as sum over celltypes of cellcount * (1 + effect * genotype) plus normal noise.
+	 *
+	 * @param effects Effect of the genotype per celltype, 0 for no cell type specific eQTL
+	 */
+	public static double[] expression(double[][] cellcounts, double[] genotypes, double[] effects, Random random){
+		double[] expression = new double[genotypes.length];
+		for(int i = 0; i < genotypes.length; ++i){
+			double value = 0;
+			for(int j = 0; j < effects.length; ++j){
+				value += cellcounts[i][j] * (1 + effects[j] * genotypes[i]);
+			}
+			expression[i] = value + random.nextGaussian();
+		}
+		return expression;
+	}
+
+	/**
+	 * Non-negative random matrix, used as observed values for NNLS
+	 */
+	public static double[][] nonNegativeMatrix(int rows, int columns, Random random){
+		double[][] matrix = new double[rows][columns];
+		for(int i = 0; i < rows; ++i){
+			for(int j = 0; j < columns; ++j){
+				matrix[i][j] = random.nextDouble() * 100;
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * Write cellcount file in the format CellCount reads: header with celltype names, one row per sample
+	 */
+	public static File writeCellcountFile(double[][] cellcounts) throws IOException{
+		File file = File.createTempFile("cellcounts", ".txt");
+		file.deleteOnExit();
+		try(BufferedWriter writer = Files.newBufferedWriter(file.toPath(), Charset.forName("UTF-8"))){
+			for(int j = 0; j < cellcounts[0].length; ++j){
+				writer.write("\tcelltype"+j);
+			}
+			writer.newLine();
+			for(int i = 0; i < cellcounts.length; ++i){
+				writer.write("sample"+i);
+				for(int j = 0; j < cellcounts[i].length; ++j){
+					writer.write("\t"+cellcounts[i][j]);
+				}
+				writer.newLine();
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Write expression or genotype file in the format ExpressionData and GenotypeData read: header with sample names,
+	 * one row per gene or SNP
+	 *
+	 * @param rowPrefix Prefix of the row names, e.g. gene or snp
+	 *
+	 * @param genotypes If true write dosages 0/1/2, otherwise write expression levels
+	 */
+	public static File writeMatrixFile(String rowPrefix, int numberOfRows, int numberOfSamples, boolean genotypes, Random random) throws IOException{
+		File file = File.createTempFile(rowPrefix, ".txt");
+		file.deleteOnExit();
+		try(BufferedWriter writer = Files.newBufferedWriter(file.toPath(), Charset.forName("UTF-8"))){
+			for(int i = 0; i < numberOfSamples; ++i){
+				writer.write("\tsample"+i);
+			}
+			writer.newLine();
+			for(int row = 0; row < numberOfRows; ++row){
+				writer.write(rowPrefix+row);
+				for(int i = 0; i < numberOfSamples; ++i){
+					if(genotypes){
+						writer.write("\t"+((random.nextDouble() < 0.3 ? 1 : 0) + (random.nextDouble() < 0.3 ? 1 : 0)));
+					}
+					else{
+						writer.write("\t"+random.nextDouble() * 1000);
+					}
+				}
+				writer.newLine();
+			}
+		}
+		return file;
+	}
+}
@@ -0,0 +1,240 @@
+package deconvolution;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read deconvolution results written by BinaryResultWriter (-bo). The columns are memory-mapped, so values are
+ * read from the page cache when they are used and nothing is parsed. A column is mapped in parts of at most
+ * maximumMappingSize bytes (a mapping can not be larger than 2 GB), so columns of any size can be read. E.g. the QTLs with a p-value below 0.05 in any celltype:
+ *
+ * 		BinaryResultReader results = new BinaryResultReader(Paths.get("deconvolutionResults.bin"));
+ * 		for(int row : results.filterByPvalue(0.05)){
+ * 			System.out.println(results.getQtlName(row)+"\t"+results.getDouble("Neut_pvalue", row));
+ * 		}
+ */
+public class BinaryResultReader {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// largest multiple of 8 that fits in one mapping
+	private static final int MAXIMUM_MAPPING_SIZE = Integer.MAX_VALUE & ~7;
+	private int numberOfQtls;
+	private List<String> columnNames = new ArrayList<String>();
+	private Map<String, MappedColumn> doubleColumns = new HashMap<String, MappedColumn>();
+	private Map<String, MappedColumn> byteColumns = new HashMap<String, MappedColumn>();
+	private MappedColumn qtlNameOffsets;
+	private MappedColumn qtlNameBytes;
+
+	/**
+	 * Column that is mapped in parts of at most partSize bytes
+	 */
+	private static class MappedColumn {
+		private ByteBuffer[] parts;
+		private int partSize;
+
+		MappedColumn(FileChannel channel, long offset, long length, int partSize) throws IOException{
+			this.partSize = partSize;
+			parts = new ByteBuffer[(int) Math.max(1, (length + partSize - 1) / partSize)];
+			for(int part = 0; part < parts.length; ++part){
+				long partOffset = (long) part * partSize;
+				parts[part] = map(channel, offset + partOffset, Math.min(partSize, length - partOffset));
+			}
+		}
+
+		byte getByte(long index){
+			return parts[(int) (index / partSize)].get((int) (index % partSize));
+		}
+
+		long getLong(long index){
+			long position = index * Long.BYTES;
+			return parts[(int) (position / partSize)].getLong((int) (position % partSize));
+		}
+
+		double getDouble(long index){
+			long position = index * Double.BYTES;
+			return parts[(int) (position / partSize)].getDouble((int) (position % partSize));
+		}
+
+		/**
+		 * Bytes from position on, these can be in more than one part
+		 */
+		void getBytes(long position, byte[] bytes){
+			int copied = 0;
+			while(copied < bytes.length){
+				ByteBuffer part = parts[(int) ((position + copied) / partSize)].duplicate();
+				part.position((int) ((position + copied) % partSize));
+				int length = Math.min(part.remaining(), bytes.length - copied);
+				part.get(bytes, copied, length);
+				copied += length;
+			}
+		}
+	}
+
+	/**
+	 * Map the columns of file. The file can be closed by the operating system after this, the mapped columns stay valid
+	 */
+	public BinaryResultReader(Path file) throws IOException{
+		this(file, MAXIMUM_MAPPING_SIZE);
+	}
+
+	/**
+	 * Map the columns of file in parts of at most maximumMappingSize bytes
+	 *
+	 * @param maximumMappingSize Maximum size of one mapping, a multiple of 8
+	 */
+	public BinaryResultReader(Path file, int maximumMappingSize) throws IOException{
+		if(maximumMappingSize <= 0 || maximumMappingSize % 8 != 0){
+			throw new IllegalArgumentException(String.format("Maximum mapping size should be a positive multiple of 8, not %d", maximumMappingSize));
+		}
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			long size = channel.size();
+			if(size < 32){
+				throw new RuntimeException(String.format("%s is not a binary deconvolution results file", file));
+			}
+			ByteBuffer header = map(channel, 0, 16);
+			ByteBuffer trailer = map(channel, size - 16, 16);
+			if(header.getLong(0) != BinaryResultWriter.MAGIC || trailer.getLong(8) != BinaryResultWriter.MAGIC){
+				throw new RuntimeException(String.format("%s is not a binary deconvolution results file", file));
+			}
+			if(header.getInt(8) != BinaryResultWriter.VERSION){
+				throw new RuntimeException(String.format("%s has version %d of the binary format, can only read version %d",
+						file, header.getInt(8), BinaryResultWriter.VERSION));
+			}
+			numberOfQtls = header.getInt(12);
+			long footerOffset = trailer.getLong(0);
+			ByteBuffer footer = map(channel, footerOffset, size - 16 - footerOffset);
+			int numberOfColumns = footer.getInt();
+			for(int column = 0; column < numberOfColumns; ++column){
+				byte[] name = new byte[footer.getInt()];
+				footer.get(name);
+				String columnName = new String(name, UTF8);
+				byte type = footer.get();
+				long offset = footer.getLong();
+				long length = footer.getLong();
+				columnNames.add(columnName);
+				switch(type){
+				case BinaryResultWriter.STRING_COLUMN:
+					long offsetsLength = Long.BYTES * (numberOfQtls + 1L);
+					qtlNameOffsets = new MappedColumn(channel, offset, offsetsLength, maximumMappingSize);
+					qtlNameBytes = new MappedColumn(channel, offset + offsetsLength, length - offsetsLength, maximumMappingSize);
+					break;
+				case BinaryResultWriter.BYTE_COLUMN:
+					byteColumns.put(columnName, new MappedColumn(channel, offset, length, maximumMappingSize));
+					break;
+				case BinaryResultWriter.DOUBLE_COLUMN:
+					doubleColumns.put(columnName, new MappedColumn(channel, offset, length, maximumMappingSize));
+					break;
+				default:
+					throw new RuntimeException(String.format("Unknown type %d of column %s in %s", type, columnName, file));
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException{
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int getNumberOfQtls(){
+		return numberOfQtls;
+	}
+
+	/**
+	 * Names of the columns, in the order of the text output. The first column is the QTL name
+	 */
+	public List<String> getColumnNames(){
+		return columnNames;
+	}
+
+	public String getQtlName(int row){
+		long start = qtlNameOffsets.getLong(row);
+		byte[] name = new byte[(int) (qtlNameOffsets.getLong(row + 1) - start)];
+		qtlNameBytes.getBytes(start, name);
+		return new String(name, UTF8);
+	}
+
+	private MappedColumn getMappedDoubleColumn(String columnName){
+		MappedColumn column = doubleColumns.get(columnName);
+		if(column == null){
+			throw new IllegalArgumentException(String.format("No column %s with numbers, columns are: %s", columnName, columnNames));
+		}
+		return column;
+	}
+
+	/**
+	 * All values of a column, e.g. Neut_pvalue or Beta1_Neut. The buffer is read-only and maps the file. Only for
+	 * columns that fit in one mapping, use getDouble() for larger columns
+	 */
+	public DoubleBuffer getDoubleColumn(String columnName){
+		MappedColumn column = getMappedDoubleColumn(columnName);
+		if(column.parts.length > 1){
+			throw new IllegalStateException(String.format("Column %s is larger than one mapping, use getDouble()", columnName));
+		}
+		return column.parts[0].duplicate().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+	}
+
+	public double getDouble(String columnName, int row){
+		return getMappedDoubleColumn(columnName).getDouble(row);
+	}
+
+	/**
+	 * Effect direction of dosage 2 in a celltype, 1 for + and -1 for -, 0 for NA (QTL filtered without -f)
+	 *
+	 * @param columnName e.g. effectDirectionDosage2_Neut
+	 */
+	public byte getEffectDirection(String columnName, int row){
+		MappedColumn column = byteColumns.get(columnName);
+		if(column == null){
+			throw new IllegalArgumentException(String.format("No effect direction column %s, columns are: %s", columnName, columnNames));
+		}
+		return column.getByte(row);
+	}
+
+	/**
+	 * Rows (in the order of the file) where the value of columnName is below threshold
+	 */
+	public int[] filterByPvalue(String columnName, double threshold){
+		MappedColumn column = getMappedDoubleColumn(columnName);
+		int[] rows = new int[numberOfQtls];
+		int numberOfRows = 0;
+		for(int row = 0; row < numberOfQtls; ++row){
+			if(column.getDouble(row) < threshold){
+				rows[numberOfRows++] = row;
+			}
+		}
+		return Arrays.copyOf(rows, numberOfRows);
+	}
+
+	/**
+	 * Rows (in the order of the file) where the p-value of at least one celltype (columns <celltype>_pvalue) is below threshold
+	 */
+	public int[] filterByPvalue(double threshold){
+		List<MappedColumn> pvalueColumns = new ArrayList<MappedColumn>();
+		for(String columnName : columnNames){
+			if(columnName.endsWith("_pvalue")){
+				pvalueColumns.add(getMappedDoubleColumn(columnName));
+			}
+		}
+		int[] rows = new int[numberOfQtls];
+		int numberOfRows = 0;
+		for(int row = 0; row < numberOfQtls; ++row){
+			for(MappedColumn pvalueColumn : pvalueColumns){
+				if(pvalueColumn.getDouble(row) < threshold){
+					rows[numberOfRows++] = row;
+					break;
+				}
+			}
+		}
+		return Arrays.copyOf(rows, numberOfRows);
+	}
+}
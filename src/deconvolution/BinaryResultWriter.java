@@ -0,0 +1,363 @@
+package deconvolution;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Write the deconvolution results in a binary columnar format, so that downstream analysis does not have to parse
+ * the text output again. Read the file with BinaryResultReader.
+ *
+ * The values of a QTL are added with addRow() as soon as it is done (or with addLine() for results that are only
+ * available as text, e.g. from a checkpoint or the shards of MergeShards). Rows are kept in memory per block of
+ * ROWS_PER_BLOCK QTLs, full blocks are spilled to a temporary file next to the output, so memory use does not grow
+ * with the number of QTLs. Columns that need all QTLs (the permutation FDR) are added at the end with addColumn().
+ * write() copies the blocks of each column from the spill file into the output file.
+ *
+ * Layout of the file (little-endian, all blocks start at a multiple of 8 bytes):
+ *
+ * 		header:		long MAGIC, int VERSION, int number of QTLs
+ * 		QTL names:	long[number of QTLs + 1] offsets into the name bytes, followed by the UTF-8 bytes of all names
+ * 		columns:	per double column double[number of QTLs], per effect direction column byte[number of QTLs] (1 = +, -1 = -, 0 = NA)
+ * 		footer:		int number of columns, per column: int name length, UTF-8 name, byte type, long offset, long length in bytes
+ * 		trailer:	long offset of the footer, long MAGIC
+ */
+public class BinaryResultWriter implements Closeable {
+	// "DECONBIN" as ASCII
+	public static final long MAGIC = 0x4445434f4e42494eL;
+	// version 2: long name offsets, so that the names can be larger than 2 GB
+	public static final int VERSION = 2;
+	public static final byte STRING_COLUMN = 0;
+	public static final byte DOUBLE_COLUMN = 1;
+	public static final byte BYTE_COLUMN = 2;
+	public static final String QTL_NAME_COLUMN = "qtl";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int ROWS_PER_BLOCK = 1 << 16;
+	private Path file;
+	private Path spillFile;
+	private FileChannel spill;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	// bytes put in the spill file, including the bytes that are still in buffer
+	private long spillPosition = 0;
+	private List<String> columnNames = new ArrayList<String>();
+	private byte[] columnTypes;
+	// number of columns that are added per row, the columns after these are added with addColumn()
+	private int numberOfRowColumns;
+	private List<double[]> addedColumns = new ArrayList<double[]>();
+	// values of the rows of the block that is not spilled yet, [column][row in block], column 0 (QTL name) is not used
+	private double[][] blockValues;
+	private long[] blockNameOffsets = new long[ROWS_PER_BLOCK];
+	private byte[] blockNameBytes = new byte[BUFFER_SIZE];
+	private int blockNameBytesLength = 0;
+	private int rowsInBlock = 0;
+	// per spilled block: position in the spill file of the name offsets, name bytes and each column, and the number of rows
+	private List<long[]> blockPositions = new ArrayList<long[]>();
+	private List<Integer> blockRows = new ArrayList<Integer>();
+	private long nameBytesLength = 0;
+	private int numberOfQtls = 0;
+	private double[] lineValues;
+
+	/**
+	 * @param file File to write the binary results to, the spill file is written next to it
+	 *
+	 * @param header Header of the text output, the first (empty) column is the QTL name
+	 */
+	public BinaryResultWriter(Path file, CharSequence header) throws IOException{
+		this.file = file;
+		String[] headerColumns = header.toString().split("\t", -1);
+		numberOfRowColumns = headerColumns.length;
+		columnTypes = new byte[headerColumns.length];
+		for(int column = 0; column < headerColumns.length; ++column){
+			if(column == 0){
+				columnNames.add(QTL_NAME_COLUMN);
+				columnTypes[column] = STRING_COLUMN;
+				continue;
+			}
+			columnNames.add(headerColumns[column]);
+			columnTypes[column] = headerColumns[column].startsWith("effectDirectionDosage2_") ? BYTE_COLUMN : DOUBLE_COLUMN;
+		}
+		blockValues = new double[numberOfRowColumns][ROWS_PER_BLOCK];
+		lineValues = newRow();
+		spillFile = Paths.get(file.toString()+".spill");
+		spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Path of the binary results next to the text results, e.g. deconvolutionResults.csv -> deconvolutionResults.bin
+	 */
+	public static String getBinaryFileName(String outfile){
+		int extension = outfile.lastIndexOf('.');
+		return (extension > 0 ? outfile.substring(0, extension) : outfile)+".bin";
+	}
+
+	/**
+	 * @return Array for the values of one row (see addRow()), that can be reused for all rows
+	 */
+	public double[] newRow(){
+		return new double[numberOfRowColumns - 1];
+	}
+
+	/**
+	 * Add the values of one QTL
+	 *
+	 * @param values Value of every column after the QTL name, in the order of the header. Effect directions are 1 (+),
+	 * 		  -1 (-) or 0 (NA), NA values are NaN
+	 */
+	public void addRow(String qtlName, double[] values) throws IOException{
+		if(!addedColumns.isEmpty()){
+			throw new IllegalStateException("Can not add rows after addColumn()");
+		}
+		if(values.length != numberOfRowColumns - 1){
+			throw new IllegalArgumentException(String.format("%d values, but the header has %d columns after the QTL name", values.length, numberOfRowColumns - 1));
+		}
+		byte[] name = qtlName.getBytes(UTF8);
+		if(blockNameBytesLength + name.length > blockNameBytes.length){
+			blockNameBytes = Arrays.copyOf(blockNameBytes, Math.max(2 * blockNameBytes.length, blockNameBytesLength + name.length));
+		}
+		System.arraycopy(name, 0, blockNameBytes, blockNameBytesLength, name.length);
+		blockNameOffsets[rowsInBlock] = nameBytesLength;
+		blockNameBytesLength += name.length;
+		nameBytesLength += name.length;
+		for(int column = 1; column < numberOfRowColumns; ++column){
+			blockValues[column][rowsInBlock] = values[column - 1];
+		}
+		++rowsInBlock;
+		++numberOfQtls;
+		if(rowsInBlock == ROWS_PER_BLOCK){
+			spillBlock();
+		}
+	}
+
+	/**
+	 * Add the values of one line of the text output, for results that are only available as text (checkpoints and
+	 * shards). Results of QTLs that are deconvoluted in this run are added with addRow()
+	 */
+	public void addLine(CharSequence line) throws IOException{
+		String text = line.toString();
+		String qtlName = null;
+		int start = 0;
+		for(int column = 0; column < numberOfRowColumns; ++column){
+			int end = text.indexOf('\t', start);
+			if(end == -1){
+				end = text.length();
+				if(column < numberOfRowColumns - 1){
+					throw new RuntimeException(String.format("Line has %d columns, header has %d: %s", column + 1, numberOfRowColumns, text));
+				}
+			}
+			switch(columnTypes[column]){
+			case STRING_COLUMN:
+				qtlName = text.substring(start, end);
+				break;
+			case BYTE_COLUMN:
+				// NA (QTL filtered without -f) is 0
+				lineValues[column - 1] = text.charAt(start) == '-' ? -1 : text.charAt(start) == '+' ? 1 : 0;
+				break;
+			default:
+				String value = text.substring(start, end);
+				lineValues[column - 1] = value.equals("NA") ? Double.NaN : Double.parseDouble(value);
+			}
+			start = end + 1;
+		}
+		addRow(qtlName, lineValues);
+	}
+
+	/**
+	 * Add a column with the values of all QTLs (e.g. the permutation FDR), after the last row is added. Columns are
+	 * written after the columns of the header in the order they are added
+	 */
+	public void addColumn(String columnName, double[] values){
+		if(values.length != numberOfQtls){
+			throw new IllegalArgumentException(String.format("Column %s has %d values, but %d QTLs are added", columnName, values.length, numberOfQtls));
+		}
+		columnNames.add(columnName);
+		columnTypes = Arrays.copyOf(columnTypes, columnTypes.length + 1);
+		columnTypes[columnTypes.length - 1] = DOUBLE_COLUMN;
+		addedColumns.add(values);
+	}
+
+	/**
+	 * Spill the rows of the current block to the spill file: name offsets, name bytes and then the values per column
+	 */
+	private void spillBlock() throws IOException{
+		if(rowsInBlock == 0){
+			return;
+		}
+		long[] positions = new long[numberOfRowColumns + 1];
+		positions[0] = spillPosition;
+		for(int row = 0; row < rowsInBlock; ++row){
+			putLong(spill, blockNameOffsets[row]);
+		}
+		positions[1] = spillPosition;
+		putBytes(spill, blockNameBytes, blockNameBytesLength);
+		for(int column = 1; column < numberOfRowColumns; ++column){
+			positions[column + 1] = spillPosition;
+			double[] values = blockValues[column];
+			if(columnTypes[column] == BYTE_COLUMN){
+				for(int row = 0; row < rowsInBlock; ++row){
+					putByte(spill, (byte) values[row]);
+				}
+			}
+			else{
+				for(int row = 0; row < rowsInBlock; ++row){
+					putDouble(spill, values[row]);
+				}
+			}
+		}
+		blockPositions.add(positions);
+		blockRows.add(rowsInBlock);
+		rowsInBlock = 0;
+		blockNameBytesLength = 0;
+	}
+
+	/**
+	 * Write all added rows and columns to the file and remove the spill file
+	 */
+	public void write() throws IOException{
+		spillBlock();
+		flush(spill);
+		long[] columnOffsets = new long[columnTypes.length];
+		long[] columnLengths = new long[columnTypes.length];
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+			buffer.putLong(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(numberOfQtls);
+			flush(channel);
+			long position = Long.BYTES + 2 * Integer.BYTES;
+			for(int column = 0; column < columnTypes.length; ++column){
+				columnOffsets[column] = position;
+				if(column == 0){
+					for(int block = 0; block < blockPositions.size(); ++block){
+						copyFromSpill(channel, blockPositions.get(block)[0], (long) Long.BYTES * blockRows.get(block));
+					}
+					putLong(channel, nameBytesLength);
+					flush(channel);
+					for(long[] positions : blockPositions){
+						copyFromSpill(channel, positions[1], positions[2] - positions[1]);
+					}
+					columnLengths[column] = Long.BYTES * (numberOfQtls + 1L) + nameBytesLength;
+				}
+				else if(column < numberOfRowColumns){
+					int bytesPerValue = columnTypes[column] == BYTE_COLUMN ? 1 : Double.BYTES;
+					for(int block = 0; block < blockPositions.size(); ++block){
+						copyFromSpill(channel, blockPositions.get(block)[column + 1], (long) bytesPerValue * blockRows.get(block));
+					}
+					columnLengths[column] = (long) bytesPerValue * numberOfQtls;
+				}
+				else{
+					for(double value : addedColumns.get(column - numberOfRowColumns)){
+						putDouble(channel, value);
+					}
+					columnLengths[column] = (long) Double.BYTES * numberOfQtls;
+				}
+				position += columnLengths[column];
+				// start the next block at a multiple of 8 so that the reader can map it as a DoubleBuffer
+				while(position % 8 != 0){
+					putByte(channel, (byte) 0);
+					++position;
+				}
+				flush(channel);
+			}
+
+			long footerOffset = position;
+			putInt(channel, columnTypes.length);
+			for(int column = 0; column < columnTypes.length; ++column){
+				byte[] name = columnNames.get(column).getBytes(UTF8);
+				putInt(channel, name.length);
+				putBytes(channel, name, name.length);
+				putByte(channel, columnTypes[column]);
+				putLong(channel, columnOffsets[column]);
+				putLong(channel, columnLengths[column]);
+			}
+			putLong(channel, footerOffset);
+			putLong(channel, MAGIC);
+			flush(channel);
+		}
+		finally{
+			close();
+		}
+		DeconvolutionLogger.log.info(String.format("Binary deconvolution output written to %s", file.toAbsolutePath()));
+	}
+
+	/**
+	 * Remove the spill file, without writing the results if write() was not called (e.g. because the run failed)
+	 */
+	@Override
+	public void close() throws IOException{
+		if(spill != null){
+			spill.close();
+			spill = null;
+			Files.deleteIfExists(spillFile);
+		}
+	}
+
+	private void copyFromSpill(FileChannel channel, long position, long length) throws IOException{
+		flush(channel);
+		long end = position + length;
+		while(position < end){
+			position += spill.transferTo(position, end - position, channel);
+		}
+	}
+
+	private void putByte(FileChannel channel, byte value) throws IOException{
+		flushIfFull(channel, 1);
+		buffer.put(value);
+		++spillPosition;
+	}
+
+	private void putInt(FileChannel channel, int value) throws IOException{
+		flushIfFull(channel, Integer.BYTES);
+		buffer.putInt(value);
+		spillPosition += Integer.BYTES;
+	}
+
+	private void putLong(FileChannel channel, long value) throws IOException{
+		flushIfFull(channel, Long.BYTES);
+		buffer.putLong(value);
+		spillPosition += Long.BYTES;
+	}
+
+	private void putDouble(FileChannel channel, double value) throws IOException{
+		flushIfFull(channel, Double.BYTES);
+		buffer.putDouble(value);
+		spillPosition += Double.BYTES;
+	}
+
+	private void putBytes(FileChannel channel, byte[] bytes, int numberOfBytes) throws IOException{
+		int offset = 0;
+		while(offset < numberOfBytes){
+			if(!buffer.hasRemaining()){
+				flush(channel);
+			}
+			int length = Math.min(buffer.remaining(), numberOfBytes - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+		spillPosition += numberOfBytes;
+	}
+
+	private void flushIfFull(FileChannel channel, int numberOfBytes) throws IOException{
+		if(buffer.remaining() < numberOfBytes){
+			flush(channel);
+		}
+	}
+
+	private void flush(FileChannel channel) throws IOException{
+		buffer.flip();
+		while(buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,179 @@
+package deconvolution;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.math3.special.Beta;
+
+/**
+ * F-distribution of which the constants only depend on the degrees of freedom. Within one run almost all ANOVA tests
+ * have the same degrees of freedom, so one instance per (df1, df2) is made and cached with getFDistribution.
+ * The cache is shared by all deconvolutions in the JVM and is never cleared. The degrees of freedom only depend on
+ * the number of samples and celltypes, so it holds a few small entries per cohort, also in a long running server.
+ *
+ * The p-value is calculated directly as the upper tail of the distribution with the regularized incomplete beta
+ * function, instead of as 1 - cumulative probability, so that p-values down to 1e-300 do not get rounded to 0.
+ */
+public class CachedFDistribution {
+	private static final ConcurrentHashMap<Long, CachedFDistribution> fDistributions = new ConcurrentHashMap<Long, CachedFDistribution>();
+	private static final int MAX_ITERATIONS = 10000;
+	private static final double EPSILON = 1e-15;
+	// smallest value that is used in the continued fraction to prevent division by 0
+	private static final double TINY = 1e-300;
+	private final int degreesOfFreedomNumerator;
+	private final int degreesOfFreedomDenominator;
+	private final double a;
+	private final double b;
+	private final double logBeta;
+
+	private CachedFDistribution(int degreesOfFreedomNumerator, int degreesOfFreedomDenominator){
+		if(degreesOfFreedomNumerator <= 0 || degreesOfFreedomDenominator <= 0){
+			throw new IllegalArgumentException(String.format("Degrees of freedom of F-distribution should be larger than 0, were %d and %d",
+					degreesOfFreedomNumerator, degreesOfFreedomDenominator));
+		}
+		this.degreesOfFreedomNumerator = degreesOfFreedomNumerator;
+		this.degreesOfFreedomDenominator = degreesOfFreedomDenominator;
+		this.a = degreesOfFreedomNumerator / 2.0;
+		this.b = degreesOfFreedomDenominator / 2.0;
+		this.logBeta = Beta.logBeta(a, b);
+	}
+
+	/**
+	 * Get the F-distribution with the given degrees of freedom, only made the first time it is requested
+	 *
+	 * @param degreesOfFreedomNumerator Degrees of freedom of the numerator (df1)
+	 *
+	 * @param degreesOfFreedomDenominator Degrees of freedom of the denominator (df2)
+	 */
+	public static CachedFDistribution getFDistribution(int degreesOfFreedomNumerator, int degreesOfFreedomDenominator){
+		long key = ((long) degreesOfFreedomNumerator << 32) | (degreesOfFreedomDenominator & 0xffffffffL);
+		CachedFDistribution fDistribution = fDistributions.get(key);
+		if(fDistribution == null){
+			fDistribution = new CachedFDistribution(degreesOfFreedomNumerator, degreesOfFreedomDenominator);
+			fDistributions.putIfAbsent(key, fDistribution);
+		}
+		return fDistribution;
+	}
+
+	public int getDegreesOfFreedomNumerator(){
+		return degreesOfFreedomNumerator;
+	}
+
+	public int getDegreesOfFreedomDenominator(){
+		return degreesOfFreedomDenominator;
+	}
+
+	/**
+	 * Probability of observing an F-value larger than Fval, P(F > Fval) = I_(df2/(df2+df1*Fval))(df2/2, df1/2)
+	 *
+	 * @param Fval The F-value
+	 */
+	public double upperTail(double Fval){
+		if(Double.isNaN(Fval)){
+			return Double.NaN;
+		}
+		if(Fval <= 0){
+			return 1;
+		}
+		if(Double.isInfinite(Fval)){
+			return 0;
+		}
+		double x = getX(Fval);
+		double logFront = getLogFront(Fval);
+		if(x < (a + 1) / (a + b + 2)){
+			// continued fraction converges fast for I_x(a, b), upper tail is 1 - I_x(a, b) which is not close to 0 here
+			return 1 - Math.exp(logFront) * continuedFraction(a, b, x) / a;
+		}
+		// continued fraction converges fast for I_(1-x)(b, a), which is the upper tail
+		return Math.exp(logFront) * continuedFraction(b, a, 1 - x) / b;
+	}
+
+	/**
+	 * Natural log of the probability of observing an F-value larger than Fval. Calculated in log space, so 
+	 * also p-values smaller than the smallest double (~1e-308) can be compared.
+	 *
+	 * @param Fval The F-value
+	 */
+	public double logUpperTail(double Fval){
+		if(Double.isNaN(Fval)){
+			return Double.NaN;
+		}
+		if(Fval <= 0){
+			return 0;
+		}
+		if(Double.isInfinite(Fval)){
+			return Double.NEGATIVE_INFINITY;
+		}
+		double x = getX(Fval);
+		double logFront = getLogFront(Fval);
+		if(x < (a + 1) / (a + b + 2)){
+			return Math.log1p(-Math.exp(logFront) * continuedFraction(a, b, x) / a);
+		}
+		return logFront + Math.log(continuedFraction(b, a, 1 - x)) - Math.log(b);
+	}
+
+	/**
+	 * x = df1*F/(df1*F+df2)
+	 */
+	private double getX(double Fval){
+		double scaledF = degreesOfFreedomNumerator * Fval;
+		return scaledF / (scaledF + degreesOfFreedomDenominator);
+	}
+
+	/**
+	 * log(x^a * (1-x)^b / B(a,b)), with log(x) and log(1-x) calculated without subtracting from 1
+	 */
+	private double getLogFront(double Fval){
+		double scaledF = degreesOfFreedomNumerator * Fval;
+		double logDenominator = Math.log(scaledF + degreesOfFreedomDenominator);
+		double logX = Math.log(scaledF) - logDenominator;
+		double logOneMinusX = Math.log(degreesOfFreedomDenominator) - logDenominator;
+		return a * logX + b * logOneMinusX - logBeta;
+	}
+
+	/**
+	 * Continued fraction of the regularized incomplete beta function, evaluated with the modified Lentz method
+	 * (Numerical Recipes, section 6.4)
+	 */
+	private static double continuedFraction(double a, double b, double x){
+		double qab = a + b;
+		double qap = a + 1;
+		double qam = a - 1;
+		double c = 1;
+		double d = 1 - qab * x / qap;
+		if(Math.abs(d) < TINY){
+			d = TINY;
+		}
+		d = 1 / d;
+		double h = d;
+		for(int m = 1; m <= MAX_ITERATIONS; ++m){
+			int m2 = 2 * m;
+			double aa = m * (b - m) * x / ((qam + m2) * (a + m2));
+			d = 1 + aa * d;
+			if(Math.abs(d) < TINY){
+				d = TINY;
+			}
+			c = 1 + aa / c;
+			if(Math.abs(c) < TINY){
+				c = TINY;
+			}
+			d = 1 / d;
+			h *= d * c;
+			aa = -(a + m) * (qab + m) * x / ((a + m2) * (qap + m2));
+			d = 1 + aa * d;
+			if(Math.abs(d) < TINY){
+				d = TINY;
+			}
+			c = 1 + aa / c;
+			if(Math.abs(c) < TINY){
+				c = TINY;
+			}
+			d = 1 / d;
+			double delta = d * c;
+			h *= delta;
+			if(Math.abs(delta - 1) < EPSILON){
+				return h;
+			}
+		}
+		throw new TooManyIterationsException(String.format("Incomplete beta continued fraction did not converge for a=%f, b=%f, x=%f", a, b, x));
+	}
+}
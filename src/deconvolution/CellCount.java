@@ -2,76 +2,164 @@ package deconvolution;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import deconvolution.Utils;
 
+/**
+ * Cell counts of the samples, kept as one primitive column per celltype ([celltype][sample]). The model matrices of
+ * every QTL are built from these columns, so forms that are derived from them (relative cell counts) are made once
+ * and cached here instead of per QTL.
+ */
 public class CellCount {
 
-	private static List<String> celltypes = new ArrayList<String> ();
-	private static List<String> samplenames = new ArrayList<String> ();
-	private static double[][] cellcountPercentages;
-	private static List<List<String>> cellcountTable;
-	private static int numberOfCelltypes;
-	private static int numberOfSamples;
+	private List<String> celltypes = new ArrayList<String> ();
+	private List<String> samplenames = new ArrayList<String> ();
+	private double[][] cellcountsPerCelltype;
+	private int numberOfCelltypes;
+	private int numberOfSamples;
+	// made on first use by getRelativeCellCounts()
+	private CellCount relativeCellCounts;
 	public CellCount() {};
+
 	/**
-	 * Read in cellcount file 
-	 * 
-	 * @param cellcountFile File with cellcount percentages, 
-	 * 		   with columns = celltype, rows is samples (includes column headers and row names)   
+	 * Cell counts that are already in memory
+	 *
+	 * @param celltypes Names of the celltypes
+	 *
+	 * @param sampleNames Names of the samples
+	 *
+	 * @param cellcountPercentages Cellcount percentages as [sample][celltype]
+	 */
+	public CellCount(List<String> celltypes, List<String> sampleNames, double[][] cellcountPercentages){
+		if(cellcountPercentages.length != sampleNames.size()){
+			throw new IllegalArgumentException(String.format("%d samples, but cell counts of %d samples", sampleNames.size(), cellcountPercentages.length));
+		}
+		for(double[] sampleCellcounts : cellcountPercentages){
+			if(sampleCellcounts.length != celltypes.size()){
+				throw new IllegalArgumentException(String.format("%d celltypes, but a sample has %d cell counts", celltypes.size(), sampleCellcounts.length));
+			}
+		}
+		this.celltypes = new ArrayList<String>(celltypes);
+		this.samplenames = new ArrayList<String>(sampleNames);
+		this.numberOfCelltypes = celltypes.size();
+		this.numberOfSamples = sampleNames.size();
+		cellcountsPerCelltype = new double[numberOfCelltypes][numberOfSamples];
+		for(int sampleIndex = 0; sampleIndex < numberOfSamples; ++sampleIndex){
+			for(int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex){
+				cellcountsPerCelltype[celltypeIndex][sampleIndex] = cellcountPercentages[sampleIndex][celltypeIndex];
+			}
+		}
+	}
+
+	/**
+	 * Read in cellcount file. The values are parsed straight into the columns per celltype, the file is not kept as a
+	 * table of strings
+	 *
+	 * @param cellcountFile File with cellcount percentages,
+	 * 		   with columns = celltype, rows is samples (includes column headers and row names)
 	 */
-	@SuppressWarnings("unchecked")
 	public CellCount( String cellCountFile) throws IOException{
-		// the cell type names are the first row of cellcount file, extract for
-		// later printing
-		// is now saved as table of strings
-		Object[] cellCountData = Utils.readTabDelimitedColumns(cellCountFile);
-		samplenames = (ArrayList<String>) cellCountData[0];
-		cellcountTable = (List<List<String>>) cellCountData[1];
-		numberOfCelltypes = cellcountTable.size();
+		List<double[]> cellcountsPerSample = new ArrayList<double[]>();
+		try(ReadAheadLineIterator cellcountIterator = new ReadAheadLineIterator(cellCountFile)){
+			// header can start from 0 if it is R styled, so only the columns with a value are celltypes
+			for(String celltype : cellcountIterator.next().split("\t", -1)){
+				if(celltype.length() > 0){
+					celltypes.add(celltype);
+				}
+			}
+			numberOfCelltypes = celltypes.size();
+			int rowNumber = 1;
+			while(cellcountIterator.hasNext()){
+				++rowNumber;
+				String[] row = cellcountIterator.next().split("\t", -1);
+				if(row.length - 1 != numberOfCelltypes){
+					DeconvolutionLogger.log.info(String.format("Table %s does not have the same number of columns as there are in the header at row %d",cellCountFile,rowNumber));
+					DeconvolutionLogger.log.info(String.format("Number of header columns: %d",numberOfCelltypes));
+					DeconvolutionLogger.log.info(String.format("Number of columns at row %d: %d", rowNumber, row.length-1));
+					DeconvolutionLogger.log.info(Arrays.toString(row));
+					throw new RuntimeException(String.format("Cellcount percentage table does not have the same number of columns as there are celltypes at row %d",rowNumber));
+				}
+				samplenames.add(row[0]);
+				cellcountsPerSample.add(Utils.StringVectorToDoubleArrayList(row, 1));
+			}
+		}
 		DeconvolutionLogger.log.info(String.format("Celltypes to use:"));
-		for(int i = 0; i < numberOfCelltypes; i++){
-			celltypes.add(cellcountTable.get(i).get(0));
-			DeconvolutionLogger.log.info(cellcountTable.get(i).get(0));
+		for(String celltype : celltypes){
+			DeconvolutionLogger.log.info(celltype);
 		}
-		
 		DeconvolutionLogger.log.info(String.format("Number of celltypes: %d", numberOfCelltypes));
-		
-		// minus one because the size includes the celltype header
-		numberOfSamples = cellcountTable.get(0).size()-1;
+
+		numberOfSamples = samplenames.size();
 		DeconvolutionLogger.log.info(String.format("Number of samples: %d", numberOfSamples));
-		cellcountPercentages = new double[numberOfSamples][numberOfCelltypes];
-		for (int j = 0; j <= numberOfSamples-1; j++) {
+		cellcountsPerCelltype = new double[numberOfCelltypes][numberOfSamples];
+		for (int j = 0; j < numberOfSamples; j++) {
+			double[] sampleCellcounts = cellcountsPerSample.get(j);
 			for (int i = 0; i < numberOfCelltypes; i++) {
-				cellcountPercentages[j][i] =  Double.parseDouble(cellcountTable.get(i).get(j+1));
+				cellcountsPerCelltype[i][j] = sampleCellcounts[i];
 			}
 		}
 	}
 
-	public void emptyCellcountPercentages(){
-		cellcountPercentages = null;
+	/**
+	 * Cell counts with the same celltypes and samples, with values from cellcountsPerCelltype
+	 */
+	private CellCount(CellCount cellCount, double[][] cellcountsPerCelltype){
+		this.celltypes = cellCount.celltypes;
+		this.samplenames = cellCount.samplenames;
+		this.numberOfCelltypes = cellCount.numberOfCelltypes;
+		this.numberOfSamples = cellCount.numberOfSamples;
+		this.cellcountsPerCelltype = cellcountsPerCelltype;
+	}
+
+	/**
+	 * Relative cell counts (-cc): per celltype the cell count of a sample divided by the average cell count of the
+	 * celltype over all samples. Made on first use and cached, so runs on the same cell counts (e.g. server jobs)
+	 * share them
+	 */
+	public synchronized CellCount getRelativeCellCounts(){
+		if(relativeCellCounts == null){
+			double[][] relativeCellcountsPerCelltype = new double[numberOfCelltypes][numberOfSamples];
+			for(int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex){
+				double[] cellcounts = cellcountsPerCelltype[celltypeIndex];
+				double average = 0;
+				for(double cellcount : cellcounts){
+					average += cellcount;
+				}
+				average /= numberOfSamples;
+				if(average == 0){
+					throw new RuntimeException(String.format("Average cell count of %s is 0, can not use relative cell counts (-cc)",
+							celltypes.get(celltypeIndex)));
+				}
+				for(int sampleIndex = 0; sampleIndex < numberOfSamples; ++sampleIndex){
+					relativeCellcountsPerCelltype[celltypeIndex][sampleIndex] = cellcounts[sampleIndex] / average;
+				}
+			}
+			relativeCellCounts = new CellCount(this, relativeCellcountsPerCelltype);
+		}
+		return relativeCellCounts;
 	}
-	
+
 	public List<String> getSampleNames(){
 		return samplenames;
 	}
-	
-	public List<List<String>> getCellcountTable(){
-		return(cellcountTable);
-	}	
+
 	public List<String> getAllCelltypes(){
 		return(celltypes);
-	}	
+	}
 	public String getCelltype(int index){
 		return(celltypes.get(index));
-	}	
+	}
 	public int getNumberOfCelltypes(){
 		return(numberOfCelltypes);
-	}	
+	}
 	public int getNumberOfSamples(){
 		return(numberOfSamples);
 	}
-	public double[][] getCellcountPercentages(){
-		return(cellcountPercentages);
+
+	/**
+	 * @return Cell counts as [celltype][sample], not a copy so should not be changed
+	 */
+	public double[][] getCellcountsPerCelltype(){
+		return(cellcountsPerCelltype);
 	}
 }
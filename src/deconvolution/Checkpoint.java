@@ -0,0 +1,327 @@
+package deconvolution;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checkpoint of a deconvolution run, so that a run that stopped (e.g. preempted on a cluster) can be resumed.
+ *
+ * Every <checkpointInterval> QTLs the result lines of the completed QTLs are appended to checkpoint_<outfile>,
+ * the filtered QTLs to checkpoint_filteredQTLs.csv, the predicted expression to checkpoint_predictedExpressionLevels.txt
+ * and the p-values of QTLs that are not significant (-s) to checkpoint_nonSignificantQTLs.csv.
+ * After that the progress manifest checkpoint_progress.txt is replaced with the size in bytes of each of these files,
+ * the options of the run and the permutation null distributions. When resuming, the files are truncated to these sizes
+ * (removing lines written by a run that died while appending), and the QTLs in the remaining lines are skipped. A
+ * checkpoint is only resumed by a run with the same options, so that a resumed run does not mix settings.
+ */
+public class Checkpoint {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private Path resultsFile;
+	private Path filteredQTLsFile;
+	private Path predictedExpressionFile;
+	private Path nonSignificantQTLsFile;
+	private Path manifestFile;
+	private int checkpointInterval;
+	private List<String> options;
+	private int qtlsSinceCheckpoint = 0;
+	// size of the checkpoint files in bytes, as written in the manifest
+	private long resultsBytes = 0;
+	private long filteredQTLsBytes = 0;
+	private long predictedExpressionBytes = 0;
+	private long nonSignificantQTLsBytes = 0;
+	private List<String> newResultsLines = new ArrayList<String>();
+	private List<String> newFilteredQTLsLines = new ArrayList<String>();
+	private List<String> newPredictedExpressionLines = new ArrayList<String>();
+	private List<String> newNonSignificantQTLsLines = new ArrayList<String>();
+	private Set<String> qtlsDone = new HashSet<String>();
+
+	/**
+	 * @param outputFolder Folder to write the checkpoint files to
+	 *
+	 * @param outfile Name of the deconvolution results file
+	 *
+	 * @param checkpointInterval Number of QTLs after which a checkpoint is written
+	 *
+	 * @param options Options of the run as option<tab>value lines (see CommandLineOptions.getOutputOptions())
+	 */
+	public Checkpoint(String outputFolder, String outfile, int checkpointInterval, List<String> options){
+		this.resultsFile = Paths.get(outputFolder+"checkpoint_"+outfile);
+		this.filteredQTLsFile = Paths.get(outputFolder+"checkpoint_filteredQTLs.csv");
+		this.predictedExpressionFile = Paths.get(outputFolder+"checkpoint_predictedExpressionLevels.txt");
+		this.nonSignificantQTLsFile = Paths.get(outputFolder+"checkpoint_nonSignificantQTLs.csv");
+		this.manifestFile = Paths.get(outputFolder+"checkpoint_progress.txt");
+		this.checkpointInterval = checkpointInterval;
+		this.options = options;
+	}
+
+	/**
+	 * Start a new run, removes the checkpoint files of a previous run
+	 */
+	public void start() throws IOException{
+		delete();
+	}
+
+	/**
+	 * Resume from the checkpoint files. If there is no manifest a new run is started
+	 *
+	 * @param permutationTest PermutationTest to add the permutation null distributions of the checkpoint to
+	 *
+	 * @throws RuntimeException If the checkpoint was written with other options
+	 */
+	public void resume(PermutationTest permutationTest) throws IOException{
+		if(!Files.exists(manifestFile)){
+			DeconvolutionLogger.log.info(String.format("No checkpoint found at %s, starting from the first QTL", manifestFile.toAbsolutePath()));
+			start();
+			return;
+		}
+		List<String> manifest = Files.readAllLines(manifestFile, UTF8);
+		checkOptions(manifest);
+		for(String line : manifest){
+			String[] keyValue = line.split("\t", 2);
+			switch(keyValue[0]){
+			case "resultsBytes":
+				resultsBytes = Long.parseLong(keyValue[1]);
+				break;
+			case "filteredQTLsBytes":
+				filteredQTLsBytes = Long.parseLong(keyValue[1]);
+				break;
+			case "predictedExpressionBytes":
+				predictedExpressionBytes = Long.parseLong(keyValue[1]);
+				break;
+			case "nonSignificantQTLsBytes":
+				nonSignificantQTLsBytes = Long.parseLong(keyValue[1]);
+				break;
+			case "permutationsDone":
+				permutationTest.addPermutationsDone(Long.parseLong(keyValue[1]));
+				break;
+			case "nullDistribution":
+				String[] celltypeAndHistogram = keyValue[1].split("\t", 2);
+				permutationTest.addNullDistribution(celltypeAndHistogram[0], PvalueHistogram.fromLine(celltypeAndHistogram[1]));
+				break;
+			case "option":
+				break;
+			default:
+				throw new RuntimeException(String.format("Unknown line in checkpoint manifest %s: %s", manifestFile, line));
+			}
+		}
+		truncate(resultsFile, resultsBytes);
+		truncate(filteredQTLsFile, filteredQTLsBytes);
+		truncate(nonSignificantQTLsFile, nonSignificantQTLsBytes);
+		truncate(predictedExpressionFile, predictedExpressionBytes);
+		// first line of the results and non significant QTLs files is the header
+		addQtlsDone(resultsFile, true);
+		addQtlsDone(filteredQTLsFile, false);
+		addQtlsDone(nonSignificantQTLsFile, true);
+		DeconvolutionLogger.log.info(String.format("Resuming from checkpoint %s, %d QTLs already done", manifestFile.toAbsolutePath(), qtlsDone.size()));
+	}
+
+	/**
+	 * Check that the options in the manifest are the same as the options of this run
+	 */
+	private void checkOptions(List<String> manifest){
+		List<String> checkpointOptions = new ArrayList<String>();
+		for(String line : manifest){
+			if(line.startsWith("option\t")){
+				checkpointOptions.add(line.substring("option\t".length()));
+			}
+		}
+		if(!checkpointOptions.equals(options)){
+			List<String> changedOptions = new ArrayList<String>(options);
+			changedOptions.removeAll(checkpointOptions);
+			throw new RuntimeException(String.format("Checkpoint %s was written by a run with other options, can not resume. Options of this "
+					+ "run that differ: %s. Use the same options as the run that wrote the checkpoint, or run without -rs to start over",
+					manifestFile.toAbsolutePath(), changedOptions.isEmpty() ? "(checkpoint has no or other options)" 
+							: String.join(", ", changedOptions).replace('\t', ' ')));
+		}
+	}
+
+	/**
+	 * Cut file back to its first size bytes
+	 */
+	private static void truncate(Path file, long size) throws IOException{
+		if(size == 0){
+			Files.deleteIfExists(file);
+			return;
+		}
+		if(!Files.exists(file)){
+			throw new RuntimeException(String.format("Checkpoint file %s is missing, can not resume", file.toAbsolutePath()));
+		}
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)){
+			if(channel.size() < size){
+				throw new RuntimeException(String.format("Checkpoint file %s has %d bytes, but manifest says %d, can not resume",
+						file.toAbsolutePath(), channel.size(), size));
+			}
+			channel.truncate(size);
+		}
+	}
+
+	/**
+	 * Add the QTL names (first column) of the lines in file to the QTLs that are done
+	 */
+	private void addQtlsDone(Path file, boolean hasHeader) throws IOException{
+		if(!Files.exists(file)){
+			return;
+		}
+		try(ReadAheadLineIterator lines = new ReadAheadLineIterator(file.toString())){
+			if(hasHeader && lines.hasNext()){
+				lines.next();
+			}
+			while(lines.hasNext()){
+				qtlsDone.add(getQtlName(lines.next()));
+			}
+		}
+	}
+
+	private static String getQtlName(String line){
+		return line.split("\t", 2)[0];
+	}
+
+	/**
+	 * @return true if the QTL is in the checkpoint that was resumed from
+	 */
+	public boolean isDone(String qtlName){
+		return qtlsDone.contains(qtlName);
+	}
+
+	public int getNumberOfQtlsDone(){
+		return qtlsDone.size();
+	}
+
+	public boolean hasResultsHeader(){
+		return resultsBytes > 0 || newResultsLines.size() > 0;
+	}
+
+	public boolean hasPredictedExpressionHeader(){
+		return predictedExpressionBytes > 0 || newPredictedExpressionLines.size() > 0;
+	}
+
+	public boolean hasNonSignificantQTLsHeader(){
+		return nonSignificantQTLsBytes > 0 || newNonSignificantQTLsLines.size() > 0;
+	}
+
+	public void addResultsLine(String line){
+		newResultsLines.add(line);
+	}
+
+	public void addFilteredQTLsLine(String line){
+		newFilteredQTLsLines.add(line);
+	}
+
+	public void addPredictedExpressionLine(String line){
+		newPredictedExpressionLines.add(line);
+	}
+
+	public void addNonSignificantQTLsLine(String line){
+		newNonSignificantQTLsLines.add(line);
+	}
+
+	/**
+	 * Count a completed QTL and write a checkpoint if <checkpointInterval> QTLs are completed since the last one
+	 */
+	public void qtlDone(PermutationTest permutationTest) throws IOException{
+		++qtlsSinceCheckpoint;
+		if(qtlsSinceCheckpoint >= checkpointInterval){
+			write(permutationTest);
+		}
+	}
+
+	/**
+	 * Append the lines added since the last checkpoint to the checkpoint files, then replace the manifest
+	 */
+	public void write(PermutationTest permutationTest) throws IOException{
+		resultsBytes = append(resultsFile, newResultsLines, resultsBytes);
+		filteredQTLsBytes = append(filteredQTLsFile, newFilteredQTLsLines, filteredQTLsBytes);
+		predictedExpressionBytes = append(predictedExpressionFile, newPredictedExpressionLines, predictedExpressionBytes);
+		nonSignificantQTLsBytes = append(nonSignificantQTLsFile, newNonSignificantQTLsLines, nonSignificantQTLsBytes);
+
+		List<String> manifest = new ArrayList<String>();
+		for(String option : options){
+			manifest.add("option\t"+option);
+		}
+		manifest.add("resultsBytes\t"+resultsBytes);
+		manifest.add("filteredQTLsBytes\t"+filteredQTLsBytes);
+		manifest.add("predictedExpressionBytes\t"+predictedExpressionBytes);
+		manifest.add("nonSignificantQTLsBytes\t"+nonSignificantQTLsBytes);
+		manifest.add("permutationsDone\t"+permutationTest.getPermutationsDone());
+		for(String celltype : permutationTest.getCelltypes()){
+			manifest.add("nullDistribution\t"+celltype+"\t"+permutationTest.getNullDistribution(celltype).toLine());
+		}
+		// write to a temporary file first, so that there always is a complete manifest
+		Path temporaryManifest = Paths.get(manifestFile.toString()+".tmp");
+		Files.write(temporaryManifest, manifest, UTF8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
+		Files.move(temporaryManifest, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		qtlsSinceCheckpoint = 0;
+	}
+
+	/**
+	 * Append lines to file and clear them
+	 *
+	 * @param size Size of file in bytes before appending
+	 *
+	 * @return Size of file in bytes after appending
+	 */
+	private static long append(Path file, List<String> lines, long size) throws IOException{
+		if(lines.isEmpty()){
+			return size;
+		}
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.DSYNC)){
+			// write from the size in the manifest, not the end of the file, in case a previous append did not complete
+			channel.position(size);
+			try(ResultWriter writer = new ResultWriter(channel)){
+				writer.writeLines(lines);
+			}
+		}
+		lines.clear();
+		return Files.size(file);
+	}
+
+	/**
+	 * The results file (header first), call write() first. Does not exist if no results were added
+	 */
+	public Path getResultsFile(){
+		return resultsFile;
+	}
+
+	/**
+	 * The filtered QTLs file (without header), call write() first. Does not exist if no filtered QTLs were added
+	 */
+	public Path getFilteredQTLsFile(){
+		return filteredQTLsFile;
+	}
+
+	/**
+	 * The predicted expression file (header first), call write() first. Does not exist if no predicted expression was added
+	 */
+	public Path getPredictedExpressionFile(){
+		return predictedExpressionFile;
+	}
+
+	/**
+	 * The non significant QTLs file (header first), call write() first. Does not exist if no non significant QTLs were added
+	 */
+	public Path getNonSignificantQTLsFile(){
+		return nonSignificantQTLsFile;
+	}
+
+	/**
+	 * Remove all checkpoint files, e.g. when the complete output is written
+	 */
+	public void delete() throws IOException{
+		Files.deleteIfExists(manifestFile);
+		Files.deleteIfExists(resultsFile);
+		Files.deleteIfExists(filteredQTLsFile);
+		Files.deleteIfExists(predictedExpressionFile);
+		Files.deleteIfExists(nonSignificantQTLsFile);
+	}
+}
@@ -5,7 +5,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,9 +33,24 @@ public class CommandLineOptions {
 	private Boolean testRun = false;
 	private Boolean skipGenotypes = false;
 	private Boolean wholeBloodQTL = false;
+	private Boolean useRelativeCellCounts = false;
 	private Boolean noConsole = false;
 	private Boolean outputPredictedExpression = false;
 	private String genotypeConfigurationType = "all";
+	private int numberOfPermutations = 0;
+	private int permutationHits = 0;
+	private Boolean minusLog10Pvalues = false;
+	private int checkpointInterval = 0;
+	private Boolean resume = false;
+	// 1-based index of the shard to run, 0 if not sharded
+	private int shard = 0;
+	private int numberOfShards = 1;
+	private String pairOrder;
+	private String snpPositionFile;
+	private Boolean binaryOutput = false;
+	private Boolean compressPredictedExpression = false;
+	private Boolean outputSignificantOnly = false;
+	private double significanceThreshold = 0.05;
 	
 	/**
 	 * Standard command line parsing.
@@ -45,10 +62,46 @@ public class CommandLineOptions {
 	 * the command line
 	 */
 	public void parseCommandLine(String[] args) throws ParseException, FileNotFoundException {
+		Options options = getOptions();
+		CommandLineParser cmdLineParser = new DefaultParser();
+		try{
+			CommandLine cmdLine = cmdLineParser.parse(options, args);
+			if (cmdLine.hasOption("help")) {
+				// automatically generate the help statement
+				HelpFormatter formatter = new HelpFormatter();
+				formatter.printHelp("deconvolution", options, true);
+			}
+			parseOptions (cmdLine);
+			printArgumentValues(cmdLine);
+		}
+			catch(MissingOptionException e){
+				HelpFormatter formatter = new HelpFormatter();
+				DeconvolutionLogger.log.info(e.toString());
+				formatter.printHelp("deconvolution", options, true);
+				System.exit(0);
+		}
+	}
+
+	/**
+	 * Parse args without setting the options, e.g. to check the arguments of a DeconvolutionServer job before it is
+	 * run. Unlike parseCommandLine() this does not exit when a required option is missing, but throws the
+	 * MissingOptionException
+	 */
+	static CommandLine parseArguments(String[] args) throws ParseException {
+		return new DefaultParser().parse(getOptions(), args);
+	}
+
+	private static Options getOptions(){
 		Options options = new Options();
 		Option help = new Option("help", "print this message");
 		Option allDosages = Option.builder("ad").required(false).longOpt("all_dosages")
 				.desc("Filter out QTLs where not all dosages are present in at least 1 sample").build();
+		Option binaryOutputOption = Option.builder("bo").required(false).longOpt("binary_output")
+				.desc("Also write the deconvolution results in a binary columnar file (<outfile without extension>.bin), read it with deconvolution.BinaryResultReader").build();
+		Option checkpointIntervalOption = Option.builder("ci").required(false).hasArg().longOpt("checkpoint_interval")
+				.desc("Write completed QTLs and a progress manifest to the outfolder every <int> QTLs, so that the run can be resumed with -rs (default 0 = no checkpoints)").argName("int").build();
+		Option compressPredictedExpressionOption = Option.builder("pz").required(false).longOpt("compress_predicted_expression")
+				.desc("Write the predicted expression gzip compressed to predictedExpressionLevels.txt.gz (implies -oe)").build();
 		Option cellcount = Option.builder("c").required(true).hasArg().longOpt("cellcount").desc("Cellcount file name")
 				.argName("file").build();
 		Option useRelativeCellCountsOption = Option.builder("cc").required(false).longOpt("use_relative_cellcounts")
@@ -56,7 +109,7 @@ public class CommandLineOptions {
 		Option expression = Option.builder("e").required(true).hasArg().longOpt("expression")
 				.desc("Expression file name").argName("file").build();
 		Option filterSamplesOption =  Option.builder("f").required(false).longOpt("filter_samples")
-				.desc("If set, remove samples that are filtered out because of -m, -nn or -ad. By default p-values of these are set to 333.0").build();
+				.desc("If set, remove samples that are filtered out because of -m, -nn or -ad. By default p-values of these are set to 333.0 and their permutation FDR is NA (they do not count as tests)").build();
 		Option genotype = Option.builder("g").required(true).hasArg().longOpt("genotype").desc("Genotype file name")
 				.argName("file").build();
 		Option genotypeConfigurationTypeOption = Option.builder("gc").required(false).hasArg().longOpt("genotypeConfigurationType")
@@ -64,18 +117,34 @@ public class CommandLineOptions {
 		Option minimumSamplesPerGenotype = Option.builder("m").required(false).hasArg().longOpt("minimum_samples_per_genotype")
 				.desc("The minimum amount of samples need for each genotype of a QTL for the QTL to be included in the results")
 				.argName("int").build();
+		Option minusLog10PvaluesOption = Option.builder("mlp").required(false).longOpt("minus_log10_pvalues")
+				.desc("Calculate p-values in log space and also write -log10(p-value) columns, so that p-values < 1e-308 can be ranked").build();
 		Option noConsoleOption = Option.builder("no").required(false).longOpt("no_console")
 				.desc("Do not output logging info to the console").build();
 		Option outfolder = Option.builder("o").required(true).hasArg().longOpt("outfolder").desc("Path to folder to write output to")
 				.argName("path").build();
 		Option outputPredictedExpressionOption = Option.builder("oe").required(false).longOpt("outputPredictedExpression").desc("Write output file with predicted expression")
 				.build();
+		Option numberOfPermutationsOption = Option.builder("np").required(false).hasArg().longOpt("permutations")
+				.desc("Number of genotype permutations to calculate an empirical p-value per celltype (maximum number of permutations if -ph is set)").argName("int").build();
 		Option outfile = Option.builder("of").required(false).hasArg().longOpt("outfile").desc("Outfile name of deconvolution results (will be written in outfolder)")
 				.argName("file").build();
+		Option pairOrderOption = Option.builder("po").required(false).hasArg().longOpt("pair_order")
+				.desc("Order to deconvolute the gene-SNP pairs in: gene (all SNPs of a gene after each other), snp (all genes of a SNP after each other) or position (SNPs sorted by position, needs -pf). Default position if -pf is given, else gene").argName("order").build();
+		Option snpPositionFileOption = Option.builder("pf").required(false).hasArg().longOpt("snp_position_file")
+				.desc("Tab delimited file with SNP name, chromosome and position (with header), used to order the gene-SNP pairs by position").argName("file").build();
+		Option permutationHitsOption = Option.builder("ph").required(false).hasArg().longOpt("permutation_hits")
+				.desc("Adaptive permutation: stop permuting a QTL when for each celltype this many permuted p-values are <= the observed p-value (0 = always do all permutations)").argName("int").build();
 		Option roundDosage = Option.builder("r").required(false).longOpt("round_dosage")
 				.desc("Round the dosage to the closest int").build();
+		Option resumeOption = Option.builder("rs").required(false).longOpt("resume")
+				.desc("Resume from the checkpoint in the outfolder, gene-SNP pairs that are already done are skipped (checkpoints every 1000 QTLs if -ci is not set). Only resumes a checkpoint written with the same options").build();
 		Option onlyOutputSignificantOption = Option.builder("s").required(false).longOpt("output_significant_only")
-				.desc("Only output results that are significant in at least one celltype.").build();
+				.desc("Only output results that are significant in at least one celltype (p-value < -st). Other QTLs are written to nonSignificantQTLs.csv with only their p-values. Only filters the output: non-significant QTLs are still deconvoluted and permuted (-np), because their permuted p-values are part of the null distribution of the permutation FDR").build();
+		Option significanceThresholdOption = Option.builder("st").required(false).hasArg().longOpt("significance_threshold")
+				.desc("P-value threshold for -s (default 0.05)").argName("double").build();
+		Option shardOption = Option.builder("sh").required(false).hasArg().longOpt("shard")
+				.desc("Only run shard i of n (1 <= i <= n) of the gene-SNP pairs, pairs are split by gene. Output is written to <outfolder>/shard<i>of<n>/, combine with deconvolution.MergeShards").argName("i/n").build();
 		Option skipGenotypes = Option.builder("sg").required(false).longOpt("skip_genotypes")
 				.desc("Skip genotypes that are in the GeneSNP pair file but not in the genotype file.").build();
 		Option snpsToTestOption = Option.builder("sn").required(true).hasArg().longOpt("snpsToTest").argName("file")
@@ -103,23 +172,18 @@ public class CommandLineOptions {
 		options.addOption(noConsoleOption);
 		options.addOption(outputPredictedExpressionOption);
 		options.addOption(genotypeConfigurationTypeOption);
-		CommandLineParser cmdLineParser = new DefaultParser();
-		try{
-			CommandLine cmdLine = cmdLineParser.parse(options, args);
-			if (cmdLine.hasOption("help")) {
-				// automatically generate the help statement
-				HelpFormatter formatter = new HelpFormatter();
-				formatter.printHelp("deconvolution", options, true);
-			}
-			parseOptions (cmdLine);
-			printArgumentValues(cmdLine);
-		}
-			catch(MissingOptionException e){
-				HelpFormatter formatter = new HelpFormatter();
-				DeconvolutionLogger.log.info(e.toString());
-				formatter.printHelp("deconvolution", options, true);
-				System.exit(0);
-		}
+		options.addOption(numberOfPermutationsOption);
+		options.addOption(permutationHitsOption);
+		options.addOption(minusLog10PvaluesOption);
+		options.addOption(checkpointIntervalOption);
+		options.addOption(resumeOption);
+		options.addOption(shardOption);
+		options.addOption(pairOrderOption);
+		options.addOption(snpPositionFileOption);
+		options.addOption(binaryOutputOption);
+		options.addOption(compressPredictedExpressionOption);
+		options.addOption(significanceThresholdOption);
+		return options;
 	}
 	
 	private void parseOptions(CommandLine cmdLine) throws FileNotFoundException{
@@ -154,6 +218,49 @@ public class CommandLineOptions {
 			}
 		}
 
+		if (cmdLine.hasOption("permutations")) {
+			numberOfPermutations = Integer.parseInt(cmdLine.getOptionValue("permutations"));
+			if(numberOfPermutations < 0){
+				numberOfPermutations = 0;
+			}
+		}
+
+		if (cmdLine.hasOption("permutation_hits")) {
+			permutationHits = Integer.parseInt(cmdLine.getOptionValue("permutation_hits"));
+			if(permutationHits < 0){
+				permutationHits = 0;
+			}
+		}
+
+		if (cmdLine.hasOption("significance_threshold")) {
+			significanceThreshold = Double.parseDouble(cmdLine.getOptionValue("significance_threshold"));
+			if(significanceThreshold <= 0 || significanceThreshold > 1){
+				throw new RuntimeException(String.format("Significance threshold (-st) should be > 0 and <= 1, was %s", significanceThreshold));
+			}
+		}
+
+		if (cmdLine.hasOption("checkpoint_interval")) {
+			checkpointInterval = Integer.parseInt(cmdLine.getOptionValue("checkpoint_interval"));
+			if(checkpointInterval < 0){
+				checkpointInterval = 0;
+			}
+		}
+
+		if (cmdLine.hasOption("resume")) {
+			resume = !resume;
+			if(checkpointInterval == 0){
+				checkpointInterval = 1000;
+			}
+		}
+
+		if (cmdLine.hasOption("snp_position_file")) {
+			snpPositionFile = cmdLine.getOptionValue("snp_position_file");
+			if(!new File(snpPositionFile).exists() || new File(snpPositionFile).isDirectory()) { 
+			    throw new FileNotFoundException(snpPositionFile+" does not exist");
+			}
+		}
+		pairOrder = getPairOrder(cmdLine.getOptionValue("pair_order"), snpPositionFile);
+
 		expressionFile = cmdLine.getOptionValue("expression");
 		genotypeFile = cmdLine.getOptionValue("genotype");
 		cellcountFile = cmdLine.getOptionValue("cellcount");
@@ -177,6 +284,22 @@ public class CommandLineOptions {
 		}
 		
 		outfolder = cmdLine.getOptionValue("outfolder");
+
+		if (cmdLine.hasOption("shard")) {
+			String[] shardAndNumberOfShards = cmdLine.getOptionValue("shard").split("/");
+			try{
+				shard = Integer.parseInt(shardAndNumberOfShards[0]);
+				numberOfShards = Integer.parseInt(shardAndNumberOfShards[1]);
+			}
+			catch(NumberFormatException | ArrayIndexOutOfBoundsException e){
+				throw new IllegalArgumentException("shard should be given as i/n, e.g. 2/10, not "+cmdLine.getOptionValue("shard"));
+			}
+			if(numberOfShards < 1 || shard < 1 || shard > numberOfShards){
+				throw new IllegalArgumentException(String.format("shard should be between 1 and the number of shards, not %d/%d", shard, numberOfShards));
+			}
+			// every shard gets its own folder, so that output, logs and checkpoints of shards do not overwrite each other
+			outfolder = getShardOutfolder(outfolder, shard, numberOfShards);
+		}
 		
 		if (cmdLine.hasOption("no_console")) {
 			noConsole = !noConsole;
@@ -192,11 +315,32 @@ public class CommandLineOptions {
 		if (cmdLine.hasOption("whole_blood_qtl")){
 			wholeBloodQTL = !wholeBloodQTL;
 		}
+
+		if (cmdLine.hasOption("use_relative_cellcounts")){
+			useRelativeCellCounts = !useRelativeCellCounts;
+		}
 		
 		if (cmdLine.hasOption("outputPredictedExpression")){
 			outputPredictedExpression = !outputPredictedExpression;
 		}
 
+		if (cmdLine.hasOption("minus_log10_pvalues")){
+			minusLog10Pvalues = !minusLog10Pvalues;
+		}
+
+		if (cmdLine.hasOption("binary_output")){
+			binaryOutput = !binaryOutput;
+		}
+
+		if (cmdLine.hasOption("output_significant_only")){
+			outputSignificantOnly = !outputSignificantOnly;
+		}
+
+		if (cmdLine.hasOption("compress_predicted_expression")){
+			compressPredictedExpression = !compressPredictedExpression;
+			outputPredictedExpression = true;
+		}
+
 	}
 	
 
@@ -206,7 +350,7 @@ public class CommandLineOptions {
 	    	// if the directory does not exist, create it
 	    	Boolean dirDidNotExist = false;
 	    	if (!outfolderDir.exists()) {
-	    		outfolderDir.mkdir();
+	    		outfolderDir.mkdirs();
 	    		dirDidNotExist = true;
 	    	}
 	    	DeconvolutionLogger.setup(outfolder, noConsole);
@@ -227,6 +371,7 @@ public class CommandLineOptions {
 		DeconvolutionLogger.log.info(String.format("Expression file (-e): %s", expressionFile));
 		DeconvolutionLogger.log.info(String.format("Genotype file (-g): %s", genotypeFile));
 		DeconvolutionLogger.log.info(String.format("Cellcount file (-c): %s", cellcountFile));
+		DeconvolutionLogger.log.info(String.format("Use relative cell counts (-cc): %s", useRelativeCellCounts));
 		DeconvolutionLogger.log.info(String.format("SNPs to test file (-sn): %s", snpsToTestFile));
 		DeconvolutionLogger.log.info(String.format("Outfolder (-o): %s", outfolder));
 		DeconvolutionLogger.log.info(String.format("Outfile (-of): %s", outfile));
@@ -240,9 +385,53 @@ public class CommandLineOptions {
 		DeconvolutionLogger.log.info(String.format("Add whole blood eQTL (pearson correlation genotypes and expression) (-w): %s",wholeBloodQTL));
 		DeconvolutionLogger.log.info(String.format("Do not ouput logging info to console (-no): %s", noConsole));
 		DeconvolutionLogger.log.info(String.format("Write predicted expression to output file (-oe): %s", outputPredictedExpression));
+		DeconvolutionLogger.log.info(String.format("Compress predicted expression (-pz): %s", compressPredictedExpression));
+		DeconvolutionLogger.log.info(String.format("Only output QTLs significant in at least one celltype (-s): %s", outputSignificantOnly));
+		DeconvolutionLogger.log.info(String.format("Significance threshold (-st): %s", significanceThreshold));
 		DeconvolutionLogger.log.info(String.format("Genotype configuration to use (-gc): %s", genotypeConfigurationType));
+		DeconvolutionLogger.log.info(String.format("Write -log10 p-values (-mlp): %s", minusLog10Pvalues));
+		DeconvolutionLogger.log.info(String.format("Also write binary columnar results (-bo): %s", binaryOutput));
+		DeconvolutionLogger.log.info(String.format("Number of permutations (-np): %d", numberOfPermutations));
+		DeconvolutionLogger.log.info(String.format("Stop permuting after this many permuted p-values <= observed p-value (-ph): %d", permutationHits));
+		DeconvolutionLogger.log.info(String.format("Write checkpoint every this many QTLs (-ci): %d", checkpointInterval));
+		DeconvolutionLogger.log.info(String.format("Resume from checkpoint (-rs): %s", resume));
+		DeconvolutionLogger.log.info(String.format("Order of gene-SNP pairs (-po): %s", pairOrder));
+		DeconvolutionLogger.log.info(String.format("SNP position file (-pf): %s", snpPositionFile));
+		DeconvolutionLogger.log.info(String.format("Shard (-sh): %s", shard > 0 ? shard+"/"+numberOfShards : "all gene-SNP pairs"));
 		DeconvolutionLogger.log.info("=================================================");
 	}
+	/**
+	 * Options that change the output of the QTLs, as option<tab>value lines. A checkpoint is only resumed if it was
+	 * written with the same options (see Checkpoint)
+	 */
+	public List<String> getOutputOptions(){
+		List<String> outputOptions = new ArrayList<String>();
+		outputOptions.add("-c\t"+cellcountFile);
+		outputOptions.add("-e\t"+expressionFile);
+		outputOptions.add("-g\t"+genotypeFile);
+		outputOptions.add("-sn\t"+snpsToTestFile);
+		outputOptions.add("-r\t"+roundDosage);
+		outputOptions.add("-ad\t"+allDosages);
+		outputOptions.add("-m\t"+minimumSamplesPerGenotype);
+		outputOptions.add("-f\t"+filterSamples);
+		outputOptions.add("-rc\t"+removeConstraintViolatingSamples);
+		outputOptions.add("-t\t"+testRun);
+		outputOptions.add("-sg\t"+skipGenotypes);
+		outputOptions.add("-w\t"+wholeBloodQTL);
+		outputOptions.add("-cc\t"+useRelativeCellCounts);
+		outputOptions.add("-oe\t"+outputPredictedExpression);
+		outputOptions.add("-s\t"+outputSignificantOnly);
+		outputOptions.add("-st\t"+significanceThreshold);
+		outputOptions.add("-gc\t"+genotypeConfigurationType);
+		outputOptions.add("-mlp\t"+minusLog10Pvalues);
+		outputOptions.add("-np\t"+numberOfPermutations);
+		outputOptions.add("-ph\t"+permutationHits);
+		outputOptions.add("-po\t"+pairOrder);
+		outputOptions.add("-pf\t"+snpPositionFile);
+		outputOptions.add("-sh\t"+shard+"/"+numberOfShards);
+		return outputOptions;
+	}
+
 	public String getExpressionFile(){
 		return (expressionFile);
 	}
@@ -296,6 +485,10 @@ public class CommandLineOptions {
 		return(wholeBloodQTL);
 	}
 
+	public Boolean getUseRelativeCellCounts(){
+		return useRelativeCellCounts;
+	}
+
 	public Boolean getOutputPredictedExpression(){
 		return outputPredictedExpression;
 	}
@@ -303,6 +496,133 @@ public class CommandLineOptions {
 	public String getGenotypeConfigurationType() {
 		return genotypeConfigurationType;
 	}
+
+	public int getNumberOfPermutations(){
+		return numberOfPermutations;
+	}
+
+	public int getPermutationHits(){
+		return permutationHits;
+	}
+
+	public Boolean getMinusLog10Pvalues(){
+		return minusLog10Pvalues;
+	}
+
+	public Boolean getBinaryOutput(){
+		return binaryOutput;
+	}
+
+	public Boolean getCompressPredictedExpression(){
+		return compressPredictedExpression;
+	}
+
+	public Boolean getOutputSignificantOnly(){
+		return outputSignificantOnly;
+	}
+
+	public double getSignificanceThreshold(){
+		return significanceThreshold;
+	}
+
+	/*
+	 * Setters of the options that change how a QTL is deconvoluted, for running without a command line (see InMemoryDeconvolution)
+	 */
+	public void setRoundDosage(Boolean roundDosage){
+		this.roundDosage = roundDosage;
+	}
+
+	public void setAllDosages(Boolean allDosages){
+		this.allDosages = allDosages;
+	}
+
+	public void setMinimumSamplesPerGenotype(int minimumSamplesPerGenotype){
+		this.minimumSamplesPerGenotype = Math.max(minimumSamplesPerGenotype, 0);
+	}
+
+	public void setGenotypeConfigurationType(String genotypeConfigurationType){
+		if(!(genotypeConfigurationType.equals("all") || genotypeConfigurationType.equals("two") || genotypeConfigurationType.equals("one"))){
+			throw new IllegalArgumentException("genotypeConfigurationType should be all or two, not "+genotypeConfigurationType);
+		}
+		this.genotypeConfigurationType = genotypeConfigurationType;
+	}
+
+	public void setWholeBloodQTL(Boolean wholeBloodQTL){
+		this.wholeBloodQTL = wholeBloodQTL;
+	}
+
+	public void setUseRelativeCellCounts(Boolean useRelativeCellCounts){
+		this.useRelativeCellCounts = useRelativeCellCounts;
+	}
+
+	public void setMinusLog10Pvalues(Boolean minusLog10Pvalues){
+		this.minusLog10Pvalues = minusLog10Pvalues;
+	}
+
+	public void setOutputPredictedExpression(Boolean outputPredictedExpression){
+		this.outputPredictedExpression = outputPredictedExpression;
+	}
+
+	public void setNumberOfPermutations(int numberOfPermutations){
+		this.numberOfPermutations = Math.max(numberOfPermutations, 0);
+	}
+
+	public void setPermutationHits(int permutationHits){
+		this.permutationHits = Math.max(permutationHits, 0);
+	}
+
+	public int getCheckpointInterval(){
+		return checkpointInterval;
+	}
+
+	public Boolean getResume(){
+		return resume;
+	}
+
+	/**
+	 * @return 1-based index of the shard to run, 0 if all gene-SNP pairs are run
+	 */
+	public int getShard(){
+		return shard;
+	}
+
+	public int getNumberOfShards(){
+		return numberOfShards;
+	}
+
+	public String getPairOrder(){
+		return pairOrder;
+	}
+
+	public String getSnpPositionFile(){
+		return snpPositionFile;
+	}
+
+	/**
+	 * Check the pair order, if none is given use position order when there is a SNP position file and gene order otherwise
+	 */
+	public static String getPairOrder(String pairOrder, String snpPositionFile){
+		if(pairOrder == null){
+			return snpPositionFile != null ? "position" : "gene";
+		}
+		if(!(pairOrder.equals("gene") || pairOrder.equals("snp") || pairOrder.equals("position"))){
+			throw new IllegalArgumentException("pair_order should be gene, snp or position, not "+pairOrder);
+		}
+		if(pairOrder.equals("position") && snpPositionFile == null){
+			throw new IllegalArgumentException("pair_order position needs a SNP position file (-pf)");
+		}
+		return pairOrder;
+	}
+
+	/**
+	 * Folder that shard i of n writes its output to
+	 */
+	public static String getShardOutfolder(String outfolder, int shard, int numberOfShards){
+		if(!outfolder.endsWith("/")){
+			outfolder += "/";
+		}
+		return outfolder+"shard"+shard+"of"+numberOfShards+"/";
+	}
 	
 }
 
@@ -3,29 +3,101 @@ package deconvolution;
 import deconvolution.Qtl;
 import deconvolution.CellCount;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.lang3.time.DurationFormatUtils;
-import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
-import JSci.maths.statistics.FDistribution;
 
 public class Deconvolution {
-	private static CommandLineOptions commandLineOptions = new CommandLineOptions(); 
-	private static CellCount cellCounts;
-	private static List<String> filteredQTLsOutput = new ArrayList<String>();
-	private static int QTLsFiltered = 0;
-	private static String outputFolder;
+	// p-value that is written for QTLs that were not tested because of -m or -ad and no -f
+	static final double NA_PVALUE = 333.0;
+	private CommandLineOptions commandLineOptions = new CommandLineOptions(); 
+	private CellCount cellCounts;
+	private List<String> filteredQTLsOutput = new ArrayList<String>();
+	private int QTLsFiltered = 0;
+	private String outputFolder;
+	private PermutationTest permutationTest = new PermutationTest();
+	// with gene order only the ranks of the current gene are needed, SNPs are paired with multiple genes. Sizes are swapped for SNP and 
+	// position order. Sized by sizeCaches() when the number of samples is known
+	private RankCache expressionRanks;
+	private RankCache genotypeRanks;
+	// dosage QC per SNP, made on the first QTL that needs it
+	private GenotypeQcCache genotypeQcCache;
+	private int genotypeQcCacheSize;
+	// memory for the vectors of each of the rank and dosage QC caches, e.g. 4400 vectors of 1891 samples or 280 of 30000 samples
+	private static final long CACHE_BYTES = 64L << 20;
+	// null if no checkpoints are written
+	private Checkpoint checkpoint;
+	// predicted expression is written as soon as a QTL is done, so that it does not have to be kept for all QTLs
+	private ResultWriter predictedExpressionWriter;
+	private StringBuilder predictedExpressionLine = new StringBuilder();
+	// with -s QTLs that are not significant are written as they are done, only their p-values are kept for the permutation FDR
+	private ResultWriter nonSignificantQTLsWriter;
+	private List<double[]> nonSignificantPvalues = new ArrayList<double[]>();
+	private int numberOfNonSignificantQTLs = 0;
+	// without checkpoints the write stage writes the result lines as the QTLs are done (see addDeconvolutionResult()),
+	// only the p-values are kept if they are needed for the permutation FDR
+	private ResultWriter resultsWriter;
+	// with -bo the values of the results are added to the binary results as the QTLs are done
+	private BinaryResultWriter binaryResultsWriter;
+	private double[] binaryResultsRow;
+	private StringBuilder resultsLine = new StringBuilder();
+	private List<double[]> resultPvalues = new ArrayList<double[]>();
+	// metrics of this run only, also when other runs are done in the same JVM
+	private RunMetrics runMetrics = new RunMetrics();
+	// maximum number of QTLs between the read, deconvolution and write stage, bounds the memory that is used for QTLs in flight
+	private static final int PIPELINE_QUEUE_CAPACITY = 256;
 	// factory method for making static variable that can throw an exception
 
+	public Deconvolution(){};
+
+	/**
+	 * Deconvolution with options and cell counts that are already set, e.g. by InMemoryDeconvolution. The file options
+	 * (input files, outfolder, checkpoints, output files) are not used, QTLs are given to deconvoluteQtl()
+	 */
+	Deconvolution(CommandLineOptions commandLineOptions, CellCount cellCounts){
+		this.commandLineOptions = commandLineOptions;
+		setCellCounts(cellCounts);
+	}
+
+	/**
+	 * Set the cell counts that the models are built from, the relative cell counts if -cc is used
+	 */
+	private void setCellCounts(CellCount cellCounts){
+		this.cellCounts = commandLineOptions.getUseRelativeCellCounts() ? cellCounts.getRelativeCellCounts() : cellCounts;
+		sizeCaches();
+	}
+
+	/**
+	 * Size the rank and dosage QC caches to the number of vectors of the samples that fit in CACHE_BYTES. With gene order
+	 * the SNPs are cached and only the current gene is kept, with snp and position order all genes of a SNP are done after
+	 * each other, so the genes are cached and only the current SNP is kept
+	 */
+	private void sizeCaches(){
+		int cacheSize = (int) Math.max(1, CACHE_BYTES / ((long) Double.BYTES * cellCounts.getNumberOfSamples()));
+		String pairOrder = commandLineOptions.getPairOrder();
+		boolean geneOrder = !("snp".equals(pairOrder) || "position".equals(pairOrder));
+		expressionRanks = new RankCache(geneOrder ? 1 : cacheSize);
+		genotypeRanks = new RankCache(geneOrder ? cacheSize : 1);
+		genotypeQcCacheSize = geneOrder ? cacheSize : 1;
+	}
 
 	/**
 	 * Deconvolutes a set of QTLs given the expression levels, genotypes,
@@ -37,148 +109,687 @@ public class Deconvolution {
 	 * TODO: Crashes if output folder does not exist, either add clear error message or make output folder 
 	 */
 	public static void main(String[] args) throws Exception {
+		new Deconvolution().run(args, null, null, null);
+	}
 
-		commandLineOptions.parseCommandLine(args);
-		outputFolder = commandLineOptions.getOutfolder();
-		cellCounts = new CellCount(commandLineOptions.getCellcountFile());
+	/**
+	 * Run the deconvolution with command line arguments args. Cohort data that is given is used instead of reading
+	 * the files of -c, -e and -g, so that DeconvolutionServer can run many jobs on data that is loaded once. The data
+	 * is not changed by the run. A Deconvolution object is used for one run, its log file and run metrics are not
+	 * shared with other runs in the JVM.
+	 * 
+	 * @param cohortCellCounts Cell counts to use, null to read the cellcount file
+	 * 
+	 * @param cohortExpressionData Expression of (at least) all genes that are tested, null to read the expression file
+	 * 
+	 * @param cohortGenotypeData Genotypes of (at least) all SNPs that are tested, null to read the genotype file
+	 */
+	void run(String[] args, CellCount cohortCellCounts, ExpressionData cohortExpressionData, 
+			GenotypeData cohortGenotypeData) throws Exception {
+		try{
+			commandLineOptions.parseCommandLine(args);
+			outputFolder = commandLineOptions.getOutfolder();
+			runMetrics.markRunStart();
+			long start = RunMetrics.start();
+			setCellCounts(cohortCellCounts != null ? cohortCellCounts : new CellCount(commandLineOptions.getCellcountFile()));
+			runMetrics.stop(RunMetrics.Stage.PARSE_CELLCOUNTS, start);
 
-		runDeconPerGeneSnpPair();
+			runDeconPerGeneSnpPair(cohortExpressionData, cohortGenotypeData);
+			runMetrics.writeJson(outputFolder);
+		}
+		finally{
+			// the log file of the run is set up by parseCommandLine()
+			DeconvolutionLogger.close();
+		}
 	}
 
 	/**
 	 * For each of the gene-SNP pair in the SnpsToTestFile run deconvolution
+	 * 
+	 * @param expressionData Expression data to use, null to read the rows of the tested genes from the expression file
+	 * 
+	 * @param genotypeData Genotype data to use, null to read the rows of the tested SNPs from the genotype file
 	 */
-	private static void runDeconPerGeneSnpPair() throws IOException, IllegalAccessException, RuntimeException{
-		HashMap<String,ArrayList<String>> geneSnpPairs = Utils.parseSnpPerGeneFile(commandLineOptions.getSnpsToTestFile());
-		String expressionFile = commandLineOptions.getExpressionFile();
-		DeconvolutionLogger.log.info(String.format("Parse expression data from %s",expressionFile));
-		ExpressionData expressionData = new ExpressionData(expressionFile);
-		DeconvolutionLogger.log.info("Done");
-		String genotypeFile = commandLineOptions.getGenotypeFile();
-		DeconvolutionLogger.log.info(String.format("Parse genotype data from %s",genotypeFile));
-		GenotypeData genotypeData = new GenotypeData(genotypeFile);
-
-		DeconvolutionLogger.log.info("Done");
-		if (!Utils.equalLists(expressionData.getSampleNames(), genotypeData.getSampleNames())){
-			Set<String> expressionSamplesSet1 = new HashSet<String>(expressionData.getSampleNames());
-			// use 2 times expresionSampleSet because do inplace replacement, so when removing from genotypeSamples set need a new expressionSamples set
-			Set<String> expressionSamplesSet2 = new HashSet<String>(expressionData.getSampleNames());
-			Set<String> genotypeSamplesSet = new HashSet<String>(genotypeData.getSampleNames());
-			expressionSamplesSet1.removeAll(genotypeSamplesSet);
-			genotypeSamplesSet.removeAll(expressionSamplesSet2);
-			int numberSamplesMissingExpression = expressionSamplesSet1.size();
-			int numbeSamplesrMissingGenotype = genotypeSamplesSet.size();
-			String expressionSamples = Arrays.toString(expressionSamplesSet1.toArray());
-			String genotypeSamples = Arrays.toString(genotypeSamplesSet.toArray());
-			throw new RuntimeException(String.format("Samplenames not the same in expression and genotype file.\nexpression samples not in genotypes (%d): %s\ngenotype samples not in expression (%d): %s\n",
-					numberSamplesMissingExpression, expressionSamples, numbeSamplesrMissingGenotype, genotypeSamples));
+	private void runDeconPerGeneSnpPair(ExpressionData expressionData, GenotypeData genotypeData) throws IOException, IllegalAccessException, 
+			RuntimeException, InterruptedException{
+		long start = RunMetrics.start();
+		HashMap<String,ArrayList<String>> geneSnpPairs = Utils.parseSnpPerGeneFile(commandLineOptions.getSnpsToTestFile(),
+				commandLineOptions.getShard(), commandLineOptions.getNumberOfShards());
+		runMetrics.stop(RunMetrics.Stage.PARSE_SNPS_TO_TEST, start);
+		List<GeneSnpPair> orderedGeneSnpPairs = Utils.orderGeneSnpPairs(geneSnpPairs, commandLineOptions.getPairOrder(), 
+				commandLineOptions.getSnpPositionFile());
+		// only the rows of genes and SNPs that are tested are read from the expression and genotype file
+		Set<String> snpsToTest = new HashSet<String>();
+		for(ArrayList<String> snps : geneSnpPairs.values()){
+			snpsToTest.addAll(snps);
+		}
+		// the expression and genotype file are read at the same time, in I/O threads. Their columns are put in the sample
+		// order of the cell counts while the rows are parsed, so the files do not need to have the same sample order
+		DeconvolutionLogger.log.info(String.format("Input files are read and output files written in %s threads", IoThreads.isVirtual() ? "virtual" : "platform"));
+		ExecutorService readExecutor = IoThreads.newExecutor();
+		try{
+			Future<ExpressionData> expressionRead = expressionData != null ? null : readExecutor.submit(() -> {
+				String expressionFile = commandLineOptions.getExpressionFile();
+				DeconvolutionLogger.log.info(String.format("Parse expression data from %s",expressionFile));
+				long readStart = RunMetrics.start();
+				ExpressionData parsedExpressionData = new ExpressionData(expressionFile, geneSnpPairs.keySet(), cellCounts.getSampleNames());
+				runMetrics.stop(RunMetrics.Stage.PARSE_EXPRESSION, readStart);
+				DeconvolutionLogger.log.info(String.format("Done parsing %s",expressionFile));
+				return parsedExpressionData;
+			});
+			Future<GenotypeData> genotypeRead = genotypeData != null ? null : readExecutor.submit(() -> {
+				String genotypeFile = commandLineOptions.getGenotypeFile();
+				DeconvolutionLogger.log.info(String.format("Parse genotype data from %s",genotypeFile));
+				long readStart = RunMetrics.start();
+				GenotypeData parsedGenotypeData = new GenotypeData(genotypeFile, snpsToTest, cellCounts.getSampleNames());
+				runMetrics.stop(RunMetrics.Stage.PARSE_GENOTYPES, readStart);
+				DeconvolutionLogger.log.info(String.format("Done parsing %s",genotypeFile));
+				return parsedGenotypeData;
+			});
+			if(expressionRead != null){
+				expressionData = getReadResult(expressionRead);
+			}
+			if(genotypeRead != null){
+				genotypeData = getReadResult(genotypeRead);
+			}
+		}
+		finally{
+			readExecutor.shutdown();
 		}
+		checkSampleOrder(expressionData.getSampleNames(), "expression");
+		checkSampleOrder(genotypeData.getSampleNames(), "genotype");
 		//file to write all samples in that got filtered out
 		Path filteredQTLsFile = Paths.get(outputFolder+"filteredQTLs.csv");
 		filteredQTLsOutput.add("QTL\treason");
 
+		if(commandLineOptions.getCheckpointInterval() > 0){
+			checkpoint = new Checkpoint(outputFolder, commandLineOptions.getOutfile(), commandLineOptions.getCheckpointInterval(), 
+					commandLineOptions.getOutputOptions());
+			if(commandLineOptions.getResume()){
+				checkpoint.resume(permutationTest);
+			}
+			else{
+				checkpoint.start();
+			}
+		}
+
+		// read QTLs -> deconvolute -> write results, connected by bounded queues. With checkpoints the results are added to
+		// the checkpoint by the deconvolution stage, so that the checkpoint and the null distributions stay in step
+		PipelineQueue<QtlInput> qtlInputs = new PipelineQueue<QtlInput>(PIPELINE_QUEUE_CAPACITY);
+		PipelineQueue<DeconvolutionResult> qtlResults = checkpoint == null ? new PipelineQueue<DeconvolutionResult>(PIPELINE_QUEUE_CAPACITY) : null;
+		HashMap<String, double[]> geneExpressionLevels = expressionData.getGeneExpression();
+		HashMap<String, double[]> genotypes = genotypeData.getGenotypes();
+		Thread readStage = PipelineQueue.startStage("read QTLs", () -> readQtls(orderedGeneSnpPairs, geneExpressionLevels, genotypes, qtlInputs),
+				null, qtlInputs);
+		Thread writeStage = qtlResults == null ? null : PipelineQueue.startStage("write results", () -> writeQtlResults(qtlResults), qtlResults, null);
 		int whileIndex = 0;
 		long time = System.currentTimeMillis();
-		List<DeconvolutionResult> deconvolutionResults = new ArrayList<DeconvolutionResult>();
 		int QTLsTotal = 0;
-		HashMap<String, double[]> geneExpressionLevels = expressionData.getGeneExpression();
 		int skippedGenotypeGeneCombinations = 0;
-		for(String gene : geneSnpPairs.keySet()){
-			for(String genotype : geneSnpPairs.get(gene)){
-				if(commandLineOptions.getTestRun() && whileIndex == 100){
-					break;
-				}
+		try{
+			QtlInput qtlInput;
+			while((qtlInput = qtlInputs.take()) != null){
+				String qtlName = qtlInput.geneSnpPair.getQtlName();
 				if (whileIndex % 500 == 0) {
 					long completedIn = System.currentTimeMillis() - time;
-					DeconvolutionLogger.log.info(String.format("Processed %d gene-SNP pairs - %s - skipped %d gene-SNP combinations", whileIndex, DurationFormatUtils.formatDuration(completedIn, "HH:mm:ss:SS"), skippedGenotypeGeneCombinations));
+					DeconvolutionLogger.log.info(String.format("Processed %d gene-SNP pairs - %s - skipped %d gene-SNP combinations - %.1f QTLs/s", whileIndex, 
+							DurationFormatUtils.formatDuration(completedIn, "HH:mm:ss:SS"), skippedGenotypeGeneCombinations, runMetrics.getQtlsPerSecond()));
 				}
 				++whileIndex;
-				String qtlName = gene+'_'+genotype;
 				try{
 					++QTLsTotal;
 					try{
-						double[] dosages = genotypeData.getGenotypes().get(genotype);
-						if(dosages == null){
-							throw new RuntimeException(String.format("SNP %s not in genotype file, is your snpsToTest file correct?", genotype));
-						}
-						double[] expressionLevels = geneExpressionLevels.get(gene);
-						if(expressionLevels != null){
-							DeconvolutionResult deconResult = deconvolution(expressionLevels, 
-									dosages, qtlName);
-							deconvolutionResults.add(deconResult);
-						}
-						else{
-							DeconvolutionLogger.log.info(String.format("Error: Gene %s included in gene/snp combinations to test, but not available in the expression file!",gene));
-							throw new RuntimeException(String.format("Gene %s included in gene/snp combinations to test, but not available in the expression file!",gene));
-						}
+						addQtlResult(qtlResults, deconvoluteQtl(qtlInput.expressionLevels, qtlInput.dosages, qtlName, 
+								qtlInput.geneSnpPair.getGene(), qtlInput.geneSnpPair.getSnp()));
 					}
 					catch(IllegalAccessException e){
 						if(commandLineOptions.getSkipGenotypes()){
 							++skippedGenotypeGeneCombinations;
 							continue;
 						}
-						else{
-							double[] genes = geneExpressionLevels.get(gene);
-							double[] genotypes = genotypeData.getGenotypes().get(genotype);
-							if (genes == null) {
-								DeconvolutionLogger.log.info(String.format("gene %s in SNP-gene pair file but not in expression data file",gene));
-							}
-
-							if (genotypes == null) {
-								DeconvolutionLogger.log.info(String.format("genotype %s in SNP-gene pair file but not in genotype data file",genotype));
-							}
-							throw e;
-						}
+						throw e;
 					}
 				}
 				// If there are not enough samples per genotype, skip this QTL
 				catch(NotEnoughGenotypesException e){
+					runMetrics.addQtlFiltered();
 					if(!commandLineOptions.getFilterSamples()){
-						deconvolutionResults.add(setPvaluesNA(qtlName));
+						addQtlResult(qtlResults, setPvaluesNA(qtlName));
 					}
 					else{
 						++QTLsFiltered;
 					}
-					filteredQTLsOutput.add(qtlName+"\tNot enough genotypes (e.g. AA and AB but no BB)");
+					addFilteredQTL(qtlName+"\tNot enough genotypes (e.g. AA and AB but no BB)");
 				}
 				catch(NotEnoughSamplesPerGenotypeException e){
+					runMetrics.addQtlFiltered();
 					if(!commandLineOptions.getFilterSamples()){
-						deconvolutionResults.add(setPvaluesNA(qtlName));
+						addQtlResult(qtlResults, setPvaluesNA(qtlName));
 					}
 					else{
 						++QTLsFiltered;
 					}
-					filteredQTLsOutput.add(qtlName+"\tNot enough samples per genotype");
+					addFilteredQTL(qtlName+"\tNot enough samples per genotype");
+				}
+				if(checkpoint != null){
+					checkpoint.qtlDone(permutationTest);
 				}
 			}
+			if(qtlResults != null){
+				qtlResults.close();
+			}
+		}
+		catch(Throwable e){
+			qtlInputs.abort(e);
+			if(qtlResults != null){
+				qtlResults.fail(e);
+				writeStage.join();
+				discardStreamedOutput();
+			}
+			throw e;
 		}
-		writeDeconvolutionResults(deconvolutionResults);
+		readStage.join();
+		if(writeStage != null){
+			writeStage.join();
+			qtlResults.checkConsumer();
+		}
+		// the lines of the QTLs are timed as they are written (see writeQtlResult()), this is the time of the permutation
+		// FDR and of closing the files
+		start = RunMetrics.start();
+		closePredictedExpression();
+		closeNonSignificantQTLs();
+		if(checkpoint != null){
+			checkpoint.write(permutationTest);
+			writeDeconvolutionResultsFromCheckpoint();
+		}
+		else{
+			writeDeconvolutionResults();
+		}
+		runMetrics.stop(RunMetrics.Stage.WRITE_OUTPUT, start);
 		DeconvolutionLogger.log.info(String.format("Skipped %d gene-SNP combinations (because genotype in SNP-pair file but not in genotype file)",skippedGenotypeGeneCombinations));
 		DeconvolutionLogger.log.info(String.format("QTLs passed: %d", QTLsTotal-(QTLsFiltered+skippedGenotypeGeneCombinations)));
 		DeconvolutionLogger.log.info(String.format("QTLs filtered: %d", QTLsFiltered));
+		if(commandLineOptions.getOutputSignificantOnly()){
+			DeconvolutionLogger.log.info(String.format("QTLs not significant (-s): %d", numberOfNonSignificantQTLs));
+		}
 		DeconvolutionLogger.log.info(String.format("Total: %d",QTLsTotal-skippedGenotypeGeneCombinations));
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			DeconvolutionLogger.log.info(String.format("Permutations done: %d (maximum %d permutations per QTL)", permutationTest.getPermutationsDone(),
+					commandLineOptions.getNumberOfPermutations()));
+		}
+		if(checkpoint != null){
+			DeconvolutionLogger.log.info(String.format("QTLs done before resuming: %d", checkpoint.getNumberOfQtlsDone()));
+		}
 		Files.write(filteredQTLsFile, filteredQTLsOutput, Charset.forName("UTF-8"));
+		if(checkpoint != null && Files.exists(checkpoint.getFilteredQTLsFile())){
+			// with checkpoints all filtered QTLs are in the checkpoint, filteredQTLsOutput only has the header
+			try(OutputStream outputStream = Files.newOutputStream(filteredQTLsFile, StandardOpenOption.APPEND)){
+				Files.copy(checkpoint.getFilteredQTLsFile(), outputStream);
+			}
+		}
+		if(commandLineOptions.getShard() > 0 && commandLineOptions.getNumberOfPermutations() > 0){
+			// needed by MergeShards to calculate the permutation FDR over all shards
+			writeNullDistributions(permutationTest, Paths.get(outputFolder+MergeShards.NULL_DISTRIBUTIONS_FILE));
+		}
+		if(checkpoint != null){
+			// all output is written, so the run does not have to be resumed any more
+			checkpoint.delete();
+		}
+	}
+
+	/**
+	 * The models are built with the samples in the order of the cell counts, so the expression and genotypes should be 
+	 * in that order. This is the case for data read by runDeconPerGeneSnpPair(), data given to run() should be read in
+	 * the same way (see DeconvolutionServer)
+	 * 
+	 * @param dataType expression or genotype, used in the error message
+	 */
+	private void checkSampleOrder(List<String> sampleNames, String dataType){
+		if(!sampleNames.equals(cellCounts.getSampleNames())){
+			throw new RuntimeException(String.format("Samples of the %s data are not the samples of the cellcount file in the same order", dataType));
+		}
+	}
+
+	/**
+	 * Wait for an input file that is read in an I/O thread, errors of the read are thrown as they are
+	 */
+	private static <T> T getReadResult(Future<T> read) throws IOException, InterruptedException{
+		try{
+			return read.get();
+		}
+		catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException){
+				throw (IOException) cause;
+			}
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if(cause instanceof Error){
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Write the permutation null distribution per celltype, one line per celltype with the celltype followed by the histogram
+	 */
+	public static void writeNullDistributions(PermutationTest permutationTest, Path file) throws IOException{
+		List<String> output = new ArrayList<String>();
+		for(String celltype : permutationTest.getCelltypes()){
+			output.add(celltype+"\t"+permutationTest.getNullDistribution(celltype).toLine());
+		}
+		Files.write(file, output, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Deconvolution of one QTL, followed by the permutation test if permutations are set
+	 * 
+	 * @param expressionLevels Expression of the gene, in the sample order of the cell counts
+	 * 
+	 * @param dosages Dosages of the SNP, in the sample order of the cell counts. Not changed
+	 * 
+	 * @param gene Name of the gene, used to cache its ranks for the whole blood QTL
+	 * 
+	 * @param snp Name of the SNP, used to cache its ranks and dosage QC
+	 */
+	DeconvolutionResult deconvoluteQtl(double[] expressionLevels, double[] dosages, String qtlName, String gene, String snp) 
+			throws RuntimeException, IllegalAccessException, IOException, NotEnoughGenotypesException, NotEnoughSamplesPerGenotypeException{
+		double[] genotypes = genotypeQc(dosages, snp);
+		DeconvolutionResult deconResult = deconvolution(expressionLevels, genotypes, qtlName, gene, snp, false);
+		runMetrics.addQtlDone();
+		// also QTLs that are not significant with -s are permuted, the FDR null distribution needs all of them.
+		// The permutations get the genotypes after QC, a shuffle has the same genotype counts so it passes the QC as well
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			long permutationStart = RunMetrics.start();
+			deconResult.setPermutationPvalues(permutationTest.adaptivePermutationTest(this, deconResult, expressionLevels, genotypes, 
+					cellCounts, commandLineOptions.getNumberOfPermutations(), commandLineOptions.getPermutationHits()));
+			runMetrics.stop(RunMetrics.Stage.PERMUTATIONS, permutationStart);
+		}
+		return deconResult;
+	}
+
+	/**
+	 * Permutation null distributions of the QTLs that are done, used for the permutation FDR
+	 */
+	PermutationTest getPermutationTest(){
+		return permutationTest;
+	}
+
+	/**
+	 * Read stage of the pipeline: the expression and dosages of the QTLs to test, in the order of orderedGeneSnpPairs.
+	 * QTLs that are done in the checkpoint are skipped
+	 */
+	private void readQtls(List<GeneSnpPair> orderedGeneSnpPairs, HashMap<String, double[]> geneExpressionLevels, 
+			HashMap<String, double[]> genotypes, PipelineQueue<QtlInput> qtlInputs) throws InterruptedException{
+		int numberOfQtls = 0;
+		for(GeneSnpPair geneSnpPair : orderedGeneSnpPairs){
+			if(checkpoint != null && checkpoint.isDone(geneSnpPair.getQtlName())){
+				continue;
+			}
+			if(commandLineOptions.getTestRun() && numberOfQtls == 100){
+				break;
+			}
+			++numberOfQtls;
+			double[] dosages = genotypes.get(geneSnpPair.getSnp());
+			if(dosages == null){
+				throw new RuntimeException(String.format("SNP %s not in genotype file, is your snpsToTest file correct?", geneSnpPair.getSnp()));
+			}
+			double[] expressionLevels = geneExpressionLevels.get(geneSnpPair.getGene());
+			if(expressionLevels == null){
+				DeconvolutionLogger.log.info(String.format("Error: Gene %s included in gene/snp combinations to test, but not available in the expression file!",geneSnpPair.getGene()));
+				throw new RuntimeException(String.format("Gene %s included in gene/snp combinations to test, but not available in the expression file!",geneSnpPair.getGene()));
+			}
+			qtlInputs.put(new QtlInput(geneSnpPair, expressionLevels, dosages));
+		}
+		qtlInputs.close();
+	}
+
+	/**
+	 * Write stage of the pipeline: predicted expression and results of the QTLs in the order that they are done
+	 */
+	private void writeQtlResults(PipelineQueue<DeconvolutionResult> qtlResults) throws InterruptedException, IllegalAccessException, IOException{
+		DeconvolutionResult deconResult;
+		while((deconResult = qtlResults.take()) != null){
+			writeQtlResult(deconResult);
+		}
+	}
+
+	/**
+	 * Write the predicted expression and result of a QTL, the time is added to the write output stage
+	 */
+	private void writeQtlResult(DeconvolutionResult deconResult) throws IllegalAccessException, IOException{
+		long start = RunMetrics.start();
+		addPredictedExpression(deconResult);
+		addDeconvolutionResult(deconResult);
+		runMetrics.stop(RunMetrics.Stage.WRITE_OUTPUT, start);
+	}
+
+	/**
+	 * Pass the result of a QTL to the write stage, or add it to the checkpoint if checkpoints are written
+	 * 
+	 * @param qtlResults Queue of the write stage, null if checkpoints are written
+	 */
+	private void addQtlResult(PipelineQueue<DeconvolutionResult> qtlResults, DeconvolutionResult deconResult) 
+			throws InterruptedException, IllegalAccessException, IOException{
+		if(qtlResults != null){
+			qtlResults.put(deconResult);
+			return;
+		}
+		writeQtlResult(deconResult);
+	}
+
+	/**
+	 * Write the result line of a QTL, to the checkpoint if checkpoints are written. Else the line is written to the 
+	 * outfile straight away, or if permutations are done to a temporary file, because the permutation FDR columns 
+	 * need the p-values of all QTLs (added by writeDeconvolutionResults())
+	 */
+	private void addDeconvolutionResult(DeconvolutionResult deconResult) throws IllegalAccessException, IOException{
+		if(!isWritten(deconResult)){
+			addNonSignificantQTL(deconResult);
+			return;
+		}
+		if(checkpoint != null){
+			if(!checkpoint.hasResultsHeader()){
+				checkpoint.addResultsLine(getResultsHeader(deconResult));
+			}
+			checkpoint.addResultsLine(getResultsLine(deconResult));
+			return;
+		}
+		if(resultsWriter == null){
+			resultsLine.setLength(0);
+			appendResultsHeader(resultsLine, deconResult);
+			if(commandLineOptions.getNumberOfPermutations() > 0){
+				resultsWriter = new ResultWriter(getResultsWithoutFdrFile());
+			}
+			else{
+				resultsWriter = new ResultWriter(getResultsFile());
+			}
+			if(commandLineOptions.getBinaryOutput()){
+				// the permutation FDR columns are added with addColumn() when all QTLs are done
+				binaryResultsWriter = new BinaryResultWriter(getBinaryResultsFile(), resultsLine);
+				binaryResultsRow = binaryResultsWriter.newRow();
+			}
+			resultsWriter.writeLine(resultsLine);
+		}
+		resultsLine.setLength(0);
+		appendResultsLine(resultsLine, deconResult);
+		resultsWriter.writeLine(resultsLine);
+		if(binaryResultsWriter != null){
+			binaryResultsWriter.addRow(deconResult.getQtlName(), getBinaryResultsRow(deconResult, binaryResultsRow));
+		}
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			resultPvalues.add(toObservedPvalues(deconResult.getPvalues()));
+		}
+	}
+
+	/**
+	 * P-values for the permutation FDR, with NaN for the NA p-values of QTLs that were not tested (see setPvaluesNA)
+	 */
+	private static double[] toObservedPvalues(List<Double> pvalues){
+		double[] observedPvalues = new double[pvalues.size()];
+		for(int i = 0; i < pvalues.size(); ++i){
+			observedPvalues[i] = toObservedPvalue(pvalues.get(i));
+		}
+		return observedPvalues;
+	}
+
+	/**
+	 * @return NaN if pvalue is the NA p-value of a QTL that was not tested (see setPvaluesNA), else pvalue
+	 */
+	static double toObservedPvalue(double pvalue){
+		return pvalue == NA_PVALUE ? Double.NaN : pvalue;
+	}
+
+	/**
+	 * @return true if the result of the QTL goes in the deconvolution output, false if -s is used and the QTL is not
+	 * significant (p-value < -st) in any celltype
+	 */
+	private boolean isWritten(DeconvolutionResult deconResult) throws IllegalAccessException{
+		if(!commandLineOptions.getOutputSignificantOnly()){
+			return true;
+		}
+		for(double pvalue : deconResult.getPvalues()){
+			if(pvalue < commandLineOptions.getSignificanceThreshold()){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reduce a QTL that is not significant to its name and p-values, these are written to nonSignificantQTLs.csv (or the
+	 * checkpoint) straight away. Only the p-values are kept, they are needed for the permutation FDR of the other QTLs
+	 */
+	private void addNonSignificantQTL(DeconvolutionResult deconResult) throws IllegalAccessException, IOException{
+		++numberOfNonSignificantQTLs;
+		List<Double> pvalues = deconResult.getPvalues();
+		StringBuilder line = new StringBuilder(deconResult.getQtlName()).append('\t');
+		Utils.appendTabSeparated(line, pvalues);
+		if(checkpoint != null){
+			if(!checkpoint.hasNonSignificantQTLsHeader()){
+				checkpoint.addNonSignificantQTLsLine(getNonSignificantQTLsHeader());
+			}
+			checkpoint.addNonSignificantQTLsLine(line.toString());
+			return;
+		}
+		if(nonSignificantQTLsWriter == null){
+			nonSignificantQTLsWriter = new ResultWriter(getNonSignificantQTLsFile());
+			nonSignificantQTLsWriter.writeLine(getNonSignificantQTLsHeader());
+		}
+		nonSignificantQTLsWriter.writeLine(line);
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			nonSignificantPvalues.add(toObservedPvalues(pvalues));
+		}
+	}
+
+	private String getNonSignificantQTLsHeader(){
+		return Utils.appendTabSeparated(new StringBuilder("QTL\t"), cellCounts.getAllCelltypes(), "_pvalue").toString();
+	}
+
+	private Path getNonSignificantQTLsFile(){
+		return Paths.get(outputFolder+"nonSignificantQTLs.csv");
+	}
+
+	/**
+	 * Write the predicted expression of the best full model of a QTL, to the checkpoint if checkpoints are written, else 
+	 * directly to the predicted expression file
+	 */
+	private void addPredictedExpression(DeconvolutionResult deconResult) throws IllegalAccessException, IOException{
+		if(!commandLineOptions.getOutputPredictedExpression()){
+			return;
+		}
+		// QTLs with NA p-values have no model to predict the expression with
+		if(isWritten(deconResult) && deconResult.hasInteractionModelCollection()){
+			if(checkpoint != null){
+				if(!checkpoint.hasPredictedExpressionHeader()){
+					checkpoint.addPredictedExpressionLine(getPredictedExpressionHeader(deconResult));
+				}
+				checkpoint.addPredictedExpressionLine(getPredictedExpressionLine(deconResult));
+			}
+			else{
+				if(predictedExpressionWriter == null){
+					predictedExpressionWriter = new ResultWriter(getPredictedExpressionFile(), commandLineOptions.getCompressPredictedExpression());
+					predictedExpressionLine.setLength(0);
+					predictedExpressionWriter.writeLine(appendPredictedExpressionHeader(predictedExpressionLine, deconResult));
+				}
+				predictedExpressionLine.setLength(0);
+				predictedExpressionWriter.writeLine(appendPredictedExpressionLine(predictedExpressionLine, deconResult));
+			}
+		}
+	}
+
+	private void addFilteredQTL(String filteredQTLLine){
+		if(checkpoint == null){
+			filteredQTLsOutput.add(filteredQTLLine);
+		}
+		else{
+			checkpoint.addFilteredQTLsLine(filteredQTLLine);
+		}
+	}
+
+	/**
+	 * Write the deconvolution results (and predicted expression) from the lines in the checkpoint
+	 */
+	private void writeDeconvolutionResultsFromCheckpoint() throws IOException, IllegalAccessException{
+		Path checkpointNonSignificantQTLsFile = checkpoint.getNonSignificantQTLsFile();
+		if(Files.exists(checkpointNonSignificantQTLsFile)){
+			Files.copy(checkpointNonSignificantQTLsFile, getNonSignificantQTLsFile(), StandardCopyOption.REPLACE_EXISTING);
+			DeconvolutionLogger.log.info(String.format("QTLs that are not significant written to %s", getNonSignificantQTLsFile().toAbsolutePath()));
+			if(commandLineOptions.getNumberOfPermutations() > 0){
+				// first line is the header
+				try(ReadAheadLineIterator nonSignificantQTLs = new ReadAheadLineIterator(checkpointNonSignificantQTLsFile.toString())){
+					nonSignificantQTLs.next();
+					while(nonSignificantQTLs.hasNext()){
+						nonSignificantPvalues.add(parsePvalues(nonSignificantQTLs.next()));
+					}
+				}
+			}
+		}
+		writeResultsLines(checkpoint.getResultsFile());
+		Path checkpointPredictedExpressionFile = checkpoint.getPredictedExpressionFile();
+		if(commandLineOptions.getOutputPredictedExpression() && Files.exists(checkpointPredictedExpressionFile)){
+			Path file = getPredictedExpressionFile();
+			OutputStream outputStream = Files.newOutputStream(file);
+			if(commandLineOptions.getCompressPredictedExpression()){
+				outputStream = new GZIPOutputStream(outputStream, 1 << 16);
+			}
+			try{
+				Files.copy(checkpointPredictedExpressionFile, outputStream);
+			}
+			finally{
+				outputStream.close();
+			}
+			DeconvolutionLogger.log.info(String.format("predicted expression written to %s", file.toAbsolutePath()));
+		}
+	}
+
+	/**
+	 * Close and remove the output files that the write stage was writing to when the run stopped on an error, so
+	 * that they are not mistaken for complete output
+	 */
+	private void discardStreamedOutput() throws IOException{
+		if(resultsWriter != null){
+			resultsWriter.close();
+			Files.deleteIfExists(commandLineOptions.getNumberOfPermutations() > 0 ? getResultsWithoutFdrFile() : getResultsFile());
+		}
+		if(predictedExpressionWriter != null){
+			predictedExpressionWriter.close();
+			Files.deleteIfExists(getPredictedExpressionFile());
+		}
+		if(nonSignificantQTLsWriter != null){
+			nonSignificantQTLsWriter.close();
+			Files.deleteIfExists(getNonSignificantQTLsFile());
+		}
+	}
+
+	/**
+	 * Close the non significant QTLs file that the QTLs were written to by addNonSignificantQTL()
+	 */
+	private void closeNonSignificantQTLs() throws IOException{
+		if(nonSignificantQTLsWriter != null){
+			nonSignificantQTLsWriter.close();
+			nonSignificantQTLsWriter = null;
+			DeconvolutionLogger.log.info(String.format("QTLs that are not significant written to %s", getNonSignificantQTLsFile().toAbsolutePath()));
+		}
+	}
+
+	/**
+	 * Close the predicted expression file that the QTLs were written to by addPredictedExpression()
+	 */
+	private void closePredictedExpression() throws IOException{
+		if(predictedExpressionWriter != null){
+			predictedExpressionWriter.close();
+			predictedExpressionWriter = null;
+			DeconvolutionLogger.log.info(String.format("predicted expression written to %s", getPredictedExpressionFile().toAbsolutePath()));
+		}
+	}
+
+	/**
+	 * Finish the deconvolution results that the write stage wrote with addDeconvolutionResult(). If permutations are
+	 * done the lines are copied from the temporary file to the outfile with the permutation FDR columns added
+	 */
+	private void writeDeconvolutionResults() throws IllegalAccessException, IOException{
+		if(resultsWriter == null){
+			DeconvolutionLogger.log.info(commandLineOptions.getOutputSignificantOnly() ? "No significant QTLs, no deconvolution output written"
+					: "No QTLs deconvoluted, no deconvolution output written");
+			return;
+		}
+		resultsWriter.close();
+		resultsWriter = null;
+		if(commandLineOptions.getNumberOfPermutations() == 0){
+			logResultsWritten(getResultsFile());
+			if(binaryResultsWriter != null){
+				binaryResultsWriter.write();
+				binaryResultsWriter = null;
+			}
+			return;
+		}
+		int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+		double[][] observedPvaluesPerCelltype = newObservedPvaluesPerCelltype(resultPvalues.size());
+		for(int i = 0; i < resultPvalues.size(); ++i){
+			for(int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex){
+				observedPvaluesPerCelltype[celltypeIndex][i] = resultPvalues.get(i)[celltypeIndex];
+			}
+		}
+		Path resultsWithoutFdrFile = getResultsWithoutFdrFile();
+		try(Stream<String> lines = Files.lines(resultsWithoutFdrFile, Charset.forName("UTF-8"))){
+			writeResultsLines(lines.iterator(), calculatePermutationFdr(observedPvaluesPerCelltype));
+		}
+		Files.delete(resultsWithoutFdrFile);
+	}
+
+	private Path getResultsFile(){
+		return Paths.get(outputFolder+commandLineOptions.getOutfile());
+	}
+
+	private Path getBinaryResultsFile(){
+		return Paths.get(outputFolder+BinaryResultWriter.getBinaryFileName(commandLineOptions.getOutfile()));
+	}
+
+	/**
+	 * Result lines without the permutation FDR columns, while the QTLs are deconvoluted
+	 */
+	private Path getResultsWithoutFdrFile(){
+		return Paths.get(outputFolder+commandLineOptions.getOutfile()+".withoutFDR");
+	}
+
+	/**
+	 * Header of the deconvolution results, without the permutation FDR columns (these are added by writeResultsLines())
+	 * 
+	 * @param deconvolutionResult Deconvolution result with full model info, used to get the names of the betas
+	 */
+	private String getResultsHeader(DeconvolutionResult deconvolutionResult) throws IllegalAccessException{
+		return appendResultsHeader(new StringBuilder(), deconvolutionResult).toString();
 	}
 
 	/**
-	 * Write the deconfolution results
+	 * Append the header of the deconvolution results, without the permutation FDR columns, to header
 	 * 
-	 * @param deconvolutionResult The deconvolutionresult
+	 * @param deconvolutionResult Deconvolution result with full model info, used to get the names of the betas
 	 */
-	private static void writeDeconvolutionResults(List<DeconvolutionResult> deconvolutionResults) throws IllegalAccessException, IOException{
+	private StringBuilder appendResultsHeader(StringBuilder header, DeconvolutionResult deconvolutionResult) throws IllegalAccessException{
 		List<String> celltypes = cellCounts.getAllCelltypes();
-		String header = "\t"+Utils.listToTabSeparatedString(celltypes, "_pvalue");
+		header.append('\t');
+		Utils.appendTabSeparated(header, celltypes, "_pvalue");
 
-		DeconvolutionLogger.log.info("Getting decon result with full model info for writing the header");
 		// celltypes.size()*2 because there are twice as many betas as celltypes (CC% & CC%:GT)
-		InteractionModelCollection firstInteractionModelCollection = deconvolutionResults.get(0).getInteractionModelCollection();
-		InteractionModel bestFullModelForHeaderOnly = firstInteractionModelCollection.getBestFullModel();
+		InteractionModel bestFullModelForHeaderOnly;
+		if(deconvolutionResult.hasInteractionModelCollection()){
+			bestFullModelForHeaderOnly = deconvolutionResult.getInteractionModelCollection().getBestFullModel();
+		}
+		else{
+			// QTL with NA p-values, the names of the betas are the same as for the full model
+			bestFullModelForHeaderOnly = new InteractionModel();
+			bestFullModelForHeaderOnly.setAlltIndependentVariableNames(celltypes);
+		}
 
 		for(int i = 1; i < cellCounts.getNumberOfCelltypes()*2 + 1; ++i){
-			header += "\tBeta" + Integer.toString(i) +"_"+bestFullModelForHeaderOnly.getIndependentVariableNames().get(i-1);
+			header.append("\tBeta").append(i).append('_').append(bestFullModelForHeaderOnly.getIndependentVariableNames().get(i-1));
 		}
 		for(String celltype : celltypes){
-			header += "\teffectDirectionDosage2_"+celltype;
+			header.append("\teffectDirectionDosage2_").append(celltype);
 		}
 		//header += "\tgenotypeConfiguration";
 		//for(String celltype : cellCounts.getAllCelltypes()){
@@ -186,128 +797,375 @@ public class Deconvolution {
 		//}\
 
 		if(commandLineOptions.getWholeBloodQTL()){
-			header += "\tSpearman correlation expression~GT\tSpearman correlation p-value";
+			header.append("\tSpearman correlation expression~GT\tSpearman correlation p-value");
+		}
+		if(commandLineOptions.getMinusLog10Pvalues()){
+			header.append('\t');
+			Utils.appendTabSeparated(header, celltypes, "_minusLog10Pvalue");
+		}
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			header.append('\t');
+			Utils.appendTabSeparated(header, celltypes, "_permutationPvalue");
 		}
-
 		//header += "\tStandardError";
-		List<String> output = new ArrayList<String>();
-		output.add(header);
-		for(DeconvolutionResult deconvolutionResult : deconvolutionResults){
-			InteractionModelCollection interactionModelCollection = deconvolutionResult.getInteractionModelCollection();
+		return header;
+	}
 
-			String results = "";
-			results += deconvolutionResult.getQtlName()+"\t"+Utils.listToTabSeparatedString(deconvolutionResult.getPvalues());
-			InteractionModel bestFullModel = null;
+	/**
+	 * Line with the results of one QTL, without the permutation FDR columns (these are added by writeResultsLines()).
+	 * Lines are complete when the QTL is done, so that they can be written to a checkpoint.
+	 */
+	private String getResultsLine(DeconvolutionResult deconvolutionResult) throws IllegalAccessException{
+		return appendResultsLine(new StringBuilder(), deconvolutionResult).toString();
+	}
 
-			bestFullModel = interactionModelCollection.getBestFullModel();
+	/**
+	 * Append the results of one QTL, without the permutation FDR columns, to results
+	 */
+	private StringBuilder appendResultsLine(StringBuilder results, DeconvolutionResult deconvolutionResult) throws IllegalAccessException{
+		results.append(deconvolutionResult.getQtlName()).append('\t');
+		Utils.appendTabSeparated(results, deconvolutionResult.getPvalues());
+		if(!deconvolutionResult.hasInteractionModelCollection()){
+			return appendResultsLineNA(results, deconvolutionResult);
+		}
+		InteractionModelCollection interactionModelCollection = deconvolutionResult.getInteractionModelCollection();
+		InteractionModel bestFullModel = null;
 
+		bestFullModel = interactionModelCollection.getBestFullModel();
 
-			results += "\t"+Utils.listToTabSeparatedString(bestFullModel.getEstimateRegressionParameters());
 
-			// check what the genotype configuration is and the beta of the interaction term. 
-			// If genotype configuration == 0 and beta == positive, dosage2 effect = positive
-			// If genotype configuration == 1 and beta == negative, dosage2 effect = positive
-			// else is negative
-			int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+		results.append('\t');
+		Utils.appendTabSeparated(results, bestFullModel.getEstimateRegressionParameters());
+
+		// check what the genotype configuration is and the beta of the interaction term. 
+		// If genotype configuration == 0 and beta == positive, dosage2 effect = positive
+		// If genotype configuration == 1 and beta == negative, dosage2 effect = positive
+		// else is negative
+		int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+		for(int i = 0; i < numberOfCelltypes; ++i){
+			results.append(getEffectDirectionDosage2(bestFullModel, i) < 0 ? "\t-" : "\t+");
+		}
+
+		//results += "\t"+bestFullModel.getGenotypeConfiguration();
+		//for(String celltype : cellCounts.getAllCelltypes()){
+		//	InteractionModel bestCtModel = deconvolutionResult.getInteractionModelCollection().getBestCtModel(celltype); 
+		//	results += "\t"+bestCtModel.getGenotypeConfiguration();
+		//}
+		if(commandLineOptions.getWholeBloodQTL()){
+			results.append('\t').append(deconvolutionResult.getWholeBloodQTL());
+			results.append('\t').append(deconvolutionResult.getWholeBloodQTLpvalue());
+		}
+		if(commandLineOptions.getMinusLog10Pvalues()){
+			results.append('\t');
+			Utils.appendTabSeparated(results, deconvolutionResult.getMinusLog10Pvalues());
+		}
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			results.append('\t');
+			Utils.appendTabSeparated(results, deconvolutionResult.getPermutationPvalues());
+		}
+
+		//results += "\t"+bestFullModel.getEstimatedStandardError();
+		return results;
+	}
+
+	/**
+	 * Effect direction of dosage 2 in celltype celltypeIndex: 1 (+) or -1 (-)
+	 */
+	private int getEffectDirectionDosage2(InteractionModel bestFullModel, int celltypeIndex) throws IllegalAccessException{
+		// add cellCounts.getNumberOfCelltypes() to get the regression parameter for the interaction term (first ones are indepent effect betas)
+		double estimatedRegressionParameter = bestFullModel.getEstimateRegressionParameters()[celltypeIndex+cellCounts.getNumberOfCelltypes()];
+		char genotypeConfiguration = bestFullModel.getGenotypeConfiguration().charAt(celltypeIndex);
+		if (genotypeConfiguration == '0'){
+			return estimatedRegressionParameter < 0 ? -1 : 1;
+		}
+		else if(genotypeConfiguration == '1'){
+			return estimatedRegressionParameter < 0 ? 1 : -1;
+		}
+		throw new RuntimeException(String.format("Genotype configuration should be 0 or 1, not %s", genotypeConfiguration));
+	}
+
+	/**
+	 * The values of the results line of one QTL (the columns after the QTL name, see appendResultsLine()) for the
+	 * binary results, NA is NaN and the effect directions are 1 (+), -1 (-) or 0 (NA)
+	 * 
+	 * @param row Array that is filled in and returned, reused for all QTLs
+	 */
+	private double[] getBinaryResultsRow(DeconvolutionResult deconvolutionResult, double[] row) throws IllegalAccessException{
+		int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+		int column = 0;
+		for(double pvalue : deconvolutionResult.getPvalues()){
+			row[column++] = pvalue;
+		}
+		if(deconvolutionResult.hasInteractionModelCollection()){
+			InteractionModel bestFullModel = deconvolutionResult.getInteractionModelCollection().getBestFullModel();
+			for(double beta : bestFullModel.getEstimateRegressionParameters()){
+				row[column++] = beta;
+			}
 			for(int i = 0; i < numberOfCelltypes; ++i){
-				char genotypeConfiguration = 0;
-				double estimatedRegressionParameter;
+				row[column++] = getEffectDirectionDosage2(bestFullModel, i);
+			}
+		}
+		else{
+			Arrays.fill(row, column, column + numberOfCelltypes * 2, Double.NaN);
+			column += numberOfCelltypes * 2;
+			Arrays.fill(row, column, column + numberOfCelltypes, 0);
+			column += numberOfCelltypes;
+		}
+		if(commandLineOptions.getWholeBloodQTL()){
+			row[column++] = deconvolutionResult.getWholeBloodQTL();
+			row[column++] = deconvolutionResult.getWholeBloodQTLpvalue();
+		}
+		if(commandLineOptions.getMinusLog10Pvalues()){
+			for(double minusLog10Pvalue : deconvolutionResult.getMinusLog10Pvalues()){
+				row[column++] = minusLog10Pvalue;
+			}
+		}
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			for(double permutationPvalue : deconvolutionResult.getPermutationPvalues()){
+				row[column++] = permutationPvalue;
+			}
+		}
+		return row;
+	}
 
+	/**
+	 * Append the rest of the line of a QTL that has NA p-values (filtered without -f), it has no model so the betas,
+	 * effect directions, -log10 p-values and permutation p-values are NA
+	 */
+	private StringBuilder appendResultsLineNA(StringBuilder results, DeconvolutionResult deconvolutionResult) throws IllegalAccessException{
+		int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+		// betas (CC% & CC%:GT) and effect directions
+		for(int i = 0; i < numberOfCelltypes * 3; ++i){
+			results.append("\tNA");
+		}
+		if(commandLineOptions.getWholeBloodQTL()){
+			results.append('\t').append(deconvolutionResult.getWholeBloodQTL());
+			results.append('\t').append(deconvolutionResult.getWholeBloodQTLpvalue());
+		}
+		if(commandLineOptions.getMinusLog10Pvalues()){
+			appendNA(results, deconvolutionResult.getMinusLog10Pvalues());
+		}
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			appendNA(results, deconvolutionResult.getPermutationPvalues());
+		}
+		return results;
+	}
 
-				estimatedRegressionParameter = bestFullModel.getEstimateRegressionParameters()[i+numberOfCelltypes];
-				genotypeConfiguration = bestFullModel.getGenotypeConfiguration().charAt(i);
+	/**
+	 * Append values, each after a tab, with NA for NaN
+	 */
+	private static void appendNA(StringBuilder results, List<Double> values){
+		for(double value : values){
+			results.append('\t');
+			if(Double.isNaN(value)){
+				results.append("NA");
+			}
+			else{
+				results.append(value);
+			}
+		}
+	}
 
-				if (genotypeConfiguration == '0'){
-					// add cellCounts.getNumberOfCelltypes() to get the regression parameter for the interaction term (first ones are indepent effect betas)
-					if(estimatedRegressionParameter < 0){
-						results += "\t-";			
-					}
-					else{
-						results += "\t+";
-					}
-				}else if(genotypeConfiguration == '1'){
-					if(estimatedRegressionParameter < 0){
-						results += "\t+";			
-					}
-					else{
-						results += "\t-";
-					}
+	/**
+	 * Write the header and result lines made by getResultsHeader() and getResultsLine() to the outfile. If permutations
+	 * are done the permutation FDR columns are added, these need the p-values of all QTLs so the file is read twice:
+	 * first for the p-values, then to copy the lines with the FDR added
+	 * 
+	 * @param file File with the header followed by the result lines, does not exist if there are no results
+	 */
+	private void writeResultsLines(Path file) throws IOException, IllegalAccessException{
+		if(!Files.exists(file)){
+			DeconvolutionLogger.log.info(commandLineOptions.getOutputSignificantOnly() ? "No significant QTLs, no deconvolution output written"
+					: "No QTLs deconvoluted, no deconvolution output written");
+			return;
+		}
+		List<double[]> permutationFdrPerCelltype = null;
+		if(commandLineOptions.getNumberOfPermutations() > 0){
+			List<double[]> pvalues = new ArrayList<double[]>();
+			try(ReadAheadLineIterator lines = new ReadAheadLineIterator(file.toString())){
+				// first line is the header
+				lines.next();
+				while(lines.hasNext()){
+					pvalues.add(parsePvalues(lines.next()));
 				}
-				else{
-					throw new RuntimeException(String.format("Genotype configuration should be 0 or 1, not %s", genotypeConfiguration));
+			}
+			int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+			double[][] observedPvaluesPerCelltype = newObservedPvaluesPerCelltype(pvalues.size());
+			for(int i = 0; i < pvalues.size(); ++i){
+				for(int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex){
+					observedPvaluesPerCelltype[celltypeIndex][i] = pvalues.get(i)[celltypeIndex];
 				}
+			}
+			permutationFdrPerCelltype = calculatePermutationFdr(observedPvaluesPerCelltype);
+		}
+		try(ReadAheadLineIterator lines = new ReadAheadLineIterator(file.toString())){
+			writeResultsLines(lines, permutationFdrPerCelltype);
+		}
+	}
 
+	/**
+	 * P-value per celltype of a result or non significant QTLs line, column 0 is the QTL name
+	 */
+	private double[] parsePvalues(String line){
+		int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+		String[] columns = line.split("\t", numberOfCelltypes + 2);
+		double[] pvaluesPerCelltype = new double[numberOfCelltypes];
+		for(int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex){
+			pvaluesPerCelltype[celltypeIndex] = toObservedPvalue(Double.parseDouble(columns[celltypeIndex + 1]));
+		}
+		return pvaluesPerCelltype;
+	}
+
+	/**
+	 * Write the header and result lines to the outfile, with the permutation FDR columns added. With -bo the binary
+	 * results are written as well: the rows of the QTLs are already in binaryResultsWriter if they were deconvoluted
+	 * in this run, else (checkpoint) they are added from the lines
+	 * 
+	 * @param output Header followed by the result lines
+	 * 
+	 * @param permutationFdrPerCelltype Permutation FDR per celltype of the result lines, null if no permutations are done
+	 */
+	private void writeResultsLines(Iterator<String> output, List<double[]> permutationFdrPerCelltype) throws IOException{
+		Path file = getResultsFile();
+		StringBuilder line = new StringBuilder();
+		boolean binaryFromLines = binaryResultsWriter == null && commandLineOptions.getBinaryOutput();
+		try(ResultWriter writer = new ResultWriter(file)){
+			line.append(output.next());
+			appendPermutationFdrHeader(line, permutationFdrPerCelltype);
+			if(binaryFromLines){
+				binaryResultsWriter = new BinaryResultWriter(getBinaryResultsFile(), line);
+			}
+			writer.writeLine(line);
+			for(int i = 0; output.hasNext(); ++i){
+				line.setLength(0);
+				line.append(output.next());
+				appendPermutationFdr(line, permutationFdrPerCelltype, i);
+				if(binaryFromLines){
+					binaryResultsWriter.addLine(line);
+				}
+				writer.writeLine(line);
+			}
+		}
+		logResultsWritten(file);
+		if(binaryResultsWriter != null){
+			if(!binaryFromLines && permutationFdrPerCelltype != null){
+				// the FDR of the QTLs that are not significant (-s) comes after the FDR of the results
+				List<String> celltypes = cellCounts.getAllCelltypes();
+				for(int celltypeIndex = 0; celltypeIndex < celltypes.size(); ++celltypeIndex){
+					binaryResultsWriter.addColumn(celltypes.get(celltypeIndex)+"_permutationFDR", 
+							Arrays.copyOf(permutationFdrPerCelltype.get(celltypeIndex), resultPvalues.size()));
+				}
 			}
+			binaryResultsWriter.write();
+			binaryResultsWriter = null;
+		}
+	}
 
-			//results += "\t"+bestFullModel.getGenotypeConfiguration();
-			//for(String celltype : cellCounts.getAllCelltypes()){
-			//	InteractionModel bestCtModel = deconvolutionResult.getInteractionModelCollection().getBestCtModel(celltype); 
-			//	results += "\t"+bestCtModel.getGenotypeConfiguration();
-			//}
-			if(commandLineOptions.getWholeBloodQTL()){
-				results += "\t"+deconvolutionResult.getWholeBloodQTL();
-				results += "\t"+deconvolutionResult.getWholeBloodQTLpvalue();
+	/**
+	 * P-values per celltype for the permutation FDR: room for numberOfResults results (filled in by the caller),
+	 * followed by the p-values of the QTLs that are not significant (-s), so that the FDR is over all tested QTLs
+	 */
+	private double[][] newObservedPvaluesPerCelltype(int numberOfResults){
+		int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+		double[][] observedPvaluesPerCelltype = new double[numberOfCelltypes][numberOfResults + nonSignificantPvalues.size()];
+		for(int i = 0; i < nonSignificantPvalues.size(); ++i){
+			for(int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex){
+				observedPvaluesPerCelltype[celltypeIndex][numberOfResults + i] = nonSignificantPvalues.get(i)[celltypeIndex];
 			}
+		}
+		return observedPvaluesPerCelltype;
+	}
 
-			//results += "\t"+bestFullModel.getEstimatedStandardError();
-			output.add(results);	
+	/**
+	 * Permutation FDR per celltype, in the order of the celltypes of cellCounts
+	 * 
+	 * @param observedPvaluesPerCelltype For each celltype the p-values of all QTLs
+	 */
+	private List<double[]> calculatePermutationFdr(double[][] observedPvaluesPerCelltype){
+		List<String> celltypes = cellCounts.getAllCelltypes();
+		List<double[]> permutationFdrPerCelltype = new ArrayList<double[]>();
+		for(int celltypeIndex = 0; celltypeIndex < celltypes.size(); ++celltypeIndex){
+			permutationFdrPerCelltype.add(permutationTest.calculateFdr(celltypes.get(celltypeIndex), observedPvaluesPerCelltype[celltypeIndex]));
 		}
+		return permutationFdrPerCelltype;
+	}
 
-		Path file = Paths.get(outputFolder+commandLineOptions.getOutfile());
-		Files.write(file, output, Charset.forName("UTF-8"));
+	/**
+	 * Append the names of the permutation FDR columns, nothing is appended if permutationFdrPerCelltype is null
+	 */
+	private void appendPermutationFdrHeader(StringBuilder header, List<double[]> permutationFdrPerCelltype){
+		if(permutationFdrPerCelltype != null){
+			header.append('\t');
+			Utils.appendTabSeparated(header, cellCounts.getAllCelltypes(), "_permutationFDR");
+		}
+	}
 
-		Boolean writePredictedExpression = commandLineOptions.getOutputPredictedExpression(); 
-		if(writePredictedExpression){
-			writePredictedExpression(deconvolutionResults);
+	/**
+	 * Append the permutation FDR of result resultIndex, NA if the QTL was not tested. Nothing is appended if
+	 * permutationFdrPerCelltype is null
+	 */
+	private void appendPermutationFdr(StringBuilder results, List<double[]> permutationFdrPerCelltype, int resultIndex){
+		if(permutationFdrPerCelltype != null){
+			for(double[] permutationFdr : permutationFdrPerCelltype){
+				results.append('\t');
+				if(Double.isNaN(permutationFdr[resultIndex])){
+					results.append("NA");
+				}
+				else{
+					results.append(permutationFdr[resultIndex]);
+				}
+			}
 		}
+	}
+
+	private void logResultsWritten(Path file){
 		DeconvolutionLogger.log.info(String.format("Deconvolution output written to %s", file.toAbsolutePath()));
 		DeconvolutionLogger.log.info(String.format("Files with additional info in  %s", outputFolder));
 	}
 
-	/*
-	 * Write the predicted expression values to a separate file
-	 * 
-	 * @param deconvolutionResult The deconvolutionresult
-	 */
-	private static void writePredictedExpression(List<DeconvolutionResult> deconvolutionResults) throws IOException, IllegalAccessException{
-		DeconvolutionResult deconResult = deconvolutionResults.get(0);
-		String header = "";
+	private String getPredictedExpressionHeader(DeconvolutionResult deconResult) throws IllegalAccessException{
+		return appendPredictedExpressionHeader(new StringBuilder(), deconResult).toString();
+	}
+
+	private StringBuilder appendPredictedExpressionHeader(StringBuilder header, DeconvolutionResult deconResult) throws IllegalAccessException{
 		for(String sampleName : deconResult.getInteractionModelCollection().getSampleNames()){
 			// counts.get(0) is the sample name
-			header += "\t"+sampleName;
+			header.append('\t').append(sampleName);
 
 		}
+		return header;
+	}
 
-		List<String> output = new ArrayList<String>();
-		output.add(header);
-
-		for(DeconvolutionResult deconvolutionResult : deconvolutionResults){
-
-			String results = "";
-			InteractionModel bestFullModel = deconvolutionResult.getInteractionModelCollection().getBestFullModel();
-			results += deconvolutionResult.getQtlName()+"\t"+Utils.listToTabSeparatedString(bestFullModel.getPredictedValues());
-			output.add(results);	
-		}
-
+	private String getPredictedExpressionLine(DeconvolutionResult deconvolutionResult) throws IllegalAccessException{
+		return appendPredictedExpressionLine(new StringBuilder(), deconvolutionResult).toString();
+	}
 
+	private StringBuilder appendPredictedExpressionLine(StringBuilder results, DeconvolutionResult deconvolutionResult) throws IllegalAccessException{
+		InteractionModel bestFullModel = deconvolutionResult.getInteractionModelCollection().getBestFullModel();
+		results.append(deconvolutionResult.getQtlName()).append('\t');
+		return Utils.appendTabSeparated(results, bestFullModel.getPredictedValues());
+	}
 
-		Path file = Paths.get(outputFolder+"predictedExpressionLevels.txt");
-		Files.write(file, output, Charset.forName("UTF-8"));
-		DeconvolutionLogger.log.info(String.format("predicted expression written to %s", file.toAbsolutePath()));
+	private Path getPredictedExpressionFile(){
+		return Paths.get(outputFolder+"predictedExpressionLevels.txt"+(commandLineOptions.getCompressPredictedExpression() ? ".gz" : ""));
 	}
 
 	/*
-	 * Incase p-values have to be written as NA (e.g. when they should be filtered)
+	 * Incase p-values have to be written as NA (e.g. when they should be filtered). The p-values are set to NA_PVALUE
+	 * (see -f), the -log10 p-values and permutation p-values are NaN and written as NA. The result has no models, so
+	 * no betas and no predicted expression are written for it. The QTL is not counted as a test in the permutation FDR
 	 */
-	private static DeconvolutionResult setPvaluesNA(String qtlName) throws IllegalAccessException{
+	private DeconvolutionResult setPvaluesNA(String qtlName) throws IllegalAccessException{
 		List<Double> pvalues = new ArrayList<Double>();
+		List<Double> naValues = new ArrayList<Double>();
 		for (int i = 0; i < cellCounts.getNumberOfCelltypes(); ++i){
-			pvalues.add(333.0);
+			pvalues.add(NA_PVALUE);
+			naValues.add(Double.NaN);
 		}
-		InteractionModel dummyModel = new InteractionModel();
-		dummyModel.setModelName("dummy");
-		dummyModel.setAlltIndependentVariableNames(cellCounts.getAllCelltypes());
-		return(new DeconvolutionResult(cellCounts.getAllCelltypes(), qtlName, pvalues, dummyModel, 0, 1));
+		DeconvolutionResult deconResult = new DeconvolutionResult(cellCounts.getAllCelltypes(), qtlName, pvalues, 0, 1);
+		deconResult.setPermutationPvalues(naValues);
+		deconResult.setMinusLog10Pvalues(naValues);
+		return(deconResult);
 	}
 
 
@@ -348,6 +1206,46 @@ public class Deconvolution {
 			++degreesOfFreedomA;
 			++degreesOfFreedomB;
 		}
+		int degreesOfFreedomDifference = Math.abs(degreesOfFreedomB - degreesOfFreedomA);
+		double Fval = calculateFvalue(sumOfSquaresModelA, sumOfSquaresModelB, degreesOfFreedomA, degreesOfFreedomB);
+		/***
+		 * Make an F distribution with degrees of freedom as parameter. If full
+		 * model and ctModel have the same number of samples, difference in df
+		 * is 1 and degreesOfFreedomB are all the terms of the ctModel (so neut%
+		 * + eos% + ... + neut% * GT + eos% * GT With 4 cell types and 1891
+		 * samples the dfs are 1883 and 1884, giving the below distribution
+		 * http://keisan.casio.com/exec/system/1180573186
+		 * The distribution only depends on the dfs, so it is cached for all QTLs
+		 **/
+		CachedFDistribution Fdist = CachedFDistribution.getFDistribution(degreesOfFreedomDifference, degreesOfFreedomB);
+		/*** Calculate the probability of observing a higher Fvalue directly, 1 - cumulative rounds small p-values to 0 **/
+		double pval = Fdist.upperTail(Fval);
+		return (pval);
+	}
+
+	/**
+	 * Same as anova(), but returns the log10 of the p-value. This is calculated in log space, so p-values
+	 * that are too small to store in a double (< 1e-308) can still be ranked.
+	 * 
+	 * @return log10 of the p-value result from comparing two linear models with the the Anova test
+	 */
+	public static double anovaLog10Pvalue(double sumOfSquaresModelA, double sumOfSquaresModelB, int degreesOfFreedomA,
+			int degreesOfFreedomB, Boolean no_intercept) {
+		if (no_intercept) {
+			++degreesOfFreedomA;
+			++degreesOfFreedomB;
+		}
+		int degreesOfFreedomDifference = Math.abs(degreesOfFreedomB - degreesOfFreedomA);
+		double Fval = calculateFvalue(sumOfSquaresModelA, sumOfSquaresModelB, degreesOfFreedomA, degreesOfFreedomB);
+		CachedFDistribution Fdist = CachedFDistribution.getFDistribution(degreesOfFreedomDifference, degreesOfFreedomB);
+		return (Fdist.logUpperTail(Fval) / Math.log(10));
+	}
+
+	/**
+	 * Calculate the F-value of two linear models, see anova()
+	 */
+	private static double calculateFvalue(double sumOfSquaresModelA, double sumOfSquaresModelB, int degreesOfFreedomA,
+			int degreesOfFreedomB){
 		// Within-group Variance
 		double meanSquareError = sumOfSquaresModelA / degreesOfFreedomA;
 
@@ -364,27 +1262,34 @@ public class Deconvolution {
 		if(meanSquareError == 0){
 			throw new RuntimeException("meanSquareError should not be 0");
 		}
-		double Fval = meanSquareErrorDiff / meanSquareError;
-		/***
-		 * Make an F distribution with degrees of freedom as parameter. If full
-		 * model and ctModel have the same number of samples, difference in df
-		 * is 1 and degreesOfFreedomB are all the terms of the ctModel (so neut%
-		 * + eos% + ... + neut% * GT + eos% * GT With 4 cell types and 1891
-		 * samples the dfs are 1883 and 1884, giving the below distribution
-		 * http://keisan.casio.com/exec/system/1180573186
-		 **/
-		FDistribution Fdist = new FDistribution(degreesOfFreedomDifference, degreesOfFreedomB);
-		/*** Calculate 1 - the probability of observing a lower Fvalue **/
-		double pval = 1 - Fdist.cumulative(Fval);
-		return (pval);
+		return (meanSquareErrorDiff / meanSquareError);
 	}
 
-	public static DeconvolutionResult deconvolution(Qtl qtl) throws RuntimeException, IllegalAccessException, 
+	/**
+	 * Add the time since start to stage, unless the deconvolution is of permuted genotypes
+	 */
+	private void stopStage(RunMetrics.Stage stage, long start, boolean permuted){
+		if(!permuted){
+			runMetrics.stop(stage, start);
+		}
+	}
+
+	public DeconvolutionResult deconvolution(Qtl qtl) throws RuntimeException, IllegalAccessException, 
 	NotEnoughGenotypesException, IOException, 
 	NotEnoughSamplesPerGenotypeException {
 		return deconvolution(qtl.getExpressionVector(), qtl.getGenotypeVector(), qtl.getQtlName());
 	}
 
+	/**
+	 * Deconvolution of a QTL with permuted genotypes, see PermutationTest. The genotypes should already have passed
+	 * the dosage QC, it is not done again. Only the p-values are calculated, not the whole blood QTL. The stages of
+	 * the deconvolution are not added to the run metrics, the permutations of a QTL are timed as a whole (PERMUTATIONS)
+	 */
+	DeconvolutionResult permutedDeconvolution(Qtl permutedQtl) throws RuntimeException, IllegalAccessException, 
+	NotEnoughGenotypesException, IOException, NotEnoughSamplesPerGenotypeException {
+		return deconvolution(permutedQtl.getExpressionVector(), permutedQtl.getGenotypeVector(), permutedQtl.getQtlName(), null, null, true);
+	}
+
 	/**
 	 * Make the linear regression models and then do an Anova of the sum of
 	 * squares
@@ -410,58 +1315,53 @@ public class Deconvolution {
 	 * @return A list with for each celltype a p-value for the celltype
 	 * specific eQTL for one eQTL
 	 */
-	private static DeconvolutionResult deconvolution(double[] expression, double[] genotypes, String qtlName) throws RuntimeException, NotEnoughGenotypesException, IllegalAccessException, 
+	private DeconvolutionResult deconvolution(double[] expression, double[] genotypes, String qtlName) throws RuntimeException, NotEnoughGenotypesException, IllegalAccessException, 
 	IOException, NotEnoughSamplesPerGenotypeException {
+		return deconvolution(expression, genotypeQc(genotypes, null), qtlName, null, null, false);
+	}
 
-
-		/** 
-		 * If roundDosage option is selected on the command line, round of the dosage to closest integer -> 0.49 = 0, 0.51 = 1, 1.51 = 2. 
-		 * If minimumSamplesPerGenotype is selected on the command line, check for current QTL if for each dosage (in case they are not round
-		 * the dosages are binned in same way as with roundDosage option) there are at least <minimumSamplesPerGenotype> samples that have it.
-		 */
-
+	/** 
+	 * If roundDosage option is selected on the command line, round of the dosage to closest integer -> 0.49 = 0, 0.51 = 1, 1.51 = 2. 
+	 * If minimumSamplesPerGenotype is selected on the command line, check for current QTL if for each dosage (in case they are not round
+	 * the dosages are binned in same way as with roundDosage option) there are at least <minimumSamplesPerGenotype> samples that have it.
+	 * This is done once per SNP, see GenotypeQc
+	 * 
+	 * @param snp Name of the SNP, the QC is cached per SNP. If null the QC is not cached
+	 * 
+	 * @return The genotypes to use in the deconvolution
+	 */
+	private double[] genotypeQc(double[] genotypes, String snp) throws NotEnoughGenotypesException, NotEnoughSamplesPerGenotypeException{
 		if (commandLineOptions.getRoundDosage() || commandLineOptions.getMinimumSamplesPerGenotype() > 0 || commandLineOptions.getAllDosages()) {
-			int dosage_ref = 0;
-			int dosage_heterozygote = 0;
-			int dosage_alt = 0;
-			for (int i = 0; i < genotypes.length; ++i) {
-				if (commandLineOptions.getRoundDosage()){
-					genotypes[i] = Math.round(genotypes[i]);
-				}
-				if (commandLineOptions.getMinimumSamplesPerGenotype() > 0 || commandLineOptions.getAllDosages()){
-					if(genotypes[i] < 0){
-						throw new RuntimeException("Genotype dosage can not be negative, check your dosage input file");
-					}
-					if(genotypes[i] < 0.5){
-						++dosage_ref;
-					}
-					else if(genotypes[i] < 1.5){
-						++dosage_heterozygote;
-					}
-					else if (genotypes[i] <= 2){
-						++dosage_alt;
-					}
-					else{
-						throw new RuntimeException("Genotype dosage can not be larger than 2, check your dosage input file");
-					}
-				}
-			}
-			if(commandLineOptions.getAllDosages()){
-				// check that all dosages have at least one sample
-				if(dosage_ref == 0 || dosage_heterozygote == 0 || dosage_alt == 0){
-					throw new NotEnoughGenotypesException("Not all dosages present for this eQTL");
-				}
+			if(genotypeQcCache == null){
+				genotypeQcCache = new GenotypeQcCache(genotypeQcCacheSize, commandLineOptions.getRoundDosage(), 
+						commandLineOptions.getMinimumSamplesPerGenotype(), commandLineOptions.getAllDosages());
 			}
-			if(commandLineOptions.getMinimumSamplesPerGenotype() > 0){
-				// Check that each genotype has enough samples (AA >= minimum_samples_per_genotype, AB >= minimum_samples_per_genotype, BB >= minimum_samples_per_genotype)
-				if(!(dosage_ref >= commandLineOptions.getMinimumSamplesPerGenotype() && dosage_heterozygote >= commandLineOptions.getMinimumSamplesPerGenotype() && dosage_alt >= commandLineOptions.getMinimumSamplesPerGenotype())){
-					throw new NotEnoughSamplesPerGenotypeException("Not enough samples for each genotype");
-				}}
+			GenotypeQc genotypeQc = genotypeQcCache.getGenotypeQc(snp, genotypes);
+			genotypeQc.throwIfFailed();
+			return genotypeQc.getGenotypes();
 		}
+		return genotypes;
+	}
 
+	/**
+	 * Same as deconvolution(expression, genotypes, qtlName), but with the gene and SNP name so that the ranks
+	 * for the whole blood eQTL can be cached per gene and SNP. If gene or snp is null the ranks are not cached
+	 * 
+	 * @param genotypes Genotypes after the dosage QC, see genotypeQc()
+	 * 
+	 * @param gene Name of the gene
+	 * 
+	 * @param snp Name of the SNP
+	 * 
+	 * @param permuted True if the genotypes are permuted, the stages are then not added to the run metrics and the
+	 * whole blood QTL is not calculated
+	 */
+	private DeconvolutionResult deconvolution(double[] expression, double[] genotypes, String qtlName, String gene, String snp, boolean permuted) 
+			throws RuntimeException, NotEnoughGenotypesException, IllegalAccessException, IOException, NotEnoughSamplesPerGenotypeException {
 		InteractionModelCollection interactionModelCollection = new InteractionModelCollection(cellCounts, 
 				commandLineOptions.getGenotypeConfigurationType());
 		interactionModelCollection.setQtlName(qtlName);
+		interactionModelCollection.setRunMetrics(runMetrics);
 		interactionModelCollection.setGenotypes(genotypes);
 		interactionModelCollection.setExpressionValues(expression);
 
@@ -480,22 +1380,46 @@ public class Deconvolution {
 		 * 		fullModel = [[sample1_neut%, sample1_mono%, sample1_neut%*sample1_genotype, sample1_mono%*sample1_genotype], [sample2_neut%, ..., etc]]
 		 * 
 		 */
+		long start = RunMetrics.start();
 		interactionModelCollection.createObservedValueMatricesFullModel();
+		stopStage(RunMetrics.Stage.BUILD_FULL_MODELS, start, permuted);
+		start = RunMetrics.start();
 		interactionModelCollection.findBestFullModel();		
+		stopStage(RunMetrics.Stage.FULL_MODEL_NNLS, start, permuted);
+		start = RunMetrics.start();
 		interactionModelCollection.createObservedValueMatricesCtModels();
+		stopStage(RunMetrics.Stage.BUILD_CT_MODELS, start, permuted);
+		start = RunMetrics.start();
 		interactionModelCollection.findBestCtModel();
+		stopStage(RunMetrics.Stage.CT_MODEL_NNLS, start, permuted);
+		start = RunMetrics.start();
 		calculateDeconvolutionPvalue(interactionModelCollection);
+		stopStage(RunMetrics.Stage.ANOVA, start, permuted);
 
 		double wholeBloodQTL = 0;
 		double wholeBloodQTLpvalue = 0;
-		if(commandLineOptions.getWholeBloodQTL()){
+		// the permutation test only uses the p-values of permuted genotypes
+		if(commandLineOptions.getWholeBloodQTL() && !permuted){
+			start = RunMetrics.start();
 			// if true calculate spearman correlation between genotypes and expression values (i.e. whole blood eQTL)
-			wholeBloodQTL = new SpearmansCorrelation().correlation(interactionModelCollection.getGenotypes(), interactionModelCollection.getExpessionValues());
+			// ranks are cached per gene and SNP, so that they do not have to be calculated again for every QTL
+			double[] genotypeRanksQtl;
+			double[] expressionRanksQtl;
+			if(gene != null && snp != null){
+				genotypeRanksQtl = genotypeRanks.getNormalizedRanks(snp, interactionModelCollection.getGenotypes());
+				expressionRanksQtl = expressionRanks.getNormalizedRanks(gene, interactionModelCollection.getExpessionValues());
+			}
+			else{
+				genotypeRanksQtl = RankCache.normalizedRanks(interactionModelCollection.getGenotypes());
+				expressionRanksQtl = RankCache.normalizedRanks(interactionModelCollection.getExpessionValues());
+			}
+			wholeBloodQTL = RankCache.spearmanCorrelation(genotypeRanksQtl, expressionRanksQtl);
 			wholeBloodQTLpvalue = Statistics.calculateSpearmanTwoTailedPvalue(wholeBloodQTL, cellCounts.getNumberOfSamples());
+			stopStage(RunMetrics.Stage.SPEARMAN, start, permuted);
 		}
 		DeconvolutionResult deconResult =  new DeconvolutionResult();
 
-		interactionModelCollection.cleanUp(!commandLineOptions.getOutputPredictedExpression());
+		interactionModelCollection.cleanUp(commandLineOptions.getOutputPredictedExpression());
 		deconResult = new DeconvolutionResult(interactionModelCollection, wholeBloodQTL, wholeBloodQTLpvalue);
 		return deconResult;
 	}
@@ -506,7 +1430,7 @@ public class Deconvolution {
 	 * 
 	 * @param interactionModelCollection InteractionModelCollection object that has fullModel and ctModels for ANOVA comparison
 	 */
-	private static void calculateDeconvolutionPvalue(InteractionModelCollection interactionModelCollection) 
+	private void calculateDeconvolutionPvalue(InteractionModelCollection interactionModelCollection) 
 			throws IllegalAccessException, IOException {
 		for (int modelIndex = 0; modelIndex < cellCounts.getNumberOfCelltypes(); ++modelIndex) {
 			String celltypeName = cellCounts.getCelltype(modelIndex);
@@ -524,7 +1448,16 @@ public class Deconvolution {
 			double pval = anova(fullModel.getSumOfSquares(), ctModel.getSumOfSquares(), 
 					fullModel.getDegreesOfFreedom(),ctModel.getDegreesOfFreedom(), 
 					true);
-
+			if(commandLineOptions.getMinusLog10Pvalues()){
+				double minusLog10Pvalue = -Math.log10(pval);
+				if(pval < Double.MIN_NORMAL){
+					// p-value is (close to) underflowing, calculate it in log space
+					minusLog10Pvalue = -anovaLog10Pvalue(fullModel.getSumOfSquares(), ctModel.getSumOfSquares(), 
+							fullModel.getDegreesOfFreedom(),ctModel.getDegreesOfFreedom(), 
+							true);
+				}
+				interactionModelCollection.setMinusLog10Pvalue(minusLog10Pvalue, ctModel.getCelltypeName());
+			}
 			ctModel.setPvalue(pval);
 			interactionModelCollection.setPvalue(pval, ctModel.getCelltypeName());
 			// TODO: why is this method called twice?
@@ -534,4 +1467,19 @@ public class Deconvolution {
 		}
 
 	}
+
+	/**
+	 * A QTL to deconvolute, passed from the read stage to the deconvolution stage
+	 */
+	private static class QtlInput {
+		private GeneSnpPair geneSnpPair;
+		private double[] expressionLevels;
+		private double[] dosages;
+
+		private QtlInput(GeneSnpPair geneSnpPair, double[] expressionLevels, double[] dosages){
+			this.geneSnpPair = geneSnpPair;
+			this.expressionLevels = expressionLevels;
+			this.dosages = dosages;
+		}
+	}
 }
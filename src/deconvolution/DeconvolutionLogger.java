@@ -8,39 +8,86 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
+import java.util.logging.Handler;
 import java.util.logging.Level;
-import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
+/**
+ * Logging to the console and to the log file in the outfolder of a run. The log file and -no are set by setup() for
+ * the thread that runs the deconvolution and the threads that it starts (e.g. the I/O threads of the run), so runs
+ * in the same JVM (e.g. DeconvolutionServer jobs) each log to their own file, and threads that are not part of a
+ * run (e.g. the server) only log to the console. Call close() at the end of the run.
+ */
 public class DeconvolutionLogger {
-	static private FileHandler outfilePath;
 	protected final static Logger log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-	static public void setup(String outputDir, Boolean noConsole) throws IOException {
-		// get the global logger to configure it
-		LogManager.getLogManager().reset();
+	// log file and -no of the run that the logging thread belongs to, null if the thread is not part of a run
+	private static final InheritableThreadLocal<FileHandler> outfilePath = new InheritableThreadLocal<FileHandler>();
+	private static final InheritableThreadLocal<Boolean> noConsole = new InheritableThreadLocal<Boolean>();
+	static{
+		CustomRecordFormatter customFormatter = new CustomRecordFormatter();
+		ConsoleHandler consoleHandler = new ConsoleHandler();
+		consoleHandler.setFormatter(customFormatter);
+		consoleHandler.setFilter(record -> !Boolean.TRUE.equals(noConsole.get()));
+		// handlers are called on the thread that logs, so this finds the log file of its run
+		Handler runFileHandler = new Handler(){
+			@Override
+			public void publish(LogRecord record){
+				FileHandler fileHandler = outfilePath.get();
+				if(fileHandler != null){
+					fileHandler.publish(record);
+				}
+			}
+			@Override
+			public void flush(){
+				FileHandler fileHandler = outfilePath.get();
+				if(fileHandler != null){
+					fileHandler.flush();
+				}
+			}
+			@Override
+			public void close(){
+			}
+		};
 		log.setLevel(Level.INFO);
+		log.setUseParentHandlers(false);
+		log.addHandler(consoleHandler);
+		log.addHandler(runFileHandler);
+	}
+
+	/**
+	 * Log the current thread (and the threads it starts from now on) to a new log file in outputDir
+	 *
+	 * @param noConsole If true, do not log this run to the console
+	 */
+	static public void setup(String outputDir, Boolean noConsole) throws IOException {
+		close();
 		DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
 		Date date = new Date();
 		File file = new File(outputDir+"/DeconvolutionLog_"+dateFormat.format(date)+".txt");
 		Files.deleteIfExists(file.toPath());
-		setOutfilePath(new FileHandler(outputDir+"/DeconvolutionLog_"+dateFormat.format(date)+".txt"));
-		CustomRecordFormatter customFormatter = new CustomRecordFormatter();
-		ConsoleHandler consoleHandler = new ConsoleHandler();
-		consoleHandler.setFormatter(customFormatter);
-		outfilePath.setFormatter(customFormatter);
-		log.setUseParentHandlers(false);
-		if (!noConsole){
-			log.addHandler(consoleHandler);
-		}
-		log.addHandler(outfilePath);
+		FileHandler fileHandler = new FileHandler(outputDir+"/DeconvolutionLog_"+dateFormat.format(date)+".txt");
+		fileHandler.setFormatter(new CustomRecordFormatter());
+		setOutfilePath(fileHandler);
+		DeconvolutionLogger.noConsole.set(noConsole);
+	}
 
+	/**
+	 * Close the log file of the run of the current thread, after this the thread only logs to the console
+	 */
+	static public void close(){
+		FileHandler fileHandler = outfilePath.get();
+		if(fileHandler != null){
+			fileHandler.close();
+		}
+		outfilePath.remove();
+		noConsole.remove();
 	}
+
 	public static FileHandler getOutfilePath() {
-		return outfilePath;
+		return outfilePath.get();
 	}
 	public static void setOutfilePath(FileHandler outfilePath) {
-		DeconvolutionLogger.outfilePath = outfilePath;
+		DeconvolutionLogger.outfilePath.set(outfilePath);
 	}
 }
-
-
@@ -13,6 +13,8 @@ public class DeconvolutionResult {
 	private InteractionModelCollection interactionModelCollection;
 	private double wholeBloodQTL;
 	private double wholeBloodQTLpvalue;
+	private List<Double> permutationPvalues;
+	private List<Double> minusLog10Pvalues = new ArrayList<Double>();
 	
 	public DeconvolutionResult(){};
 	
@@ -36,6 +38,7 @@ public class DeconvolutionResult {
 			Double pvalue = interactionModelCollection.getPvalue(modelName);
 			this.pvalues.add(pvalue);
 			pvaluePerCelltype.put(modelName, pvalue);
+			this.minusLog10Pvalues.add(interactionModelCollection.getMinusLog10Pvalue(modelName));
 		}
 		this.interactionModelCollection = interactionModelCollection;
 		this.wholeBloodQTL = wholeBloodQTL;
@@ -137,6 +140,13 @@ public class DeconvolutionResult {
 		}
 		return(this.interactionModelCollection);
 	}
+
+	/**
+	 * @return false if the result has no interaction models, e.g. when the QTL is filtered and its p-values are NA
+	 */
+	public boolean hasInteractionModelCollection(){
+		return(this.interactionModelCollection != null);
+	}
 		
 		
 	public Map<String, Double>  getPvaluePerCelltype() throws IllegalAccessException{
@@ -152,4 +162,32 @@ public class DeconvolutionResult {
 	public double  getWholeBloodQTLpvalue() throws IllegalAccessException{
 		return(this.wholeBloodQTLpvalue);
 	}
+
+	/**
+	 * Set the -log10 p-values, same order as the celltypes
+	 */
+	public void setMinusLog10Pvalues(List<Double> minusLog10Pvalues){
+		this.minusLog10Pvalues = minusLog10Pvalues;
+	}
+
+	public List<Double> getMinusLog10Pvalues() throws IllegalAccessException{
+		if(this.minusLog10Pvalues == null){
+			throw new IllegalAccessException("-log10 pvalues not set for this model");
+		}
+		return(this.minusLog10Pvalues);
+	}
+
+	/**
+	 * Set the empirical p-values from the permutation test, same order as the celltypes
+	 */
+	public void setPermutationPvalues(List<Double> permutationPvalues){
+		this.permutationPvalues = permutationPvalues;
+	}
+
+	public List<Double> getPermutationPvalues() throws IllegalAccessException{
+		if(this.permutationPvalues == null){
+			throw new IllegalAccessException("permutation pvalues not set for this model");
+		}
+		return(this.permutationPvalues);
+	}
 }
@@ -0,0 +1,418 @@
+package deconvolution;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running server that reads the cell counts, expression and genotypes of a cohort once, and runs deconvolution
+ * jobs on them. Follow-up runs with another snpsToTest file or other options then do not start a JVM or parse the
+ * input files again. Jobs are submitted over HTTP, the server only listens on the loopback interface:
+ *
+ * 		POST /jobs			body: the arguments of a Deconvolution run, one per line, without -c, -e and -g (these are
+ * 							the files of the cohort). Returns the id of the job
+ * 		GET /jobs/<id>		status of the job: queued, running, done, or failed followed by a tab and the error
+ *
+ * Other users of the machine can also connect to the loopback interface, so every request needs the header
+ * Authorization: Bearer <token>. The token is made at the start of the server and written to the token file (-t),
+ * which only the user that runs the server can read. E.g.
+ *
+ * 		printf '%s\n' -sn snpsToTest.txt -o output/ -np 1000 | curl -H "Authorization: Bearer $(cat deconvolutionServer.token)" \
+ * 				--data-binary @- http://localhost:7543/jobs
+ *
+ * The outfolder (-o) and outfile (-of) of a job have to be in the output root of the server (-r), so that a job can
+ * not write to other places the server user can write to.
+ *
+ * At most -j jobs are run at the same time and at most -q jobs wait in the queue, a job that is submitted while the
+ * queue is full is rejected. Every job has its own log file and run metrics (DeconvolutionLogger, RunMetrics). The
+ * cohort data is shared by the jobs and not changed by them.
+ */
+public class DeconvolutionServer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private String cellcountFile;
+	private String expressionFile;
+	private String genotypeFile;
+	private int port = 7543;
+	private int numberOfJobThreads = 1;
+	private int jobQueueSize = 100;
+	private Path tokenFile = Paths.get("deconvolutionServer.token");
+	private Path outputRoot = Paths.get("");
+	private byte[] token;
+	private CellCount cellCounts;
+	private ExpressionData expressionData;
+	private GenotypeData genotypeData;
+	private ThreadPoolExecutor jobExecutor;
+	private HttpServer httpServer;
+	private Map<Integer, String> jobStatus = new ConcurrentHashMap<Integer, String>();
+	private AtomicInteger numberOfJobs = new AtomicInteger();
+
+	public DeconvolutionServer(){};
+
+	public static void main(String[] args) throws Exception {
+		start(args);
+	}
+
+	/**
+	 * Load the cohort and start listening for jobs
+	 *
+	 * @param args Options of the server, see parseCommandLine()
+	 *
+	 * @return The running server, stop it with stop()
+	 */
+	public static DeconvolutionServer start(String[] args) throws Exception {
+		DeconvolutionServer server = new DeconvolutionServer();
+		server.parseCommandLine(args);
+		server.writeToken();
+		server.loadCohort();
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Stop listening for jobs and wait for the running jobs to finish. Jobs that are still queued are not run
+	 */
+	public void stop() throws InterruptedException{
+		httpServer.stop(0);
+		jobExecutor.getQueue().clear();
+		jobExecutor.shutdown();
+		jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		DeconvolutionLogger.log.info("Server stopped");
+	}
+
+	/**
+	 * @return Port the server listens on, also if it was started with port 0 (any free port)
+	 */
+	public int getPort(){
+		return httpServer.getAddress().getPort();
+	}
+
+	private void parseCommandLine(String[] args) throws ParseException{
+		Options options = new Options();
+		options.addOption(Option.builder("c").required(true).hasArg().longOpt("cellcount").desc("Cellcount file name")
+				.argName("file").build());
+		options.addOption(Option.builder("e").required(true).hasArg().longOpt("expression").desc("Expression file name")
+				.argName("file").build());
+		options.addOption(Option.builder("g").required(true).hasArg().longOpt("genotype").desc("Genotype file name")
+				.argName("file").build());
+		options.addOption(Option.builder("p").required(false).hasArg().longOpt("port").desc("Port to listen on for jobs, 0 for any free port (default 7543)")
+				.argName("int").build());
+		options.addOption(Option.builder("j").required(false).hasArg().longOpt("jobs").desc("Number of jobs to run at the same time (default 1)")
+				.argName("int").build());
+		options.addOption(Option.builder("q").required(false).hasArg().longOpt("queue_size")
+				.desc("Maximum number of jobs that wait for a free job thread, more jobs are rejected (default 100)").argName("int").build());
+		options.addOption(Option.builder("t").required(false).hasArg().longOpt("token_file")
+				.desc("File to write the token to that requests need, only readable by the user (default deconvolutionServer.token)")
+				.argName("file").build());
+		options.addOption(Option.builder("r").required(false).hasArg().longOpt("output_root")
+				.desc("Folder that the outfolders of jobs have to be in (default the working directory)").argName("path").build());
+		CommandLineParser cmdLineParser = new DefaultParser();
+		try{
+			CommandLine cmdLine = cmdLineParser.parse(options, args);
+			cellcountFile = cmdLine.getOptionValue("cellcount");
+			expressionFile = cmdLine.getOptionValue("expression");
+			genotypeFile = cmdLine.getOptionValue("genotype");
+			if(cmdLine.hasOption("port")){
+				port = Integer.parseInt(cmdLine.getOptionValue("port"));
+			}
+			if(cmdLine.hasOption("jobs")){
+				numberOfJobThreads = Integer.parseInt(cmdLine.getOptionValue("jobs"));
+				if(numberOfJobThreads < 1){
+					throw new IllegalArgumentException("Number of jobs (-j) should be at least 1, was "+numberOfJobThreads);
+				}
+			}
+			if(cmdLine.hasOption("queue_size")){
+				jobQueueSize = Integer.parseInt(cmdLine.getOptionValue("queue_size"));
+				if(jobQueueSize < 1){
+					throw new IllegalArgumentException("Queue size (-q) should be at least 1, was "+jobQueueSize);
+				}
+			}
+			if(cmdLine.hasOption("token_file")){
+				tokenFile = Paths.get(cmdLine.getOptionValue("token_file"));
+			}
+			if(cmdLine.hasOption("output_root")){
+				outputRoot = Paths.get(cmdLine.getOptionValue("output_root"));
+			}
+		}
+		catch(ParseException e){
+			HelpFormatter formatter = new HelpFormatter();
+			DeconvolutionLogger.log.info(e.toString());
+			formatter.printHelp("DeconvolutionServer", options, true);
+			throw e;
+		}
+	}
+
+	/**
+	 * Make a random token and write it to the token file, which is made readable and writable by the user only before
+	 * the token is written to it
+	 */
+	private void writeToken() throws IOException{
+		byte[] randomBytes = new byte[32];
+		new SecureRandom().nextBytes(randomBytes);
+		StringBuilder hexToken = new StringBuilder();
+		for(byte randomByte : randomBytes){
+			hexToken.append(String.format("%02x", randomByte));
+		}
+		token = hexToken.toString().getBytes(UTF8);
+		Files.deleteIfExists(tokenFile);
+		try{
+			Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch(UnsupportedOperationException e){
+			// not a POSIX file system (e.g. Windows), limit the file to the user as far as the file system allows
+			Files.createFile(tokenFile);
+			File file = tokenFile.toFile();
+			if(!(file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false) 
+					&& file.setWritable(true, true))){
+				Files.delete(tokenFile);
+				throw new IOException("Could not make token file "+tokenFile+" readable by the user only");
+			}
+		}
+		Files.write(tokenFile, token);
+		DeconvolutionLogger.log.info(String.format("Token for requests written to %s", tokenFile.toAbsolutePath()));
+	}
+
+	/**
+	 * Read all rows of the cohort files, jobs select the genes and SNPs they test from these. Expression and genotypes
+	 * are kept in the sample order of the cell counts
+	 */
+	private void loadCohort() throws IOException, IllegalAccessException{
+		cellCounts = new CellCount(cellcountFile);
+		DeconvolutionLogger.log.info(String.format("Parse expression data from %s", expressionFile));
+		expressionData = new ExpressionData(expressionFile, null, cellCounts.getSampleNames());
+		DeconvolutionLogger.log.info(String.format("Parse genotype data from %s", genotypeFile));
+		genotypeData = new GenotypeData(genotypeFile, null, cellCounts.getSampleNames());
+		DeconvolutionLogger.log.info(String.format("Cohort loaded: %d samples, %d genes, %d SNPs", cellCounts.getNumberOfSamples(),
+				expressionData.getGeneExpression().size(), genotypeData.getGenotypes().size()));
+	}
+
+	private void start() throws IOException{
+		outputRoot = outputRoot.toAbsolutePath().normalize();
+		if(!Files.isDirectory(outputRoot)){
+			throw new IllegalArgumentException("Output root (-r) "+outputRoot+" is not a directory");
+		}
+		outputRoot = outputRoot.toRealPath();
+		jobExecutor = new ThreadPoolExecutor(numberOfJobThreads, numberOfJobThreads, 0L, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(jobQueueSize));
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/jobs", this::handleJobRequest);
+		httpServer.start();
+		DeconvolutionLogger.log.info(String.format("Waiting for jobs on http://localhost:%d/jobs, running %d jobs at the same time, outfolders in %s", 
+				getPort(), numberOfJobThreads, outputRoot));
+	}
+
+	private void handleJobRequest(HttpExchange exchange) throws IOException{
+		try{
+			if(!isAuthorized(exchange)){
+				exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+				respond(exchange, 401, "Request needs the header Authorization: Bearer <token>, with the token from the token file of the server");
+				return;
+			}
+			String path = exchange.getRequestURI().getPath();
+			if(exchange.getRequestMethod().equals("POST") && path.equals("/jobs")){
+				List<String> jobArguments = readArguments(exchange.getRequestBody());
+				String[] arguments = getRunArguments(jobArguments);
+				String error = checkJobArguments(arguments);
+				if(error != null){
+					respond(exchange, 400, error);
+					return;
+				}
+				int jobId = submit(jobArguments, arguments);
+				if(jobId == -1){
+					respond(exchange, 503, String.format("Job queue is full (%d jobs), submit the job again later", jobQueueSize));
+					return;
+				}
+				respond(exchange, 202, Integer.toString(jobId));
+			}
+			else if(exchange.getRequestMethod().equals("GET") && path.startsWith("/jobs/")){
+				String status = null;
+				try{
+					status = jobStatus.get(Integer.parseInt(path.substring("/jobs/".length())));
+				}
+				catch(NumberFormatException e){
+					// not a job id, handled as unknown job below
+				}
+				if(status == null){
+					respond(exchange, 404, "Unknown job "+path.substring("/jobs/".length()));
+					return;
+				}
+				respond(exchange, 200, status);
+			}
+			else{
+				respond(exchange, 404, "Use POST /jobs to submit a job and GET /jobs/<id> for its status");
+			}
+		}
+		finally{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Arguments of a job, one per line. Empty lines are skipped
+	 */
+	private static List<String> readArguments(InputStream requestBody) throws IOException{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int numberOfBytes;
+		while((numberOfBytes = requestBody.read(buffer)) != -1){
+			body.write(buffer, 0, numberOfBytes);
+		}
+		List<String> arguments = new ArrayList<String>();
+		for(String line : new String(body.toByteArray(), UTF8).split("\r?\n")){
+			if(!line.trim().isEmpty()){
+				arguments.add(line.trim());
+			}
+		}
+		return arguments;
+	}
+
+	/**
+	 * @return true if the request has the token of the server. Compared in constant time, so that the token can not be
+	 * guessed from the response times
+	 */
+	private boolean isAuthorized(HttpExchange exchange){
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if(authorization == null || !authorization.startsWith("Bearer ")){
+			return false;
+		}
+		return MessageDigest.isEqual(token, authorization.substring("Bearer ".length()).trim().getBytes(UTF8));
+	}
+
+	/**
+	 * Arguments of the Deconvolution run of a job: the cohort files of the server followed by the arguments of the job
+	 */
+	private String[] getRunArguments(List<String> jobArguments){
+		List<String> arguments = new ArrayList<String>(Arrays.asList("-c", cellcountFile, "-e", expressionFile, "-g", genotypeFile));
+		arguments.addAll(jobArguments);
+		return arguments.toArray(new String[0]);
+	}
+
+	/**
+	 * @return Why the job can not be run, or null if it can. The arguments are parsed here, because CommandLineOptions
+	 * exits the JVM when a required option is missing
+	 */
+	private String checkJobArguments(String[] arguments){
+		CommandLine cmdLine;
+		try{
+			cmdLine = CommandLineOptions.parseArguments(arguments);
+		}
+		catch(ParseException e){
+			return e.getMessage();
+		}
+		for(String cohortOption : new String[] {"cellcount", "expression", "genotype"}){
+			if(cmdLine.getOptionValues(cohortOption).length > 1){
+				return String.format("--%s is set by the server, remove it from the job", cohortOption);
+			}
+		}
+		String[] outfiles = cmdLine.hasOption("outfile") ? cmdLine.getOptionValues("outfile") : new String[] {"deconvolutionResults.csv"};
+		for(String outfolder : cmdLine.getOptionValues("outfolder")){
+			for(String outfile : outfiles){
+				for(Path outputPath : new Path[] {Paths.get(outfolder), Paths.get(outfolder, outfile)}){
+					if(!isInOutputRoot(outputPath)){
+						return String.format("Outfolder (-o) and outfile (-of) have to be in the output root of the server (%s), %s is not", 
+								outputRoot, outputPath);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if path is in the output root after .. and symbolic links (of the part of path that exists) are
+	 * resolved. Relative paths are relative to the working directory of the server, the same as for the run
+	 */
+	private boolean isInOutputRoot(Path path){
+		Path absolutePath = path.toAbsolutePath().normalize();
+		Path existingPath = absolutePath;
+		while(existingPath != null && !Files.exists(existingPath)){
+			existingPath = existingPath.getParent();
+		}
+		if(existingPath == null){
+			return false;
+		}
+		try{
+			return existingPath.toRealPath().resolve(existingPath.relativize(absolutePath)).normalize().startsWith(outputRoot);
+		}
+		catch(IOException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Queue a job on the data of the cohort
+	 *
+	 * @param jobArguments Arguments that were submitted, for the log
+	 *
+	 * @param arguments Arguments of the Deconvolution run
+	 *
+	 * @return Id of the job, or -1 if the queue is full
+	 */
+	private int submit(List<String> jobArguments, String[] arguments){
+		int jobId = numberOfJobs.incrementAndGet();
+		jobStatus.put(jobId, "queued");
+		try{
+			jobExecutor.execute(() -> runJob(jobId, arguments));
+		}
+		catch(RejectedExecutionException e){
+			jobStatus.remove(jobId);
+			DeconvolutionLogger.log.warning(String.format("Job %d rejected, queue is full: %s", jobId, String.join(" ", jobArguments)));
+			return -1;
+		}
+		DeconvolutionLogger.log.info(String.format("Job %d queued: %s", jobId, String.join(" ", jobArguments)));
+		return jobId;
+	}
+
+	private void runJob(int jobId, String[] arguments){
+		jobStatus.put(jobId, "running");
+		try{
+			new Deconvolution().run(arguments, cellCounts, expressionData, genotypeData);
+			jobStatus.put(jobId, "done");
+			DeconvolutionLogger.log.info(String.format("Job %d done", jobId));
+		}
+		catch(Exception e){
+			jobStatus.put(jobId, "failed\t"+e);
+			DeconvolutionLogger.log.warning(String.format("Job %d failed: %s", jobId, e));
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int statusCode, String message) throws IOException{
+		byte[] response = (message+"\n").getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(statusCode, response.length);
+		try(OutputStream responseBody = exchange.getResponseBody()){
+			responseBody.write(response);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package deconvolution;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per thread pool of [samples][terms] matrices, so that the observed value matrices of the interaction models
+ * (and the working copy NNLS makes of them) are reused for the next QTL instead of allocated for every model of
+ * every QTL. All QTLs of a run have the same number of samples, so after the first QTL the pool has a matrix of
+ * every shape that is needed.
+ *
+ * Matrices that are taken from the pool are not cleared, the user has to overwrite every value. A matrix given back
+ * with release() should not be used anymore by the one that gave it back.
+ */
+public class DesignMatrixPool {
+	// more than this number of free matrices of one shape are left to the garbage collector
+	private static final int MAXIMUM_FREE_MATRICES_PER_SHAPE = 4096;
+	private static final ThreadLocal<Map<Long, ArrayDeque<double[][]>>> freeMatrices =
+			ThreadLocal.withInitial(() -> new HashMap<Long, ArrayDeque<double[][]>>());
+
+	private DesignMatrixPool(){};
+
+	/**
+	 * Get a matrix from the pool of this thread, or a new one if there is no free matrix of this shape
+	 *
+	 * @param numberOfRows Number of rows (samples)
+	 *
+	 * @param numberOfColumns Number of columns (terms)
+	 *
+	 * @return double[numberOfRows][numberOfColumns], values are not set to 0
+	 */
+	public static double[][] acquire(int numberOfRows, int numberOfColumns){
+		ArrayDeque<double[][]> free = freeMatrices.get().get(getShape(numberOfRows, numberOfColumns));
+		if(free == null || free.isEmpty()){
+			return new double[numberOfRows][numberOfColumns];
+		}
+		return free.pop();
+	}
+
+	/**
+	 * Give a matrix back to the pool of this thread
+	 *
+	 * @param matrix Matrix taken with acquire(), null is ignored
+	 */
+	public static void release(double[][] matrix){
+		if(matrix == null || matrix.length == 0){
+			return;
+		}
+		Map<Long, ArrayDeque<double[][]>> freeMatricesOfThread = freeMatrices.get();
+		Long shape = getShape(matrix.length, matrix[0].length);
+		ArrayDeque<double[][]> free = freeMatricesOfThread.get(shape);
+		if(free == null){
+			free = new ArrayDeque<double[][]>();
+			freeMatricesOfThread.put(shape, free);
+		}
+		if(free.size() < MAXIMUM_FREE_MATRICES_PER_SHAPE){
+			free.push(matrix);
+		}
+	}
+
+	/**
+	 * Remove all free matrices of this thread
+	 */
+	public static void clear(){
+		freeMatrices.get().clear();
+	}
+
+	private static Long getShape(int numberOfRows, int numberOfColumns){
+		return ((long) numberOfRows << 32) | numberOfColumns;
+	}
+}
@@ -1,13 +1,11 @@
 package deconvolution;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
+import java.util.List;
+import java.util.Set;
 
 public class ExpressionData {
 	private ArrayList<String> sampleNames;
@@ -15,20 +13,52 @@ public class ExpressionData {
 	
 	public ExpressionData(){}
 	public ExpressionData(String expressionFile) throws IOException{
-		LineIterator expressionIterator = FileUtils.lineIterator(new File(expressionFile), "UTF-8");
-		this.sampleNames = new ArrayList<String>( Arrays.asList(expressionIterator.next().split("\t")) );
-		this.sampleNames.removeAll(Arrays.asList("", null));
+		this(expressionFile, null, null);
+	}
+
+	/**
+	 * Only parse the rows of the genes in rowsToKeep, the other rows are skipped without converting their values
+	 * 
+	 * @param rowsToKeep Names of the genes to keep, null to keep all rows
+	 */
+	public ExpressionData(String expressionFile, Set<String> rowsToKeep) throws IOException{
+		this(expressionFile, rowsToKeep, null);
+	}
+
+	/**
+	 * Same as ExpressionData(expressionFile, rowsToKeep), with the values of every row put in sampleOrder while the row is parsed,
+	 * so the columns of the file can be in any order
+	 * 
+	 * @param sampleOrder Sample names in the order to keep the values in (e.g. the samples of the cell counts), 
+	 * should be the same samples as in the file. null to keep the order of the file
+	 */
+	public ExpressionData(String expressionFile, Set<String> rowsToKeep, List<String> sampleOrder) throws IOException{
+		try(ReadAheadLineIterator expressionIterator = new ReadAheadLineIterator(expressionFile)){
+			parseExpression(expressionIterator, expressionFile, rowsToKeep, sampleOrder);
+		}
+	}
+
+	private void parseExpression(ReadAheadLineIterator expressionIterator, String expressionFile, Set<String> rowsToKeep, List<String> sampleOrder){
+		List<String> fileSampleNames = new ArrayList<String>( Arrays.asList(expressionIterator.next().split("\t")) );
+		fileSampleNames.removeAll(Arrays.asList("", null));
+		// column in a row of the file per sample in sampleOrder, column 0 is the row name
+		int[] sampleColumns = Utils.getSampleColumns(fileSampleNames, sampleOrder, expressionFile);
+		this.sampleNames = new ArrayList<String>(sampleOrder == null ? fileSampleNames : sampleOrder);
 		int rowNumber = 0;
 		while (expressionIterator.hasNext()) {
 			rowNumber++;
 			if(rowNumber % 5000 == 0){
 				DeconvolutionLogger.log.info(String.format("Processed %d lines", rowNumber));
 			}
-			String[] expressionStringVector =  expressionIterator.next().split("\t");
+			String line = expressionIterator.next();
+			if(rowsToKeep != null && !rowsToKeep.contains(line.substring(0, Math.max(line.indexOf('\t'), 0)))){
+				continue;
+			}
+			String[] expressionStringVector = line.split("\t");
 			String geneName = expressionStringVector[0];
-			if(this.sampleNames.size() != expressionStringVector.length-1){
+			if(fileSampleNames.size() != expressionStringVector.length-1){
 				DeconvolutionLogger.log.info(String.format("Expression table %s does not have the same number of columns as there are in the header at row %d",expressionFile,rowNumber));
-				DeconvolutionLogger.log.info(String.format("Number of header columns: %d",this.sampleNames.size()));
+				DeconvolutionLogger.log.info(String.format("Number of header columns: %d",fileSampleNames.size()));
 				DeconvolutionLogger.log.info(String.format("Number of columns at row %d: %d", rowNumber, expressionStringVector.length-1));
 				throw new RuntimeException(String.format("Expressione table does not have the same number of columns as there are celltypes at row %d",rowNumber));
 			}
@@ -36,7 +66,7 @@ public class ExpressionData {
 			
 			double[] expressionValues = null;
 			try{
-				expressionValues = Utils.StringVectorToDoubleArrayList(expressionStringVector, 1);
+				expressionValues = Utils.gatherDoubles(expressionStringVector, sampleColumns);
 			}catch(NumberFormatException e){
 				DeconvolutionLogger.log.warning(String.format("Gene %s contains expression values that can not be converted to Double, SKIPPING!", geneName));
 			}
@@ -0,0 +1,29 @@
+package deconvolution;
+
+/**
+ * A gene-SNP pair from the snpsToTest file
+ */
+public class GeneSnpPair {
+	private String gene;
+	private String snp;
+
+	public GeneSnpPair(String gene, String snp){
+		this.gene = gene;
+		this.snp = snp;
+	}
+
+	public String getGene(){
+		return gene;
+	}
+
+	public String getSnp(){
+		return snp;
+	}
+
+	/**
+	 * Name of the QTL as used in the output, gene_snp
+	 */
+	public String getQtlName(){
+		return gene+'_'+snp;
+	}
+}
@@ -1,13 +1,11 @@
 package deconvolution;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
+import java.util.List;
+import java.util.Set;
 
 public class GenotypeData {
 	private ArrayList<String> sampleNames;
@@ -15,27 +13,59 @@ public class GenotypeData {
 	
 	public GenotypeData(){};
 	public GenotypeData(String genotypeFile) throws IOException{
-		LineIterator genotypeIterator = FileUtils.lineIterator(new File(genotypeFile), "UTF-8");
-		this.sampleNames = new ArrayList<String>( Arrays.asList(genotypeIterator.next().split("\t")) );
-		this.sampleNames.removeAll(Arrays.asList("", null));
+		this(genotypeFile, null, null);
+	}
+
+	/**
+	 * Only parse the rows of the SNPs in rowsToKeep, the other rows are skipped without converting their values
+	 * 
+	 * @param rowsToKeep Names of the SNPs to keep, null to keep all rows
+	 */
+	public GenotypeData(String genotypeFile, Set<String> rowsToKeep) throws IOException{
+		this(genotypeFile, rowsToKeep, null);
+	}
+
+	/**
+	 * Same as GenotypeData(genotypeFile, rowsToKeep), with the values of every row put in sampleOrder while the row is parsed,
+	 * so the columns of the file can be in any order
+	 * 
+	 * @param sampleOrder Sample names in the order to keep the values in (e.g. the samples of the cell counts), 
+	 * should be the same samples as in the file. null to keep the order of the file
+	 */
+	public GenotypeData(String genotypeFile, Set<String> rowsToKeep, List<String> sampleOrder) throws IOException{
+		try(ReadAheadLineIterator genotypeIterator = new ReadAheadLineIterator(genotypeFile)){
+			parseGenotype(genotypeIterator, genotypeFile, rowsToKeep, sampleOrder);
+		}
+	}
+
+	private void parseGenotype(ReadAheadLineIterator genotypeIterator, String genotypeFile, Set<String> rowsToKeep, List<String> sampleOrder){
+		List<String> fileSampleNames = new ArrayList<String>( Arrays.asList(genotypeIterator.next().split("\t")) );
+		fileSampleNames.removeAll(Arrays.asList("", null));
+		// column in a row of the file per sample in sampleOrder, column 0 is the row name
+		int[] sampleColumns = Utils.getSampleColumns(fileSampleNames, sampleOrder, genotypeFile);
+		this.sampleNames = new ArrayList<String>(sampleOrder == null ? fileSampleNames : sampleOrder);
 		int rowNumber = 0;
 		while (genotypeIterator.hasNext()) {
 			rowNumber++;
 			if(rowNumber % 5000 == 0){
 				DeconvolutionLogger.log.info(String.format("Processed %d lines", rowNumber));
 			}
-			String[] genotypeStringVector = genotypeIterator.next().split("\t");
+			String line = genotypeIterator.next();
+			if(rowsToKeep != null && !rowsToKeep.contains(line.substring(0, Math.max(line.indexOf('\t'), 0)))){
+				continue;
+			}
+			String[] genotypeStringVector = line.split("\t");
 			String snpName = genotypeStringVector[0];
-			if(this.sampleNames.size() != genotypeStringVector.length-1){
+			if(fileSampleNames.size() != genotypeStringVector.length-1){
 				DeconvolutionLogger.log.info(String.format("Genotype table %s does not have the same number of columns as there are in the header at row %d",genotypeFile,rowNumber));
-				DeconvolutionLogger.log.info(String.format("Number of header columns: %d",this.sampleNames.size()));
+				DeconvolutionLogger.log.info(String.format("Number of header columns: %d",fileSampleNames.size()));
 				DeconvolutionLogger.log.info(String.format("Number of columns at row %d: %d", rowNumber, genotypeStringVector.length-1));
 				throw new RuntimeException(String.format("Expressione table does not have the same number of columns as there are celltypes at row %d",rowNumber));
 			}
 			
 			double[] genotypeValues = null;
 			try{
-				genotypeValues = Utils.StringVectorToDoubleArrayList(genotypeStringVector, 1);
+				genotypeValues = Utils.gatherDoubles(genotypeStringVector, sampleColumns);
 			}catch(NumberFormatException e){
 				DeconvolutionLogger.log.warning(String.format("SNP %s contains genotype values that can not be converted to Double, SKIPPING!", snpName));
 			}
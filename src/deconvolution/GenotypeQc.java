@@ -0,0 +1,101 @@
+package deconvolution;
+
+/**
+ * Dosage QC of the genotypes of one SNP for the --round_dosage, --minimum_samples_per_genotype and --all_dosages options.
+ * Rounding is done on a copy, so that the genotypes stored in GenotypeData are not changed. The number of samples per
+ * dosage class and whether the SNP passes are calculated once, so they can be cached per SNP (see GenotypeQcCache).
+ */
+public class GenotypeQc {
+	public enum Verdict {PASS, NOT_ALL_DOSAGES, NOT_ENOUGH_SAMPLES_PER_GENOTYPE};
+	private double[] genotypes;
+	private int dosageRef = 0;
+	private int dosageHeterozygote = 0;
+	private int dosageAlt = 0;
+	private Verdict verdict = Verdict.PASS;
+
+	/**
+	 * If roundDosage, round the dosage to the closest integer -> 0.49 = 0, 0.51 = 1, 1.51 = 2.
+	 * If minimumSamplesPerGenotype > 0 or allDosages, count for each dosage (in case they are not round the dosages
+	 * are binned in same way as with roundDosage) how many samples have it.
+	 *
+	 * @param genotypes Dosages of the SNP, not changed
+	 */
+	public GenotypeQc(double[] genotypes, boolean roundDosage, int minimumSamplesPerGenotype, boolean allDosages){
+		this.genotypes = genotypes;
+		if(roundDosage){
+			this.genotypes = new double[genotypes.length];
+			for (int i = 0; i < genotypes.length; ++i) {
+				this.genotypes[i] = Math.round(genotypes[i]);
+			}
+		}
+		if (minimumSamplesPerGenotype <= 0 && !allDosages){
+			return;
+		}
+		for (int i = 0; i < this.genotypes.length; ++i) {
+			double dosage = this.genotypes[i];
+			if(dosage < 0){
+				throw new RuntimeException("Genotype dosage can not be negative, check your dosage input file");
+			}
+			if(dosage < 0.5){
+				++dosageRef;
+			}
+			else if(dosage < 1.5){
+				++dosageHeterozygote;
+			}
+			else if (dosage <= 2){
+				++dosageAlt;
+			}
+			else{
+				throw new RuntimeException("Genotype dosage can not be larger than 2, check your dosage input file");
+			}
+		}
+		if(allDosages){
+			// check that all dosages have at least one sample
+			if(dosageRef == 0 || dosageHeterozygote == 0 || dosageAlt == 0){
+				verdict = Verdict.NOT_ALL_DOSAGES;
+				return;
+			}
+		}
+		if(minimumSamplesPerGenotype > 0){
+			// Check that each genotype has enough samples (AA >= minimum_samples_per_genotype, AB >= minimum_samples_per_genotype, BB >= minimum_samples_per_genotype)
+			if(!(dosageRef >= minimumSamplesPerGenotype && dosageHeterozygote >= minimumSamplesPerGenotype && dosageAlt >= minimumSamplesPerGenotype)){
+				verdict = Verdict.NOT_ENOUGH_SAMPLES_PER_GENOTYPE;
+			}
+		}
+	}
+
+	/**
+	 * Throw the exception that belongs to the verdict, nothing if the SNP passed
+	 */
+	public void throwIfFailed() throws NotEnoughGenotypesException, NotEnoughSamplesPerGenotypeException{
+		if(verdict == Verdict.NOT_ALL_DOSAGES){
+			throw new NotEnoughGenotypesException("Not all dosages present for this eQTL");
+		}
+		if(verdict == Verdict.NOT_ENOUGH_SAMPLES_PER_GENOTYPE){
+			throw new NotEnoughSamplesPerGenotypeException("Not enough samples for each genotype");
+		}
+	}
+
+	/**
+	 * Genotypes to use in the models, rounded if roundDosage
+	 */
+	public double[] getGenotypes(){
+		return genotypes;
+	}
+
+	public Verdict getVerdict(){
+		return verdict;
+	}
+
+	public int getDosageRefCount(){
+		return dosageRef;
+	}
+
+	public int getDosageHeterozygoteCount(){
+		return dosageHeterozygote;
+	}
+
+	public int getDosageAltCount(){
+		return dosageAlt;
+	}
+}
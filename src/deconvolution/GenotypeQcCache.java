@@ -0,0 +1,51 @@
+package deconvolution;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the GenotypeQc per SNP. A SNP is paired with many genes, so instead of rounding and counting the dosages
+ * for every QTL this is done once per SNP and kept in a least recently used cache.
+ */
+public class GenotypeQcCache {
+	private Map<String, GenotypeQc> genotypeQcPerSnp;
+	private boolean roundDosage;
+	private int minimumSamplesPerGenotype;
+	private boolean allDosages;
+
+	/**
+	 * @param maximumSize Maximum number of SNPs to keep, the least recently used SNP is removed first
+	 */
+	public GenotypeQcCache(final int maximumSize, boolean roundDosage, int minimumSamplesPerGenotype, boolean allDosages){
+		this.roundDosage = roundDosage;
+		this.minimumSamplesPerGenotype = minimumSamplesPerGenotype;
+		this.allDosages = allDosages;
+		genotypeQcPerSnp = new LinkedHashMap<String, GenotypeQc>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, GenotypeQc> eldest){
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the QC of snp, done only if snp is not in the cache yet. If snp is null the QC is done without caching
+	 *
+	 * @param snp Name of the SNP
+	 *
+	 * @param genotypes Dosages of snp
+	 */
+	public GenotypeQc getGenotypeQc(String snp, double[] genotypes){
+		if(snp == null){
+			return new GenotypeQc(genotypes, roundDosage, minimumSamplesPerGenotype, allDosages);
+		}
+		GenotypeQc genotypeQc = genotypeQcPerSnp.get(snp);
+		if(genotypeQc == null){
+			genotypeQc = new GenotypeQc(genotypes, roundDosage, minimumSamplesPerGenotype, allDosages);
+			genotypeQcPerSnp.put(snp, genotypeQc);
+		}
+		return genotypeQc;
+	}
+}
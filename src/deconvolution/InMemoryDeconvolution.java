@@ -0,0 +1,103 @@
+package deconvolution;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Run deconvolution from Java on data that is already in memory, e.g. when Decon-eQTL is one step of a larger
+ * pipeline in the same JVM. No files are read or written: the QTLs are given as gene-SNP pairs together with the
+ * expression per gene and the dosages per SNP, and the result of a QTL is given to a ResultHandler as soon as it is done.
+ *
+ * 		CommandLineOptions options = new CommandLineOptions();
+ * 		options.setNumberOfPermutations(1000);
+ * 		InMemoryDeconvolution deconvolution = new InMemoryDeconvolution(new CellCount(celltypes, samples, cellcounts), options);
+ * 		deconvolution.run(geneSnpPairs.iterator(), expressionPerGene, dosagesPerSnp,
+ * 				result -> System.out.println(result.getQtlName()+"\t"+result.getPvalues()));
+ *
+ * Only the options that change how a QTL is deconvoluted are used (dosage QC, genotype configuration, relative cell
+ * counts, whole blood QTL, -log10 p-values, predicted expression and permutations). Expression and dosages have to be in the sample order of
+ * the cell counts, they are not changed.
+ */
+public class InMemoryDeconvolution {
+	private Deconvolution deconvolution;
+	private int numberOfSamples;
+
+	/**
+	 * Gets the QTLs of a run as they are done
+	 */
+	public interface ResultHandler {
+		/**
+		 * Result of a QTL that was deconvoluted
+		 */
+		void handle(DeconvolutionResult deconvolutionResult) throws Exception;
+
+		/**
+		 * A QTL that was not deconvoluted because it did not pass the dosage QC (minimum samples per genotype, all
+		 * dosages). Nothing is done by default
+		 */
+		default void filtered(GeneSnpPair geneSnpPair, String reason) throws Exception{};
+	}
+
+	/**
+	 * @param cellCounts Cell counts of the samples
+	 *
+	 * @param options Options of the deconvolution, e.g. a new CommandLineOptions() with some of its setters called
+	 */
+	public InMemoryDeconvolution(CellCount cellCounts, CommandLineOptions options){
+		this.deconvolution = new Deconvolution(options, cellCounts);
+		this.numberOfSamples = cellCounts.getNumberOfSamples();
+	}
+
+	/**
+	 * Deconvolute the QTLs of geneSnpPairs, in the order of the iterator
+	 *
+	 * @param geneSnpPairs QTLs to test, e.g. list.iterator() or stream.iterator()
+	 *
+	 * @param expression Expression per gene, should have all genes of geneSnpPairs
+	 *
+	 * @param dosages Dosages per SNP, should have all SNPs of geneSnpPairs
+	 *
+	 * @param resultHandler Gets the result of every QTL
+	 */
+	public void run(Iterator<GeneSnpPair> geneSnpPairs, Map<String, double[]> expression, Map<String, double[]> dosages,
+			ResultHandler resultHandler) throws Exception{
+		while(geneSnpPairs.hasNext()){
+			GeneSnpPair geneSnpPair = geneSnpPairs.next();
+			double[] expressionLevels = getSampleValues(expression, geneSnpPair.getGene(), "Expression of gene");
+			double[] snpDosages = getSampleValues(dosages, geneSnpPair.getSnp(), "Dosages of SNP");
+			DeconvolutionResult deconvolutionResult;
+			try{
+				deconvolutionResult = deconvolution.deconvoluteQtl(expressionLevels, snpDosages, geneSnpPair.getQtlName(),
+						geneSnpPair.getGene(), geneSnpPair.getSnp());
+			}
+			catch(NotEnoughGenotypesException e){
+				resultHandler.filtered(geneSnpPair, "Not enough genotypes (e.g. AA and AB but no BB)");
+				continue;
+			}
+			catch(NotEnoughSamplesPerGenotypeException e){
+				resultHandler.filtered(geneSnpPair, "Not enough samples per genotype");
+				continue;
+			}
+			resultHandler.handle(deconvolutionResult);
+		}
+	}
+
+	private double[] getSampleValues(Map<String, double[]> valuesPerName, String name, String description){
+		double[] values = valuesPerName.get(name);
+		if(values == null){
+			throw new IllegalArgumentException(String.format("%s %s not given", description, name));
+		}
+		if(values.length != numberOfSamples){
+			throw new IllegalArgumentException(String.format("%s %s has %d values, but there are %d samples in the cell counts",
+					description, name, values.length, numberOfSamples));
+		}
+		return values;
+	}
+
+	/**
+	 * Permutation null distributions of the QTLs that are done, e.g. for getPermutationTest().calculateFdr(celltype, observedPvalues)
+	 */
+	public PermutationTest getPermutationTest(){
+		return deconvolution.getPermutationTest();
+	}
+}
@@ -36,12 +36,13 @@ public class InteractionModel {
 	 * Initialize object by setting the observed values size. Per QTL for each sample the observed values are each term of the 
 	 * linear model. E.g. if the model is y = mono% + neut% + mono%:GT, the observedValues are
 	 * [mono%, neut%, mono% * GT]
+	 * The matrix is taken from the DesignMatrixPool and given back in cleanUp(), so every value has to be set with addObservedValue
 	 * 
 	 * @ param sampleSize number of samples
 	 * @ param numberOfTerms number of terms that the interaction model has
 	 */
 	public InteractionModel( int sampleSize, int numberOfTerms){
-	    this.observedValues = new double[sampleSize][numberOfTerms];
+	    this.observedValues = DesignMatrixPool.acquire(sampleSize, numberOfTerms);
 	    this.numberOfTerms = numberOfTerms;
 	  }
 	
@@ -201,8 +202,15 @@ public class InteractionModel {
 	 *  @return An nnls object
 	 */
 	public void calculateSumOfSquaresNNLS(double[] expressionValues) throws IOException, IllegalAccessException {
+		calculateSumOfSquaresNNLS(expressionValues, null);
+	}
+
+	/**
+	 * Same as calculateSumOfSquaresNNLS(expressionValues), with the solve added to runMetrics if it is not null
+	 */
+	public void calculateSumOfSquaresNNLS(double[] expressionValues, RunMetrics runMetrics) throws IOException, IllegalAccessException {
 		NonNegativeLeastSquares nnls = new NonNegativeLeastSquares();
-		
+		long start = RunMetrics.start();
 		try{
 			nnls.newSampleData(expressionValues, this.getObservedValues());
 		}
@@ -216,6 +224,9 @@ public class InteractionModel {
 		// normsqr: sqroot of the norm error vector
 		// x: the parameters
 		// For more, check out the Class documentation
+		if(runMetrics != null){
+			runMetrics.addNnlsSolve(getModelType(), nnls, start);
+		}
 		double[] estimatedRegressionParameters = nnls.estimateRegressionParameters();
 		setEstimatedRegressionParameters(estimatedRegressionParameters);
 
@@ -229,6 +240,15 @@ public class InteractionModel {
 		setPredictedValues(predictedValues);
 	}
 
+	/**
+	 * Model family used for aggregating solver statistics, full or ct combined with the genotype configuration,
+	 * e.g. full_0101 or ct_010
+	 */
+	private String getModelType(){
+		String modelFamily = modelName != null && modelName.startsWith("fullModel") ? "full" : "ct";
+		return modelFamily+"_"+genotypeConfiguration;
+	}
+
 	public void setEstimatedRegressionParametersStandardErrors(double[] estimatedRegressionParametersStandardErrors) {
 		this.estimatedRegressionParametersStandardError = estimatedRegressionParametersStandardErrors;
 	}
@@ -245,6 +265,7 @@ public class InteractionModel {
 	}
 
 	public void cleanUp(Boolean removePredictedValues) {
+		DesignMatrixPool.release(this.observedValues);
 		this.observedValues = null;
 		this.residuals = null;
 		if(removePredictedValues){
@@ -19,6 +19,7 @@ public class InteractionModelCollection {
 	private String qtlName;
 	private HashMap<String, InteractionModel> interactionModels = new HashMap<String, InteractionModel>();
 	private HashMap<String, Double> pvalues = new HashMap<String, Double>();
+	private HashMap<String, Double> minusLog10Pvalues = new HashMap<String, Double>();
 	private ArrayList<String> fullModelNames = new ArrayList<String>();
 	private HashMap<String, ArrayList<String>> ctModelNames = new HashMap<String, ArrayList<String>>();
 	private HashMap<String, ArrayList<String>> fullModelNamesByCelltype = new HashMap<String, ArrayList<String>>();
@@ -35,6 +36,8 @@ public class InteractionModelCollection {
 	private List<String> celltypes = new ArrayList<String>();
 	private List<String> sampleNames = new ArrayList<String>();
 	private HashMap<String, String> bestFullModelPerCelltype = new HashMap<String, String>();
+	// NNLS solves are added to the metrics of the run, not counted if null
+	private RunMetrics runMetrics;
 
 	/*
 	 * Have to initialize instance with if NNLS or OLS will be used, and for that we need cellCounts
@@ -65,10 +68,13 @@ public class InteractionModelCollection {
 	}
 
 	/*
-	 * Remove interaction model with modelName
+	 * Remove interaction model with modelName, its observed values go back to the DesignMatrixPool
 	 */
 	public void removeInteractionModel(String modelName) throws IllegalAccessException{
-		this.interactionModels.remove(modelName);
+		InteractionModel interactionModel = this.interactionModels.remove(modelName);
+		if(interactionModel != null){
+			interactionModel.cleanUp(true);
+		}
 	}
 
 	/*
@@ -125,6 +131,10 @@ public class InteractionModelCollection {
 		}
 	}
 
+	public void setRunMetrics(RunMetrics runMetrics){
+		this.runMetrics = runMetrics;
+	}
+
 	public void setQtlName(String qtlName){
 		this.qtlName = qtlName;
 	}
@@ -145,6 +155,17 @@ public class InteractionModelCollection {
 		return(pvalue);
 	}
 
+	/*
+	 * -log10 of the p-value per ctModel, only set if the p-values are calculated in log space
+	 */
+	public void setMinusLog10Pvalue(Double minusLog10Pvalue, String modelName){
+		this.minusLog10Pvalues.put(modelName, minusLog10Pvalue);
+	}
+
+	public Double getMinusLog10Pvalue(String modelName) throws IllegalAccessException{
+		return(this.minusLog10Pvalues.get(modelName));
+	}
+
 	public ArrayList<String> getFullModelNames() throws IllegalAccessException{
 		return this.fullModelNames;
 	}
@@ -216,7 +237,7 @@ public class InteractionModelCollection {
 		double sumOfSquares = -1;
 		for (String modelName : getFullModelNames()){
 			InteractionModel fullModel = getInteractionModel(modelName);
-			fullModel.calculateSumOfSquaresNNLS(getExpessionValues());
+			fullModel.calculateSumOfSquaresNNLS(getExpessionValues(), runMetrics);
 			if (sumOfSquares == -1){
 				sumOfSquares = fullModel.getSumOfSquares();
 			}
@@ -243,7 +264,7 @@ public class InteractionModelCollection {
 				InteractionModel ctModel = getInteractionModel(modelName);
 				modelCelltype.put(modelName, celltype);
 
-				ctModel.calculateSumOfSquaresNNLS(getExpessionValues());
+				ctModel.calculateSumOfSquaresNNLS(getExpessionValues(), runMetrics);
 
 				if (sumOfSquares == -1){
 					sumOfSquares = ctModel.getSumOfSquares();
@@ -349,24 +370,27 @@ public class InteractionModelCollection {
 
 			}
 
+			// Have permutation of (2**number of celltypes) as binary ( so 00, 10, 01, 11 ), when 0 do normal genotype, 1 do swapped genotype.
+			// Use the binary string permutation to decide if the genotype should be swapped or not, once per celltype instead of per sample
+			double[][] genotypesPerCelltype = new double[numberOfCelltypes][];
+			for (int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex) {
+				if(genotypeConfiguration.charAt(celltypeIndex) == '0'){
+					genotypesPerCelltype[celltypeIndex] = getGenotypes();
+				} else{
+					genotypesPerCelltype[celltypeIndex] = getSwappedGenotypes();
+				}
+			}
+			double[][] cellcountsPerCelltype = cellCount.getCellcountsPerCelltype();
+
 			// number of terms + 1 because for full model all cell types are included
 			for (int sampleIndex = 0; sampleIndex <= numberOfSamples-1; ++sampleIndex) {
 				for (int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex) {
 
-					double celltypePerc = cellCount.getCellcountPercentages()[sampleIndex][celltypeIndex];
+					double celltypePerc = cellcountsPerCelltype[celltypeIndex][sampleIndex];
 					// if i (cell type index) is the same as m (model index), don't add the interaction term of celltype:GT
 					fullModel.addObservedValue(celltypePerc, sampleIndex, celltypeIndex);
-					// Have permutation of (2**number of celltypes) as binary ( so 00, 10, 01, 11 ), when 0 do normal genotype, 1 do swapped genotype
-					double[] genotypes;
-					char genotypeOrderAtCelltype = genotypeConfiguration.charAt(celltypeIndex);
-					// Use the binary string permutation to decide if the genotype should be swapped or not
-					if(genotypeOrderAtCelltype == '0'){
-						genotypes = getGenotypes();
-					} else{
-						genotypes = getSwappedGenotypes();
-					}
 					try {
-						fullModel.addObservedValue(celltypePerc * genotypes[sampleIndex], 
+						fullModel.addObservedValue(celltypePerc * genotypesPerCelltype[celltypeIndex][sampleIndex], 
 								sampleIndex, numberOfCelltypes + celltypeIndex);					
 					} catch (ArrayIndexOutOfBoundsException error) {
 						throw new RuntimeException(
@@ -430,6 +454,22 @@ public class InteractionModelCollection {
 				ctModel.setModelName(modelName);
 				ctModel.setCelltypeName(celltypeName);
 				addInteractionModel(ctModel,ctModel.getModelName(), false);	
+				// because the genotype configuration is of length (number of celltypes - 1), when a model is skipped we need to 
+				// adjust all celltype indices from that point forward. Genotypes per configuration index are selected once per model
+				double[][] genotypesPerConfigurationIndex = new double[genotypeConfiguration.length()][];
+				for (int configurationIndex = 0; configurationIndex < genotypeConfiguration.length(); configurationIndex++) {
+					char genotypeOrderAtCelltype = genotypeConfiguration.charAt(configurationIndex);
+					if(genotypeOrderAtCelltype == '0'){
+						genotypesPerConfigurationIndex[configurationIndex] = getGenotypes();
+					}
+					else if(genotypeOrderAtCelltype == '1'){
+						genotypesPerConfigurationIndex[configurationIndex] = getSwappedGenotypes();
+					}
+					else{
+						throw new RuntimeException(String.format("Genotype order should be 0 or 1, was: %s", genotypeOrderAtCelltype));
+					}
+				}
+				double[][] cellcountsPerCelltype = cellCount.getCellcountsPerCelltype();
 				for (int sampleIndex = 0; sampleIndex <= numberOfSamples-1; sampleIndex++) {
 					int configurationIndex = 0;
 					for (int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; celltypeIndex++) {
@@ -438,7 +478,7 @@ public class InteractionModelCollection {
 						// where numberOfSamples = 1 and numberOfCellTypes = 4 with celltypePerc = 0.3, 0.4, 0.2, and 0.1 and genotype = 2
 						// for each cell type is 1 model, celltype% * genotype without 1 celltype.
 						// j+1 because j==0 is header
-						double celltype_perc = cellCount.getCellcountPercentages()[sampleIndex][celltypeIndex];
+						double celltype_perc = cellcountsPerCelltype[celltypeIndex][sampleIndex];
 						ctModel.addObservedValue(celltype_perc, sampleIndex, celltypeIndex);
 						if(sampleIndex == 0){
 							// add the celltype name at position i so that it gets in front of the celltype:GT, but once
@@ -467,20 +507,8 @@ public class InteractionModelCollection {
 								// it is explicit. Don't know if better.
 							}
 							try {
-								double genotype = 0;
-								// because the genotype configuration is of length (number of celltypes - 1), when a model is skipped we need to 
-								// adjust all celltype indices from that point forward
-								char genotypeOrderAtCelltype = genotypeConfiguration.charAt(configurationIndex);
+								double genotype = genotypesPerConfigurationIndex[configurationIndex][sampleIndex];
 								configurationIndex++;
-								if(genotypeOrderAtCelltype == '0'){
-									genotype = getGenotypes()[sampleIndex];
-								}
-								else if(genotypeOrderAtCelltype == '1'){
-									genotype = getSwappedGenotypes()[sampleIndex];
-								}
-								else{
-									throw new RuntimeException(String.format("Genotype order should be 0 or 1, was: %s", genotypeOrderAtCelltype));
-								}
 								ctModel.addObservedValue(celltype_perc * genotype, sampleIndex, genotypeCounter);
 
 							} catch (ArrayIndexOutOfBoundsException error) {
@@ -506,12 +534,18 @@ public class InteractionModelCollection {
 	}
 
 
-	public void cleanUp(Boolean removePredictedValues) throws IllegalAccessException {
+	/**
+	 * Remove the data that is not needed anymore after the deconvolution of the QTL
+	 * 
+	 * @param keepPredictedValuesOfBestFullModel If true the predicted values of the best full model are kept so that they can be 
+	 * written, predicted values of the other models are always removed
+	 */
+	public void cleanUp(Boolean keepPredictedValuesOfBestFullModel) throws IllegalAccessException {
 		this.expressionValues = null;
 		this.genotypes = null;
 		this.swappedGenotypes = null;
 		for(InteractionModel interactionModel : this.interactionModels.values()){
-			interactionModel.cleanUp(removePredictedValues);
+			interactionModel.cleanUp(!(keepPredictedValuesOfBestFullModel && interactionModel.getModelName().equals(bestFullModelName)));
 		}
 		this.genotypeConfigurationsCtModel = null;
 		this.genotypeConfigurationsFullModel = null;
@@ -0,0 +1,87 @@
+package deconvolution;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Threads for blocking file I/O: reading the input files (one thread per file, the expression and genotype files are
+ * read at the same time) and the read and write stages of the pipeline. On JDK 21+ these are virtual threads, so
+ * that while they wait on a slow (e.g. network) filesystem they do not take platform threads away from the
+ * deconvolution, which stays on the platform thread that runs it. On older JDKs they are daemon platform threads.
+ * Virtual threads are looked up by reflection, because the code is compiled for Java 8.
+ */
+public class IoThreads {
+	// Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.start(Runnable), null before JDK 21
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_START;
+	// Executors.newVirtualThreadPerTaskExecutor(), null before JDK 21
+	private static final Method NEW_VIRTUAL_EXECUTOR;
+	static{
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderStart = null;
+		Method newVirtualExecutor = null;
+		try{
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class);
+			builderStart = builder.getMethod("start", Runnable.class);
+			newVirtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch(ReflectiveOperationException e){
+			ofVirtual = null;
+			newVirtualExecutor = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_START = builderStart;
+		NEW_VIRTUAL_EXECUTOR = newVirtualExecutor;
+	}
+
+	/**
+	 * @return true if the I/O threads are virtual threads (JDK 21+)
+	 */
+	public static boolean isVirtual(){
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Start task in a new I/O thread
+	 */
+	public static Thread start(String name, Runnable task){
+		if(OF_VIRTUAL != null){
+			try{
+				return (Thread) BUILDER_START.invoke(BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+			}
+			catch(ReflectiveOperationException e){
+				throw new RuntimeException("Could not start virtual thread "+name, e);
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Executor that runs every task in its own I/O thread, e.g. to read several input files at the same time.
+	 * Shut it down when all tasks are submitted
+	 */
+	public static ExecutorService newExecutor(){
+		if(NEW_VIRTUAL_EXECUTOR != null){
+			try{
+				return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+			}
+			catch(ReflectiveOperationException e){
+				throw new RuntimeException("Could not make virtual thread executor", e);
+			}
+		}
+		return Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "Deconvolution I/O");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}
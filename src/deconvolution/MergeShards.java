@@ -0,0 +1,461 @@
+package deconvolution;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Combine the output of a run that was split with --shard i/n into the output of a single run. The shard folders
+ * <outfolder>/shard<i>of<n>/ are read, and the deconvolution results, filteredQTLs.csv and predicted expression are
+ * written to <outfolder> in the same order as a single run would write them. If permutations were done the
+ * permutation FDR is calculated again with the null distributions of all shards.
+ */
+public class MergeShards {
+	public static final String NULL_DISTRIBUTIONS_FILE = "permutationNullDistributions.txt";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private String outfolder;
+	private String snpsToTestFile;
+	private String outfile = "deconvolutionResults.csv";
+	private String pairOrder;
+	private String snpPositionFile;
+	private List<String> shardFolders = new ArrayList<String>();
+
+	public MergeShards(){};
+
+	public static void main(String[] args) throws Exception {
+		MergeShards mergeShards = new MergeShards();
+		mergeShards.parseCommandLine(args);
+		mergeShards.merge();
+	}
+
+	private void parseCommandLine(String[] args) throws ParseException{
+		Options options = new Options();
+		options.addOption(Option.builder("o").required(true).hasArg().longOpt("outfolder").desc("Outfolder that was given to the shards, merged output is written here")
+				.argName("path").build());
+		options.addOption(Option.builder("sn").required(true).hasArg().longOpt("snpsToTest").desc("snpsToTest file that was given to the shards")
+				.argName("file").build());
+		options.addOption(Option.builder("of").required(false).hasArg().longOpt("outfile").desc("Outfile name of deconvolution results that was given to the shards")
+				.argName("file").build());
+		options.addOption(Option.builder("po").required(false).hasArg().longOpt("pair_order").desc("pair_order that was given to the shards")
+				.argName("order").build());
+		options.addOption(Option.builder("pf").required(false).hasArg().longOpt("snp_position_file").desc("snp_position_file that was given to the shards")
+				.argName("file").build());
+		CommandLineParser cmdLineParser = new DefaultParser();
+		try{
+			CommandLine cmdLine = cmdLineParser.parse(options, args);
+			outfolder = cmdLine.getOptionValue("outfolder");
+			if(!outfolder.endsWith("/")){
+				outfolder += "/";
+			}
+			snpsToTestFile = cmdLine.getOptionValue("snpsToTest");
+			outfile = cmdLine.getOptionValue("outfile", outfile);
+			snpPositionFile = cmdLine.getOptionValue("snp_position_file");
+			pairOrder = CommandLineOptions.getPairOrder(cmdLine.getOptionValue("pair_order"), snpPositionFile);
+		}
+		catch(ParseException e){
+			HelpFormatter formatter = new HelpFormatter();
+			DeconvolutionLogger.log.info(e.toString());
+			formatter.printHelp("MergeShards", options, true);
+			throw e;
+		}
+		findShardFolders();
+	}
+
+	/**
+	 * Find the shard folders in the outfolder and check that all shards are there
+	 */
+	private void findShardFolders(){
+		File[] folders = new File(outfolder).listFiles((dir, name) -> name.matches("shard[0-9]+of[0-9]+"));
+		if(folders == null || folders.length == 0){
+			throw new RuntimeException(String.format("No shard folders (shard<i>of<n>) found in %s", outfolder));
+		}
+		int numberOfShards = Integer.parseInt(folders[0].getName().split("of")[1]);
+		for(int shard = 1; shard <= numberOfShards; ++shard){
+			String shardFolder = CommandLineOptions.getShardOutfolder(outfolder, shard, numberOfShards);
+			if(!new File(shardFolder, "filteredQTLs.csv").exists()){
+				throw new RuntimeException(String.format("Shard %d of %d is not finished, %s has no filteredQTLs.csv", shard, numberOfShards, shardFolder));
+			}
+			shardFolders.add(shardFolder);
+		}
+		if(folders.length != numberOfShards){
+			throw new RuntimeException(String.format("Found %d shard folders in %s, but expected %d. Are there folders of runs with a different number of shards?",
+					folders.length, outfolder, numberOfShards));
+		}
+	}
+
+	/**
+	 * Write the merged results, filtered QTLs and predicted expression. The shard files are not read in memory: the
+	 * lines of each file are indexed by QTL name and copied from the shard files in the order of a single run
+	 */
+	public void merge() throws IOException{
+		// gene-SNP pairs in the same order as a single run goes through them
+		List<String> qtlNames = new ArrayList<String>();
+		HashMap<String, ArrayList<String>> geneSnpPairs = Utils.parseSnpPerGeneFile(snpsToTestFile);
+		for(GeneSnpPair geneSnpPair : Utils.orderGeneSnpPairs(geneSnpPairs, pairOrder, snpPositionFile)){
+			qtlNames.add(geneSnpPair.getQtlName());
+		}
+
+		// QTLs that were not significant in a run with -s, their p-values are part of the permutation FDR
+		try(ShardFile nonSignificantQTLs = ShardFile.open(shardFolders, "nonSignificantQTLs.csv", outfolder)){
+			if(nonSignificantQTLs != null){
+				nonSignificantQTLs.copyTo(Paths.get(outfolder+"nonSignificantQTLs.csv"), qtlNames, false);
+			}
+			try(ShardFile results = ShardFile.open(shardFolders, outfile, outfolder)){
+				if(results != null){
+					writeResults(results, nonSignificantQTLs, qtlNames);
+				}
+			}
+		}
+		try(ShardFile filteredQTLs = ShardFile.open(shardFolders, "filteredQTLs.csv", outfolder)){
+			if(filteredQTLs != null){
+				filteredQTLs.copyTo(Paths.get(outfolder+"filteredQTLs.csv"), qtlNames, false);
+			}
+			else{
+				Files.write(Paths.get(outfolder+"filteredQTLs.csv"), new byte[0]);
+			}
+		}
+		for(String predictedExpressionFile : new String[] {"predictedExpressionLevels.txt", "predictedExpressionLevels.txt.gz"}){
+			try(ShardFile predictedExpression = ShardFile.open(shardFolders, predictedExpressionFile, outfolder)){
+				if(predictedExpression != null){
+					predictedExpression.copyTo(Paths.get(outfolder+predictedExpressionFile), qtlNames, predictedExpressionFile.endsWith(".gz"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the merged results, with the permutation FDR calculated again over all shards, and the binary results if
+	 * the shards were run with -bo
+	 *
+	 * @param nonSignificantQTLs P-values of the QTLs that are not in the results (-s), null if there are none
+	 */
+	private void writeResults(ShardFile results, ShardFile nonSignificantQTLs, List<String> qtlNames) throws IOException{
+		List<double[]> permutationFdrPerCelltype = recalculatePermutationFdr(results, nonSignificantQTLs, qtlNames);
+		// shards that were run with -bo have binary results, write these for the merged results as well
+		String binaryFileName = BinaryResultWriter.getBinaryFileName(outfile);
+		boolean binaryOutput = Files.exists(Paths.get(shardFolders.get(0)+binaryFileName));
+		// permutation FDR columns, in the same order as permutationFdrPerCelltype
+		String[] header = results.getHeader().split("\t", -1);
+		List<Integer> fdrColumns = new ArrayList<Integer>();
+		for(int column = 0; column < header.length; ++column){
+			if(header[column].endsWith("_permutationFDR")){
+				fdrColumns.add(column);
+			}
+		}
+		try(ResultWriter writer = new ResultWriter(Paths.get(outfolder+outfile));
+				BinaryResultWriter binaryWriter = binaryOutput ? new BinaryResultWriter(Paths.get(outfolder+binaryFileName), results.getHeader()) : null){
+			writer.writeLine(results.getHeader());
+			int resultIndex = 0;
+			for(String qtlName : qtlNames){
+				String line = results.getLine(qtlName);
+				if(line == null){
+					continue;
+				}
+				if(permutationFdrPerCelltype != null){
+					String[] columns = line.split("\t", -1);
+					for(int i = 0; i < fdrColumns.size(); ++i){
+						double fdr = permutationFdrPerCelltype.get(i)[resultIndex];
+						columns[fdrColumns.get(i)] = Double.isNaN(fdr) ? "NA" : Double.toString(fdr);
+					}
+					line = String.join("\t", columns);
+				}
+				writer.writeLine(line);
+				if(binaryWriter != null){
+					binaryWriter.addLine(line);
+				}
+				++resultIndex;
+			}
+			if(binaryWriter != null){
+				binaryWriter.write();
+			}
+		}
+		DeconvolutionLogger.log.info(String.format("Merged deconvolution output of %d shards written to %s%s", shardFolders.size(), outfolder, outfile));
+	}
+
+	/**
+	 * Permutation FDR over all shards, of the result lines in the order of qtlNames
+	 *
+	 * @param nonSignificantQTLs P-values of the QTLs that are not in the results (-s), null if there are none
+	 *
+	 * @return Permutation FDR per celltype, in the order of the permutation FDR columns. null if the results have no
+	 * permutation FDR columns
+	 */
+	private List<double[]> recalculatePermutationFdr(ShardFile results, ShardFile nonSignificantQTLs, List<String> qtlNames) throws IOException{
+		List<String> header = Arrays.asList(results.getHeader().split("\t", -1));
+		List<String> celltypes = new ArrayList<String>();
+		for(int column = 0; column < header.size(); ++column){
+			if(header.get(column).endsWith("_permutationFDR")){
+				celltypes.add(header.get(column).replace("_permutationFDR", ""));
+			}
+		}
+		if(celltypes.isEmpty()){
+			return null;
+		}
+
+		PermutationTest permutationTest = new PermutationTest();
+		for(String shardFolder : shardFolders){
+			Path nullDistributionsFile = Paths.get(shardFolder+NULL_DISTRIBUTIONS_FILE);
+			if(!Files.exists(nullDistributionsFile)){
+				continue;
+			}
+			for(String line : Files.readAllLines(nullDistributionsFile, UTF8)){
+				String[] celltypeAndHistogram = line.split("\t", 2);
+				permutationTest.addNullDistribution(celltypeAndHistogram[0], PvalueHistogram.fromLine(celltypeAndHistogram[1]));
+			}
+		}
+
+		int[] pvalueColumns = getPvalueColumns(header, celltypes);
+		int[] nonSignificantPvalueColumns = nonSignificantQTLs == null ? null 
+				: getPvalueColumns(Arrays.asList(nonSignificantQTLs.getHeader().split("\t", -1)), celltypes);
+		List<double[]> observedPvaluesPerCelltype = new ArrayList<double[]>();
+		int numberOfPvalues = results.getNumberOfLines(qtlNames) + (nonSignificantQTLs == null ? 0 : nonSignificantQTLs.getNumberOfLines(qtlNames));
+		for(int celltypeIndex = 0; celltypeIndex < celltypes.size(); ++celltypeIndex){
+			observedPvaluesPerCelltype.add(new double[numberOfPvalues]);
+		}
+		// results first, followed by the QTLs that are not significant, same as in a single run
+		int pvalueIndex = addPvalues(results, pvalueColumns, qtlNames, observedPvaluesPerCelltype, 0);
+		if(nonSignificantQTLs != null){
+			addPvalues(nonSignificantQTLs, nonSignificantPvalueColumns, qtlNames, observedPvaluesPerCelltype, pvalueIndex);
+		}
+		List<double[]> permutationFdrPerCelltype = new ArrayList<double[]>();
+		for(int celltypeIndex = 0; celltypeIndex < celltypes.size(); ++celltypeIndex){
+			permutationFdrPerCelltype.add(permutationTest.calculateFdr(celltypes.get(celltypeIndex), observedPvaluesPerCelltype.get(celltypeIndex)));
+		}
+		return permutationFdrPerCelltype;
+	}
+
+	private static int[] getPvalueColumns(List<String> header, List<String> celltypes){
+		int[] pvalueColumns = new int[celltypes.size()];
+		for(int celltypeIndex = 0; celltypeIndex < celltypes.size(); ++celltypeIndex){
+			pvalueColumns[celltypeIndex] = header.indexOf(celltypes.get(celltypeIndex)+"_pvalue");
+		}
+		return pvalueColumns;
+	}
+
+	/**
+	 * Parse the p-values of the lines of file, in the order of qtlNames, into observedPvaluesPerCelltype from pvalueIndex
+	 *
+	 * @return Index after the last p-value that was added
+	 */
+	private static int addPvalues(ShardFile file, int[] pvalueColumns, List<String> qtlNames, List<double[]> observedPvaluesPerCelltype, 
+			int pvalueIndex) throws IOException{
+		for(String qtlName : qtlNames){
+			String line = file.getLine(qtlName);
+			if(line == null){
+				continue;
+			}
+			String[] columns = line.split("\t", -1);
+			for(int celltypeIndex = 0; celltypeIndex < pvalueColumns.length; ++celltypeIndex){
+				observedPvaluesPerCelltype.get(celltypeIndex)[pvalueIndex] = Deconvolution.toObservedPvalue(Double.parseDouble(columns[pvalueColumns[celltypeIndex]]));
+			}
+			++pvalueIndex;
+		}
+		return pvalueIndex;
+	}
+
+	/**
+	 * A file of all shards, of which only the position of each line is kept in memory (the predicted expression of
+	 * all QTLs does not fit in memory). Lines are looked up by QTL name (first column). Compressed (.gz) shard files are decompressed to a temporary file next to the merged output,
+	 * which is removed on close()
+	 */
+	private static class ShardFile implements Closeable {
+		private static final int BUFFER_SIZE = 1 << 16;
+		private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(UTF8);
+		private String header;
+		private List<FileChannel> channels = new ArrayList<FileChannel>();
+		private List<Path> temporaryFiles = new ArrayList<Path>();
+		// per QTL name the {shard, offset, length} of its line, without the line separator
+		private Map<String, long[]> linePositions = new HashMap<String, long[]>();
+
+		/**
+		 * @return The file of all shards, null if no shard has the file
+		 */
+		static ShardFile open(List<String> shardFolders, String fileName, String outfolder) throws IOException{
+			ShardFile shardFile = new ShardFile();
+			try{
+				for(int shard = 0; shard < shardFolders.size(); ++shard){
+					Path file = Paths.get(shardFolders.get(shard)+fileName);
+					if(!Files.exists(file)){
+						continue;
+					}
+					if(fileName.endsWith(".gz")){
+						Path decompressedFile = Paths.get(outfolder+fileName+".shard"+(shard + 1)+".tmp");
+						shardFile.temporaryFiles.add(decompressedFile);
+						try(InputStream input = new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE)){
+							Files.copy(input, decompressedFile, StandardCopyOption.REPLACE_EXISTING);
+						}
+						file = decompressedFile;
+					}
+					shardFile.index(file);
+				}
+			}
+			catch(IOException | RuntimeException e){
+				shardFile.close();
+				throw e;
+			}
+			if(shardFile.header == null){
+				shardFile.close();
+				return null;
+			}
+			return shardFile;
+		}
+
+		/**
+		 * Find the lines of file, the first line is the header
+		 */
+		private void index(Path file) throws IOException{
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			channels.add(channel);
+			long shard = channels.size() - 1;
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			ByteArrayOutputStream firstColumn = new ByteArrayOutputStream();
+			boolean inFirstColumn = true;
+			boolean isHeader = true;
+			byte previous = 0;
+			long lineStart = 0;
+			long position = 0;
+			while(channel.read(buffer) != -1){
+				buffer.flip();
+				while(buffer.hasRemaining()){
+					byte character = buffer.get();
+					if(character == '\n'){
+						// lines written on Windows end with \r\n
+						addLine(channel, shard, firstColumn, isHeader, lineStart, position - lineStart - (previous == '\r' ? 1 : 0));
+						isHeader = false;
+						firstColumn.reset();
+						inFirstColumn = true;
+						lineStart = position + 1;
+					}
+					else if(inFirstColumn){
+						if(character == '\t'){
+							inFirstColumn = false;
+						}
+						else if(character != '\r'){
+							firstColumn.write(character);
+						}
+					}
+					previous = character;
+					++position;
+				}
+				buffer.clear();
+			}
+			if(position > lineStart){
+				addLine(channel, shard, firstColumn, isHeader, lineStart, position - lineStart);
+			}
+		}
+
+		private void addLine(FileChannel channel, long shard, ByteArrayOutputStream firstColumn, boolean isHeader, long lineStart, long length) throws IOException{
+			if(isHeader){
+				header = new String(read(channel, lineStart, (int) length), UTF8);
+			}
+			else{
+				linePositions.put(new String(firstColumn.toByteArray(), UTF8), new long[] {shard, lineStart, length});
+			}
+		}
+
+		private static byte[] read(FileChannel channel, long position, int length) throws IOException{
+			ByteBuffer bytes = ByteBuffer.allocate(length);
+			while(bytes.hasRemaining()){
+				if(channel.read(bytes, position + bytes.position()) == -1){
+					throw new IOException("Unexpected end of file");
+				}
+			}
+			return bytes.array();
+		}
+
+		String getHeader(){
+			return header;
+		}
+
+		/**
+		 * @return Number of lines (without header) of the QTLs in qtlNames
+		 */
+		int getNumberOfLines(List<String> qtlNames){
+			int numberOfLines = 0;
+			for(String qtlName : qtlNames){
+				if(linePositions.containsKey(qtlName)){
+					++numberOfLines;
+				}
+			}
+			return numberOfLines;
+		}
+
+		/**
+		 * @return Line of the QTL, null if no shard has it
+		 */
+		String getLine(String qtlName) throws IOException{
+			long[] linePosition = linePositions.get(qtlName);
+			if(linePosition == null){
+				return null;
+			}
+			return new String(read(channels.get((int) linePosition[0]), linePosition[1], (int) linePosition[2]), UTF8);
+		}
+
+		/**
+		 * Copy the header and the lines of the QTLs in qtlNames, in that order, to file. Lines are copied as bytes from
+		 * the shard files
+		 *
+		 * @param gzip If true the output is gzip compressed
+		 */
+		void copyTo(Path file, List<String> qtlNames, boolean gzip) throws IOException{
+			OutputStream fileOutput = Files.newOutputStream(file);
+			try(OutputStream output = gzip ? new GZIPOutputStream(fileOutput, BUFFER_SIZE) : new BufferedOutputStream(fileOutput, BUFFER_SIZE)){
+				WritableByteChannel outputChannel = Channels.newChannel(output);
+				output.write(header.getBytes(UTF8));
+				output.write(LINE_SEPARATOR);
+				for(String qtlName : qtlNames){
+					long[] linePosition = linePositions.get(qtlName);
+					if(linePosition == null){
+						continue;
+					}
+					FileChannel channel = channels.get((int) linePosition[0]);
+					long position = linePosition[1];
+					long end = linePosition[1] + linePosition[2];
+					while(position < end){
+						position += channel.transferTo(position, end - position, outputChannel);
+					}
+					output.write(LINE_SEPARATOR);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException{
+			for(FileChannel channel : channels){
+				channel.close();
+			}
+			for(Path temporaryFile : temporaryFiles){
+				Files.deleteIfExists(temporaryFile);
+			}
+		}
+	}
+}
@@ -42,8 +42,6 @@ package deconvolution;
 
 import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.exception.MathIllegalArgumentException;
-import org.apache.commons.math3.linear.ArrayRealVector;
-import org.apache.commons.math3.linear.RealVector;
 
 /**
  * 
@@ -61,6 +59,12 @@ import org.apache.commons.math3.linear.RealVector;
  * This is because I do not use the orthogonal data outside of this class, and I do want to
  * keep my original values.
  * 
+ * The copy of A is stored column-major (a[column][row]) by default, so that the Householder transformations, which go
+ * down one column of A at a time, run over contiguous arrays. HotSpot vectorizes these loops with the SIMD
+ * instructions of the machine (SSE/AVX/AVX-512), without the need for a separate SIMD implementation. This is
+ * much faster for large numbers of samples (e.g. 4x at 30000 samples), and at around 2000 samples within a few
+ * percent of the original row-major (a[row][column]) code.
+ * 
  * Class NonNegativeLeastSquares provides a method for solving a least squares
  * minimization problem with nonnegativity constraints. The solve()
  * method finds an approximate solution to the linear system of equations
@@ -128,7 +132,9 @@ public class NonNegativeLeastSquares
 
 
 	// After solving, the orthogonal matrix of the A matrix and b vector
-	// cloning originalA and originalB so that those values are kept for later use
+	// cloning originalA and originalB so that those values are kept for later use.
+	// a is a working copy from the DesignMatrixPool, it is given back after solve() in newSampleData.
+	// a is column-major: a[j] is column j of A, a[j][i] is A(i, j)
 	private double[] b;
 	private double[][] a;
 
@@ -140,6 +146,13 @@ public class NonNegativeLeastSquares
 	// Maximum number of iterations.
 	private int itmax;
 
+	// Counters of the last call of solve(): iterations of the secondary loop,
+	// iterations of the main loop (coefficients moved to set P) and backtracks
+	// (coefficients moved back from set P to set Z because they became infeasible).
+	private int iterations;
+	private int mainLoopIterations;
+	private int backtracks;
+
 	// Magic numbers.
 	private static final double factor = 0.01;
 
@@ -179,10 +192,6 @@ public class NonNegativeLeastSquares
 			DeconvolutionLogger.log.info("ERROR: Expression values are not read in correctly, check if input files are correct.");
 			throw(e);
 		}
-		a = new double[x.length][];
-		for(int z = 0; z < x.length; ++z)
-			a[z] = x[z].clone();
-
 		//Number of rows (input data points) in the least squares problem.
 		int M = x.length;
 		// Number of columns (output parameters) in the least squares problem.
@@ -209,8 +218,22 @@ public class NonNegativeLeastSquares
 		this.zz = new double [M];
 		this.terms = new double [2];
 		this.itmax = 3*N;
-		
-		solve();
+
+		a = DesignMatrixPool.acquire(N, M);
+		try{
+			for(int i = 0; i < M; ++i){
+				double[] row = x[i];
+				for(int j = 0; j < N; ++j){
+					a[j][i] = row[j];
+				}
+			}
+			solve();
+		}
+		finally{
+			// QA is not used after solving, only QB. Also given back if solve() throws, so the pool does not lose it
+			DesignMatrixPool.release(a);
+			a = null;
+		}
     }
 	
 	/**
@@ -247,6 +270,9 @@ public class NonNegativeLeastSquares
 
 		// Keep count of iterations.
 		int iter = 0;
+		iterations = 0;
+		mainLoopIterations = 0;
+		backtracks = 0;
 
 		// Initialize the arrays index and x.
 		// index[0] through index[nsetp-1] = set P.
@@ -269,16 +295,7 @@ public class NonNegativeLeastSquares
 			for (iz = nsetp; iz < N; ++ iz)
 			{
 				j = index[iz];
-				sm = 0.0;
-				for (l = nsetp; l < M; ++ l)
-				{
-					try{
-						sm += a[l][j]*b[l];
-					} catch (NullPointerException e){
-						throw e;
-					}
-				}
-				w[j] = sm;
+				w[j] = dotProduct (a[j], b, nsetp, M);
 			}
 
 			// Find a candidate j to be moved from set Z to set P.
@@ -306,30 +323,25 @@ public class NonNegativeLeastSquares
 				// The sign of W[j] is okay for j to be moved to set P. Begin
 				// the transformation and check new diagonal element to avoid
 				// near linear independence.
-				asave = a[nsetp][j];
-				up = constructHouseholderTransform (nsetp, nsetp+1, a, j);
-				unorm = 0.0;
-				for (l = 0; l < nsetp; ++ l)
-				{
-					unorm += sqr (a[l][j]);
-				}
-				unorm = Math.sqrt (unorm);
-				if (diff (unorm + Math.abs(a[nsetp][j])*factor, unorm) > 0.0)
+				asave = a[j][nsetp];
+				up = constructHouseholderTransform (nsetp, nsetp+1, a[j]);
+				unorm = Math.sqrt (dotProduct (a[j], a[j], 0, nsetp));
+				if (diff (unorm + Math.abs(a[j][nsetp])*factor, unorm) > 0.0)
 				{
 					// Column j is sufficiently independent. Copy B into ZZ,
 					// update ZZ, and solve for ztest = proposed new value for
 					// X[j].
 					System.arraycopy (b, 0, zz, 0, M);
-					applyHouseholderTransform (nsetp, nsetp+1, a, j, up, zz);
-					ztest = zz[nsetp] / a[nsetp][j];
+					applyHouseholderTransform (nsetp, nsetp+1, a[j], up, zz);
+					ztest = zz[nsetp] / a[j][nsetp];
 
 					// If ztest is positive, we've found our candidate.
 					if (ztest > 0.0) break candidateloop;
 				}
 
 				// Reject j as a candidate to be moved from set Z to set P.
-				// Restore a[nsetp][j], set w[j] = 0, and try again.
-				a[nsetp][j] = asave;
+				// Restore A(nsetp, j), set w[j] = 0, and try again.
+				a[j][nsetp] = asave;
 				w[j] = 0.0;
 			}
 
@@ -338,6 +350,7 @@ public class NonNegativeLeastSquares
 			// transformations to columns in new set Z, zero subdiagonal
 			// elements in column j, set w[j] = 0.
 			System.arraycopy (zz, 0, b, 0, M);
+			++ mainLoopIterations;
 
 			index[iz] = index[nsetp];
 			index[nsetp] = j;
@@ -347,12 +360,12 @@ public class NonNegativeLeastSquares
 			for (jz = nsetp; jz < N; ++ jz)
 			{
 				jj = index[jz];
-				applyHouseholderTransform (nsetp-1, nsetp, a, j, up, a, jj);
+				applyHouseholderTransform (nsetp-1, nsetp, a[j], up, a[jj]);
 			}
 
 			for (l = nsetp; l < M; ++ l)
 			{
-				a[l][j] = 0.0;
+				a[j][l] = 0.0;
 			}
 
 			w[j] = 0.0;
@@ -366,12 +379,12 @@ public class NonNegativeLeastSquares
 				{
 					for (ii = 0; ii < ip; ++ ii)
 					{
-						zz[ii] -= a[ii][jj] * zz[ip];
+						zz[ii] -= a[jj][ii] * zz[ip];
 					}
 				}
 				-- ip;
 				jj = index[ip];
-				zz[ip] /= a[ip][jj];
+				zz[ip] /= a[jj][ip];
 			}
 
 			// Secondary loop begins here.
@@ -379,6 +392,7 @@ public class NonNegativeLeastSquares
 			{
 				// Increment iteration counter.
 				++ iter;
+				iterations = iter;
 				if (iter > itmax)
 				{
 					throw new RuntimeException
@@ -420,6 +434,7 @@ public class NonNegativeLeastSquares
 				i = index[jj];
 				tertiaryloop: for (;;)
 				{
+					++ backtracks;
 					x[i] = 0.0;
 					if (jj != nsetp-1)
 					{
@@ -428,10 +443,10 @@ public class NonNegativeLeastSquares
 						{
 							ii = index[j];
 							index[j-1] = ii;
-							a[j-1][ii] =
+							a[ii][j-1] =
 									computeGivensRotation
-									(a[j-1][ii], a[j][ii], terms);
-							a[j][ii] = 0.0;
+									(a[ii][j-1], a[ii][j], terms);
+							a[ii][j] = 0.0;
 							cc = terms[0];
 							ss = terms[1];
 							for (l = 0; l < N; ++ l)
@@ -439,9 +454,9 @@ public class NonNegativeLeastSquares
 								if (l != ii)
 								{
 									// Apply Givens rotation to column l of A.
-									temp = a[j-1][l];
-									a[j-1][l] =  cc*temp + ss*a[j][l];
-									a[j  ][l] = -ss*temp + cc*a[j][l];
+									temp = a[l][j-1];
+									a[l][j-1] =  cc*temp + ss*a[l][j];
+									a[l][j  ] = -ss*temp + cc*a[l][j];
 								}
 							}
 							// Apply Givens rotation to B.
@@ -476,12 +491,12 @@ public class NonNegativeLeastSquares
 					{
 						for (ii = 0; ii < ip; ++ ii)
 						{
-							zz[ii] -= a[ii][jj] * zz[ip];
+							zz[ii] -= a[jj][ii] * zz[ip];
 						}
 					}
 					-- ip;
 					jj = index[ip];
-					zz[ip] /= a[ip][jj];
+					zz[ip] /= a[jj][ip];
 				}
 			}
 
@@ -500,7 +515,7 @@ public class NonNegativeLeastSquares
 
 	/**
 	 * Construct a Householder transformation. u is an
-	 * MxN-element matrix used as an input and an output of this
+	 * M-element column of A used as an input and an output of this
 	 * method.
 	 *
 	 * @param  ipivot
@@ -511,12 +526,9 @@ public class NonNegativeLeastSquares
 	 *     i1 &gt;= M, an identity transformation will be
 	 *     constructed.
 	 * @param  u
-	 *     An MxN-element matrix. On input, column
-	 *     pivotcol of u contains the pivot vector. On output,
-	 *     column pivotcol of u, along with the return value
+	 *     An M-element column. On input, u contains the pivot vector.
+	 *     On output, u, along with the return value
 	 *     (up), contains the Householder transformation.
-	 * @param  pivotcol
-	 *     Index of the column of u that contains the pivot vector.
 	 *
 	 * @return
 	 *     The quantity up which is part of the Householder
@@ -525,19 +537,18 @@ public class NonNegativeLeastSquares
 	private static double constructHouseholderTransform
 	(int ipivot,
 			int i1,
-			double[][] u,
-			int pivotcol)
+			double[] u)
 	{
 		int M = u.length;
 		int j;
 		double cl, clinv, sm, up;
 
-		cl = Math.abs (u[ipivot][pivotcol]);
+		cl = Math.abs (u[ipivot]);
 
 		// Construct the transformation.
 		for (j = i1; j < M; ++ j)
 		{
-			cl = Math.max (Math.abs (u[j][pivotcol]), cl);
+			cl = Math.max (Math.abs (u[j]), cl);
 		}
 		if (cl <= 0.0)
 		{
@@ -545,24 +556,23 @@ public class NonNegativeLeastSquares
 			("NonNegativeLeastSquares.constructHouseholderTransform(): Illegal pivot vector");
 		}
 		clinv = 1.0 / cl;
-		sm = sqr (u[ipivot][pivotcol] * clinv);
+		sm = sqr (u[ipivot] * clinv);
 		for (j = i1; j < M; ++ j)
 		{
-			sm += sqr (u[j][pivotcol] * clinv);
+			sm += sqr (u[j] * clinv);
 		}
 		cl = cl * Math.sqrt (sm);
-		if (u[ipivot][pivotcol] > 0.0) cl = -cl;
-		up = u[ipivot][pivotcol] - cl;
-		u[ipivot][pivotcol] = cl;
+		if (u[ipivot] > 0.0) cl = -cl;
+		up = u[ipivot] - cl;
+		u[ipivot] = cl;
 		return up;
 	}
 
 	/**
-	 * Apply a Householder transformation to one column of a matrix. u
-	 * is an MxN-element matrix used as an input of this method.
-	 * c is an MxN-element matrix used as an input and
-	 * output of this method. ipivot, i1, u, and
-	 * pivotcol must be the same as in a previous call of
+	 * Apply a Householder transformation to a vector, either a column of A
+	 * or the b vector. u is an M-element column of A used as an input of
+	 * this method. c is an M-element array used as an input and output of
+	 * this method. ipivot, i1 and u must be the same as in a previous call of
 	 * constructHouseholderTransform(), and up must be the
 	 * value returned by that method call.
 	 *
@@ -573,47 +583,37 @@ public class NonNegativeLeastSquares
 	 *     indexed from i1 through M-1. If i1 &gt;=
 	 *     M, the transformation is an identity transformation.
 	 * @param  u
-	 *     An MxN-element matrix. On input, column
-	 *     pivotcol of u, along with up, contains the
+	 *     An M-element column. On input, u, along with up, contains the
 	 *     Householder transformation. This must be the output of a previous
 	 *     call of constructHouseholderTransform().
-	 * @param  pivotcol
-	 *     Index of the column of u that contains the Householder
-	 *     transformation.
 	 * @param  up
 	 *     The rest of the Householder transformation. This must be the return
 	 *     value of the same previous call of
 	 *     constructHouseholderTransform().
 	 * @param  c
-	 *     An MxN-element matrix. On input, column
-	 *     applycol of c contains the vector to which the
-	 *     Householder transformation is to be applied. On output, column
-	 *     applycol of c contains the transformed vector.
-	 * @param  applycol
-	 *     Index of the column of c to which the Householder
-	 *     transformation is to be applied.
+	 *     An M-element array. On input, c contains the vector
+	 *     to which the Householder transformation is to be applied. On output,
+	 *     c contains the transformed vector.
 	 */
 	private static void applyHouseholderTransform
 	(int ipivot,
 			int i1,
-			double[][] u,
-			int pivotcol,
+			double[] u,
 			double up,
-			double[][] c,
-			int applycol)
+			double[] c)
 	{
 		int M = u.length;
 		int i;
 		double cl, b, sm;
 
-		cl = Math.abs (u[ipivot][pivotcol]);
+		cl = Math.abs (u[ipivot]);
 		if (cl <= 0.0)
 		{
 			throw new IllegalArgumentException
 			("NonNegativeLeastSquares.applyHouseholderTransform(): Illegal pivot vector");
 		}
 
-		b = up * u[ipivot][pivotcol];
+		b = up * u[ipivot];
 		// b must be nonpositive here. If b = 0, return.
 		if (b == 0.0)
 		{
@@ -626,100 +626,38 @@ public class NonNegativeLeastSquares
 		}
 		b = 1.0 / b;
 
-		sm = c[ipivot][applycol] * up;
+		sm = c[ipivot] * up;
 		for (i = i1; i < M; ++ i)
 		{
-			sm += c[i][applycol] * u[i][pivotcol];
+			sm += c[i] * u[i];
 		}
 		if (sm != 0.0)
 		{
 			sm = sm * b;
-			c[ipivot][applycol] += sm * up;
+			c[ipivot] += sm * up;
 			for (i = i1; i < M; ++ i)
 			{
-				c[i][applycol] += sm * u[i][pivotcol];
+				c[i] += sm * u[i];
 			}
 		}
 	}
 
 	/**
-	 * Apply a Householder transformation to a vector. u is an
-	 * MxN-element matrix used as an input of this method.
-	 * c is an M-element array used as an input and output of
-	 * this method. ipivot, i1, u, and
-	 * pivotcol must be the same as in a previous call of
-	 * constructHouseholderTransform(), and up must be the
-	 * value returned by that method call.
-	 *
-	 * @param  ipivot
-	 *     Index of the pivot element within the pivot vector.
-	 * @param  i1
-	 *     If i1 &lt; M, the transformation will zero elements
-	 *     indexed from i1 through M-1. If i1 &gt;=
-	 *     M, the transformation is an identity transformation.
-	 * @param  u
-	 *     An MxN-element matrix. On input, column
-	 *     pivotcol of u, along with up, contains the
-	 *     Householder transformation. This must be the output of a previous
-	 *     call of constructHouseholderTransform().
-	 * @param  pivotcol
-	 *     Index of the column of u that contains the Householder
-	 *     transformation.
-	 * @param  up
-	 *     The rest of the Householder transformation. This must be the return
-	 *     value of the same previous call of
-	 *     constructHouseholderTransform().
-	 * @param  c
-	 *     An M-element array. On input, c contains the vector
-	 *     to which the Householder transformation is to be applied. On output,
-	 *     c contains the transformed vector.
+	 * Returns the sum of u[i]*v[i] for i from start through end-1,
+	 * summed in order of i.
 	 */
-	private static void applyHouseholderTransform
-	(int ipivot,
-			int i1,
-			double[][] u,
-			int pivotcol,
-			double up,
-			double[] c)
+	private static double dotProduct
+	(double[] u,
+			double[] v,
+			int start,
+			int end)
 	{
-		int M = u.length;
-		int i;
-		double cl, b, sm;
-
-		cl = Math.abs (u[ipivot][pivotcol]);
-		if (cl <= 0.0)
-		{
-			throw new IllegalArgumentException
-			("NonNegativeLeastSquares.applyHouseholderTransform(): Illegal pivot vector");
-		}
-
-		b = up * u[ipivot][pivotcol];
-		// b must be nonpositive here. If b = 0, return.
-		if (b == 0.0)
-		{
-			return;
-		}
-		else if (b > 0.0)
-		{
-			throw new IllegalArgumentException
-			("NonNegativeLeastSquares.applyHouseholderTransform(): Illegal pivot element");
-		}
-		b = 1.0 / b;
-
-		sm = c[ipivot] * up;
-		for (i = i1; i < M; ++ i)
-		{
-			sm += c[i] * u[i][pivotcol];
-		}
-		if (sm != 0.0)
+		double sm = 0.0;
+		for (int i = start; i < end; ++ i)
 		{
-			sm = sm * b;
-			c[ipivot] += sm * up;
-			for (i = i1; i < M; ++ i)
-			{
-				c[i] += sm * u[i][pivotcol];
-			}
+			sm += u[i] * v[i];
 		}
+		return sm;
 	}
 
 	/**
@@ -803,12 +741,6 @@ public class NonNegativeLeastSquares
 	}
 
 
-	protected RealVector calculateBeta() {
-		this.solve();
-		RealVector xRealVector = new ArrayRealVector(x);
-		return xRealVector;
-	}
-
 	protected double calculateResidualSumOfSquares(){
 		/**
 		 * The squared Euclidean norm of the residual vector, ||Ax -
@@ -824,6 +756,34 @@ public class NonNegativeLeastSquares
 		return normsqr;
 	}
 
+	/**
+	 * Number of iterations of the secondary loop in the last solve() (at most 3N)
+	 */
+	public int getNumberOfIterations() {
+		return this.iterations;
+	}
+
+	/**
+	 * Number of times a coefficient was moved from set Z to set P in the last solve()
+	 */
+	public int getMainLoopIterations() {
+		return this.mainLoopIterations;
+	}
+
+	/**
+	 * Number of times a coefficient was moved back from set P to set Z in the last solve()
+	 */
+	public int getBacktracks() {
+		return this.backtracks;
+	}
+
+	/**
+	 * Number of positive coefficients (size of set P) in the solution of the last solve()
+	 */
+	public int getPassiveSetSize() {
+		return this.nsetp;
+	}
+
 	public double[] estimateRegressionParameters() {
 		return this.x;
 	}
@@ -834,9 +794,10 @@ public class NonNegativeLeastSquares
 		}
 		predictedValues = new double[measuredValues.length];
 		for(int i = 0; i < measuredValues.length; ++i ){
+			double[] observedValuesOfSample = observedValues[i];
 			double predictedValue = 0;
 			for(int z = 0; z < x.length; ++z){
-				predictedValue += x[z] * observedValues[i][z];
+				predictedValue += x[z] * observedValuesOfSample[z];
 			}
 			predictedValues[i] = predictedValue;
 		}
@@ -1,6 +1,7 @@
 package deconvolution;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -15,39 +16,260 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 
+/**
+ * Null distribution per celltype of the permuted p-values of all QTLs, used for the permutation FDR.
+ *
+ * With adaptive permutations (-ph) QTLs that are clearly null stop after a few permutations and QTLs close to
+ * significance do all of them. Counting every permuted p-value once would make the null distribution mostly p-values
+ * of the QTLs close to significance, which are smaller than those of null QTLs, and make the FDR too high. So the
+ * permuted p-values of a QTL are weighted by maxPermutations / permutations done for that QTL, and every QTL counts as
+ * maxPermutations permutations. Without early stopping all weights are 1.
+ *
+ * Methods that change or read the null distributions are synchronized, so that a PermutationTest can be filled
+ * from several threads (e.g. by InMemoryDeconvolution objects that share it). getNullDistribution() returns the
+ * histogram itself, only read it when no QTLs are being added.
+ */
 public class PermutationTest {
-	private Map<String, List<Double>> pvaluePerCelltype = new HashMap<String, List<Double>>();
+	private Map<String, PvalueHistogram> pvaluePerCelltype = new HashMap<String, PvalueHistogram>();
 	private Set<String> celltypes = new HashSet<String>();
 	private int numberOfPermutations = 0;
+	private long permutationsDone = 0;
 	public PermutationTest(){};
 	
-	private void addPerCelltype( String celltype, Double pvalues){
+	private void addPerCelltype( String celltype, Double pvalues, double weight){
 		celltypes.add(celltype);
-		if (pvaluePerCelltype.get(celltype) == null) { //gets the value for an id)
-			pvaluePerCelltype.put(celltype, new ArrayList<Double>()); //no ArrayList assigned, create new ArrayList
+		if (pvaluePerCelltype.get(celltype) == null) {
+			pvaluePerCelltype.put(celltype, new PvalueHistogram());
 		}
-		pvaluePerCelltype.get(celltype).add(pvalues); //adds value to list.
+		pvaluePerCelltype.get(celltype).add(pvalues, weight);
    }
 	
-	public void add( DeconvolutionResult deconvolutionResult, int numberOfPermutations) throws IllegalAccessException{
+	public synchronized void add( DeconvolutionResult deconvolutionResult, int numberOfPermutations) throws IllegalAccessException{
 		for(String celltype : deconvolutionResult.getCelltypes()){
 			celltypes.add(celltype);
 			this.numberOfPermutations = numberOfPermutations;
-			addPerCelltype(celltype, deconvolutionResult.getPvaluePerCelltype().get(celltype));
+			addPerCelltype(celltype, deconvolutionResult.getPvaluePerCelltype().get(celltype), 1);
 		}
    }
+
+	/**
+	 * Add the permuted p-values of one QTL, weighted so that the QTL counts as maxPermutations permutations
+	 * 
+	 * @param permutedPvalues Permuted p-values as [celltype][permutation]
+	 * 
+	 * @param permutations Number of permutations done for the QTL
+	 */
+	private synchronized void addPermutedPvalues(List<String> qtlCelltypes, double[][] permutedPvalues, int permutations, int maxPermutations){
+		double weight = (double) maxPermutations / permutations;
+		for(int i = 0; i < qtlCelltypes.size(); ++i){
+			for(int permutation = 0; permutation < permutations; ++permutation){
+				addPerCelltype(qtlCelltypes.get(i), permutedPvalues[i][permutation], weight);
+			}
+		}
+		permutationsDone += permutations;
+		numberOfPermutations = maxPermutations;
+	}
 	
-	public Set<String> getCelltypes(){
-		return(celltypes);
+	/**
+	 * Add the null distributions of another PermutationTest (e.g. one filled by another thread) to this one
+	 */
+	public synchronized void merge(PermutationTest other){
+		for(String celltype : other.getCelltypes()){
+			celltypes.add(celltype);
+			if (pvaluePerCelltype.get(celltype) == null) {
+				pvaluePerCelltype.put(celltype, new PvalueHistogram());
+			}
+			pvaluePerCelltype.get(celltype).merge(other.getNullDistribution(celltype));
+		}
+		numberOfPermutations = Math.max(numberOfPermutations, other.getNumberOfPermutations());
+		permutationsDone += other.getPermutationsDone();
+	}
+	
+	/**
+	 * Add a null distribution of celltype, e.g. one read back from a checkpoint
+	 */
+	public synchronized void addNullDistribution(String celltype, PvalueHistogram nullDistribution){
+		celltypes.add(celltype);
+		if (pvaluePerCelltype.get(celltype) == null) {
+			pvaluePerCelltype.put(celltype, new PvalueHistogram());
+		}
+		pvaluePerCelltype.get(celltype).merge(nullDistribution);
+	}
+
+	public synchronized void addPermutationsDone(long permutationsDone){
+		this.permutationsDone += permutationsDone;
+	}
+
+	public synchronized Set<String> getCelltypes(){
+		return(new HashSet<String>(celltypes));
    }
 
-	public List<Double> getPvalues(String celltype){
+	/**
+	 * Get the histogram of all permuted p-values of celltype
+	 */
+	public synchronized PvalueHistogram getNullDistribution(String celltype){
 		return(pvaluePerCelltype.get(celltype));
    }
+
+	/**
+	 * Empirical p-value of pvalue compared to all permuted p-values of celltype
+	 */
+	public synchronized double getEmpiricalPvalue(String celltype, double pvalue){
+		PvalueHistogram nullDistribution = pvaluePerCelltype.get(celltype);
+		if(nullDistribution == null){
+			throw new IllegalArgumentException("No permuted p-values for celltype "+celltype);
+		}
+		return(nullDistribution.empiricalPvalue(pvalue));
+	}
+
+	/**
+	 * Permutation based FDR of the observed p-values of one celltype. For each observed p-value the expected number
+	 * of false positives is the fraction of permuted p-values that is lower or equal times the number of tests, and
+	 * the FDR is that number divided by the number of observed p-values that are lower or equal. FDRs are made
+	 * monotone in the same way as q-values. The fraction of permuted p-values is over the weighted null distribution
+	 * (see the class comment).
+	 * 
+	 * QTLs that were not tested (NaN p-value, e.g. filtered by the dosage QC) are not counted as tests and get NaN as
+	 * FDR. If no p-values of celltype were permuted (e.g. all QTLs were filtered) all FDRs are NaN.
+	 * 
+	 * @param celltype Celltype to calculate the FDR for
+	 * 
+	 * @param observedPvalues Observed p-values of all QTLs for celltype, NaN for QTLs that were not tested
+	 * 
+	 * @return FDR per observed p-value, same order as observedPvalues
+	 */
+	public synchronized double[] calculateFdr(String celltype, double[] observedPvalues){
+		double[] fdr = new double[observedPvalues.length];
+		Arrays.fill(fdr, Double.NaN);
+		PvalueHistogram nullDistribution = pvaluePerCelltype.get(celltype);
+		if(nullDistribution == null){
+			return(fdr);
+		}
+		int numberOfTests = 0;
+		for(double observedPvalue : observedPvalues){
+			if(!Double.isNaN(observedPvalue)){
+				++numberOfTests;
+			}
+		}
+		Integer[] order = new Integer[numberOfTests];
+		for(int i = 0, test = 0; i < observedPvalues.length; ++i){
+			if(!Double.isNaN(observedPvalues[i])){
+				order[test++] = i;
+			}
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(observedPvalues[a], observedPvalues[b]));
+		double minimumFdr = 1;
+		// go from highest to lowest p-value so that the FDR never increases for lower p-values
+		for(int rank = numberOfTests; rank > 0; --rank){
+			int i = order[rank - 1];
+			double expectedFalsePositives = nullDistribution.fractionLowerOrEqual(observedPvalues[i]) * numberOfTests;
+			minimumFdr = Math.min(minimumFdr, expectedFalsePositives / rank);
+			fdr[i] = minimumFdr;
+		}
+		return(fdr);
+	}
 	
-	public int getNumberOfPermutations(){
+	public synchronized int getNumberOfPermutations(){
 		return(numberOfPermutations);
 	}
+
+	/**
+	 * Total number of permutations done over all QTLs by adaptivePermutationTest
+	 */
+	public synchronized long getPermutationsDone(){
+		return(permutationsDone);
+	}
+
+	/**
+	 * Adaptive permutation test of one QTL with sequential stopping (Besag and Clifford, 1991). The genotypes are
+	 * shuffled and the deconvolution is repeated until for every celltype <permutationHits> permuted p-values are
+	 * lower than or equal to the observed p-value, or until <maxPermutations> permutations are done. QTLs that are
+	 * clearly null stop after a few permutations, only QTLs close to significance get all permutations.
+	 * 
+	 * @param deconvolution Deconvolution (with its options and cell counts) that is repeated on the permuted genotypes
+	 * 
+	 * @param deconvolutionResult Result of the unpermuted deconvolution, contains the observed p-values
+	 * 
+	 * @param expression Expression levels of the QTL
+	 * 
+	 * @param genotypes Genotype dosages of the QTL. Not changed, a shuffled copy is used per permutation
+	 * 
+	 * @param cellCounts The cellcounts used in the deconvolution
+	 * 
+	 * @param maxPermutations Maximum number of permutations to do
+	 * 
+	 * @param permutationHits Stop permuting a celltype after this many permuted p-values <= observed p-value. If 0, always do maxPermutations
+	 * 
+	 * @return Empirical p-value per celltype, in the same order as deconvolutionResult.getCelltypes()
+	 */
+	public List<Double> adaptivePermutationTest(Deconvolution deconvolution, DeconvolutionResult deconvolutionResult, double[] expression, double[] genotypes, 
+			CellCount cellCounts, int maxPermutations, int permutationHits) 
+					throws RuntimeException, IllegalAccessException, NotEnoughGenotypesException, IOException, NotEnoughSamplesPerGenotypeException{
+		List<String> qtlCelltypes = deconvolutionResult.getCelltypes();
+		List<Double> observedPvalues = deconvolutionResult.getPvalues();
+		int numberOfCelltypes = qtlCelltypes.size();
+		// number of permuted p-values <= observed p-value and the number of permutations done at the time a celltype stopped
+		int[] hits = new int[numberOfCelltypes];
+		int[] permutationsPerCelltype = new int[numberOfCelltypes];
+		int celltypesStillPermuting = numberOfCelltypes;
+		// seed on the QTL name so that the permutations of a QTL are the same independent of the order QTLs are run in
+		Random random = new Random(deconvolutionResult.getQtlName().hashCode());
+		double[] shuffledGenotypes = genotypes.clone();
+		// added to the null distributions when the number of permutations of the QTL is known, for the weight
+		double[][] permutedPvaluesPerCelltype = new double[numberOfCelltypes][maxPermutations];
+		int permutation = 0;
+		while(permutation < maxPermutations && celltypesStillPermuting > 0){
+			++permutation;
+			shuffle(shuffledGenotypes, random);
+			Qtl permutedQtl = new Qtl(expression, shuffledGenotypes.clone(), cellCounts, deconvolutionResult.getQtlName());
+			DeconvolutionResult permutedResult = deconvolution.permutedDeconvolution(permutedQtl);
+			List<Double> permutedPvalues = permutedResult.getPvalues();
+			for(int i = 0; i < numberOfCelltypes; ++i){
+				permutedPvaluesPerCelltype[i][permutation - 1] = permutedPvalues.get(i);
+				if(permutationsPerCelltype[i] != 0){
+					// this celltype already has enough hits
+					continue;
+				}
+				if(permutedPvalues.get(i) <= observedPvalues.get(i)){
+					++hits[i];
+				}
+				if(permutationHits > 0 && hits[i] == permutationHits){
+					permutationsPerCelltype[i] = permutation;
+					--celltypesStillPermuting;
+				}
+			}
+		}
+		addPermutedPvalues(qtlCelltypes, permutedPvaluesPerCelltype, permutation, maxPermutations);
+
+		List<Double> empiricalPvalues = new ArrayList<Double>();
+		for(int i = 0; i < numberOfCelltypes; ++i){
+			if(permutationsPerCelltype[i] != 0){
+				// stopped early, p = h / L
+				empiricalPvalues.add((double) hits[i] / permutationsPerCelltype[i]);
+			}
+			else{
+				// did all permutations, p = (hits + 1) / (permutations + 1)
+				empiricalPvalues.add((double) (hits[i] + 1) / (permutation + 1));
+			}
+		}
+		return(empiricalPvalues);
+	}
+
+	/**
+	 * Fisher-Yates shuffle of vector in place
+	 * 
+	 * @param vector Vector to shuffle
+	 * 
+	 * @param random Random number generator to use
+	 */
+	private static void shuffle(double[] vector, Random random){
+		for(int i = vector.length - 1; i > 0; --i){
+			int j = random.nextInt(i + 1);
+			double value = vector[i];
+			vector[i] = vector[j];
+			vector[j] = value;
+		}
+	}
 	
 	public void permutationTest(String expressionFile, String genotypeFile, int numberOfPermutation, String permutationType) throws Exception {
 		/*
@@ -0,0 +1,141 @@
+package deconvolution;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue between two stages of the deconvolution pipeline (read QTLs -> deconvolute -> write results), each
+ * stage runs in its own thread. put() blocks while the queue is full, so a fast stage waits for a slow one
+ * (back-pressure) and the number of QTLs in memory is bounded by the capacity instead of the number of QTLs tested.
+ *
+ * The producer ends with close(), or with fail() if it stopped on an error. The consumer gets the items with take(),
+ * which returns null after close() and throws the error of the producer after fail(). A consumer that stops on an
+ * error calls abort(), after which put() throws that error, so that the producer does not wait forever.
+ */
+public class PipelineQueue<T> {
+	private static final Object END = new Object();
+	private static final long WAIT_MILLISECONDS = 100;
+	private ArrayBlockingQueue<Object> queue;
+	private volatile Throwable producerError;
+	private volatile Throwable consumerError;
+
+	/**
+	 * Work of one stage of the pipeline
+	 */
+	public interface Stage {
+		void run() throws Exception;
+	}
+
+	/**
+	 * @param capacity Maximum number of items in the queue
+	 */
+	public PipelineQueue(int capacity){
+		queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+
+	/**
+	 * Add an item, waits while the queue is full
+	 *
+	 * @throws RuntimeException If the consumer stopped with abort()
+	 */
+	public void put(T item) throws InterruptedException{
+		offer(item);
+	}
+
+	/**
+	 * The producer is done, take() returns null after the items that are in the queue
+	 */
+	public void close() throws InterruptedException{
+		offer(END);
+	}
+
+	/**
+	 * The producer stopped on error, take() throws it after the items that are in the queue
+	 */
+	public void fail(Throwable error){
+		producerError = error;
+	}
+
+	/**
+	 * The consumer stopped on error, put() throws it
+	 */
+	public void abort(Throwable error){
+		consumerError = error;
+		queue.clear();
+	}
+
+	/**
+	 * @return The next item, waits while the queue is empty. null if the producer is done
+	 *
+	 * @throws RuntimeException If the producer stopped with fail()
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() throws InterruptedException{
+		while(true){
+			Object item = queue.poll(WAIT_MILLISECONDS, TimeUnit.MILLISECONDS);
+			if(item == END){
+				return null;
+			}
+			if(item != null){
+				return (T) item;
+			}
+			if(producerError != null){
+				throw rethrow(producerError);
+			}
+		}
+	}
+
+	/**
+	 * Throw the error of the consumer if it stopped with abort(), e.g. after the consumer thread is joined
+	 */
+	public void checkConsumer(){
+		if(consumerError != null){
+			throw rethrow(consumerError);
+		}
+	}
+
+	/**
+	 * Run stage in a new I/O thread (see IoThreads), the stages other than the deconvolution only read and write.
+	 * If the stage stops on an error, its input queue is aborted and its output queue failed with the error, so that
+	 * the stages before and after it stop as well
+	 *
+	 * @param input Queue that the stage takes from, null if it has none
+	 *
+	 * @param output Queue that the stage puts in, null if it has none
+	 */
+	public static Thread startStage(String name, Stage stage, PipelineQueue<?> input, PipelineQueue<?> output){
+		return IoThreads.start("Deconvolution "+name, () -> {
+			try{
+				stage.run();
+			}
+			catch(Throwable e){
+				if(input != null){
+					input.abort(e);
+				}
+				if(output != null){
+					output.fail(e);
+				}
+			}
+		});
+	}
+
+	private void offer(Object item) throws InterruptedException{
+		while(!queue.offer(item, WAIT_MILLISECONDS, TimeUnit.MILLISECONDS)){
+			checkConsumer();
+		}
+		checkConsumer();
+	}
+
+	/**
+	 * Errors of another stage are thrown as they are if they are unchecked, checked exceptions are wrapped
+	 */
+	private static RuntimeException rethrow(Throwable error){
+		if(error instanceof RuntimeException){
+			throw (RuntimeException) error;
+		}
+		if(error instanceof Error){
+			throw (Error) error;
+		}
+		return new RuntimeException("Error in other stage of the deconvolution pipeline: "+error, error);
+	}
+}
@@ -0,0 +1,162 @@
+package deconvolution;
+
+/**
+ * Fixed size histogram of p-values on a -log10 scale. Used to keep the null distribution of the permutation test
+ * without keeping every permuted p-value in memory. Histograms of the same size can be merged, so that every thread
+ * can fill its own copy that is combined at the end.
+ *
+ * Bin 0 contains p-values > 10^(-1/binsPerDecade), the last bin contains all p-values <= 10^(-maxDecades) (including p = 0).
+ * Lookups are conservative: the whole bin that a p-value falls in is counted as lower or equal to that p-value.
+ *
+ * P-values can be added with a weight, so that QTLs that did a different number of permutations (adaptive permutations,
+ * -ph) contribute equally to the null distribution. Counts are the sum of the weights. Not thread-safe, PermutationTest
+ * synchronizes the histograms it fills.
+ */
+public class PvalueHistogram {
+	private double[] counts;
+	// counts[i] + counts[i+1] + ... , made on first lookup after the histogram changed
+	private double[] cumulativeCounts;
+	private double totalCount = 0;
+	private int binsPerDecade;
+	private int maxDecades;
+
+	/**
+	 * Make histogram with 100 bins per decade, down to p = 1e-300
+	 */
+	public PvalueHistogram(){
+		this(100, 300);
+	}
+
+	/**
+	 * @param binsPerDecade Number of bins per factor 10 of the p-value
+	 *
+	 * @param maxDecades Smallest p-value that gets its own bin is 10^-maxDecades
+	 */
+	public PvalueHistogram(int binsPerDecade, int maxDecades){
+		if(binsPerDecade <= 0 || maxDecades <= 0){
+			throw new IllegalArgumentException("binsPerDecade and maxDecades should be larger than 0");
+		}
+		this.binsPerDecade = binsPerDecade;
+		this.maxDecades = maxDecades;
+		this.counts = new double[binsPerDecade * maxDecades + 1];
+	}
+
+	/**
+	 * Get the bin index of a p-value
+	 */
+	private int getBin(double pvalue){
+		if(pvalue >= 1){
+			return 0;
+		}
+		if(pvalue <= 0 || Double.isNaN(pvalue)){
+			return counts.length - 1;
+		}
+		int bin = (int) (-Math.log10(pvalue) * binsPerDecade);
+		return Math.min(bin, counts.length - 1);
+	}
+
+	public void add(double pvalue){
+		add(pvalue, 1);
+	}
+
+	/**
+	 * Add pvalue, counted as weight p-values
+	 */
+	public void add(double pvalue, double weight){
+		counts[getBin(pvalue)] += weight;
+		totalCount += weight;
+		cumulativeCounts = null;
+	}
+
+	/**
+	 * Add the counts of another histogram to this histogram
+	 *
+	 * @param other Histogram with the same binsPerDecade and maxDecades
+	 */
+	public void merge(PvalueHistogram other){
+		if(other.binsPerDecade != binsPerDecade || other.maxDecades != maxDecades){
+			throw new IllegalArgumentException("Can only merge p-value histograms with the same bins");
+		}
+		for(int i = 0; i < counts.length; ++i){
+			counts[i] += other.counts[i];
+		}
+		totalCount += other.totalCount;
+		cumulativeCounts = null;
+	}
+
+	/**
+	 * Sum of the weights of all p-values in the histogram, the number of p-values if they were added without weight
+	 */
+	public double getTotalCount(){
+		return totalCount;
+	}
+
+	/**
+	 * Number of p-values in the histogram that are lower or equal to pvalue (at the resolution of the bins)
+	 */
+	public double countLowerOrEqual(double pvalue){
+		if(cumulativeCounts == null){
+			cumulativeCounts = new double[counts.length];
+			double count = 0;
+			for(int i = counts.length - 1; i >= 0; --i){
+				count += counts[i];
+				cumulativeCounts[i] = count;
+			}
+		}
+		return cumulativeCounts[getBin(pvalue)];
+	}
+
+	/**
+	 * Write the histogram as one line, binsPerDecade, maxDecades and bin:count for all bins that are not empty,
+	 * separated by tabs. Counts without fraction (p-values added without weight) are written as integers. Read back
+	 * with fromLine()
+	 */
+	public String toLine(){
+		StringBuilder line = new StringBuilder();
+		line.append(binsPerDecade).append('\t').append(maxDecades);
+		for(int i = 0; i < counts.length; ++i){
+			if(counts[i] > 0){
+				line.append('\t').append(i).append(':');
+				if(counts[i] == Math.rint(counts[i]) && counts[i] < Long.MAX_VALUE){
+					line.append((long) counts[i]);
+				}
+				else{
+					line.append(counts[i]);
+				}
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Read a histogram written by toLine()
+	 */
+	public static PvalueHistogram fromLine(String line){
+		String[] columns = line.split("\t");
+		PvalueHistogram histogram = new PvalueHistogram(Integer.parseInt(columns[0]), Integer.parseInt(columns[1]));
+		for(int i = 2; i < columns.length; ++i){
+			String[] binAndCount = columns[i].split(":");
+			double count = Double.parseDouble(binAndCount[1]);
+			histogram.counts[Integer.parseInt(binAndCount[0])] = count;
+			histogram.totalCount += count;
+		}
+		return histogram;
+	}
+
+	/**
+	 * Empirical p-value of pvalue given the p-values in the histogram, (count lower or equal + 1) / (total + 1)
+	 */
+	public double empiricalPvalue(double pvalue){
+		return (countLowerOrEqual(pvalue) + 1) / (totalCount + 1);
+	}
+
+	/**
+	 * Fraction of p-values in the histogram that are lower or equal to pvalue
+	 */
+	public double fractionLowerOrEqual(double pvalue){
+		if(totalCount == 0){
+			return 0;
+		}
+		return countLowerOrEqual(pvalue) / totalCount;
+	}
+}
@@ -0,0 +1,87 @@
+package deconvolution;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.math3.stat.ranking.NaturalRanking;
+import org.apache.commons.math3.stat.ranking.TiesStrategy;
+
+/**
+ * Cache of the ranks used for the Spearman correlation of the whole blood eQTL. A gene is paired with many SNPs
+ * and a SNP with many genes, so instead of ranking both vectors for every QTL (as SpearmansCorrelation does), the
+ * ranks are calculated once per gene or SNP and kept in a least recently used cache.
+ *
+ * The ranks are stored centered and scaled to length 1, so that the Spearman correlation is the dot product
+ * of two cached vectors.
+ */
+public class RankCache {
+	// same ranking as SpearmansCorrelation uses, ties get the average rank
+	private static final NaturalRanking ranking = new NaturalRanking(TiesStrategy.AVERAGE);
+	private Map<String, double[]> normalizedRanks;
+
+	/**
+	 * @param maximumSize Maximum number of vectors to keep, the least recently used vector is removed first
+	 */
+	public RankCache(final int maximumSize){
+		normalizedRanks = new LinkedHashMap<String, double[]>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest){
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the normalized ranks of vector, calculated only if name is not in the cache yet
+	 *
+	 * @param name Name of the gene or SNP
+	 *
+	 * @param vector Expression levels or genotype dosages of name
+	 */
+	public double[] getNormalizedRanks(String name, double[] vector){
+		double[] ranks = normalizedRanks.get(name);
+		if(ranks == null){
+			ranks = normalizedRanks(vector);
+			normalizedRanks.put(name, ranks);
+		}
+		return ranks;
+	}
+
+	/**
+	 * Rank vector, subtract the mean rank and divide by the length of the centered ranks. If all values are
+	 * the same the length is 0 and the result is NaN, same as the correlation SpearmansCorrelation gives.
+	 *
+	 * @param vector Vector to rank
+	 */
+	public static double[] normalizedRanks(double[] vector){
+		double[] ranks = ranking.rank(vector);
+		double mean = Statistics.getMean(ranks);
+		double sumOfSquares = 0;
+		for(int i = 0; i < ranks.length; ++i){
+			ranks[i] -= mean;
+			sumOfSquares += ranks[i] * ranks[i];
+		}
+		double norm = Math.sqrt(sumOfSquares);
+		for(int i = 0; i < ranks.length; ++i){
+			ranks[i] /= norm;
+		}
+		return ranks;
+	}
+
+	/**
+	 * Spearman correlation of two vectors of normalized ranks
+	 */
+	public static double spearmanCorrelation(double[] normalizedRanksA, double[] normalizedRanksB){
+		if(normalizedRanksA.length != normalizedRanksB.length){
+			throw new IllegalArgumentException(String.format("Can not correlate vectors of different length: %d and %d",
+					normalizedRanksA.length, normalizedRanksB.length));
+		}
+		double correlation = 0;
+		for(int i = 0; i < normalizedRanksA.length; ++i){
+			correlation += normalizedRanksA[i] * normalizedRanksB[i];
+		}
+		return correlation;
+	}
+}
@@ -0,0 +1,100 @@
+package deconvolution;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterate over the lines of a file that are read ahead in an I/O thread (see IoThreads), one thread per file. The
+ * lines are read in chunks and passed through a bounded PipelineQueue, so while the caller parses a chunk the next
+ * chunks are already being read. A chunk ends after LINES_PER_CHUNK lines or CHARS_PER_CHUNK characters, whichever
+ * comes first, so at most READ_AHEAD_CHUNKS * CHARS_PER_CHUNK characters (plus one line per chunk) are read ahead
+ * also when the lines are long (e.g. expression of thousands of samples). Close the iterator when done, also if not
+ * all lines are read, so that the reading thread stops and the file is closed.
+ */
+public class ReadAheadLineIterator implements Iterator<String>, Closeable {
+	private static final int LINES_PER_CHUNK = 1024;
+	private static final int CHARS_PER_CHUNK = 1 << 20;
+	private static final int READ_AHEAD_CHUNKS = 16;
+	private PipelineQueue<List<String>> chunks = new PipelineQueue<List<String>>(READ_AHEAD_CHUNKS);
+	private List<String> chunk;
+	private int lineIndex = 0;
+	private boolean done = false;
+
+	/**
+	 * @param file UTF-8 file to read, reading starts right away. Bytes that are not valid UTF-8 are replaced 
+	 * 		  (U+FFFD) instead of giving an error, the same as the commons-io LineIterator that was used before
+	 */
+	public ReadAheadLineIterator(String file) throws IOException{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(Paths.get(file)), 
+				StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE)));
+		IoThreads.start("Deconvolution read "+file, () -> readChunks(reader));
+	}
+
+	private void readChunks(BufferedReader reader){
+		try(BufferedReader fileReader = reader){
+			List<String> lines = new ArrayList<String>();
+			long chunkChars = 0;
+			String line;
+			while((line = fileReader.readLine()) != null){
+				lines.add(line);
+				chunkChars += line.length();
+				if(lines.size() == LINES_PER_CHUNK || chunkChars >= CHARS_PER_CHUNK){
+					chunks.put(lines);
+					lines = new ArrayList<String>();
+					chunkChars = 0;
+				}
+			}
+			if(!lines.isEmpty()){
+				chunks.put(lines);
+			}
+			chunks.close();
+		}
+		catch(Throwable e){
+			chunks.fail(e);
+		}
+	}
+
+	@Override
+	public boolean hasNext(){
+		while(!done && (chunk == null || lineIndex == chunk.size())){
+			try{
+				chunk = chunks.take();
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while reading", e);
+			}
+			lineIndex = 0;
+			done = chunk == null;
+		}
+		return !done;
+	}
+
+	@Override
+	public String next(){
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		return chunk.get(lineIndex++);
+	}
+
+	/**
+	 * Stop reading, the reading thread closes the file
+	 */
+	@Override
+	public void close(){
+		done = true;
+		chunks.abort(new IllegalStateException("ReadAheadLineIterator closed"));
+	}
+}
@@ -0,0 +1,124 @@
+package deconvolution;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Write lines of output files through a reusable byte buffer and a file channel. Lines are given as CharSequence, so
+ * that a line can be built in one StringBuilder that is reused for all lines (see Utils.appendTabSeparated) instead
+ * of concatenating Strings. The output is the same as Files.write(file, lines, UTF-8): every line is followed by the
+ * line separator of the system.
+ *
+ * This only buffers the output, it does not format numbers: doubles are formatted by StringBuilder.append(double)
+ * (the Double.toString format, so that the output stays the same) and the characters are then copied into the byte
+ * buffer, so every value is copied twice. What is saved compared to writing Strings is the String per value and per
+ * line, not the formatting (ResultFormattingBenchmark: 473 -> 432 us for a line of 2000 doubles).
+ */
+public class ResultWriter implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+	private WritableByteChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * @param file File to write to, an existing file is overwritten
+	 */
+	public ResultWriter(Path file) throws IOException{
+		this(file, false);
+	}
+
+	/**
+	 * @param file File to write to, an existing file is overwritten
+	 * 
+	 * @param gzip If true the output is gzip compressed
+	 */
+	public ResultWriter(Path file, boolean gzip) throws IOException{
+		if(gzip){
+			channel = Channels.newChannel(new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+		}
+		else{
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		}
+	}
+
+	/**
+	 * @param channel Channel to write to from its current position, closed by close()
+	 */
+	public ResultWriter(WritableByteChannel channel){
+		this.channel = channel;
+	}
+
+	/**
+	 * Write line followed by the line separator
+	 */
+	public void writeLine(CharSequence line) throws IOException{
+		write(line);
+		write(LINE_SEPARATOR);
+	}
+
+	public void writeLines(List<? extends CharSequence> lines) throws IOException{
+		for(CharSequence line : lines){
+			writeLine(line);
+		}
+	}
+
+	private void write(CharSequence characters) throws IOException{
+		int length = characters.length();
+		for(int i = 0; i < length; ++i){
+			char character = characters.charAt(i);
+			if(character >= 0x80){
+				// names with non ASCII characters are rare, encode the rest of the line at once
+				write(characters.subSequence(i, length).toString().getBytes(UTF8));
+				return;
+			}
+			if(!buffer.hasRemaining()){
+				flush();
+			}
+			buffer.put((byte) character);
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException{
+		int offset = 0;
+		while(offset < bytes.length){
+			if(!buffer.hasRemaining()){
+				flush();
+			}
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	private void flush() throws IOException{
+		buffer.flip();
+		while(buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Write what is left in the buffer and close the file
+	 */
+	@Override
+	public void close() throws IOException{
+		try{
+			flush();
+		}
+		finally{
+			channel.close();
+		}
+	}
+}
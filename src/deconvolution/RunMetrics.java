@@ -0,0 +1,215 @@
+package deconvolution;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cumulative time and counts per stage of a run, used to find regressions and to size cluster jobs. Every run
+ * (Deconvolution object) has its own RunMetrics, so runs in the same JVM (e.g. DeconvolutionServer jobs) do not add
+ * to each other's metrics. Stages are timed with start() and stop(), e.g.
+ *
+ * 		long start = RunMetrics.start();
+ * 		...
+ * 		runMetrics.stop(RunMetrics.Stage.ANOVA, start);
+ *
+ * At the end of the run writeJson() writes a summary to the outfolder.
+ *
+ * NNLS solves are also aggregated per model type (full or ct model and genotype configuration), to see which
+ * model families dominate the solver time.
+ */
+public class RunMetrics {
+	public enum Stage {
+		PARSE_CELLCOUNTS("parseCellcounts"),
+		PARSE_SNPS_TO_TEST("parseSnpsToTest"),
+		PARSE_EXPRESSION("parseExpression"),
+		PARSE_GENOTYPES("parseGenotypes"),
+		BUILD_FULL_MODELS("buildFullModels"),
+		FULL_MODEL_NNLS("fullModelNNLS"),
+		BUILD_CT_MODELS("buildCtModels"),
+		CT_MODEL_NNLS("ctModelNNLS"),
+		ANOVA("anova"),
+		SPEARMAN("spearman"),
+		PERMUTATIONS("permutations"),
+		WRITE_OUTPUT("writeOutput");
+
+		private final String jsonName;
+		Stage(String jsonName){
+			this.jsonName = jsonName;
+		}
+		public String getJsonName(){
+			return jsonName;
+		}
+	}
+
+	// iterations >= the last bin are counted in the last bin
+	private static final int NNLS_ITERATION_BINS = 64;
+	private final AtomicLongArray stageNanoseconds = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray stageCounts = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray nnlsIterations = new AtomicLongArray(NNLS_ITERATION_BINS);
+	private final AtomicLongArray qtlCounts = new AtomicLongArray(2);
+	private static final int QTLS_DONE = 0;
+	private static final int QTLS_FILTERED = 1;
+	// per model type: number of solves, nanoseconds, main loop iterations, backtracks and summed passive set size
+	private static final int NNLS_SOLVES = 0;
+	private static final int NNLS_NANOSECONDS = 1;
+	private static final int NNLS_MAIN_LOOP_ITERATIONS = 2;
+	private static final int NNLS_BACKTRACKS = 3;
+	private static final int NNLS_PASSIVE_SET_SIZE = 4;
+	private static final int NNLS_MAX_MAIN_LOOP_ITERATIONS = 5;
+	private final ConcurrentHashMap<String, AtomicLongArray> nnlsPerModelType = new ConcurrentHashMap<String, AtomicLongArray>();
+	private volatile long runStart = System.nanoTime();
+
+	public RunMetrics(){};
+
+	/**
+	 * Set the start of the run to now, e.g. after the options are parsed
+	 */
+	public void markRunStart(){
+		runStart = System.nanoTime();
+	}
+
+	/**
+	 * @return Start time to give to stop()
+	 */
+	public static long start(){
+		return System.nanoTime();
+	}
+
+	/**
+	 * Add the time since start to stage
+	 *
+	 * @param stage Stage that was timed
+	 *
+	 * @param start Value returned by start()
+	 */
+	public void stop(Stage stage, long start){
+		stageNanoseconds.addAndGet(stage.ordinal(), System.nanoTime() - start);
+		stageCounts.incrementAndGet(stage.ordinal());
+	}
+
+	/**
+	 * Add the counters of one NNLS solve
+	 *
+	 * @param modelType Model family the solve belongs to, e.g. full_0101
+	 *
+	 * @param nnls Solved NNLS problem
+	 *
+	 * @param start Value returned by start() before the solve
+	 */
+	public void addNnlsSolve(String modelType, NonNegativeLeastSquares nnls, long start){
+		long nanoseconds = System.nanoTime() - start;
+		nnlsIterations.incrementAndGet(Math.min(nnls.getNumberOfIterations(), NNLS_ITERATION_BINS - 1));
+		AtomicLongArray modelTypeCounts = nnlsPerModelType.get(modelType);
+		if(modelTypeCounts == null){
+			nnlsPerModelType.putIfAbsent(modelType, new AtomicLongArray(6));
+			modelTypeCounts = nnlsPerModelType.get(modelType);
+		}
+		modelTypeCounts.incrementAndGet(NNLS_SOLVES);
+		modelTypeCounts.addAndGet(NNLS_NANOSECONDS, nanoseconds);
+		modelTypeCounts.addAndGet(NNLS_MAIN_LOOP_ITERATIONS, nnls.getMainLoopIterations());
+		modelTypeCounts.addAndGet(NNLS_BACKTRACKS, nnls.getBacktracks());
+		modelTypeCounts.addAndGet(NNLS_PASSIVE_SET_SIZE, nnls.getPassiveSetSize());
+		long maxMainLoopIterations;
+		do{
+			maxMainLoopIterations = modelTypeCounts.get(NNLS_MAX_MAIN_LOOP_ITERATIONS);
+		} while(nnls.getMainLoopIterations() > maxMainLoopIterations && 
+				!modelTypeCounts.compareAndSet(NNLS_MAX_MAIN_LOOP_ITERATIONS, maxMainLoopIterations, nnls.getMainLoopIterations()));
+	}
+
+	public void addQtlDone(){
+		qtlCounts.incrementAndGet(QTLS_DONE);
+	}
+
+	public void addQtlFiltered(){
+		qtlCounts.incrementAndGet(QTLS_FILTERED);
+	}
+
+	public long getStageNanoseconds(Stage stage){
+		return stageNanoseconds.get(stage.ordinal());
+	}
+
+	public long getStageCount(Stage stage){
+		return stageCounts.get(stage.ordinal());
+	}
+
+	/**
+	 * Highest heap use of the JVM so far, summed over the heap memory pools
+	 */
+	public static long getPeakHeapBytes(){
+		long peakHeap = 0;
+		for(MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()){
+			if(memoryPool.getType() == MemoryType.HEAP && memoryPool.getPeakUsage() != null){
+				peakHeap += memoryPool.getPeakUsage().getUsed();
+			}
+		}
+		return peakHeap;
+	}
+
+	/**
+	 * QTLs deconvoluted per second since the start of the run
+	 */
+	public double getQtlsPerSecond(){
+		double seconds = (System.nanoTime() - runStart) / 1e9;
+		return qtlCounts.get(QTLS_DONE) / seconds;
+	}
+
+	/**
+	 * Write the metrics of the run as JSON
+	 *
+	 * @param outputFolder Folder to write runMetrics.json to
+	 */
+	public void writeJson(String outputFolder) throws IOException{
+		List<String> json = new ArrayList<String>();
+		json.add("{");
+		json.add(String.format("  \"wallTimeSeconds\": %s,", (System.nanoTime() - runStart) / 1e9));
+		json.add(String.format("  \"qtlsDone\": %d,", qtlCounts.get(QTLS_DONE)));
+		json.add(String.format("  \"qtlsFiltered\": %d,", qtlCounts.get(QTLS_FILTERED)));
+		json.add(String.format("  \"qtlsPerSecond\": %s,", getQtlsPerSecond()));
+		json.add(String.format("  \"peakHeapBytes\": %d,", getPeakHeapBytes()));
+		json.add("  \"stages\": {");
+		Stage[] stages = Stage.values();
+		for(int i = 0; i < stages.length; ++i){
+			json.add(String.format("    \"%s\": {\"seconds\": %s, \"count\": %d}%s", stages[i].getJsonName(),
+					getStageNanoseconds(stages[i]) / 1e9, getStageCount(stages[i]), i < stages.length - 1 ? "," : ""));
+		}
+		json.add("  },");
+		StringBuilder histogram = new StringBuilder();
+		for(int i = 0; i < NNLS_ITERATION_BINS; ++i){
+			if(i > 0){
+				histogram.append(", ");
+			}
+			histogram.append(nnlsIterations.get(i));
+		}
+		json.add(String.format("  \"nnlsIterationHistogram\": [%s],", histogram.toString()));
+		json.add("  \"nnlsPerModelType\": {");
+		// sorted so that runs can be compared with diff
+		Map<String, AtomicLongArray> sortedModelTypes = new TreeMap<String, AtomicLongArray>(nnlsPerModelType);
+		int modelTypeIndex = 0;
+		for(Map.Entry<String, AtomicLongArray> modelType : sortedModelTypes.entrySet()){
+			AtomicLongArray counts = modelType.getValue();
+			double solves = counts.get(NNLS_SOLVES);
+			json.add(String.format("    \"%s\": {\"solves\": %d, \"seconds\": %s, \"meanMainLoopIterations\": %s, \"maxMainLoopIterations\": %d, "
+					+ "\"meanBacktracks\": %s, \"meanPassiveSetSize\": %s}%s", modelType.getKey(), counts.get(NNLS_SOLVES), 
+					counts.get(NNLS_NANOSECONDS) / 1e9, counts.get(NNLS_MAIN_LOOP_ITERATIONS) / solves, counts.get(NNLS_MAX_MAIN_LOOP_ITERATIONS), 
+					counts.get(NNLS_BACKTRACKS) / solves, counts.get(NNLS_PASSIVE_SET_SIZE) / solves, 
+					++modelTypeIndex < sortedModelTypes.size() ? "," : ""));
+		}
+		json.add("  }");
+		json.add("}");
+		Path file = Paths.get(outputFolder+"runMetrics.json");
+		Files.write(file, json, Charset.forName("UTF-8"));
+		DeconvolutionLogger.log.info(String.format("Run metrics written to %s", file.toAbsolutePath()));
+	}
+}
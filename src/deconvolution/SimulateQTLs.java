@@ -0,0 +1,236 @@
+package deconvolution;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Simulate a cohort for testing Decon-eQTL at scale. Writes a cellcount, expression, genotype and snpsToTest file
+ * in the formats Deconvolution reads, and a file with the planted cell type specific effects so that it can be checked
+ * that these are found back.
+ *
+ * Each gene is tested against <snpsPerGene> consecutive SNPs (like a cis window), so SNPs are shared between
+ * neighbouring genes. A fraction of the genes gets a cell type specific eQTL: the first SNP of its window
+ * changes the expression of the gene in one random celltype. Genotypes are generated from a seed per SNP so
+ * that no genotype matrix has to be kept in memory, and 10^6 - 10^7 gene-SNP pairs can be made on a laptop.
+ */
+public class SimulateQTLs {
+	private int numberOfSamples = 1000;
+	private int numberOfCelltypes = 4;
+	private int numberOfGenes = 1000;
+	private int numberOfSnps = 10000;
+	private int snpsPerGene = 10;
+	private double fractionWithEffect = 0.1;
+	private double effectSize = 0.5;
+	private long seed = 1;
+	private String outfolder;
+	private double[][] cellcounts;
+
+	public SimulateQTLs(){};
+
+	public static void main(String[] args) throws Exception {
+		SimulateQTLs simulateQTLs = new SimulateQTLs();
+		simulateQTLs.parseCommandLine(args);
+		simulateQTLs.simulate();
+	}
+
+	private void parseCommandLine(String[] args) throws ParseException{
+		Options options = new Options();
+		options.addOption(Option.builder("o").required(true).hasArg().longOpt("outfolder").desc("Path to folder to write simulated files to")
+				.argName("path").build());
+		options.addOption(Option.builder("s").required(false).hasArg().longOpt("samples").desc("Number of samples (default 1000)")
+				.argName("int").build());
+		options.addOption(Option.builder("c").required(false).hasArg().longOpt("celltypes").desc("Number of celltypes (default 4)")
+				.argName("int").build());
+		options.addOption(Option.builder("ng").required(false).hasArg().longOpt("genes").desc("Number of genes (default 1000)")
+				.argName("int").build());
+		options.addOption(Option.builder("ns").required(false).hasArg().longOpt("snps").desc("Number of SNPs (default 10000)")
+				.argName("int").build());
+		options.addOption(Option.builder("sp").required(false).hasArg().longOpt("snps_per_gene").desc("Number of SNPs tested per gene, gene-SNP pairs = genes * snps_per_gene (default 10)")
+				.argName("int").build());
+		options.addOption(Option.builder("f").required(false).hasArg().longOpt("fraction_with_effect").desc("Fraction of genes with a cell type specific eQTL (default 0.1)")
+				.argName("double").build());
+		options.addOption(Option.builder("e").required(false).hasArg().longOpt("effect_size").desc("Relative change in expression per allele in the celltype with the eQTL (default 0.5)")
+				.argName("double").build());
+		options.addOption(Option.builder("seed").required(false).hasArg().desc("Seed of the random number generator (default 1)")
+				.argName("long").build());
+		CommandLineParser cmdLineParser = new DefaultParser();
+		try{
+			CommandLine cmdLine = cmdLineParser.parse(options, args);
+			outfolder = cmdLine.getOptionValue("outfolder");
+			if(!outfolder.endsWith("/")){
+				outfolder += "/";
+			}
+			numberOfSamples = Integer.parseInt(cmdLine.getOptionValue("samples", Integer.toString(numberOfSamples)));
+			numberOfCelltypes = Integer.parseInt(cmdLine.getOptionValue("celltypes", Integer.toString(numberOfCelltypes)));
+			numberOfGenes = Integer.parseInt(cmdLine.getOptionValue("genes", Integer.toString(numberOfGenes)));
+			numberOfSnps = Integer.parseInt(cmdLine.getOptionValue("snps", Integer.toString(numberOfSnps)));
+			snpsPerGene = Integer.parseInt(cmdLine.getOptionValue("snps_per_gene", Integer.toString(snpsPerGene)));
+			fractionWithEffect = Double.parseDouble(cmdLine.getOptionValue("fraction_with_effect", Double.toString(fractionWithEffect)));
+			effectSize = Double.parseDouble(cmdLine.getOptionValue("effect_size", Double.toString(effectSize)));
+			seed = Long.parseLong(cmdLine.getOptionValue("seed", Long.toString(seed)));
+		}
+		catch(ParseException e){
+			HelpFormatter formatter = new HelpFormatter();
+			DeconvolutionLogger.log.info(e.toString());
+			formatter.printHelp("SimulateQTLs", options, true);
+			throw e;
+		}
+		if(snpsPerGene > numberOfSnps){
+			throw new IllegalArgumentException(String.format("snps_per_gene (%d) can not be larger than the number of SNPs (%d)", snpsPerGene, numberOfSnps));
+		}
+	}
+
+	/**
+	 * Write all simulated files to the outfolder
+	 */
+	public void simulate() throws IOException{
+		new File(outfolder).mkdirs();
+		Random random = new Random(seed);
+		writeCellcounts(random);
+		writeGenotypes();
+		writeExpressionAndPairs(random);
+		DeconvolutionLogger.log.info(String.format("Simulated %d samples, %d celltypes, %d genes, %d SNPs, %d gene-SNP pairs in %s",
+				numberOfSamples, numberOfCelltypes, numberOfGenes, numberOfSnps, (long) numberOfGenes * snpsPerGene, outfolder));
+	}
+
+	/**
+	 * Cellcount percentages, for each sample a random fraction per celltype summing to 100. The first
+	 * celltypes are more abundant, as in blood
+	 */
+	private void writeCellcounts(Random random) throws IOException{
+		cellcounts = new double[numberOfSamples][numberOfCelltypes];
+		try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(outfolder+"cellcounts.txt"), Charset.forName("UTF-8"))){
+			for(int j = 0; j < numberOfCelltypes; ++j){
+				writer.write("\tcelltype"+j);
+			}
+			writer.newLine();
+			for(int i = 0; i < numberOfSamples; ++i){
+				double sum = 0;
+				for(int j = 0; j < numberOfCelltypes; ++j){
+					cellcounts[i][j] = random.nextDouble() * (numberOfCelltypes - j);
+					sum += cellcounts[i][j];
+				}
+				writer.write(getSampleName(i));
+				for(int j = 0; j < numberOfCelltypes; ++j){
+					cellcounts[i][j] = 100 * cellcounts[i][j] / sum;
+					writer.write("\t"+(float) cellcounts[i][j]);
+				}
+				writer.newLine();
+			}
+		}
+	}
+
+	private void writeGenotypes() throws IOException{
+		try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(outfolder+"genotypes.txt"), Charset.forName("UTF-8"))){
+			writeSampleHeader(writer);
+			double[] genotypes = new double[numberOfSamples];
+			for(int snp = 0; snp < numberOfSnps; ++snp){
+				getGenotypes(snp, genotypes);
+				writer.write("snp"+snp);
+				for(int i = 0; i < numberOfSamples; ++i){
+					writer.write(genotypes[i] == 0 ? "\t0" : genotypes[i] == 1 ? "\t1" : "\t2");
+				}
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Write expression, the gene-SNP pairs to test and the planted effects. Expression is the sum over celltypes
+	 * of cellcount * (1 + effect * genotype), with effect 0 except for the celltype with the eQTL, plus normal noise
+	 */
+	private void writeExpressionAndPairs(Random random) throws IOException{
+		try(BufferedWriter expressionWriter = Files.newBufferedWriter(Paths.get(outfolder+"expression.txt"), Charset.forName("UTF-8"));
+				BufferedWriter pairWriter = Files.newBufferedWriter(Paths.get(outfolder+"snpsToTest.txt"), Charset.forName("UTF-8"));
+				BufferedWriter effectWriter = Files.newBufferedWriter(Paths.get(outfolder+"plantedEffects.txt"), Charset.forName("UTF-8"))){
+			writeSampleHeader(expressionWriter);
+			pairWriter.write("gene\tsnp");
+			pairWriter.newLine();
+			effectWriter.write("gene\tsnp\tcelltype\teffect");
+			effectWriter.newLine();
+			double[] genotypes = new double[numberOfSamples];
+			double[] effects = new double[numberOfCelltypes];
+			for(int gene = 0; gene < numberOfGenes; ++gene){
+				String geneName = "gene"+gene;
+				int firstSnp = getFirstSnp(gene);
+				for(int k = 0; k < snpsPerGene; ++k){
+					pairWriter.write(geneName+"\tsnp"+((firstSnp + k) % numberOfSnps));
+					pairWriter.newLine();
+				}
+
+				Arrays.fill(effects, 0);
+				if(random.nextDouble() < fractionWithEffect){
+					int celltype = random.nextInt(numberOfCelltypes);
+					// half of the effects are negative, but expression in the celltype can not become negative
+					effects[celltype] = random.nextBoolean() ? effectSize : -Math.min(effectSize, 0.5);
+					effectWriter.write(geneName+"\tsnp"+firstSnp+"\tcelltype"+celltype+"\t"+effects[celltype]);
+					effectWriter.newLine();
+				}
+				getGenotypes(firstSnp, genotypes);
+				// genes differ in baseline expression per celltype
+				double[] baseline = new double[numberOfCelltypes];
+				for(int j = 0; j < numberOfCelltypes; ++j){
+					baseline[j] = 1 + random.nextDouble() * 10;
+				}
+				expressionWriter.write(geneName);
+				for(int i = 0; i < numberOfSamples; ++i){
+					double expression = 0;
+					for(int j = 0; j < numberOfCelltypes; ++j){
+						expression += cellcounts[i][j] * baseline[j] * (1 + effects[j] * genotypes[i]);
+					}
+					expression += random.nextGaussian() * 10;
+					expressionWriter.write("\t"+(float) expression);
+				}
+				expressionWriter.newLine();
+			}
+		}
+	}
+
+	/**
+	 * First SNP of the window of SNPs tested for gene, windows are spread evenly over all SNPs
+	 */
+	private int getFirstSnp(int gene){
+		return (int) ((long) gene * numberOfSnps / numberOfGenes);
+	}
+
+	/**
+	 * Genotype dosages 0, 1 or 2 in Hardy-Weinberg equilibrium. Made from a seed per SNP, so that the same genotypes
+	 * are made when writing the genotype file and when writing the expression of the genes with an eQTL
+	 *
+	 * @param snp Index of the SNP
+	 *
+	 * @param genotypes Vector of length numberOfSamples to write the dosages in
+	 */
+	private void getGenotypes(int snp, double[] genotypes){
+		Random snpRandom = new Random(seed * 1000003 + snp);
+		double maf = 0.05 + snpRandom.nextDouble() * 0.45;
+		for(int i = 0; i < numberOfSamples; ++i){
+			genotypes[i] = (snpRandom.nextDouble() < maf ? 1 : 0) + (snpRandom.nextDouble() < maf ? 1 : 0);
+		}
+	}
+
+	private void writeSampleHeader(BufferedWriter writer) throws IOException{
+		for(int i = 0; i < numberOfSamples; ++i){
+			writer.write("\t"+getSampleName(i));
+		}
+		writer.newLine();
+	}
+
+	private static String getSampleName(int sampleIndex){
+		return "sample"+sampleIndex;
+	}
+}
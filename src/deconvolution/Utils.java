@@ -6,9 +6,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
@@ -133,6 +138,64 @@ public class Utils {
 		return doubles;
 	}
 
+	/**
+	 * Index to read the sample columns of a file in another sample order. It is made once from the header, after which
+	 * every row is put in sampleOrder while it is parsed (see gatherDoubles()), so the file does not have to be rewritten
+	 * 
+	 * @param fileSampleNames Sample names in the order of the columns of the file
+	 * 
+	 * @param sampleOrder Sample names in the order to use, should be the same samples as fileSampleNames. null to keep
+	 * the order of the file
+	 * 
+	 * @param file Name of the file, used in the error message
+	 * 
+	 * @return Per sample of sampleOrder the index of its column in a row of the file, where column 0 is the row name
+	 */
+	public static int[] getSampleColumns(List<String> fileSampleNames, List<String> sampleOrder, String file){
+		if(sampleOrder == null){
+			int[] fileColumns = new int[fileSampleNames.size()];
+			for(int i = 0; i < fileColumns.length; ++i){
+				fileColumns[i] = i + 1;
+			}
+			return fileColumns;
+		}
+		HashMap<String, Integer> fileColumnPerSample = new HashMap<String, Integer>();
+		for(int i = 0; i < fileSampleNames.size(); ++i){
+			if(fileColumnPerSample.put(fileSampleNames.get(i), i + 1) != null){
+				throw new RuntimeException(String.format("Sample %s is in the header of %s more than once", fileSampleNames.get(i), file));
+			}
+		}
+		Set<String> samplesNotInFile = new HashSet<String>(sampleOrder);
+		samplesNotInFile.removeAll(fileColumnPerSample.keySet());
+		Set<String> fileSamplesNotUsed = new HashSet<String>(fileColumnPerSample.keySet());
+		fileSamplesNotUsed.removeAll(sampleOrder);
+		if(!samplesNotInFile.isEmpty() || !fileSamplesNotUsed.isEmpty() || sampleOrder.size() != fileSampleNames.size()){
+			throw new RuntimeException(String.format("Samplenames not the same in %s and cellcount file.\n%s samples not in cellcounts (%d): %s\ncellcount samples not in %s (%d): %s\n",
+					file, file, fileSamplesNotUsed.size(), Arrays.toString(fileSamplesNotUsed.toArray()), file, samplesNotInFile.size(), 
+					Arrays.toString(samplesNotInFile.toArray())));
+		}
+		int[] sampleColumns = new int[sampleOrder.size()];
+		for(int i = 0; i < sampleColumns.length; ++i){
+			sampleColumns[i] = fileColumnPerSample.get(sampleOrder.get(i));
+		}
+		return sampleColumns;
+	}
+
+	/**
+	 * Parse the values of a row in the sample order of sampleColumns
+	 * 
+	 * @param vector Row of a file, split on tabs
+	 * 
+	 * @param sampleColumns Index in vector per sample, see getSampleColumns()
+	 */
+	public static double[] gatherDoubles(String[] vector, int[] sampleColumns) {
+		double[] doubles = new double[sampleColumns.length];
+		for (int i = 0; i < sampleColumns.length; i++) {
+			doubles[i] = Double.parseDouble(vector[sampleColumns[i]]);
+		}
+		return doubles;
+	}
+
 	public static <T> String listToTabSeparatedString(List<T> list)
 	{
 		/* Turn list into tab separated string*/
@@ -170,6 +233,62 @@ public class Utils {
 		return builder.toString().trim();
 	}
 
+	/**
+	 * Append values to builder separated by tabs, formatted as Double.toString() but without boxing the values or
+	 * making a String per value. Gives the same as listToTabSeparatedString(values)
+	 *
+	 * @param builder StringBuilder to append to, e.g. the reusable line of a ResultWriter
+	 * @param values Values to append
+	 *
+	 * @return builder
+	 */
+	public static StringBuilder appendTabSeparated(StringBuilder builder, double[] values)
+	{
+		for(int i = 0; i < values.length; ++i)
+		{
+			if(i > 0)
+			{
+				builder.append('\t');
+			}
+			builder.append(values[i]);
+		}
+		return builder;
+	}
+
+	/**
+	 * Append values to builder separated by tabs, without making a String per value. Gives the same as
+	 * listToTabSeparatedString(values)
+	 */
+	public static StringBuilder appendTabSeparated(StringBuilder builder, List<Double> values)
+	{
+		for(int i = 0; i < values.size(); ++i)
+		{
+			if(i > 0)
+			{
+				builder.append('\t');
+			}
+			builder.append(values.get(i).doubleValue());
+		}
+		return builder;
+	}
+
+	/**
+	 * Append values to builder separated by tabs, with append added at the end of each value. Gives the same as
+	 * listToTabSeparatedString(values, append)
+	 */
+	public static StringBuilder appendTabSeparated(StringBuilder builder, List<String> values, String append)
+	{
+		for(int i = 0; i < values.size(); ++i)
+		{
+			if(i > 0)
+			{
+				builder.append('\t');
+			}
+			builder.append(values.get(i)).append(append);
+		}
+		return builder;
+	}
+
 	/**
 	 * Find the index of the top n values in array orig (from http://stackoverflow.com/a/17623521/651779)
 	 * 
@@ -203,46 +322,153 @@ public class Utils {
 		return ret;
 	}
 
-	static boolean equalLists(List<String> one, List<String> two){     
-		if (one == null && two == null){
-			return true;
-		}
+	public static HashMap<String, ArrayList<String>> parseSnpPerGeneFile(String snpsToTestFile) throws IOException {
+		return parseSnpPerGeneFile(snpsToTestFile, 0, 1);
+	}
 
-		if((one == null && two != null) 
-				|| one != null && two == null
-				|| one.size() != two.size()){
-			return false;
+	/**
+	 * Same as parseSnpPerGeneFile(snpsToTestFile), but only keep the genes of one shard
+	 * 
+	 * @param shard 1-based index of the shard to keep, 0 to keep all genes
+	 * 
+	 * @param numberOfShards Number of shards the genes are split in
+	 */
+	public static HashMap<String, ArrayList<String>> parseSnpPerGeneFile(String snpsToTestFile, int shard, int numberOfShards) throws IOException {
+		// genes are kept in the order of the snpsToTest file
+		HashMap<String, ArrayList<String>> geneSnpPairs = new LinkedHashMap<String, ArrayList<String>>();
+		int totalSnpsToTest = 0;
+		try(ReadAheadLineIterator snpGenePairIterator = new ReadAheadLineIterator(snpsToTestFile)){
+			snpGenePairIterator.next();
+			while (snpGenePairIterator.hasNext()) {
+				ArrayList<String> snpGeneStringVector = new ArrayList<String>(Arrays.asList(snpGenePairIterator.next().split("\t")));
+				String gene = snpGeneStringVector.get(0);
+				String snp = snpGeneStringVector.get(1);
+				if(shard > 0 && getShard(gene, numberOfShards) != shard){
+					continue;
+				}
+				ArrayList<String> snps = geneSnpPairs.get(gene);
+				if (snps==null) {
+					snps = new ArrayList<String>();
+					geneSnpPairs.put(gene, snps);
+				}
+				snps.add(snp);
+				totalSnpsToTest++;
+			}
 		}
+		DeconvolutionLogger.log.info(String.format("SNPs to deconvolute: %d", totalSnpsToTest));
 
-		//to avoid messing the order of the lists we will use a copy
-		//as noted in comments by A. R. S.
-		one = new ArrayList<String>(one); 
-		two = new ArrayList<String>(two);   
+		return geneSnpPairs;
+	}
 
-		Collections.sort(one);
-		Collections.sort(two);      
-		return one.equals(two);
+	/**
+	 * Put the gene-SNP pairs in the order they are deconvoluted in. With gene order all SNPs of a gene are done after
+	 * each other (genes in the order of the snpsToTest file), with snp order all genes of a SNP. With position order the
+	 * SNPs are sorted by chromosome and position (SNPs without position last), and all genes of a SNP are done after
+	 * each other. Keeping pairs of the same gene or SNP together lets per gene and per SNP caches be reused.
+	 * 
+	 * @param geneSnpPairs Gene-SNP pairs as returned by parseSnpPerGeneFile
+	 * 
+	 * @param pairOrder gene, snp or position
+	 * 
+	 * @param snpPositionFile File with SNP name, chromosome and position per line (after a header line), only used for position order
+	 */
+	public static List<GeneSnpPair> orderGeneSnpPairs(HashMap<String, ArrayList<String>> geneSnpPairs, String pairOrder, String snpPositionFile) throws IOException{
+		List<GeneSnpPair> orderedPairs = new ArrayList<GeneSnpPair>();
+		if(pairOrder.equals("gene")){
+			for(String gene : geneSnpPairs.keySet()){
+				for(String snp : geneSnpPairs.get(gene)){
+					orderedPairs.add(new GeneSnpPair(gene, snp));
+				}
+			}
+			return orderedPairs;
+		}
+		if(!pairOrder.equals("snp") && !pairOrder.equals("position")){
+			throw new IllegalArgumentException("pairOrder should be gene, snp or position, not "+pairOrder);
+		}
+		Map<String, List<String>> genesPerSnp = new LinkedHashMap<String, List<String>>();
+		for(String gene : geneSnpPairs.keySet()){
+			for(String snp : geneSnpPairs.get(gene)){
+				List<String> genes = genesPerSnp.get(snp);
+				if(genes == null){
+					genes = new ArrayList<String>();
+					genesPerSnp.put(snp, genes);
+				}
+				genes.add(gene);
+			}
+		}
+		List<String> snps = new ArrayList<String>(genesPerSnp.keySet());
+		if(pairOrder.equals("position")){
+			Map<String, String[]> snpPositions = parseSnpPositionFile(snpPositionFile);
+			int snpsWithoutPosition = 0;
+			for(String snp : snps){
+				if(!snpPositions.containsKey(snp)){
+					++snpsWithoutPosition;
+				}
+			}
+			if(snpsWithoutPosition > 0){
+				DeconvolutionLogger.log.warning(String.format("%d SNPs to test are not in %s, these are deconvoluted last", snpsWithoutPosition, snpPositionFile));
+			}
+			// sort is stable, so SNPs without position keep the order of the snpsToTest file
+			Collections.sort(snps, Comparator.comparing((String snp) -> snpPositions.get(snp), 
+					Comparator.nullsLast(Utils::compareGenomicPositions)));
+		}
+		for(String snp : snps){
+			for(String gene : genesPerSnp.get(snp)){
+				orderedPairs.add(new GeneSnpPair(gene, snp));
+			}
+		}
+		return orderedPairs;
 	}
-	public static HashMap<String, ArrayList<String>> parseSnpPerGeneFile(String snpsToTestFile) throws IOException {
-		LineIterator snpGenePairIterator = FileUtils.lineIterator(new File(snpsToTestFile), "UTF-8");
-		HashMap<String, ArrayList<String>> geneSnpPairs = new HashMap<String, ArrayList<String>>();
-		int totalSnpsToTest = 0;
-		snpGenePairIterator.next();
-		while (snpGenePairIterator.hasNext()) {
-			ArrayList<String> snpGeneStringVector = new ArrayList<String>(Arrays.asList(snpGenePairIterator.next().split("\t")));
-			String gene = snpGeneStringVector.get(0);
-			String snp = snpGeneStringVector.get(1);
-			ArrayList<String> snps = geneSnpPairs.get(gene);
-			if (snps==null) {
-				snps = new ArrayList<String>();
-				geneSnpPairs.put(gene, snps);
+
+	/**
+	 * Parse file with per line SNP name, chromosome and position, tab separated. The first line is a header
+	 * 
+	 * @return Map with per SNP {chromosome, position}
+	 */
+	public static Map<String, String[]> parseSnpPositionFile(String snpPositionFile) throws IOException{
+		LineIterator snpPositionIterator = FileUtils.lineIterator(new File(snpPositionFile), "UTF-8");
+		Map<String, String[]> snpPositions = new HashMap<String, String[]>();
+		snpPositionIterator.next();
+		while (snpPositionIterator.hasNext()) {
+			String[] snpPositionVector = snpPositionIterator.next().split("\t");
+			if(snpPositionVector.length < 3){
+				throw new RuntimeException(String.format("SNP position file %s should have 3 columns (SNP, chromosome, position), but has line: %s", 
+						snpPositionFile, String.join("\t", snpPositionVector)));
 			}
-			snps.add(snp);
-			totalSnpsToTest++;
+			snpPositions.put(snpPositionVector[0], new String[] {snpPositionVector[1], snpPositionVector[2]});
 		}
-		DeconvolutionLogger.log.info(String.format("SNPs to deconvolute: %d", totalSnpsToTest));
+		return snpPositions;
+	}
 
-		return geneSnpPairs;
+	/**
+	 * Compare {chromosome, position}. Numbered chromosomes (with or without chr prefix) are sorted by number and
+	 * before other chromosomes (X, Y, MT), which are sorted by name
+	 */
+	private static int compareGenomicPositions(String[] positionA, String[] positionB){
+		String chromosomeA = positionA[0].replaceFirst("^chr", "");
+		String chromosomeB = positionB[0].replaceFirst("^chr", "");
+		if(!chromosomeA.equals(chromosomeB)){
+			boolean numericA = chromosomeA.matches("[0-9]+");
+			boolean numericB = chromosomeB.matches("[0-9]+");
+			if(numericA && numericB){
+				return Integer.compare(Integer.parseInt(chromosomeA), Integer.parseInt(chromosomeB));
+			}
+			if(numericA != numericB){
+				return numericA ? -1 : 1;
+			}
+			return chromosomeA.compareTo(chromosomeB);
+		}
+		return Long.compare(Long.parseLong(positionA[1]), Long.parseLong(positionB[1]));
+	}
+
+	/**
+	 * Shard that the pairs of a gene are run in. All pairs of a gene are in the same shard, so that per gene
+	 * caches keep working. String.hashCode() is the same on every JVM, so every node makes the same split.
+	 * 
+	 * @return 1-based index of the shard
+	 */
+	public static int getShard(String gene, int numberOfShards){
+		return Math.floorMod(gene.hashCode(), numberOfShards) + 1;
 	}
 	
 	/**
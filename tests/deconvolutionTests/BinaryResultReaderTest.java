@@ -0,0 +1,94 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.BinaryResultReader;
+import deconvolution.BinaryResultWriter;
+
+public class BinaryResultReaderTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private Path writeResults() throws Exception {
+		Path file = temporaryFolder.getRoot().toPath().resolve("results.bin");
+		try(BinaryResultWriter writer = new BinaryResultWriter(file, "\tNeut_pvalue\tLymph_pvalue\teffectDirectionDosage2_Neut")){
+			writer.addLine("a_long_gene_name_1\t0.01\t0.5\t+");
+			writer.addLine("a_long_gene_name_2\t0.2\t0.04\t-");
+			writer.addLine("a_long_gene_name_3\t0.3\t0.6\t+");
+			writer.addLine("a_long_gene_name_4\t0.001\t0.001\t-");
+			writer.write();
+		}
+		return file;
+	}
+
+	@Test
+	public void filterByPvalueTest() throws Exception {
+		BinaryResultReader reader = new BinaryResultReader(writeResults());
+		assertArrayEquals(new int[] {0, 3}, reader.filterByPvalue("Neut_pvalue", 0.05));
+		assertArrayEquals(new int[] {0, 1, 3}, reader.filterByPvalue(0.05));
+		assertArrayEquals(new int[] {}, reader.filterByPvalue(0.001));
+	}
+
+	@Test
+	public void smallMappingsTest() throws Exception {
+		// columns mapped in parts of 8 bytes, the names are split over parts
+		Path file = writeResults();
+		BinaryResultReader reader = new BinaryResultReader(file, 8);
+		BinaryResultReader oneMapping = new BinaryResultReader(file);
+		for(int row = 0; row < 4; ++row){
+			assertEquals("a_long_gene_name_"+(row + 1), reader.getQtlName(row));
+			assertEquals(oneMapping.getDouble("Lymph_pvalue", row), reader.getDouble("Lymph_pvalue", row), 0);
+			assertEquals(oneMapping.getEffectDirection("effectDirectionDosage2_Neut", row), reader.getEffectDirection("effectDirectionDosage2_Neut", row));
+		}
+		assertArrayEquals(oneMapping.filterByPvalue(0.05), reader.filterByPvalue(0.05));
+		try{
+			reader.getDoubleColumn("Neut_pvalue");
+			fail("Column is in more than one mapping");
+		}
+		catch(IllegalStateException e){
+			// expected
+		}
+		try{
+			new BinaryResultReader(file, 12);
+			fail("Mapping size should be a multiple of 8");
+		}
+		catch(IllegalArgumentException e){
+			// expected
+		}
+	}
+
+	@Test
+	public void errorTest() throws Exception {
+		BinaryResultReader reader = new BinaryResultReader(writeResults());
+		try{
+			reader.getDouble("Mono_pvalue", 0);
+			fail("No column Mono_pvalue");
+		}
+		catch(IllegalArgumentException e){
+			assertTrue(e.getMessage().contains("Neut_pvalue"));
+		}
+		try{
+			reader.getEffectDirection("Neut_pvalue", 0);
+			fail("Neut_pvalue is not an effect direction column");
+		}
+		catch(IllegalArgumentException e){
+			// expected
+		}
+		Path text = temporaryFolder.newFile("results.csv").toPath();
+		Files.write(text, "\tNeut_pvalue\na_long_gene_name_1\t0.01\n".getBytes("UTF-8"));
+		try{
+			new BinaryResultReader(text);
+			fail("Text file is not binary results");
+		}
+		catch(RuntimeException e){
+			assertTrue(e.getMessage().contains("not a binary deconvolution results file"));
+		}
+	}
+}
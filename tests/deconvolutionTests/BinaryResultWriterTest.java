@@ -0,0 +1,124 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.BinaryResultReader;
+import deconvolution.BinaryResultWriter;
+
+public class BinaryResultWriterTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static final String HEADER = "\tNeut_pvalue\tLymph_pvalue\tBeta1_Neut\teffectDirectionDosage2_Neut";
+
+	@Test
+	public void roundTripTest() throws Exception {
+		// more rows than fit in one block, so that rows are spilled and copied back from the spill file
+		int numberOfQtls = 150000;
+		Path file = temporaryFolder.getRoot().toPath().resolve("results.bin");
+		try(BinaryResultWriter writer = new BinaryResultWriter(file, HEADER)){
+			double[] row = writer.newRow();
+			for(int qtl = 0; qtl < numberOfQtls; ++qtl){
+				row[0] = qtl / (double) numberOfQtls;
+				row[1] = 1 - row[0];
+				row[2] = qtl % 3 == 0 ? Double.NaN : -qtl;
+				row[3] = qtl % 3 - 1;
+				writer.addRow("gene"+qtl+"_snp"+(qtl % 7), row);
+			}
+			double[] fdr = new double[numberOfQtls];
+			for(int qtl = 0; qtl < numberOfQtls; ++qtl){
+				fdr[qtl] = qtl * 2;
+			}
+			writer.addColumn("Neut_permutationFDR", fdr);
+			writer.write();
+		}
+		assertFalse("Spill file is removed", new File(file.toString()+".spill").exists());
+
+		BinaryResultReader reader = new BinaryResultReader(file);
+		assertEquals(numberOfQtls, reader.getNumberOfQtls());
+		assertEquals(Arrays.asList(BinaryResultWriter.QTL_NAME_COLUMN, "Neut_pvalue", "Lymph_pvalue", "Beta1_Neut",
+				"effectDirectionDosage2_Neut", "Neut_permutationFDR"), reader.getColumnNames());
+		for(int qtl = 0; qtl < numberOfQtls; ++qtl){
+			assertEquals("gene"+qtl+"_snp"+(qtl % 7), reader.getQtlName(qtl));
+			assertEquals(qtl / (double) numberOfQtls, reader.getDouble("Neut_pvalue", qtl), 0);
+			assertEquals(1 - qtl / (double) numberOfQtls, reader.getDouble("Lymph_pvalue", qtl), 0);
+			assertEquals(qtl % 3 == 0 ? Double.NaN : -qtl, reader.getDouble("Beta1_Neut", qtl), 0);
+			assertEquals(qtl % 3 - 1, reader.getEffectDirection("effectDirectionDosage2_Neut", qtl));
+			assertEquals(qtl * 2, reader.getDouble("Neut_permutationFDR", qtl), 0);
+		}
+		assertEquals(numberOfQtls, reader.getDoubleColumn("Neut_pvalue").remaining());
+	}
+
+	@Test
+	public void addLineTest() throws Exception {
+		// lines of the text output, NA is NaN and effect direction NA is 0
+		Path file = temporaryFolder.getRoot().toPath().resolve("results.bin");
+		try(BinaryResultWriter writer = new BinaryResultWriter(file, HEADER)){
+			writer.addLine("gene1_snp1\t0.01\t0.5\t2.5\t+");
+			writer.addLine("gene2_snp2\t333.0\t333.0\tNA\tNA");
+			writer.addLine("géne3_snp3\t1.0E-20\t0.2\t-1.0\t-");
+			try{
+				writer.addLine("gene4_snp4\t0.01");
+				fail("Line has less columns than the header");
+			}
+			catch(RuntimeException e){
+				// expected
+			}
+			writer.write();
+		}
+		BinaryResultReader reader = new BinaryResultReader(file);
+		assertEquals(3, reader.getNumberOfQtls());
+		assertEquals("géne3_snp3", reader.getQtlName(2));
+		assertEquals(1e-20, reader.getDouble("Neut_pvalue", 2), 0);
+		assertTrue(Double.isNaN(reader.getDouble("Beta1_Neut", 1)));
+		assertEquals(1, reader.getEffectDirection("effectDirectionDosage2_Neut", 0));
+		assertEquals(0, reader.getEffectDirection("effectDirectionDosage2_Neut", 1));
+		assertEquals(-1, reader.getEffectDirection("effectDirectionDosage2_Neut", 2));
+	}
+
+	@Test
+	public void closeWithoutWriteTest() throws Exception {
+		// a run that fails leaves no spill file and no binary results
+		Path file = temporaryFolder.getRoot().toPath().resolve("results.bin");
+		try(BinaryResultWriter writer = new BinaryResultWriter(file, HEADER)){
+			writer.addLine("gene1_snp1\t0.01\t0.5\t2.5\t+");
+		}
+		assertFalse(new File(file.toString()+".spill").exists());
+		assertFalse(file.toFile().exists());
+	}
+
+	@Test
+	public void runTest() throws Exception {
+		// -bo results of a run are the same as the text output, also with the permutation FDR added at the end
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File output = temporaryFolder.newFolder("output");
+		TestRuns.run(input, output, "-bo", "-np", "5", "-w");
+		List<String> lines = TestRuns.readLines(new File(output, "deconvolutionResults.csv"));
+		BinaryResultReader reader = new BinaryResultReader(new File(output, "deconvolutionResults.bin").toPath());
+		String[] header = lines.get(0).split("\t", -1);
+		assertEquals(lines.size() - 1, reader.getNumberOfQtls());
+		assertEquals(Arrays.asList(header).subList(1, header.length), reader.getColumnNames().subList(1, header.length));
+		for(int row = 0; row < reader.getNumberOfQtls(); ++row){
+			String[] columns = lines.get(row + 1).split("\t", -1);
+			assertEquals(columns[0], reader.getQtlName(row));
+			for(int column = 1; column < columns.length; ++column){
+				if(header[column].startsWith("effectDirectionDosage2_")){
+					assertEquals(columns[column].equals("+") ? 1 : -1, reader.getEffectDirection(header[column], row));
+				}
+				else{
+					assertEquals(header[column], Double.parseDouble(columns[column]), reader.getDouble(header[column], row), 0);
+				}
+			}
+		}
+	}
+}
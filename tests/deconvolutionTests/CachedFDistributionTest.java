@@ -0,0 +1,72 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.math3.distribution.FDistribution;
+import org.apache.commons.math3.special.Beta;
+import org.junit.Test;
+
+import deconvolution.CachedFDistribution;
+
+public class CachedFDistributionTest {
+	@Test
+	public void cacheTest() {
+		CachedFDistribution fDistribution = CachedFDistribution.getFDistribution(1, 1880);
+		assertSame(fDistribution, CachedFDistribution.getFDistribution(1, 1880));
+		// both degrees of freedom are part of the key
+		assertNotSame(fDistribution, CachedFDistribution.getFDistribution(1880, 1));
+		assertEquals(1880, CachedFDistribution.getFDistribution(1880, 1).getDegreesOfFreedomNumerator());
+		assertEquals(1, CachedFDistribution.getFDistribution(1880, 1).getDegreesOfFreedomDenominator());
+	}
+
+	@Test
+	public void upperTailTest() {
+		// same as 1 - cumulative probability of commons-math for p-values that are not close to 0
+		for(int[] degreesOfFreedom : new int[][] {{1, 10}, {1, 1880}, {3, 50}, {8, 8}}){
+			FDistribution expected = new FDistribution(degreesOfFreedom[0], degreesOfFreedom[1], 1e-14);
+			CachedFDistribution fDistribution = CachedFDistribution.getFDistribution(degreesOfFreedom[0], degreesOfFreedom[1]);
+			for(double Fval : new double[] {0.001, 0.1, 0.5, 1, 2, 5, 10}){
+				double pvalue = fDistribution.upperTail(Fval);
+				assertEquals(1 - expected.cumulativeProbability(Fval), pvalue, 1e-10);
+				assertEquals(Math.log(pvalue), fDistribution.logUpperTail(Fval), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void smallPvalueTest() {
+		// p-values that 1 - cumulative probability rounds to 0
+		CachedFDistribution fDistribution = CachedFDistribution.getFDistribution(1, 1880);
+		for(double Fval : new double[] {100, 500, 1000}){
+			double expected = Beta.regularizedBeta(1880 / (1880 + Fval), 1880 / 2.0, 1 / 2.0, 1e-15, 100000);
+			double pvalue = fDistribution.upperTail(Fval);
+			assertTrue(pvalue > 0 && pvalue < 1e-20);
+			assertEquals(1, pvalue / expected, 1e-9);
+			assertEquals(Math.log(pvalue), fDistribution.logUpperTail(Fval), 1e-9);
+		}
+		// below the smallest double the p-value is 0, but the log p-value can still be ranked
+		double logPvalue = fDistribution.logUpperTail(5000);
+		double smallerLogPvalue = fDistribution.logUpperTail(6000);
+		assertEquals(0, fDistribution.upperTail(6000), 0);
+		assertTrue(logPvalue < Math.log(Double.MIN_VALUE));
+		assertTrue(smallerLogPvalue < logPvalue);
+		assertFalse(Double.isInfinite(smallerLogPvalue));
+	}
+
+	@Test
+	public void edgeCasesTest() {
+		CachedFDistribution fDistribution = CachedFDistribution.getFDistribution(2, 20);
+		assertEquals(1, fDistribution.upperTail(0), 0);
+		assertEquals(1, fDistribution.upperTail(-1), 0);
+		assertEquals(0, fDistribution.logUpperTail(0), 0);
+		assertEquals(0, fDistribution.upperTail(Double.POSITIVE_INFINITY), 0);
+		assertEquals(Double.NEGATIVE_INFINITY, fDistribution.logUpperTail(Double.POSITIVE_INFINITY), 0);
+		assertTrue(Double.isNaN(fDistribution.upperTail(Double.NaN)));
+		assertTrue(Double.isNaN(fDistribution.logUpperTail(Double.NaN)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void degreesOfFreedomTest() {
+		CachedFDistribution.getFDistribution(0, 10);
+	}
+}
@@ -0,0 +1,92 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.CellCount;
+
+public class CellCountTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void relativeCellCountsTest() {
+		// per celltype the cell count divided by the average of the celltype
+		CellCount cellCounts = new CellCount(Arrays.asList("Neut", "Lymph"), Arrays.asList("s1", "s2", "s3"),
+				new double[][] {{60, 30}, {50, 40}, {40, 20}});
+		CellCount relativeCellCounts = cellCounts.getRelativeCellCounts();
+		assertArrayEquals(new double[] {60 / 50.0, 1, 40 / 50.0}, relativeCellCounts.getCellcountsPerCelltype()[0], 1e-15);
+		assertArrayEquals(new double[] {1, 40 / 30.0, 20 / 30.0}, relativeCellCounts.getCellcountsPerCelltype()[1], 1e-15);
+		assertEquals(cellCounts.getAllCelltypes(), relativeCellCounts.getAllCelltypes());
+		assertEquals(cellCounts.getSampleNames(), relativeCellCounts.getSampleNames());
+		// made once, the cell counts themselves are not changed
+		assertSame(relativeCellCounts, cellCounts.getRelativeCellCounts());
+		assertArrayEquals(new double[] {60, 50, 40}, cellCounts.getCellcountsPerCelltype()[0], 0);
+	}
+
+	@Test
+	public void zeroAverageTest() {
+		CellCount cellCounts = new CellCount(Arrays.asList("Neut", "Eos"), Arrays.asList("s1", "s2"),
+				new double[][] {{60, 0}, {50, 0}});
+		try{
+			cellCounts.getRelativeCellCounts();
+			fail("Celltype with average 0 should give an error");
+		}
+		catch(RuntimeException e){
+			assertTrue(e.getMessage(), e.getMessage().contains("Average cell count of Eos is 0"));
+		}
+	}
+
+	@Test
+	public void dimensionsTest() {
+		try{
+			new CellCount(Arrays.asList("Neut", "Lymph"), Arrays.asList("s1", "s2", "s3"), new double[][] {{60, 30}, {50, 40}});
+			fail("Missing sample should give an error");
+		}
+		catch(IllegalArgumentException e){
+			// expected
+		}
+		try{
+			new CellCount(Arrays.asList("Neut", "Lymph"), Arrays.asList("s1", "s2"), new double[][] {{60, 30}, {50}});
+			fail("Missing cell count should give an error");
+		}
+		catch(IllegalArgumentException e){
+			// expected
+		}
+	}
+
+	@Test
+	public void relativeCellCountsRunTest() throws Exception {
+		// a run with -cc gives the same results as a run on a cellcount file that has the relative cell counts
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File relative = temporaryFolder.newFolder("relative");
+		TestRuns.run(input, relative, "-cc");
+
+		CellCount relativeCellCounts = new CellCount(TestRuns.getCellcounts(input).getAbsolutePath()).getRelativeCellCounts();
+		List<String> lines = new ArrayList<String>();
+		lines.add("\t"+String.join("\t", relativeCellCounts.getAllCelltypes()));
+		for(int sampleIndex = 0; sampleIndex < relativeCellCounts.getNumberOfSamples(); ++sampleIndex){
+			StringBuilder line = new StringBuilder(relativeCellCounts.getSampleNames().get(sampleIndex));
+			for(double[] cellcounts : relativeCellCounts.getCellcountsPerCelltype()){
+				line.append('\t').append(cellcounts[sampleIndex]);
+			}
+			lines.add(line.toString());
+		}
+		Files.write(TestRuns.getCellcounts(input).toPath(), lines, TestRuns.UTF8);
+		File precomputed = temporaryFolder.newFolder("precomputed");
+		TestRuns.run(input, precomputed);
+		for(String file : new String[] {"deconvolutionResults.csv", "filteredQTLs.csv"}){
+			assertEquals(file, TestRuns.readLines(new File(precomputed, file)), TestRuns.readLines(new File(relative, file)));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.Checkpoint;
+import deconvolution.PermutationTest;
+
+public class CheckpointTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void resumeTest() throws Exception {
+		// a run that stops after a checkpoint and is resumed gives the same output as a run that did not stop
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File complete = temporaryFolder.newFolder("complete");
+		TestRuns.run(input, complete, "-np", "5", "-oe");
+
+		// a SNP that is not in the genotype file (tested as QTL 21) stops the run after the checkpoint of the first 20 QTLs
+		Path snpsToTest = TestRuns.getSnpsToTest(input).toPath();
+		List<String> pairs = TestRuns.readLines(snpsToTest.toFile());
+		List<String> pairsWithMissingSnp = new ArrayList<String>(pairs.subList(0, 21));
+		pairsWithMissingSnp.add(pairs.get(21).split("\t")[0]+"\tmissing_snp");
+		pairsWithMissingSnp.addAll(pairs.subList(21, pairs.size()));
+		Files.write(snpsToTest, pairsWithMissingSnp, TestRuns.UTF8);
+		File resumed = temporaryFolder.newFolder("resumed");
+		try{
+			TestRuns.run(input, resumed, "-np", "5", "-oe", "-ci", "10");
+			fail("Run should stop on the missing SNP");
+		}
+		catch(Exception e){
+			// expected
+		}
+		File checkpointResults = new File(resumed, "checkpoint_deconvolutionResults.csv");
+		// header and 20 QTLs
+		assertEquals(21, TestRuns.readLines(checkpointResults).size());
+		// half written line of a run that died while appending is removed on resume
+		Files.write(checkpointResults.toPath(), Arrays.asList("genotype_30_genotype_30\t0.1"), TestRuns.UTF8, StandardOpenOption.APPEND);
+
+		Files.write(snpsToTest, pairs, TestRuns.UTF8);
+		TestRuns.run(input, resumed, "-np", "5", "-oe", "-ci", "10", "-rs");
+		for(String file : new String[] {"deconvolutionResults.csv", "filteredQTLs.csv", "predictedExpressionLevels.txt"}){
+			assertEquals(file, TestRuns.readLines(new File(complete, file)), TestRuns.readLines(new File(resumed, file)));
+		}
+		assertFalse("Checkpoint removed when the run is done", checkpointResults.exists());
+	}
+
+	@Test
+	public void truncateTest() throws Exception {
+		// lines after the size in the manifest are removed, the QTLs before it are done
+		String outputFolder = temporaryFolder.getRoot().getAbsolutePath()+"/";
+		List<String> options = Arrays.asList("-np\t10");
+		Checkpoint checkpoint = new Checkpoint(outputFolder, "results.csv", 100, options);
+		checkpoint.start();
+		checkpoint.addResultsLine("QTL\tA_pvalue");
+		checkpoint.addResultsLine("qtl1\t0.1");
+		checkpoint.addFilteredQTLsLine("qtl2\tNot enough samples per genotype");
+		checkpoint.write(new PermutationTest());
+		Files.write(checkpoint.getResultsFile(), Arrays.asList("qtl3\t0."), TestRuns.UTF8, StandardOpenOption.APPEND);
+
+		Checkpoint resumedCheckpoint = new Checkpoint(outputFolder, "results.csv", 100, options);
+		resumedCheckpoint.resume(new PermutationTest());
+		assertEquals(Arrays.asList("QTL\tA_pvalue", "qtl1\t0.1"), TestRuns.readLines(resumedCheckpoint.getResultsFile().toFile()));
+		assertEquals(2, resumedCheckpoint.getNumberOfQtlsDone());
+		assertTrue(resumedCheckpoint.isDone("qtl1"));
+		assertTrue(resumedCheckpoint.isDone("qtl2"));
+		assertFalse(resumedCheckpoint.isDone("qtl3"));
+
+		// lines added after resuming are appended after the kept lines
+		resumedCheckpoint.addResultsLine("qtl3\t0.2");
+		resumedCheckpoint.write(new PermutationTest());
+		assertEquals(Arrays.asList("QTL\tA_pvalue", "qtl1\t0.1", "qtl3\t0.2"), TestRuns.readLines(resumedCheckpoint.getResultsFile().toFile()));
+	}
+
+	@Test
+	public void otherOptionsTest() throws Exception {
+		// a checkpoint is not resumed by a run with other options
+		String outputFolder = temporaryFolder.getRoot().getAbsolutePath()+"/";
+		Checkpoint checkpoint = new Checkpoint(outputFolder, "results.csv", 100, Arrays.asList("-np\t10", "-m\t0"));
+		checkpoint.start();
+		checkpoint.addResultsLine("QTL\tA_pvalue");
+		checkpoint.write(new PermutationTest());
+		try{
+			new Checkpoint(outputFolder, "results.csv", 100, Arrays.asList("-np\t20", "-m\t0")).resume(new PermutationTest());
+			fail("Checkpoint of a run with -np 10 should not be resumed with -np 20");
+		}
+		catch(RuntimeException e){
+			assertTrue(e.getMessage(), e.getMessage().contains("-np 20"));
+		}
+	}
+}
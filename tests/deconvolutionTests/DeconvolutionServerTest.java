@@ -0,0 +1,141 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.DeconvolutionServer;
+
+public class DeconvolutionServerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	private DeconvolutionServer server;
+	private File input;
+	private File outputRoot;
+	private String token;
+
+	@After
+	public void stopServer() throws Exception{
+		if(server != null){
+			server.stop();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void tokenTest() throws Exception {
+		startServer(1, 100);
+		assertEquals(401, request("GET", "/jobs/1", null, null)[0]);
+		assertEquals(401, request("GET", "/jobs/1", "0123456789abcdef", null)[0]);
+		assertEquals(401, request("POST", "/jobs", token+"0", getJobArguments(new File(outputRoot, "job")))[0]);
+		// with the token the request is handled, there is no job 1 yet
+		assertEquals(404, request("GET", "/jobs/1", token, null)[0]);
+	}
+
+	@Test(timeout = 60000)
+	public void outputRootTest() throws Exception {
+		startServer(1, 100);
+		File outside = temporaryFolder.newFolder("outside");
+		assertEquals(400, request("POST", "/jobs", token, getJobArguments(outside))[0]);
+		assertEquals(400, request("POST", "/jobs", token, getJobArguments(new File(outputRoot, "../outside")))[0]);
+		// symbolic link in the output root to a folder outside it
+		Files.createSymbolicLink(new File(outputRoot, "link").toPath(), outside.toPath());
+		assertEquals(400, request("POST", "/jobs", token, getJobArguments(new File(outputRoot, "link/job")))[0]);
+		// outfile outside the outfolder
+		assertEquals(400, request("POST", "/jobs", token, getJobArguments(new File(outputRoot, "job"))+"-of\n../../evil.csv\n")[0]);
+		// cohort files are set by the server
+		assertEquals(400, request("POST", "/jobs", token, getJobArguments(new File(outputRoot, "job"))+"-g\n"+TestRuns.getGenotypes(input)+"\n")[0]);
+		assertEquals(0, outside.list().length);
+	}
+
+	@Test(timeout = 120000)
+	public void queueFullTest() throws Exception {
+		// one job runs and one waits, the third is rejected
+		startServer(1, 1);
+		String jobArguments = getJobArguments(new File(outputRoot, "job"))+"-np\n20\n";
+		assertEquals(202, request("POST", "/jobs", token, jobArguments)[0]);
+		assertEquals(202, request("POST", "/jobs", token, jobArguments)[0]);
+		assertEquals(503, request("POST", "/jobs", token, jobArguments)[0]);
+	}
+
+	@Test(timeout = 120000)
+	public void sameAsRunTest() throws Exception {
+		// a job gives the same output as a run of Deconvolution
+		startServer(2, 100);
+		File jobOutfolder = new File(outputRoot, "job");
+		Object[] response = request("POST", "/jobs", token, getJobArguments(jobOutfolder)+"-np\n5\n");
+		assertEquals(202, response[0]);
+		String jobId = ((String) response[1]).trim();
+		String status;
+		while((status = ((String) request("GET", "/jobs/"+jobId, token, null)[1]).trim()).equals("queued") || status.equals("running")){
+			Thread.sleep(100);
+		}
+		assertEquals("done", status);
+		File runOutfolder = temporaryFolder.newFolder("run");
+		TestRuns.run(input, runOutfolder, "-np", "5");
+		for(String file : new String[] {"deconvolutionResults.csv", "filteredQTLs.csv"}){
+			assertEquals(file, TestRuns.readLines(new File(runOutfolder, file)), TestRuns.readLines(new File(jobOutfolder, file)));
+		}
+	}
+
+	private void startServer(int numberOfJobs, int queueSize) throws Exception{
+		input = temporaryFolder.newFolder("input");
+		TestRuns.writeInput(input);
+		outputRoot = temporaryFolder.newFolder("outputRoot");
+		File tokenFile = new File(temporaryFolder.getRoot(), "server.token");
+		server = DeconvolutionServer.start(new String[] {"-c", TestRuns.getCellcounts(input).getAbsolutePath(),
+				"-e", TestRuns.getExpression(input).getAbsolutePath(), "-g", TestRuns.getGenotypes(input).getAbsolutePath(),
+				"-p", "0", "-j", Integer.toString(numberOfJobs), "-q", Integer.toString(queueSize),
+				"-t", tokenFile.getAbsolutePath(), "-r", outputRoot.getAbsolutePath()});
+		token = new String(Files.readAllBytes(tokenFile.toPath()), TestRuns.UTF8);
+	}
+
+	/**
+	 * Arguments of a job of the small dataset, one per line
+	 */
+	private String getJobArguments(File outfolder){
+		return "-sn\n"+TestRuns.getSnpsToTest(input).getAbsolutePath()+"\n-o\n"+outfolder.getAbsolutePath()+"/\n-no\n";
+	}
+
+	/**
+	 * @param token Token for the Authorization header, no header if null
+	 *
+	 * @param body Body of the request, none if null
+	 *
+	 * @return Status code and response body
+	 */
+	private Object[] request(String method, String path, String token, String body) throws IOException{
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:"+server.getPort()+path).openConnection();
+		connection.setRequestMethod(method);
+		if(token != null){
+			connection.setRequestProperty("Authorization", "Bearer "+token);
+		}
+		if(body != null){
+			connection.setDoOutput(true);
+			try(OutputStream requestBody = connection.getOutputStream()){
+				requestBody.write(body.getBytes(TestRuns.UTF8));
+			}
+		}
+		int statusCode = connection.getResponseCode();
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		try(InputStream responseBody = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream()){
+			byte[] buffer = new byte[8192];
+			int numberOfBytes;
+			while((numberOfBytes = responseBody.read(buffer)) != -1){
+				response.write(buffer, 0, numberOfBytes);
+			}
+		}
+		return new Object[] {statusCode, new String(response.toByteArray(), TestRuns.UTF8)};
+	}
+}
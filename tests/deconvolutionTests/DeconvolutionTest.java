@@ -75,6 +75,17 @@ public class DeconvolutionTest {
 		//assertEquals("Anova of lm fits without intercept", 0.711, Deconvolution.anova(sumOfSquaresNoInterceptA, sumOfSquaresNoInterceptB,degreesOfFreedomA, degreesOfFreedomB, true), 0.001);
 	}
 	
+	@Test
+	public void anovaSmallPvalueTest() {
+		// F = 1000 with df 1 and 1883, p-value 2.0979e-176 (t-distribution tail with 1883 df, F = t^2). 1 - cdf would give 0
+		assertEquals(-175.678207707, Math.log10(Deconvolution.anova(1882, 2882, 1881, 1882, true)), 1e-6);
+		// same F-value, upper tail and 1 - cdf agree for larger p-values
+		assertEquals(0.0015903429891, Deconvolution.anova(1882, 1892, 1881, 1882, true), 1e-10);
+		// in log space the same p-value is found, and p-values < 1e-308 do not become 0
+		assertEquals(-175.678207707, Deconvolution.anovaLog10Pvalue(1882, 2882, 1881, 1882, true), 1e-6);
+		assertTrue(Deconvolution.anovaLog10Pvalue(1882, 100000, 1881, 1882, true) < -308);
+	}
+	
 	@Test
 	public void mainTest() throws Exception {
 		File counts = new File("tests/resources/counts.txt");
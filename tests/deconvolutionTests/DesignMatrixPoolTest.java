@@ -0,0 +1,58 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import deconvolution.DesignMatrixPool;
+import deconvolution.NonNegativeLeastSquares;
+
+public class DesignMatrixPoolTest {
+	@After
+	public void clearPool(){
+		DesignMatrixPool.clear();
+	}
+
+	@Test
+	public void reuseTest() {
+		double[][] matrix = DesignMatrixPool.acquire(10, 3);
+		assertEquals(10, matrix.length);
+		assertEquals(3, matrix[0].length);
+		DesignMatrixPool.release(matrix);
+		// a matrix of another shape is new, a matrix of the same shape is the one that was given back
+		double[][] otherShape = DesignMatrixPool.acquire(3, 10);
+		assertEquals(3, otherShape.length);
+		assertSame(matrix, DesignMatrixPool.acquire(10, 3));
+		assertNotSame(matrix, DesignMatrixPool.acquire(10, 3));
+		DesignMatrixPool.release(null);
+		DesignMatrixPool.release(matrix);
+		DesignMatrixPool.clear();
+		assertNotSame(matrix, DesignMatrixPool.acquire(10, 3));
+	}
+
+	@Test
+	public void perThreadTest() throws Exception {
+		// a matrix given back by one thread is not given to another thread
+		double[][] matrix = DesignMatrixPool.acquire(10, 3);
+		DesignMatrixPool.release(matrix);
+		double[][][] otherThreadMatrix = new double[1][][];
+		Thread thread = new Thread(() -> otherThreadMatrix[0] = DesignMatrixPool.acquire(10, 3));
+		thread.start();
+		thread.join();
+		assertNotSame(matrix, otherThreadMatrix[0]);
+		assertSame(matrix, DesignMatrixPool.acquire(10, 3));
+	}
+
+	@Test
+	public void nnlsReleaseTest() {
+		// the working copy of NNLS ([terms][samples]) is given back after the solve
+		double[][] observedValues = {{1, 2}, {2, 1}, {1, 1}};
+		NonNegativeLeastSquares nnls = new NonNegativeLeastSquares();
+		nnls.newSampleData(new double[] {1, 2, 3}, observedValues);
+		double[][] workingCopy = DesignMatrixPool.acquire(2, 3);
+		DesignMatrixPool.release(workingCopy);
+		nnls.newSampleData(new double[] {3, 2, 1}, observedValues);
+		assertSame(workingCopy, DesignMatrixPool.acquire(2, 3));
+	}
+}
@@ -0,0 +1,68 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import deconvolution.GenotypeQc;
+import deconvolution.GenotypeQcCache;
+import deconvolution.NotEnoughGenotypesException;
+import deconvolution.NotEnoughSamplesPerGenotypeException;
+
+public class GenotypeQcCacheTest {
+	@Test
+	public void roundDosageTest() {
+		double[] dosages = {0.49, 0.51, 1.49, 1.51, 2};
+		GenotypeQc genotypeQc = new GenotypeQc(dosages, true, 0, false);
+		assertArrayEquals(new double[] {0, 1, 1, 2, 2}, genotypeQc.getGenotypes(), 0);
+		// rounded on a copy
+		assertArrayEquals(new double[] {0.49, 0.51, 1.49, 1.51, 2}, dosages, 0);
+		// without rounding the dosages are used as they are
+		assertSame(dosages, new GenotypeQc(dosages, false, 0, false).getGenotypes());
+	}
+
+	@Test
+	public void verdictTest() throws Exception {
+		// not rounded dosages are counted in the class they round to
+		double[] dosages = {0, 0.2, 0.6, 1, 1.4, 1.6, 2};
+		GenotypeQc genotypeQc = new GenotypeQc(dosages, false, 2, false);
+		assertEquals(2, genotypeQc.getDosageRefCount());
+		assertEquals(3, genotypeQc.getDosageHeterozygoteCount());
+		assertEquals(2, genotypeQc.getDosageAltCount());
+		assertEquals(GenotypeQc.Verdict.PASS, genotypeQc.getVerdict());
+		genotypeQc.throwIfFailed();
+
+		assertEquals(GenotypeQc.Verdict.NOT_ENOUGH_SAMPLES_PER_GENOTYPE, new GenotypeQc(dosages, false, 3, false).getVerdict());
+		try{
+			new GenotypeQc(dosages, false, 3, false).throwIfFailed();
+			fail("Less than 3 samples with dosage 0 should fail");
+		}
+		catch(NotEnoughSamplesPerGenotypeException e){
+			// expected
+		}
+		double[] noAlt = {0, 0, 1, 1};
+		assertEquals(GenotypeQc.Verdict.NOT_ALL_DOSAGES, new GenotypeQc(noAlt, false, 0, true).getVerdict());
+		try{
+			new GenotypeQc(noAlt, false, 0, true).throwIfFailed();
+			fail("No sample with dosage 2 should fail");
+		}
+		catch(NotEnoughGenotypesException e){
+			// expected
+		}
+	}
+
+	@Test
+	public void cacheTest() {
+		GenotypeQcCache genotypeQcCache = new GenotypeQcCache(2, true, 1, false);
+		GenotypeQc qcA = genotypeQcCache.getGenotypeQc("a", new double[] {0, 1, 2});
+		GenotypeQc qcB = genotypeQcCache.getGenotypeQc("b", new double[] {0, 1, 2});
+		// cached QC is returned, the dosages are not checked again
+		assertSame(qcA, genotypeQcCache.getGenotypeQc("a", new double[] {0, 0, 0}));
+		// a is used more recently than b, so b is removed when c is added
+		genotypeQcCache.getGenotypeQc("c", new double[] {0, 1, 2});
+		assertSame(qcA, genotypeQcCache.getGenotypeQc("a", new double[] {0, 1, 2}));
+		assertNotSame(qcB, genotypeQcCache.getGenotypeQc("b", new double[] {0, 1, 2}));
+		// without SNP name the QC is not cached
+		assertNotSame(genotypeQcCache.getGenotypeQc(null, new double[] {0, 1, 2}), genotypeQcCache.getGenotypeQc(null, new double[] {0, 1, 2}));
+	}
+}
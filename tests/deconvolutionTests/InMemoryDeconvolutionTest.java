@@ -0,0 +1,167 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.CellCount;
+import deconvolution.CommandLineOptions;
+import deconvolution.DeconvolutionResult;
+import deconvolution.GeneSnpPair;
+import deconvolution.InMemoryDeconvolution;
+
+public class InMemoryDeconvolutionTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void sameAsFileRunTest() throws Exception {
+		// the in-memory run of the small dataset gives the same p-values, permutation p-values and FDR as the file run
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File outfolder = temporaryFolder.newFolder("output");
+		TestRuns.run(input, outfolder, "-np", "5");
+		List<String> resultLines = TestRuns.readLines(new File(outfolder, "deconvolutionResults.csv"));
+
+		CellCount cellCounts = new CellCount(TestRuns.getCellcounts(input).getAbsolutePath());
+		Map<String, double[]> expression = readValues(TestRuns.getExpression(input), cellCounts);
+		Map<String, double[]> dosages = readValues(TestRuns.getGenotypes(input), cellCounts);
+		List<GeneSnpPair> geneSnpPairs = readGeneSnpPairs(input);
+		InMemoryDeconvolution deconvolution = new InMemoryDeconvolution(cellCounts, getOptions());
+		Map<String, DeconvolutionResult> results = run(deconvolution, geneSnpPairs, expression, dosages);
+		assertResultsEqual(resultLines, results, deconvolution, cellCounts);
+	}
+
+	@Test
+	public void instancesDoNotShareStateTest() throws Exception {
+		// two instances that run at the same time each have their own permutation null distributions, so the one
+		// that runs all QTLs gives the same results as the file run and the other only has the permutations of its QTLs.
+		// A file run at the same time only counts its own QTLs in its run metrics
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File outfolder = temporaryFolder.newFolder("output");
+		TestRuns.run(input, outfolder, "-np", "5");
+		List<String> resultLines = TestRuns.readLines(new File(outfolder, "deconvolutionResults.csv"));
+
+		CellCount cellCounts = new CellCount(TestRuns.getCellcounts(input).getAbsolutePath());
+		Map<String, double[]> expression = readValues(TestRuns.getExpression(input), cellCounts);
+		Map<String, double[]> dosages = readValues(TestRuns.getGenotypes(input), cellCounts);
+		List<GeneSnpPair> geneSnpPairs = readGeneSnpPairs(input);
+		InMemoryDeconvolution allQtls = new InMemoryDeconvolution(cellCounts, getOptions());
+		InMemoryDeconvolution firstQtls = new InMemoryDeconvolution(cellCounts, getOptions());
+		File concurrentOutfolder = temporaryFolder.newFolder("concurrent");
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try{
+			Future<Map<String, DeconvolutionResult>> allResults = executor.submit(() -> run(allQtls, geneSnpPairs, expression, dosages));
+			Future<Map<String, DeconvolutionResult>> firstResults = executor.submit(() -> run(firstQtls, geneSnpPairs.subList(0, 10),
+					expression, dosages));
+			Future<?> fileRun = executor.submit(() -> {
+				TestRuns.run(input, concurrentOutfolder, "-np", "5");
+				return null;
+			});
+			fileRun.get();
+			assertEquals(resultLines, TestRuns.readLines(new File(concurrentOutfolder, "deconvolutionResults.csv")));
+			assertTrue(TestRuns.readLines(new File(concurrentOutfolder, "runMetrics.json")).contains(
+					String.format("  \"qtlsDone\": %d,", resultLines.size() - 1)));
+			assertResultsEqual(resultLines, allResults.get(), allQtls, cellCounts);
+			assertEquals(10 * 5, firstQtls.getPermutationTest().getPermutationsDone());
+			assertEquals((resultLines.size() - 1) * 5, allQtls.getPermutationTest().getPermutationsDone());
+			for(Map.Entry<String, DeconvolutionResult> result : firstResults.get().entrySet()){
+				assertEquals(result.getKey(), allResults.get().get(result.getKey()).getPvalues(), result.getValue().getPvalues());
+			}
+		}
+		finally{
+			executor.shutdown();
+		}
+	}
+
+	private static CommandLineOptions getOptions(){
+		CommandLineOptions options = new CommandLineOptions();
+		options.setNumberOfPermutations(5);
+		return options;
+	}
+
+	private static Map<String, DeconvolutionResult> run(InMemoryDeconvolution deconvolution, List<GeneSnpPair> geneSnpPairs,
+			Map<String, double[]> expression, Map<String, double[]> dosages) throws Exception{
+		Map<String, DeconvolutionResult> results = new LinkedHashMap<String, DeconvolutionResult>();
+		deconvolution.run(geneSnpPairs.iterator(), expression, dosages, result -> results.put(result.getQtlName(), result));
+		return results;
+	}
+
+	/**
+	 * Compare the results with the lines of deconvolutionResults.csv: p-values, permutation p-values and permutation FDR
+	 */
+	private static void assertResultsEqual(List<String> resultLines, Map<String, DeconvolutionResult> results,
+			InMemoryDeconvolution deconvolution, CellCount cellCounts) throws Exception{
+		assertEquals(resultLines.size() - 1, results.size());
+		int numberOfCelltypes = cellCounts.getNumberOfCelltypes();
+		List<DeconvolutionResult> orderedResults = new ArrayList<DeconvolutionResult>();
+		for(String line : resultLines.subList(1, resultLines.size())){
+			String qtlName = line.split("\t", 2)[0];
+			assertTrue(qtlName, results.containsKey(qtlName));
+			orderedResults.add(results.get(qtlName));
+		}
+		for(int celltypeIndex = 0; celltypeIndex < numberOfCelltypes; ++celltypeIndex){
+			double[] pvalues = new double[orderedResults.size()];
+			for(int i = 0; i < pvalues.length; ++i){
+				pvalues[i] = orderedResults.get(i).getPvalues().get(celltypeIndex);
+			}
+			double[] fdr = deconvolution.getPermutationTest().calculateFdr(cellCounts.getCelltype(celltypeIndex), pvalues);
+			for(int i = 0; i < pvalues.length; ++i){
+				String[] columns = resultLines.get(i + 1).split("\t");
+				DeconvolutionResult result = orderedResults.get(i);
+				String message = columns[0]+" "+cellCounts.getCelltype(celltypeIndex);
+				assertEquals(message, Double.parseDouble(columns[1 + celltypeIndex]), pvalues[i], 0);
+				// p-values, betas (two per celltype), effect directions, permutation p-values, permutation FDR
+				int permutationColumn = 1 + numberOfCelltypes * 4 + celltypeIndex;
+				assertEquals(message, Double.parseDouble(columns[permutationColumn]), result.getPermutationPvalues().get(celltypeIndex), 0);
+				assertEquals(message, Double.parseDouble(columns[permutationColumn + numberOfCelltypes]), fdr[i], 0);
+			}
+		}
+	}
+
+	/**
+	 * Values per row name of an expression or genotype file, in the sample order of the cell counts
+	 */
+	private static Map<String, double[]> readValues(File file, CellCount cellCounts) throws Exception{
+		List<String> lines = TestRuns.readLines(file);
+		List<String> header = Arrays.asList(lines.get(0).split("\t", -1));
+		int[] columns = new int[cellCounts.getNumberOfSamples()];
+		for(int i = 0; i < columns.length; ++i){
+			columns[i] = header.indexOf(cellCounts.getSampleNames().get(i));
+		}
+		Map<String, double[]> values = new HashMap<String, double[]>();
+		for(String line : lines.subList(1, lines.size())){
+			String[] row = line.split("\t", -1);
+			double[] rowValues = new double[columns.length];
+			for(int i = 0; i < columns.length; ++i){
+				rowValues[i] = Double.parseDouble(row[columns[i]]);
+			}
+			values.put(row[0], rowValues);
+		}
+		return values;
+	}
+
+	private static List<GeneSnpPair> readGeneSnpPairs(File input) throws Exception{
+		List<GeneSnpPair> geneSnpPairs = new ArrayList<GeneSnpPair>();
+		List<String> lines = TestRuns.readLines(TestRuns.getSnpsToTest(input));
+		for(String line : lines.subList(1, lines.size())){
+			String[] pair = line.split("\t");
+			geneSnpPairs.add(new GeneSnpPair(pair[0], pair[1]));
+		}
+		return geneSnpPairs;
+	}
+}
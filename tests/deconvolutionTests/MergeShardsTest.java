@@ -0,0 +1,65 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.MergeShards;
+import deconvolution.PvalueHistogram;
+
+public class MergeShardsTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void mergeTwoShardsTest() throws Exception {
+		// merged output of two shards should be the same as the output of one run, including the permutation FDR
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File single = temporaryFolder.newFolder("single");
+		File sharded = temporaryFolder.newFolder("sharded");
+		TestRuns.run(input, single, "-np", "5", "-oe");
+		TestRuns.run(input, sharded, "-np", "5", "-oe", "-sh", "1/2");
+		TestRuns.run(input, sharded, "-np", "5", "-oe", "-sh", "2/2");
+		MergeShards.main(new String[] {"-o", sharded.getAbsolutePath(), "-sn", TestRuns.getSnpsToTest(input).getAbsolutePath()});
+
+		int shard1Lines = TestRuns.readLines(new File(sharded, "shard1of2/deconvolutionResults.csv")).size();
+		int shard2Lines = TestRuns.readLines(new File(sharded, "shard2of2/deconvolutionResults.csv")).size();
+		assertTrue("Both shards have QTLs", shard1Lines > 1 && shard2Lines > 1);
+		for(String file : new String[] {"deconvolutionResults.csv", "filteredQTLs.csv", "predictedExpressionLevels.txt"}){
+			assertEquals(file, TestRuns.readLines(new File(single, file)), TestRuns.readLines(new File(sharded, file)));
+		}
+	}
+
+	@Test
+	public void permutationFdrColumnsTest() throws Exception {
+		// the permutation FDR is written in the _permutationFDR columns, also if these are not the last columns
+		File outfolder = temporaryFolder.getRoot();
+		Files.write(new File(outfolder, "snpsToTest.txt").toPath(), Arrays.asList("gene\tsnp", "gene1\tsnp1", "gene2\tsnp2"), TestRuns.UTF8);
+		writeShard(new File(outfolder, "shard1of2"), "gene1_snp1\t0.001\t1.0\tfirst", 0.01, 0.2, 0.6, 0.9);
+		writeShard(new File(outfolder, "shard2of2"), "gene2_snp2\t0.5\t1.0\tsecond", 0.05, 0.3, 0.7, 0.95);
+		MergeShards.main(new String[] {"-o", outfolder.getAbsolutePath(), "-sn", new File(outfolder, "snpsToTest.txt").getAbsolutePath()});
+
+		// null distribution of both shards: no permuted p-values <= 0.001, 4 of 8 <= 0.5 so FDR = 0.5 * 2 tests / rank 2
+		List<String> merged = TestRuns.readLines(new File(outfolder, "deconvolutionResults.csv"));
+		assertEquals(Arrays.asList("QTL\tA_pvalue\tA_permutationFDR\tnote", "gene1_snp1\t0.001\t0.0\tfirst", "gene2_snp2\t0.5\t0.5\tsecond"), merged);
+	}
+
+	private static void writeShard(File shardFolder, String resultLine, double... permutedPvalues) throws Exception{
+		shardFolder.mkdir();
+		Files.write(new File(shardFolder, "deconvolutionResults.csv").toPath(), Arrays.asList("QTL\tA_pvalue\tA_permutationFDR\tnote", resultLine), TestRuns.UTF8);
+		Files.write(new File(shardFolder, "filteredQTLs.csv").toPath(), Arrays.asList("QTL\treason"), TestRuns.UTF8);
+		PvalueHistogram nullDistribution = new PvalueHistogram();
+		for(double pvalue : permutedPvalues){
+			nullDistribution.add(pvalue);
+		}
+		Files.write(new File(shardFolder, MergeShards.NULL_DISTRIBUTIONS_FILE).toPath(), Arrays.asList("A\t"+nullDistribution.toLine()), TestRuns.UTF8);
+	}
+}
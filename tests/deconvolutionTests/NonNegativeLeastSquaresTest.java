@@ -0,0 +1,112 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
+import org.junit.Test;
+
+import deconvolution.NonNegativeLeastSquares;
+
+public class NonNegativeLeastSquaresTest {
+	@Test
+	public void positiveSolutionTest() {
+		// if the least squares solution is positive it is also the NNLS solution
+		Random random = new Random(1);
+		double[][] observedValues = randomMatrix(500, 6, random);
+		double[] expression = new double[500];
+		for(int i = 0; i < expression.length; ++i){
+			for(int j = 0; j < 6; ++j){
+				expression[i] += (j + 1) * observedValues[i][j];
+			}
+			expression[i] += random.nextGaussian() * 0.1;
+		}
+		OLSMultipleLinearRegression regression = new OLSMultipleLinearRegression();
+		regression.setNoIntercept(true);
+		regression.newSampleData(expression, observedValues);
+		NonNegativeLeastSquares nnls = new NonNegativeLeastSquares();
+		nnls.newSampleData(expression, observedValues);
+		assertArrayEquals(regression.estimateRegressionParameters(), nnls.estimateRegressionParameters(), 1e-9);
+		assertEquals(6, nnls.getPassiveSetSize());
+	}
+
+	@Test
+	public void optimalityTest() {
+		// the solution is non-negative and satisfies the Kuhn-Tucker conditions: the gradient A'(b - Ax) is 0 for
+		// positive coefficients and <= 0 for coefficients that are 0. Sizes from fewer samples than terms to many samples
+		Random random = new Random(2);
+		for(int[] size : new int[][] {{5, 8}, {50, 8}, {2000, 8}, {2000, 16}, {30000, 12}}){
+			int numberOfSamples = size[0];
+			int numberOfTerms = size[1];
+			double[][] observedValues = randomMatrix(numberOfSamples, numberOfTerms, random);
+			double[] expression = new double[numberOfSamples];
+			for(int i = 0; i < numberOfSamples; ++i){
+				for(int j = 0; j < numberOfTerms; ++j){
+					// half of the terms have a negative effect, so that the constraint is active
+					expression[i] += (j % 2 == 0 ? 1 : -1) * observedValues[i][j];
+				}
+				expression[i] += random.nextGaussian();
+			}
+			NonNegativeLeastSquares nnls = new NonNegativeLeastSquares();
+			nnls.newSampleData(expression, observedValues);
+			double[] beta = nnls.estimateRegressionParameters();
+			double[] residuals = nnls.estimateResiduals();
+			double scale = 0;
+			for(double residual : residuals){
+				scale += Math.abs(residual);
+			}
+			int positive = 0;
+			for(int j = 0; j < numberOfTerms; ++j){
+				assertTrue(beta[j] >= 0);
+				double gradient = 0;
+				for(int i = 0; i < numberOfSamples; ++i){
+					gradient += observedValues[i][j] * residuals[i];
+				}
+				if(beta[j] > 0){
+					++positive;
+					assertEquals("Gradient of term "+j+" at "+numberOfSamples+" samples", 0, gradient / scale, 1e-9);
+				}
+				else{
+					assertTrue("Gradient of term "+j+" at "+numberOfSamples+" samples", gradient / scale <= 1e-9);
+				}
+			}
+			assertEquals(positive, nnls.getPassiveSetSize());
+		}
+	}
+
+	@Test
+	public void inputNotChangedTest() {
+		// the solve works on a copy of the expression and observed values
+		Random random = new Random(3);
+		double[][] observedValues = randomMatrix(100, 4, random);
+		double[] expression = new double[100];
+		for(int i = 0; i < expression.length; ++i){
+			expression[i] = random.nextDouble();
+		}
+		double[][] observedValuesCopy = new double[100][];
+		for(int i = 0; i < observedValues.length; ++i){
+			observedValuesCopy[i] = observedValues[i].clone();
+		}
+		double[] expressionCopy = expression.clone();
+		NonNegativeLeastSquares nnls = new NonNegativeLeastSquares();
+		nnls.newSampleData(expression, observedValues);
+		assertArrayEquals(expressionCopy, expression, 0);
+		for(int i = 0; i < observedValues.length; ++i){
+			assertArrayEquals(observedValuesCopy[i], observedValues[i], 0);
+		}
+	}
+
+	/**
+	 * Positive values, like the genotype dosages and cell counts of the models
+	 */
+	private static double[][] randomMatrix(int numberOfRows, int numberOfColumns, Random random){
+		double[][] matrix = new double[numberOfRows][numberOfColumns];
+		for(int i = 0; i < numberOfRows; ++i){
+			for(int j = 0; j < numberOfColumns; ++j){
+				matrix[i][j] = random.nextDouble() * 2;
+			}
+		}
+		return matrix;
+	}
+}
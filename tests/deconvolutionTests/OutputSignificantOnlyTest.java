@@ -0,0 +1,68 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutputSignificantOnlyTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void significantOnlyRunTest() throws Exception {
+		// with -s the QTLs with a p-value < -st in any celltype are written as in a run without -s, including their
+		// permutation FDR over all QTLs. The other QTLs are written to nonSignificantQTLs.csv with only their p-values
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File all = temporaryFolder.newFolder("all");
+		TestRuns.run(input, all, "-np", "5");
+		List<String> results = TestRuns.readLines(new File(all, "deconvolutionResults.csv"));
+		// threshold halfway the QTLs, so that both files have QTLs
+		double[] minimumPvalues = new double[results.size() - 1];
+		for(int i = 1; i < results.size(); ++i){
+			minimumPvalues[i - 1] = getMinimumPvalue(results.get(i));
+		}
+		Arrays.sort(minimumPvalues);
+		double threshold = minimumPvalues[minimumPvalues.length / 2];
+		List<String> significantLines = new ArrayList<String>(results.subList(0, 1));
+		List<String> nonSignificantLines = new ArrayList<String>();
+		nonSignificantLines.add("QTL\tNeut_Perc_pvalue\tLymph_Perc_pvalue\tMono_Perc_pvalue\tEos_Perc_pvalue");
+		for(String line : results.subList(1, results.size())){
+			if(getMinimumPvalue(line) < threshold){
+				significantLines.add(line);
+			}
+			else{
+				nonSignificantLines.add(String.join("\t", Arrays.asList(line.split("\t", -1)).subList(0, 5)));
+			}
+		}
+		assertTrue(significantLines.size() > 1 && nonSignificantLines.size() > 1);
+
+		File significant = temporaryFolder.newFolder("significant");
+		TestRuns.run(input, significant, "-np", "5", "-s", "-st", Double.toString(threshold));
+		File checkpointed = temporaryFolder.newFolder("checkpointed");
+		TestRuns.run(input, checkpointed, "-np", "5", "-s", "-st", Double.toString(threshold), "-ci", "10");
+		for(File outfolder : new File[] {significant, checkpointed}){
+			assertEquals(significantLines, TestRuns.readLines(new File(outfolder, "deconvolutionResults.csv")));
+			assertEquals(nonSignificantLines, TestRuns.readLines(new File(outfolder, "nonSignificantQTLs.csv")));
+		}
+	}
+
+	/**
+	 * Lowest p-value of the 4 celltypes of a results line
+	 */
+	private static double getMinimumPvalue(String line){
+		String[] columns = line.split("\t", -1);
+		double minimumPvalue = 1;
+		for(int column = 1; column <= 4; ++column){
+			minimumPvalue = Math.min(minimumPvalue, Double.parseDouble(columns[column]));
+		}
+		return minimumPvalue;
+	}
+}
@@ -0,0 +1,243 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.MergeShards;
+import deconvolution.PermutationTest;
+import deconvolution.PvalueHistogram;
+
+public class PermutationTestTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static PvalueHistogram histogram(double... pvalues){
+		PvalueHistogram histogram = new PvalueHistogram();
+		for(double pvalue : pvalues){
+			histogram.add(pvalue);
+		}
+		return histogram;
+	}
+
+	@Test
+	public void calculateFdrTest() {
+		PermutationTest permutationTest = new PermutationTest();
+		permutationTest.addNullDistribution("Neut", histogram(0.01, 0.2, 0.6, 0.9));
+		// fraction of permuted p-values <= observed * 4 tests / rank: 0 * 4 / 1, 0.25 * 4 / 2, 0.5 * 4 / 3, 1 * 4 / 4
+		double[] fdr = permutationTest.calculateFdr("Neut", new double[] {0.5, 0.001, 0.95, 0.05});
+		assertArrayEquals(new double[] {2.0 / 3, 0, 1, 0.5}, fdr, 1e-15);
+	}
+
+	@Test
+	public void notTestedTest() {
+		// QTLs that were not tested (NaN) are not counted as tests and have FDR NaN, the FDR of the others is the same
+		PermutationTest permutationTest = new PermutationTest();
+		permutationTest.addNullDistribution("Neut", histogram(0.01, 0.2, 0.6, 0.9));
+		double[] fdr = permutationTest.calculateFdr("Neut", new double[] {0.5, Double.NaN, 0.001, 0.95, Double.NaN, 0.05});
+		assertArrayEquals(new double[] {2.0 / 3, Double.NaN, 0, 1, Double.NaN, 0.5}, fdr, 1e-15);
+		// no null distribution if no QTL of the celltype was permuted
+		assertArrayEquals(new double[] {Double.NaN, Double.NaN}, permutationTest.calculateFdr("Lymph", new double[] {0.5, Double.NaN}), 0);
+	}
+
+	@Test
+	public void calculateFdrMonotoneTest() {
+		// a lower p-value never has a higher FDR, and the FDR is at most 1
+		Random random = new Random(1);
+		PermutationTest permutationTest = new PermutationTest();
+		PvalueHistogram nullDistribution = new PvalueHistogram();
+		for(int i = 0; i < 10000; ++i){
+			nullDistribution.add(random.nextDouble());
+		}
+		permutationTest.addNullDistribution("Neut", nullDistribution);
+		double[] observedPvalues = new double[1000];
+		for(int i = 0; i < observedPvalues.length; ++i){
+			// mix of null QTLs and QTLs with small p-values
+			observedPvalues[i] = i % 10 == 0 ? Math.pow(random.nextDouble(), 10) : random.nextDouble();
+		}
+		double[] fdr = permutationTest.calculateFdr("Neut", observedPvalues);
+		Integer[] order = new Integer[observedPvalues.length];
+		for(int i = 0; i < order.length; ++i){
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(observedPvalues[a], observedPvalues[b]));
+		for(int rank = 1; rank < order.length; ++rank){
+			assertTrue(fdr[order[rank - 1]] <= fdr[order[rank]]);
+		}
+		assertTrue(fdr[order[order.length - 1]] <= 1);
+	}
+
+	@Test
+	public void mergeTest() {
+		// merging the null distributions of two runs (e.g. threads or shards) gives the same FDR as one null distribution
+		PermutationTest first = new PermutationTest();
+		first.addNullDistribution("Neut", histogram(0.01, 0.2));
+		first.addPermutationsDone(2);
+		PermutationTest second = new PermutationTest();
+		second.addNullDistribution("Neut", histogram(0.6, 0.9));
+		second.addNullDistribution("Lymph", histogram(0.3));
+		second.addPermutationsDone(3);
+		first.merge(second);
+
+		PermutationTest all = new PermutationTest();
+		all.addNullDistribution("Neut", histogram(0.01, 0.2, 0.6, 0.9));
+		double[] observedPvalues = {0.5, 0.001, 0.95, 0.05};
+		assertArrayEquals(all.calculateFdr("Neut", observedPvalues), first.calculateFdr("Neut", observedPvalues), 0);
+		assertEquals(4, first.getNullDistribution("Neut").getTotalCount(), 0);
+		assertEquals(1, first.getNullDistribution("Lymph").getTotalCount(), 0);
+		assertEquals(2, first.getCelltypes().size());
+		assertEquals(5, first.getPermutationsDone());
+		// second is not changed
+		assertEquals(2, second.getNullDistribution("Neut").getTotalCount(), 0);
+	}
+
+	@Test
+	public void notTestedRunTest() throws Exception {
+		// QTLs with too few samples per genotype (-m) are written with NA p-values and get NA as FDR. They are not
+		// counted as tests, so the FDR of the other QTLs is the same as in a run without them. Also with checkpoints
+		// and in merged shards
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File all = temporaryFolder.newFolder("all");
+		TestRuns.run(input, all, "-np", "5", "-m", "200");
+		File checkpointed = temporaryFolder.newFolder("checkpointed");
+		TestRuns.run(input, checkpointed, "-np", "5", "-m", "200", "-ci", "10");
+		File sharded = temporaryFolder.newFolder("sharded");
+		TestRuns.run(input, sharded, "-np", "5", "-m", "200", "-sh", "1/2");
+		TestRuns.run(input, sharded, "-np", "5", "-m", "200", "-sh", "2/2");
+		MergeShards.main(new String[] {"-o", sharded.getAbsolutePath(), "-sn", TestRuns.getSnpsToTest(input).getAbsolutePath()});
+		List<String> results = TestRuns.readLines(new File(all, "deconvolutionResults.csv"));
+		assertEquals(results, TestRuns.readLines(new File(checkpointed, "deconvolutionResults.csv")));
+		assertEquals(results, TestRuns.readLines(new File(sharded, "deconvolutionResults.csv")));
+
+		Map<String, String> testedLines = new HashMap<String, String>();
+		int notTested = 0;
+		for(String line : results.subList(1, results.size())){
+			String[] columns = line.split("\t", -1);
+			if(columns[1].equals("333.0")){
+				assertEquals(line, Arrays.asList("NA", "NA", "NA", "NA"), Arrays.asList(columns).subList(columns.length - 4, columns.length));
+				++notTested;
+			}
+			else{
+				testedLines.put(columns[0], line);
+			}
+		}
+		assertTrue("Some QTLs are tested and some are not", notTested > 0 && testedLines.size() > 0);
+
+		List<String> pairs = TestRuns.readLines(TestRuns.getSnpsToTest(input));
+		List<String> testedPairs = new ArrayList<String>(pairs.subList(0, 1));
+		for(String pair : pairs.subList(1, pairs.size())){
+			if(testedLines.containsKey(pair.replace("\t", "_"))){
+				testedPairs.add(pair);
+			}
+		}
+		Files.write(TestRuns.getSnpsToTest(input).toPath(), testedPairs, TestRuns.UTF8);
+		File tested = temporaryFolder.newFolder("tested");
+		TestRuns.run(input, tested, "-np", "5", "-m", "200");
+		List<String> testedResults = TestRuns.readLines(new File(tested, "deconvolutionResults.csv"));
+		assertEquals(testedLines.size() + 1, testedResults.size());
+		for(String line : testedResults.subList(1, testedResults.size())){
+			assertEquals(testedLines.get(line.split("\t", 2)[0]), line);
+		}
+	}
+
+	@Test
+	public void noneTestedRunTest() throws Exception {
+		// if no QTL is tested there are no permuted p-values, all FDRs are NA
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File outfolder = temporaryFolder.newFolder("output");
+		TestRuns.run(input, outfolder, "-np", "10", "-m", "100000");
+		List<String> results = TestRuns.readLines(new File(outfolder, "deconvolutionResults.csv"));
+		assertEquals(50, results.size());
+		for(String line : results.subList(1, results.size())){
+			assertTrue(line, line.endsWith("\tNA\tNA\tNA\tNA"));
+		}
+	}
+
+	@Test
+	public void adaptivePermutationTest() throws Exception {
+		// the permutations of a QTL are the same for every -np, so a run of -np n without -ph gives the hits after n
+		// permutations: p = (hits + 1) / (n + 1). With -ph every celltype stops on its own at the permutation L that
+		// gives its -ph-th hit, p = hits / L. Celltypes that do not get enough hits do all permutations
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		List<String> pairs = TestRuns.readLines(TestRuns.getSnpsToTest(input));
+		Files.write(TestRuns.getSnpsToTest(input).toPath(), pairs.subList(0, 6), TestRuns.UTF8);
+		int maxPermutations = 10;
+		int permutationHits = 2;
+		// hits per QTL and celltype after n permutations
+		int[][][] hits = new int[maxPermutations + 1][][];
+		for(int n = 1; n <= maxPermutations; ++n){
+			double[][] pvalues = runPermutations(input, "-np", Integer.toString(n));
+			hits[n] = new int[pvalues.length][pvalues[0].length];
+			for(int qtl = 0; qtl < pvalues.length; ++qtl){
+				for(int celltype = 0; celltype < pvalues[qtl].length; ++celltype){
+					hits[n][qtl][celltype] = (int) Math.round(pvalues[qtl][celltype] * (n + 1)) - 1;
+					assertEquals((double) (hits[n][qtl][celltype] + 1) / (n + 1), pvalues[qtl][celltype], 0);
+				}
+			}
+		}
+
+		double[][] adaptivePvalues = runPermutations(input, "-np", Integer.toString(maxPermutations), "-ph", Integer.toString(permutationHits));
+		int earlyStops = 0;
+		int fullRuns = 0;
+		int qtlsWithDifferentStops = 0;
+		for(int qtl = 0; qtl < adaptivePvalues.length; ++qtl){
+			Set<Integer> stops = new HashSet<Integer>();
+			for(int celltype = 0; celltype < adaptivePvalues[qtl].length; ++celltype){
+				int stop = 0;
+				for(int n = 1; n <= maxPermutations && stop == 0; ++n){
+					if(hits[n][qtl][celltype] == permutationHits){
+						stop = n;
+					}
+				}
+				if(stop > 0){
+					assertEquals((double) permutationHits / stop, adaptivePvalues[qtl][celltype], 0);
+					stops.add(stop);
+					++earlyStops;
+				}
+				else{
+					assertEquals((double) (hits[maxPermutations][qtl][celltype] + 1) / (maxPermutations + 1), adaptivePvalues[qtl][celltype], 0);
+					++fullRuns;
+				}
+			}
+			if(stops.size() > 1){
+				++qtlsWithDifferentStops;
+			}
+		}
+		assertTrue("Early stops, full runs and celltypes of a QTL that stop at different permutations",
+				earlyStops > 0 && fullRuns > 0 && qtlsWithDifferentStops > 0);
+	}
+
+	/**
+	 * Run with options and return the permutation p-values per QTL and celltype
+	 */
+	private double[][] runPermutations(File input, String... options) throws Exception{
+		File outfolder = temporaryFolder.newFolder();
+		TestRuns.run(input, outfolder, options);
+		List<String> results = TestRuns.readLines(new File(outfolder, "deconvolutionResults.csv"));
+		double[][] pvalues = new double[results.size() - 1][4];
+		for(int qtl = 0; qtl < pvalues.length; ++qtl){
+			String[] columns = results.get(qtl + 1).split("\t", -1);
+			// p-values, betas (two per celltype) and effect directions are before the permutation p-values
+			for(int celltype = 0; celltype < 4; ++celltype){
+				pvalues[qtl][celltype] = Double.parseDouble(columns[17 + celltype]);
+			}
+		}
+		return pvalues;
+	}
+}
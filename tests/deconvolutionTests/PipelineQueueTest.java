@@ -0,0 +1,130 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import deconvolution.PipelineQueue;
+
+public class PipelineQueueTest {
+	@Test(timeout = 10000)
+	public void orderTest() throws Exception {
+		// all items arrive in order through a queue that is much smaller than the number of items
+		PipelineQueue<Integer> queue = new PipelineQueue<Integer>(4);
+		Thread producer = PipelineQueue.startStage("producer", () -> {
+			for(int i = 0; i < 1000; ++i){
+				queue.put(i);
+			}
+			queue.close();
+		}, null, queue);
+		for(int i = 0; i < 1000; ++i){
+			assertEquals(Integer.valueOf(i), queue.take());
+		}
+		assertNull(queue.take());
+		producer.join();
+	}
+
+	@Test(timeout = 10000)
+	public void producerErrorTest() throws Exception {
+		// items that were put before the error are taken first, then take() throws the error of the producer
+		PipelineQueue<Integer> queue = new PipelineQueue<Integer>(4);
+		IllegalStateException error = new IllegalStateException("read error");
+		PipelineQueue.startStage("producer", () -> {
+			queue.put(1);
+			queue.put(2);
+			throw error;
+		}, null, queue);
+		assertEquals(Integer.valueOf(1), queue.take());
+		assertEquals(Integer.valueOf(2), queue.take());
+		try{
+			queue.take();
+			fail("take() should throw the error of the producer");
+		}
+		catch(IllegalStateException e){
+			assertSame(error, e);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void checkedProducerErrorTest() throws Exception {
+		// checked exceptions of the producer are wrapped
+		PipelineQueue<Integer> queue = new PipelineQueue<Integer>(4);
+		IOException error = new IOException("disk full");
+		queue.fail(error);
+		try{
+			queue.take();
+			fail("take() should throw the error of the producer");
+		}
+		catch(RuntimeException e){
+			assertSame(error, e.getCause());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void consumerAbortTest() throws Exception {
+		// a producer that waits on a full queue stops when the consumer aborts
+		PipelineQueue<Integer> queue = new PipelineQueue<Integer>(2);
+		queue.put(1);
+		queue.put(2);
+		IllegalStateException error = new IllegalStateException("write error");
+		Thread consumer = new Thread(() -> {
+			try{
+				Thread.sleep(200);
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			queue.abort(error);
+		});
+		consumer.start();
+		try{
+			queue.put(3);
+			fail("put() should throw the error of the consumer");
+		}
+		catch(IllegalStateException e){
+			assertSame(error, e);
+		}
+		consumer.join();
+		try{
+			queue.checkConsumer();
+			fail("checkConsumer() should throw the error of the consumer");
+		}
+		catch(IllegalStateException e){
+			assertSame(error, e);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void stageErrorTest() throws Exception {
+		// a stage that stops on an error aborts its input and fails its output, so the stages before and after it stop
+		PipelineQueue<Integer> input = new PipelineQueue<Integer>(2);
+		PipelineQueue<Integer> output = new PipelineQueue<Integer>(2);
+		IllegalArgumentException error = new IllegalArgumentException("deconvolution error");
+		// put before the stage starts, else the stage can abort input before put() returns
+		input.put(1);
+		Thread stage = PipelineQueue.startStage("middle", () -> {
+			output.put(input.take() * 10);
+			throw error;
+		}, input, output);
+		assertEquals(Integer.valueOf(10), output.take());
+		stage.join();
+		try{
+			output.take();
+			fail("take() should throw the error of the stage");
+		}
+		catch(IllegalArgumentException e){
+			assertSame(error, e);
+		}
+		try{
+			input.put(2);
+			input.put(3);
+			input.put(4);
+			fail("put() should throw the error of the stage");
+		}
+		catch(IllegalArgumentException e){
+			assertSame(error, e);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.MergeShards;
+
+public class PredictedExpressionTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void streamedTest() throws Exception {
+		// the predicted expression of every QTL is written when the QTL is done, one line per QTL in the order of the
+		// results with a value per sample. With checkpoints the lines go through the checkpoint and are the same
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File streamed = temporaryFolder.newFolder("streamed");
+		TestRuns.run(input, streamed, "-oe");
+		List<String> predictedExpression = TestRuns.readLines(new File(streamed, "predictedExpressionLevels.txt"));
+		List<String> results = TestRuns.readLines(new File(streamed, "deconvolutionResults.csv"));
+		assertEquals(results.size(), predictedExpression.size());
+		int numberOfSamples = TestRuns.readLines(TestRuns.getCellcounts(input)).size() - 1;
+		assertEquals(numberOfSamples + 1, predictedExpression.get(0).split("\t", -1).length);
+		for(int i = 1; i < results.size(); ++i){
+			String[] columns = predictedExpression.get(i).split("\t", -1);
+			assertEquals(results.get(i).split("\t", 2)[0], columns[0]);
+			assertEquals(numberOfSamples + 1, columns.length);
+			for(int sample = 1; sample < columns.length; ++sample){
+				assertFalse(Double.isNaN(Double.parseDouble(columns[sample])));
+			}
+		}
+
+		File checkpointed = temporaryFolder.newFolder("checkpointed");
+		TestRuns.run(input, checkpointed, "-oe", "-ci", "10");
+		assertEquals(predictedExpression, TestRuns.readLines(new File(checkpointed, "predictedExpressionLevels.txt")));
+	}
+
+	@Test
+	public void compressedTest() throws Exception {
+		// -pz writes the same lines gzip compressed, without -oe, and also when shards are merged
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File uncompressed = temporaryFolder.newFolder("uncompressed");
+		TestRuns.run(input, uncompressed, "-oe");
+		List<String> predictedExpression = TestRuns.readLines(new File(uncompressed, "predictedExpressionLevels.txt"));
+
+		File compressed = temporaryFolder.newFolder("compressed");
+		TestRuns.run(input, compressed, "-pz");
+		assertFalse(new File(compressed, "predictedExpressionLevels.txt").exists());
+		assertEquals(predictedExpression, readGzipLines(new File(compressed, "predictedExpressionLevels.txt.gz")));
+		assertEquals(TestRuns.readLines(new File(uncompressed, "deconvolutionResults.csv")),
+				TestRuns.readLines(new File(compressed, "deconvolutionResults.csv")));
+
+		File sharded = temporaryFolder.newFolder("sharded");
+		TestRuns.run(input, sharded, "-pz", "-sh", "1/2");
+		TestRuns.run(input, sharded, "-pz", "-sh", "2/2");
+		MergeShards.main(new String[] {"-o", sharded.getAbsolutePath(), "-sn", TestRuns.getSnpsToTest(input).getAbsolutePath()});
+		assertEquals(predictedExpression, readGzipLines(new File(sharded, "predictedExpressionLevels.txt.gz")));
+	}
+
+	private static List<String> readGzipLines(File file) throws Exception{
+		List<String> lines = new ArrayList<String>();
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file.toPath())), TestRuns.UTF8))){
+			String line;
+			while((line = reader.readLine()) != null){
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,76 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import deconvolution.PvalueHistogram;
+
+public class PvalueHistogramTest {
+
+	@Test
+	public void countLowerOrEqualTest() {
+		PvalueHistogram histogram = new PvalueHistogram();
+		for(double pvalue : new double[] {0.9, 0.6, 0.2, 0.01, 1e-20, 0}){
+			histogram.add(pvalue);
+		}
+		assertEquals(6, histogram.getTotalCount(), 0);
+		assertEquals(6, histogram.countLowerOrEqual(1), 0);
+		assertEquals(3, histogram.countLowerOrEqual(0.05), 0);
+		// p = 0 goes in the last bin, with the p-values below 1e-300
+		assertEquals(1, histogram.countLowerOrEqual(1e-310), 0);
+		// the whole bin of a p-value is counted as lower or equal (100 bins per decade)
+		assertEquals(3, histogram.countLowerOrEqual(0.0100001), 0);
+		assertEquals(0.5, histogram.fractionLowerOrEqual(0.05), 0);
+		assertEquals(4.0 / 7, histogram.empiricalPvalue(0.05), 1e-15);
+	}
+
+	@Test
+	public void weightTest() {
+		// QTL that stopped after 2 of 4 permutations has weight 2, so both QTLs count as 4 permutations
+		PvalueHistogram histogram = new PvalueHistogram();
+		histogram.add(0.5, 2);
+		histogram.add(0.6, 2);
+		for(double pvalue : new double[] {0.01, 0.02, 0.03, 0.04}){
+			histogram.add(pvalue, 1);
+		}
+		assertEquals(8, histogram.getTotalCount(), 0);
+		assertEquals(0.5, histogram.fractionLowerOrEqual(0.05), 0);
+		assertEquals(1, histogram.fractionLowerOrEqual(0.6), 0);
+	}
+
+	@Test
+	public void lineTest() {
+		PvalueHistogram histogram = new PvalueHistogram(10, 5);
+		histogram.add(0.5);
+		histogram.add(0.5);
+		histogram.add(1e-9, 2.5);
+		// counts without fraction are written as integers
+		assertEquals("10\t5\t3:2\t50:2.5", histogram.toLine());
+		PvalueHistogram readBack = PvalueHistogram.fromLine(histogram.toLine());
+		assertEquals(histogram.getTotalCount(), readBack.getTotalCount(), 0);
+		assertEquals(histogram.countLowerOrEqual(0.5), readBack.countLowerOrEqual(0.5), 0);
+		assertEquals(histogram.toLine(), readBack.toLine());
+	}
+
+	@Test
+	public void mergeTest() {
+		PvalueHistogram histogram = new PvalueHistogram();
+		histogram.add(0.5);
+		histogram.add(0.001);
+		PvalueHistogram other = new PvalueHistogram();
+		other.add(0.01, 0.5);
+		// lookup before merging, the cumulative counts have to be made again after merging
+		assertEquals(1, histogram.countLowerOrEqual(0.01), 0);
+		histogram.merge(other);
+		assertEquals(2.5, histogram.getTotalCount(), 0);
+		assertEquals(1.5, histogram.countLowerOrEqual(0.01), 0);
+		try{
+			histogram.merge(new PvalueHistogram(10, 300));
+			fail("Histograms with other bins can not be merged");
+		}
+		catch(IllegalArgumentException e){
+			// expected
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
+import org.junit.Test;
+
+import deconvolution.RankCache;
+
+public class RankCacheTest {
+	@Test
+	public void spearmanCorrelationTest() {
+		// same as SpearmansCorrelation, also with the ties of genotype dosages
+		Random random = new Random(1);
+		double[] expression = new double[200];
+		double[] dosages = new double[200];
+		for(int i = 0; i < expression.length; ++i){
+			dosages[i] = random.nextInt(3);
+			expression[i] = dosages[i] + random.nextGaussian();
+		}
+		double expected = new SpearmansCorrelation().correlation(expression, dosages);
+		double correlation = RankCache.spearmanCorrelation(RankCache.normalizedRanks(expression), RankCache.normalizedRanks(dosages));
+		assertEquals(expected, correlation, 1e-12);
+		assertEquals(1, RankCache.spearmanCorrelation(RankCache.normalizedRanks(expression), RankCache.normalizedRanks(expression)), 1e-12);
+	}
+
+	@Test
+	public void constantVectorTest() {
+		// no variance gives NaN, the same as SpearmansCorrelation
+		double[] constant = {1, 1, 1, 1};
+		double[] vector = {1, 2, 3, 4};
+		assertTrue(Double.isNaN(new SpearmansCorrelation().correlation(constant, vector)));
+		assertTrue(Double.isNaN(RankCache.spearmanCorrelation(RankCache.normalizedRanks(constant), RankCache.normalizedRanks(vector))));
+	}
+
+	@Test
+	public void cacheTest() {
+		RankCache rankCache = new RankCache(2);
+		double[] ranksA = rankCache.getNormalizedRanks("a", new double[] {1, 2, 3});
+		double[] ranksB = rankCache.getNormalizedRanks("b", new double[] {3, 2, 1});
+		// cached ranks are returned, the vector is not ranked again
+		assertSame(ranksA, rankCache.getNormalizedRanks("a", new double[] {3, 2, 1}));
+		// a is used more recently than b, so b is removed when c is added
+		rankCache.getNormalizedRanks("c", new double[] {2, 1, 3});
+		assertSame(ranksA, rankCache.getNormalizedRanks("a", new double[] {3, 2, 1}));
+		assertNotSame(ranksB, rankCache.getNormalizedRanks("b", new double[] {3, 2, 1}));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void differentLengthTest() {
+		RankCache.spearmanCorrelation(new double[3], new double[4]);
+	}
+}
@@ -0,0 +1,80 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.ReadAheadLineIterator;
+
+public class ReadAheadLineIteratorTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void allLinesTest() throws Exception {
+		// lines are read in chunks of at most 1024 lines or 1M characters, no line is lost or repeated between chunks
+		List<String> lines = new ArrayList<String>();
+		for(int i = 0; i < 3000; ++i){
+			lines.add("line\t"+i);
+		}
+		char[] longLine = new char[600000];
+		Arrays.fill(longLine, 'x');
+		lines.addAll(1500, Collections.nCopies(5, new String(longLine)));
+		lines.add("");
+		File file = temporaryFolder.newFile();
+		Files.write(file.toPath(), lines, TestRuns.UTF8);
+		assertEquals(lines, readLines(file));
+		File empty = temporaryFolder.newFile();
+		assertEquals(new ArrayList<String>(), readLines(empty));
+	}
+
+	@Test
+	public void malformedInputTest() throws Exception {
+		// bytes that are not UTF-8 are replaced instead of giving an error
+		File file = temporaryFolder.newFile();
+		Files.write(file.toPath(), new byte[] {'a', (byte) 0xff, 'b', '\n', 'c'});
+		assertEquals(Arrays.asList("a\uFFFDb", "c"), readLines(file));
+	}
+
+	@Test
+	public void closeTest() throws Exception {
+		// closing before all lines are read stops the iterator
+		List<String> lines = new ArrayList<String>();
+		for(int i = 0; i < 100000; ++i){
+			lines.add(Integer.toString(i));
+		}
+		File file = temporaryFolder.newFile();
+		Files.write(file.toPath(), lines, TestRuns.UTF8);
+		ReadAheadLineIterator iterator = new ReadAheadLineIterator(file.getAbsolutePath());
+		assertEquals("0", iterator.next());
+		iterator.close();
+		assertFalse(iterator.hasNext());
+		try{
+			iterator.next();
+			fail("No lines after close");
+		}
+		catch(NoSuchElementException e){
+			// expected
+		}
+	}
+
+	private static List<String> readLines(File file) throws Exception{
+		List<String> lines = new ArrayList<String>();
+		try(ReadAheadLineIterator iterator = new ReadAheadLineIterator(file.getAbsolutePath())){
+			while(iterator.hasNext()){
+				lines.add(iterator.next());
+			}
+		}
+		return lines;
+	}
+}
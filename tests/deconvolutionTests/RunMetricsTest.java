@@ -0,0 +1,53 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RunMetricsTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void writeOutputTest() throws Exception {
+		// the lines of every QTL are timed when they are written, by the write stage or with checkpoints by the
+		// deconvolution stage, plus once the permutation FDR and closing the files at the end of the run
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File streamed = temporaryFolder.newFolder("streamed");
+		TestRuns.run(input, streamed, "-np", "5");
+		assertEquals(50, getStageCount(streamed, "writeOutput"));
+		File checkpointed = temporaryFolder.newFolder("checkpointed");
+		TestRuns.run(input, checkpointed, "-np", "5", "-ci", "10");
+		assertEquals(50, getStageCount(checkpointed, "writeOutput"));
+	}
+
+	@Test
+	public void permutationStagesTest() throws Exception {
+		// the stages of the deconvolutions of permuted genotypes are only timed as part of the permutations, so every
+		// stage is counted once per QTL
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File outfolder = temporaryFolder.newFolder("output");
+		TestRuns.run(input, outfolder, "-np", "5", "-w");
+		for(String stage : new String[] {"buildFullModels", "fullModelNNLS", "buildCtModels", "ctModelNNLS", "anova", "spearman", "permutations"}){
+			assertEquals(stage, 49, getStageCount(outfolder, stage));
+		}
+	}
+
+	/**
+	 * Count of a stage in the runMetrics.json of outfolder
+	 */
+	static long getStageCount(File outfolder, String stage) throws Exception{
+		String json = String.join("\n", TestRuns.readLines(new File(outfolder, "runMetrics.json")));
+		Matcher matcher = Pattern.compile("\""+stage+"\": \\{\"seconds\": [^,]+, \"count\": (\\d+)\\}").matcher(json);
+		assertTrue("No stage "+stage+" in "+json, matcher.find());
+		return Long.parseLong(matcher.group(1));
+	}
+}
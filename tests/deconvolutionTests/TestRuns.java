@@ -0,0 +1,83 @@
+package deconvolutionTests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import deconvolution.Deconvolution;
+
+/**
+ * Runs of the deconvolution on the small dataset in tests/resources (49 gene-SNP pairs, 1891 samples, 4 celltypes)
+ */
+class TestRuns {
+	static final File CELLCOUNTS = new File("tests/resources/cellcounts.txt");
+	static final File EXPRESSION = new File("tests/resources/expression_levels.txt");
+	static final File GENOTYPES = new File("tests/resources/genotype_dosages.txt");
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Write the input files of the small dataset to folder. The headers of the expression and genotype files in
+	 * tests/resources miss the name of the last sample (Sample_1891), it is added here. The snpsToTest file tests every
+	 * gene with the SNP of the same name
+	 */
+	static void writeInput(File folder) throws IOException{
+		List<String> snpsToTest = new ArrayList<String>();
+		snpsToTest.add("gene\tsnp");
+		for(String line : Files.readAllLines(EXPRESSION.toPath(), UTF8).subList(1, 50)){
+			String gene = line.split("\t", 2)[0];
+			snpsToTest.add(gene+"\t"+gene);
+		}
+		Files.write(getSnpsToTest(folder).toPath(), snpsToTest, UTF8);
+		Files.copy(CELLCOUNTS.toPath(), getCellcounts(folder).toPath());
+		addLastSampleName(EXPRESSION, getExpression(folder));
+		addLastSampleName(GENOTYPES, getGenotypes(folder));
+	}
+
+	private static void addLastSampleName(File from, File to) throws IOException{
+		List<String> lines = Files.readAllLines(from.toPath(), UTF8);
+		lines.set(0, lines.get(0)+"\tSample_1891");
+		Files.write(to.toPath(), lines, UTF8);
+	}
+
+	static File getSnpsToTest(File inputFolder){
+		return new File(inputFolder, "snpsToTest.txt");
+	}
+
+	static File getCellcounts(File inputFolder){
+		return new File(inputFolder, "cellcounts.txt");
+	}
+
+	static File getExpression(File inputFolder){
+		return new File(inputFolder, "expression_levels.txt");
+	}
+
+	static File getGenotypes(File inputFolder){
+		return new File(inputFolder, "genotype_dosages.txt");
+	}
+
+	/**
+	 * Run the deconvolution of the small dataset with output to outfolder
+	 *
+	 * @param inputFolder Folder with the files written by writeInput()
+	 *
+	 * @param options Options added to the input files, outfolder and -no
+	 */
+	static void run(File inputFolder, File outfolder, String... options) throws Exception{
+		Deconvolution.main(getArgs(inputFolder, outfolder, options));
+	}
+
+	static String[] getArgs(File inputFolder, File outfolder, String... options){
+		List<String> args = new ArrayList<String>(Arrays.asList("-c", getCellcounts(inputFolder).getAbsolutePath(), "-e", getExpression(inputFolder).getAbsolutePath(),
+				"-g", getGenotypes(inputFolder).getAbsolutePath(), "-sn", getSnpsToTest(inputFolder).getAbsolutePath(), "-o", outfolder.getAbsolutePath()+"/", "-no"));
+		args.addAll(Arrays.asList(options));
+		return args.toArray(new String[0]);
+	}
+
+	static List<String> readLines(File file) throws IOException{
+		return Files.readAllLines(file.toPath(), UTF8);
+	}
+}
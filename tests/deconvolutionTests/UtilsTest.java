@@ -0,0 +1,174 @@
+package deconvolutionTests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import deconvolution.GeneSnpPair;
+import deconvolution.Utils;
+
+public class UtilsTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void sampleColumnsTest() {
+		List<String> fileSamples = Arrays.asList("s1", "s2", "s3");
+		// column 0 is the row name
+		assertArrayEquals(new int[] {1, 2, 3}, Utils.getSampleColumns(fileSamples, null, "file"));
+		assertArrayEquals(new int[] {1, 2, 3}, Utils.getSampleColumns(fileSamples, fileSamples, "file"));
+		int[] sampleColumns = Utils.getSampleColumns(fileSamples, Arrays.asList("s3", "s1", "s2"), "file");
+		assertArrayEquals(new int[] {3, 1, 2}, sampleColumns);
+		assertArrayEquals(new double[] {0.3, 0.1, 0.2}, Utils.gatherDoubles(new String[] {"gene", "0.1", "0.2", "0.3"}, sampleColumns), 0);
+	}
+
+	@Test
+	public void duplicateSampleTest() {
+		try{
+			Utils.getSampleColumns(Arrays.asList("s1", "s2", "s1"), Arrays.asList("s1", "s2", "s3"), "expression.txt");
+			fail("Duplicate sample in the header should give an error");
+		}
+		catch(RuntimeException e){
+			assertTrue(e.getMessage(), e.getMessage().contains("Sample s1 is in the header of expression.txt more than once"));
+		}
+	}
+
+	@Test
+	public void mismatchedSamplesTest() {
+		// a sample that is only in the cell counts and a sample that is only in the file are both named in the error
+		try{
+			Utils.getSampleColumns(Arrays.asList("s1", "s2", "s4"), Arrays.asList("s1", "s2", "s3"), "genotypes.txt");
+			fail("Different samples should give an error");
+		}
+		catch(RuntimeException e){
+			assertTrue(e.getMessage(), e.getMessage().contains("genotypes.txt samples not in cellcounts (1): [s4]"));
+			assertTrue(e.getMessage(), e.getMessage().contains("cellcount samples not in genotypes.txt (1): [s3]"));
+		}
+		// also an error if the file only has a subset of the samples, or samples that are not in the cell counts
+		for(List<String> fileSamples : Arrays.asList(Arrays.asList("s1", "s2"), Arrays.asList("s1", "s2", "s3", "s4"))){
+			try{
+				Utils.getSampleColumns(fileSamples, Arrays.asList("s1", "s2", "s3"), "genotypes.txt");
+				fail("Different samples should give an error for "+fileSamples);
+			}
+			catch(RuntimeException e){
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Samplenames not the same in genotypes.txt and cellcount file"));
+			}
+		}
+	}
+
+	@Test
+	public void reorderedColumnsRunTest() throws Exception {
+		// a run on expression and genotype files with the sample columns in another order than the cell counts gives
+		// the same results
+		File input = temporaryFolder.getRoot();
+		TestRuns.writeInput(input);
+		File original = temporaryFolder.newFolder("original");
+		TestRuns.run(input, original, "-np", "5");
+		shuffleColumns(TestRuns.getExpression(input), new Random(1));
+		shuffleColumns(TestRuns.getGenotypes(input), new Random(2));
+		File reordered = temporaryFolder.newFolder("reordered");
+		TestRuns.run(input, reordered, "-np", "5");
+		for(String file : new String[] {"deconvolutionResults.csv", "filteredQTLs.csv"}){
+			assertEquals(file, TestRuns.readLines(new File(original, file)), TestRuns.readLines(new File(reordered, file)));
+		}
+	}
+
+	@Test
+	public void geneAndSnpOrderTest() throws Exception {
+		LinkedHashMap<String, ArrayList<String>> geneSnpPairs = getGeneSnpPairs();
+		assertEquals(Arrays.asList("geneA_snpX", "geneA_snp10", "geneA_snpNone1", "geneB_snp2b", "geneB_snpMT", "geneB_snpX",
+				"geneC_snp2a", "geneC_snpNone2", "geneC_snpY", "geneC_snp1"), getQtlNames(Utils.orderGeneSnpPairs(geneSnpPairs, "gene", null)));
+		// SNPs in the order they are first in the snpsToTest file, with all their genes
+		assertEquals(Arrays.asList("geneA_snpX", "geneB_snpX", "geneA_snp10", "geneA_snpNone1", "geneB_snp2b", "geneB_snpMT",
+				"geneC_snp2a", "geneC_snpNone2", "geneC_snpY", "geneC_snp1"), getQtlNames(Utils.orderGeneSnpPairs(geneSnpPairs, "snp", null)));
+	}
+
+	@Test
+	public void positionOrderTest() throws Exception {
+		// numbered chromosomes by number, with or without chr prefix, then the other chromosomes by name, then the SNPs
+		// without position in the order of the snpsToTest file
+		File snpPositionFile = temporaryFolder.newFile("snpPositions.txt");
+		Files.write(snpPositionFile.toPath(), Arrays.asList("snp\tchr\tpos", "snpX\tchrX\t500", "snp10\t10\t100", "snp2a\tchr2\t300",
+				"snp2b\t2\t200", "snpMT\tMT\t5", "snpY\tchrY\t1", "snp1\tchr1\t999999999999", "snpNotTested\t1\t1"), TestRuns.UTF8);
+		assertEquals(Arrays.asList("geneC_snp1", "geneB_snp2b", "geneC_snp2a", "geneA_snp10", "geneB_snpMT", "geneA_snpX", "geneB_snpX",
+				"geneC_snpY", "geneA_snpNone1", "geneC_snpNone2"), 
+				getQtlNames(Utils.orderGeneSnpPairs(getGeneSnpPairs(), "position", snpPositionFile.getAbsolutePath())));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownOrderTest() throws Exception {
+		Utils.orderGeneSnpPairs(getGeneSnpPairs(), "chromosome", null);
+	}
+
+	@Test
+	public void appendTabSeparatedTest() {
+		// same as listToTabSeparatedString, also for values that Double.toString writes in scientific notation
+		double[] values = {0, -0.0, 1, -2.5, 0.1 + 0.2, 1e-300, 4.9e-324, 1.2345678e7, -1e300, Double.NaN,
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		List<Double> valueList = new ArrayList<Double>();
+		for(double value : values){
+			valueList.add(value);
+		}
+		assertEquals(Utils.listToTabSeparatedString(values), Utils.appendTabSeparated(new StringBuilder(), values).toString());
+		assertEquals(Utils.listToTabSeparatedString(valueList), Utils.appendTabSeparated(new StringBuilder(), valueList).toString());
+		List<String> celltypes = Arrays.asList("Neut_Perc", "Lymph_Perc", "Mono_Perc");
+		assertEquals(Utils.listToTabSeparatedString(celltypes, "_pvalue"),
+				Utils.appendTabSeparated(new StringBuilder(), celltypes, "_pvalue").toString());
+		// appended to what is already in the builder
+		assertEquals("QTL\t1.0\t2.0", Utils.appendTabSeparated(new StringBuilder("QTL\t"), new double[] {1, 2}).toString());
+		assertEquals("", Utils.appendTabSeparated(new StringBuilder(), new double[0]).toString());
+	}
+
+	/**
+	 * Gene-SNP pairs in the order of a snpsToTest file
+	 */
+	private static LinkedHashMap<String, ArrayList<String>> getGeneSnpPairs(){
+		LinkedHashMap<String, ArrayList<String>> geneSnpPairs = new LinkedHashMap<String, ArrayList<String>>();
+		geneSnpPairs.put("geneA", new ArrayList<String>(Arrays.asList("snpX", "snp10", "snpNone1")));
+		geneSnpPairs.put("geneB", new ArrayList<String>(Arrays.asList("snp2b", "snpMT", "snpX")));
+		geneSnpPairs.put("geneC", new ArrayList<String>(Arrays.asList("snp2a", "snpNone2", "snpY", "snp1")));
+		return geneSnpPairs;
+	}
+
+	private static List<String> getQtlNames(List<GeneSnpPair> geneSnpPairs){
+		List<String> qtlNames = new ArrayList<String>();
+		for(GeneSnpPair geneSnpPair : geneSnpPairs){
+			qtlNames.add(geneSnpPair.getQtlName());
+		}
+		return qtlNames;
+	}
+
+	/**
+	 * Shuffle the sample columns of a file, the row name stays the first column
+	 */
+	private static void shuffleColumns(File file, Random random) throws Exception{
+		List<String> lines = TestRuns.readLines(file);
+		int numberOfSamples = lines.get(0).split("\t", -1).length - 1;
+		List<Integer> columns = new ArrayList<Integer>();
+		for(int i = 1; i <= numberOfSamples; ++i){
+			columns.add(i);
+		}
+		Collections.shuffle(columns, random);
+		List<String> shuffledLines = new ArrayList<String>();
+		for(String line : lines){
+			String[] row = line.split("\t", -1);
+			StringBuilder shuffledLine = new StringBuilder(row[0]);
+			for(int column : columns){
+				shuffledLine.append('\t').append(row[column]);
+			}
+			shuffledLines.add(shuffledLine.toString());
+		}
+		Files.write(file.toPath(), shuffledLines, TestRuns.UTF8);
+	}
+}